@@ -6,6 +6,7 @@ import com.aliyun.oss.model.OSSObjectSummary
 import com.aliyun.oss.model.ObjectListing
 import com.bertramlabs.plugins.karman.CloudFile
 import com.bertramlabs.plugins.karman.Directory
+import com.bertramlabs.plugins.karman.ListingPage
 import groovy.util.logging.Commons
 
 @Commons
@@ -37,7 +38,27 @@ class AlibabaDirectory extends Directory {
 		}
 
 		ObjectListing objectListing = getOSSClient().listObjects(request)
+		return filesFromListing(objectListing, options)
+	}
+
+	/**
+	 * List a single page of bucket files using the OSS marker as the continuation token
+	 * @param options (prefix, delimiter, pageSize and continuationToken)
+	 */
+	ListingPage listFilesPage(Map options = [:]) {
+		ListObjectsRequest request = new ListObjectsRequest()
+		request.setBucketName(name)
+		request.setPrefix(options?.prefix)
+		request.setDelimiter(options?.delimiter)
+		request.setMarker(options?.continuationToken)
+		request.setMaxKeys((options?.pageSize ?: DEFAULT_PAGE_SIZE) as Integer)
+
+		ObjectListing objectListing = getOSSClient().listObjects(request)
+		String nextMarker = objectListing.isTruncated() ? objectListing.nextMarker : null
+		return new ListingPage(files: filesFromListing(objectListing, options), continuationToken: nextMarker ?: null)
+	}
 
+	private List filesFromListing(ObjectListing objectListing, options) {
 		def files = []
 		if(options.delimiter) {
 			def prefixes = []
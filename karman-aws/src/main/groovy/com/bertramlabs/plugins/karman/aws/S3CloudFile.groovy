@@ -21,6 +21,8 @@ import com.amazonaws.services.s3.Headers
 import com.amazonaws.services.s3.model.*
 import com.bertramlabs.plugins.karman.CloudFile
 import com.bertramlabs.plugins.karman.util.ChunkedInputStream
+import com.bertramlabs.plugins.karman.util.StreamUtils
+import groovy.util.logging.Commons
 import org.apache.http.Header
 import org.apache.http.HttpEntity
 import org.apache.http.HttpHost
@@ -85,6 +87,7 @@ import java.net.URLEncoder
 import java.security.SecureRandom
 import java.security.cert.X509Certificate
 
+@Commons
 class S3CloudFile extends CloudFile {
 
 	S3Directory parent
@@ -96,8 +99,14 @@ class S3CloudFile extends CloudFile {
 	private Boolean loaded = false
 	private Boolean metaDataLoaded = false
 	private Boolean existsFlag = null
+	private ObjectMetadata headMetadata = null
 	private Long internalContentLength = null
 	private Boolean internalContentLengthSet =false
+
+	/**
+	 * Largest object a single CopyObject request can copy
+	 */
+	static final long MAX_COPY_OBJECT_SIZE = 5l * 1024l * 1024l * 1024l
 	/**
 	 * Meta attributes setter/getter
 	 */
@@ -167,23 +176,47 @@ class S3CloudFile extends CloudFile {
 	 * Content length metadata
 	 */
 	Long getContentLength() {
-		if(!metaDataLoaded) {
-			loadObjectMetaData()
+		if(internalContentLengthSet) {
+			return internalContentLength
+		}
+		if(!metaDataLoaded && summary) {
+			//already known from the listing this file came from
+			return summary.size
 		}
-		if(internalContentLengthSet || !exists()) {
+		if(!exists()) {
 			return internalContentLength
 		}
+		if(!metaDataLoaded) {
+			loadObjectMetaData()
+		}
 		s3Object.objectMetadata.contentLength
 	}
 
 	Date getDateModified() {
+		if(!metaDataLoaded && summary) {
+			return summary.lastModified
+		}
+		if(!exists()) {return null}
 		if(!metaDataLoaded) {
 			loadObjectMetaData()
 		}
-		if(!exists()) {return null}
 		return s3Object.objectMetadata.lastModified
 	}
 
+	/**
+	 * ETag of the stored object
+	 */
+	String getETag() {
+		if(!metaDataLoaded && summary) {
+			return summary.ETag
+		}
+		if(!exists()) {return null}
+		if(!metaDataLoaded) {
+			loadObjectMetaData()
+		}
+		return s3Object.objectMetadata.ETag
+	}
+
 	void setContentLength(Long length) {
 		setMetaAttribute(Headers.CONTENT_LENGTH, length)
 		internalContentLength = length
@@ -331,11 +364,60 @@ class S3CloudFile extends CloudFile {
 			HttpEntity entity = response.getEntity()
 			return new BufferedInputStream(entity.content, 8000)
 		} else {
+			S3SegmentedDownloader downloader = getSegmentedDownloader()
+			if(downloader) {
+				return downloader.openStream()
+			}
 			loadObject()
 			return new BufferedInputStream(s3Object.objectContent, 8000)
 		}
 	}
 
+	/**
+	 * Downloads the file to a local file. Large objects are fetched as parallel ranged GETs written straight to
+	 * their offsets when downloadConcurrency is configured on the provider.
+	 * @param targetFile the local file to write, any existing content is replaced
+	 * @return the number of bytes written
+	 */
+	long downloadTo(File targetFile) {
+		S3SegmentedDownloader downloader = getSegmentedDownloader()
+		if(downloader) {
+			return downloader.downloadTo(targetFile)
+		}
+		long total = 0
+		InputStream is = getInputStream()
+		try {
+			targetFile.withOutputStream { OutputStream os ->
+				byte[] buffer = new byte[64 * 1024]
+				int len
+				while((len = is.read(buffer)) != -1) {
+					os.write(buffer, 0, len)
+					total += len
+				}
+			}
+		} finally {
+			is.close()
+		}
+		return total
+	}
+
+	/**
+	 * Returns a segmented downloader if the provider enables it and the object is large enough to benefit,
+	 * otherwise null. Client side encrypted objects are always fetched with a single GET.
+	 */
+	private S3SegmentedDownloader getSegmentedDownloader() {
+		S3StorageProvider s3Provider = parent.provider
+		if(!(s3Provider.downloadConcurrency > 1) || !s3Provider.downloadSegmentSize || s3Provider.symmetricKey || !valid) {
+			return null
+		}
+		//always a fresh HEAD, ranged requests are pinned to the current ETag
+		ObjectMetadata metadata = s3Client.getObjectMetadata(parent.name, name)
+		if(metadata.contentLength <= s3Provider.downloadSegmentSize) {
+			return null
+		}
+		return new S3SegmentedDownloader(s3Client, parent.name, name, metadata.ETag, metadata.contentLength, s3Provider.downloadSegmentSize, s3Provider.downloadConcurrency)
+	}
+
 	/**
 	 * Text setter/getter
 	 * @param encoding
@@ -387,19 +469,7 @@ class S3CloudFile extends CloudFile {
 			if(!name) {
 				return false
 			}
-			//try {
-			ObjectListing objectListing = s3Client.listObjects(parent.name, name)
-			if(objectListing.objectSummaries) {
-				summary = objectListing.objectSummaries.first()
-				existsFlag = true
-			} else {
-				existsFlag = false
-			}
-			//} catch (AmazonS3Exception exception) {
-			//log.warn(exception)
-			//} catch (AmazonClientException exception) {
-			//log.warn(exception)
-			//}
+			existsFlag = headObject() != null
 			existsFlag
 		} else {
 			false
@@ -433,25 +503,111 @@ class S3CloudFile extends CloudFile {
 					cleanupCacheStream(tmpFile)
 				}
 			}
-			object = null
-			summary = null
-			existsFlag = true
+			resetAfterWrite()
+		}
+	}
+
+	/**
+	 * Copies to another S3 object accessible with the same credentials without downloading it. Objects up to 5GB
+	 * are copied with a single CopyObject request, larger ones with a multipart copy of {@code chunkSize} parts.
+	 */
+	@Override
+	protected Boolean nativeCopyTo(CloudFile target) {
+		if(!(target instanceof S3CloudFile) || !sharesCredentials((S3CloudFile) target)) {
+			return false
+		}
+		S3CloudFile s3Target = (S3CloudFile) target
+		ObjectMetadata sourceMetadata = headMetadata ?: headObject()
+		if(sourceMetadata == null) {
+			throw new FileNotFoundException("Unable to copy ${parent.name}/${name}, the object does not exist")
+		}
+		CannedAccessControlList cannedAcl = s3Target.provider?.defaultFileACL ? CannedAccessControlList.values().find { it.toString() == s3Target.provider.defaultFileACL.toString() } : null
+		if(sourceMetadata.contentLength <= MAX_COPY_OBJECT_SIZE) {
+			CopyObjectRequest copyRequest = new CopyObjectRequest(parent.name, name, s3Target.parent.name, s3Target.name)
+			if(cannedAcl) {
+				copyRequest.setCannedAccessControlList(cannedAcl)
+			}
+			s3Target.s3Client.copyObject(copyRequest)
+		} else if(parent.provider.symmetricKey) {
+			//the encryption client can not copy client side encrypted objects in parts
+			return false
+		} else {
+			S3StorageProvider targetProvider = s3Target.parent.provider
+			S3MultipartCopier copier = new S3MultipartCopier(s3Target.s3Client, parent.name, name, s3Target.parent.name, s3Target.name,
+				targetProvider.chunkSize, targetProvider.uploadConcurrency ?: 1)
+			copier.copy(sourceMetadata, cannedAcl)
 		}
+		s3Target.resetAfterWrite()
+		return true
+	}
+
+	/**
+	 * Server side copies need both objects to be reachable with the same client credentials (and client side
+	 * encryption key).
+	 */
+	private boolean sharesCredentials(S3CloudFile target) {
+		S3StorageProvider sourceProvider = parent.provider
+		S3StorageProvider targetProvider = target.parent.provider
+		if(sourceProvider.is(targetProvider)) {
+			return true
+		}
+		return sourceProvider.accessKey && sourceProvider.accessKey == targetProvider.accessKey &&
+			sourceProvider.secretKey == targetProvider.secretKey &&
+			(sourceProvider.stsAssumeRole ?: '') == (targetProvider.stsAssumeRole ?: '') &&
+			(sourceProvider.endpoint ?: '') == (targetProvider.endpoint ?: '') &&
+			(sourceProvider.symmetricKey ?: '') == (targetProvider.symmetricKey ?: '')
+	}
+
+	private void resetAfterWrite() {
+		object = null
+		summary = null
+		headMetadata = null
+		metaDataLoaded = false
+		existsFlag = true
+		parent.provider.metadataCache?.invalidate(parent.name, name)
 	}
 
 	def saveChunked() {
 		Long contentLength = object.objectMetadata.contentLength
+		long partSize = parent.provider.chunkSize; // Set part size to 5 MB.
+
+		if(contentLength && contentLength / 1000l > partSize) {
+			partSize = contentLength / 1000l + 1l
+		}
+		if(parent.provider.uploadConcurrency > 1 && partSize < Integer.MAX_VALUE - 8) {
+			S3MultipartUploader uploader = new S3MultipartUploader(s3Client, parent.name, name, object.objectMetadata, partSize, parent.provider.uploadConcurrency, parent.provider.maxBufferedBytes)
+			uploader.upload(rawSourceStream, contentLength)
+			return
+		}
+
 		List<PartETag> partETags = new ArrayList<PartETag>();
 		InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(parent.name, name);
 		initRequest.setObjectMetadata(object.objectMetadata)
 		InitiateMultipartUploadResult initResponse =
 			s3Client.initiateMultipartUpload(initRequest);
-		long partSize = parent.provider.chunkSize; // Set part size to 5 MB.
-
-		if(contentLength && contentLength / 1000l > partSize) {
-			partSize = contentLength / 1000l + 1l
+		try {
+			uploadPartsSequentially(initResponse.getUploadId(), contentLength, partSize, partETags)
+		} catch(Exception ex) {
+			try {
+				s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(parent.name, name, initResponse.getUploadId()))
+			} catch(Exception abortEx) {
+				log.error("Error aborting multipart upload ${initResponse.getUploadId()} for ${parent.name}/${name}", abortEx)
+			}
+			throw ex
 		}
+		// Step 3: Complete.
+		CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(
+			parent.name,
+			name,
+			initResponse.getUploadId(),
+			partETags);
+
+		s3Client.completeMultipartUpload(compRequest);
+	}
+
+	private void uploadPartsSequentially(String uploadId, Long contentLength, long partSize, List<PartETag> partETags) {
 		ChunkedInputStream chunkedStream = new ChunkedInputStream(rawSourceStream, partSize)
+		byte[] buff = null
 
 		long filePosition = 0
 		int partNumber = 1
@@ -463,7 +619,7 @@ class S3CloudFile extends CloudFile {
 				// Create request to upload a part.
 				UploadPartRequest uploadRequest = new UploadPartRequest()
 					.withBucketName(parent.name).withKey(name)
-					.withUploadId(initResponse.getUploadId()).withPartNumber(partNumber)
+					.withUploadId(uploadId).withPartNumber(partNumber)
 					.withInputStream(chunkedStream)
 
 					.withPartSize(partSize);
@@ -471,9 +627,11 @@ class S3CloudFile extends CloudFile {
 				// Upload part and add response to our list.
 				partETags.add(s3Client.uploadPart(uploadRequest).getPartETag());
 			} else {
-				byte[] buff = new byte[partSize]
+				if(buff == null) {
+					buff = new byte[partSize] //reused for every part
+				}
 				def lessThan = false
-				int count = chunkedStream.read(buff)
+				int count = StreamUtils.readFully(chunkedStream, buff, buff.length)
 				if(count <= 0) {
 					break
 				} else if(count < partSize) {
@@ -484,7 +642,7 @@ class S3CloudFile extends CloudFile {
 				// Create request to upload a part.
 				UploadPartRequest uploadRequest = new UploadPartRequest()
 					.withBucketName(parent.name).withKey(name)
-					.withUploadId(initResponse.getUploadId()).withPartNumber(partNumber)
+					.withUploadId(uploadId).withPartNumber(partNumber)
 					.withInputStream(new ByteArrayInputStream(buff, 0, partSize))
 
 					.withPartSize(partSize);
@@ -501,14 +659,6 @@ class S3CloudFile extends CloudFile {
 			partNumber++
 			chunkedStream.nextChunk()
 		}
-		// Step 3: Complete.
-		CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(
-			parent.name,
-			name,
-			initResponse.getUploadId(),
-			partETags);
-
-		s3Client.completeMultipartUpload(compRequest);
 	}
 
 	/**
@@ -517,7 +667,10 @@ class S3CloudFile extends CloudFile {
 	def delete() {
 		if(valid) {
 			s3Client.deleteObject(parent.name, name)
+			summary = null
+			headMetadata = null
 			existsFlag = false
+			parent.provider.metadataCache?.invalidate(parent.name, name)
 		}
 	}
 
@@ -545,11 +698,42 @@ class S3CloudFile extends CloudFile {
 
 	private void loadObjectMetaData() {
 		if(valid) {
-			s3Object.objectMetadata = s3Client.getObjectMetadata(parent.name, name)
+			ObjectMetadata metadata = headMetadata ?: headObject()
+			if(metadata != null) {
+				//copy so changes made before a save do not leak into the provider's metadata cache
+				s3Object.objectMetadata = metadata.clone()
+			}
 			metaDataLoaded = true
 		}
 	}
 
+	/**
+	 * Fetches the object metadata with a single HEAD request, going through the provider's metadata cache if enabled.
+	 * @return the metadata or null if the object does not exist
+	 */
+	private ObjectMetadata headObject() {
+		S3MetadataCache metadataCache = parent.provider.metadataCache
+		S3MetadataCache.CachedMetadata cached = metadataCache?.get(parent.name, name)
+		if(metadataCache != null) {
+			parent.provider.metrics.count(parent.provider.providerName, cached != null ? 'metadataCache.hit' : 'metadataCache.miss', 1)
+		}
+		if(cached != null) {
+			headMetadata = cached.metadata
+			return headMetadata
+		}
+		ObjectMetadata metadata = null
+		try {
+			metadata = s3Client.getObjectMetadata(parent.name, name)
+		} catch(AmazonS3Exception ex) {
+			if(ex.statusCode != 404) {
+				throw ex
+			}
+		}
+		metadataCache?.put(parent.name, name, metadata)
+		headMetadata = metadata
+		return metadata
+	}
+
 	private boolean isValid() {
 		assert parent
 		assert parent.name
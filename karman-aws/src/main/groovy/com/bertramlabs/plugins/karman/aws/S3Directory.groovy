@@ -19,6 +19,9 @@ package com.bertramlabs.plugins.karman.aws
 import com.amazonaws.services.s3.AmazonS3Client
 import com.amazonaws.services.s3.model.Bucket
 import com.amazonaws.services.s3.model.DeleteBucketRequest
+import com.amazonaws.services.s3.model.DeleteObjectsRequest
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion
+import com.amazonaws.services.s3.model.MultiObjectDeleteException
 import com.amazonaws.services.s3.model.ListObjectsRequest
 import com.amazonaws.services.s3.model.ListVersionsRequest
 import com.amazonaws.services.s3.model.ObjectListing
@@ -26,9 +29,12 @@ import com.amazonaws.services.s3.model.S3ObjectSummary
 import com.amazonaws.services.s3.model.S3VersionSummary
 import com.amazonaws.services.s3.model.VersionListing
 import com.bertramlabs.plugins.karman.CloudFile
+import com.bertramlabs.plugins.karman.DeleteResult
 import com.bertramlabs.plugins.karman.Directory
+import com.bertramlabs.plugins.karman.ListingPage
 
 class S3Directory extends Directory {
+	static final int MAX_DELETE_OBJECTS = 1000
 
 	Bucket bucket
     String region = ''
@@ -49,43 +55,28 @@ class S3Directory extends Directory {
 	}
 
     /**
-     * List bucket files
+     * List bucket files. All pages of the listing are fetched unless a marker or maxKeys option is given, in which
+     * case only that single page is returned.
      * @param options (prefix, marker, delimiter and maxKeys)
      * @return List
      */
 	List listFiles(options = [:]) {
-        ListObjectsRequest request = new ListObjectsRequest(name, options?.prefix, options?.marker, options?.delimiter, options?.maxKeys)
-        ObjectListing objectListing = s3Client.listObjects(request)
-		def files = []
-		if(options.delimiter) {
-			def prefixes = []
-			objectListing.commonPrefixes?.each { String prefix ->
-				if(prefix != options.prefix) {
-                    if(options.prefix) {
-                        prefixes << options.prefix + prefix.substring(options.prefix.length()).split(options.delimiter)[0]    
-                    } else {
-                    	def prefixArgs = prefix.split(options.delimiter)
-                    	if(prefixArgs) {
-                    		prefixes << prefixArgs[0]
-                    	}
-                    }
-				}
-			}
-			prefixes.unique()
-			prefixes?.each { String prefix ->
-				files << cloudFileFromPrefix(prefix)
-			}
-
-
-			objectListing.objectSummaries?.each { S3ObjectSummary summary ->
-				if(summary.key != options.prefix || !options.prefix.endsWith(options.delimiter)) {
-					files << cloudFileFromS3Object(summary)
-				}
-			}
-		} else {
-			files += objectListing.objectSummaries.collect { S3ObjectSummary summary -> cloudFileFromS3Object(summary) }
+		if(options?.marker || options?.maxKeys) {
+			ListObjectsRequest request = new ListObjectsRequest(name, options?.prefix, options?.marker, options?.delimiter, options?.maxKeys)
+			return filesFromListing(s3Client.listObjects(request), options)
 		}
-		return files
+		return iterateFiles(options ?: [:]).toList()
+	}
+
+    /**
+     * List a single page of bucket files using the S3 marker as the continuation token
+     * @param options (prefix, delimiter, pageSize and continuationToken)
+     * @return ListingPage
+     */
+	ListingPage listFilesPage(Map options = [:]) {
+		ListObjectsRequest request = new ListObjectsRequest(name, options?.prefix, options?.continuationToken, options?.delimiter, (options?.pageSize ?: DEFAULT_PAGE_SIZE) as Integer)
+		ObjectListing objectListing = s3Client.listObjects(request)
+		return new ListingPage(files: filesFromListing(objectListing, options), continuationToken: nextMarker(objectListing))
 	}
 
     /**
@@ -103,10 +94,7 @@ class S3Directory extends Directory {
 	def delete() {
 		ObjectListing objectListing = s3Client.listObjects(name);
 		while (true) {
-			Iterator<S3ObjectSummary> objIter = objectListing.getObjectSummaries().iterator();
-			while (objIter.hasNext()) {
-				s3Client.deleteObject(name, objIter.next().getKey());
-			}
+			deleteObjects(objectListing.getObjectSummaries().collect { S3ObjectSummary summary -> new KeyVersion(summary.getKey()) })
 
 			// If the bucket contains many objects, the listObjects() call
 			// might not return all of the objects in the first listing. Check to
@@ -122,11 +110,7 @@ class S3Directory extends Directory {
 		// Delete all object versions (required for versioned buckets).
 		VersionListing versionList = s3Client.listVersions(new ListVersionsRequest().withBucketName(name));
 		while (true) {
-			Iterator<S3VersionSummary> versionIter = versionList.getVersionSummaries().iterator();
-			while (versionIter.hasNext()) {
-				S3VersionSummary vs = versionIter.next();
-				s3Client.deleteVersion(name, vs.getKey(), vs.getVersionId());
-			}
+			deleteObjects(versionList.getVersionSummaries().collect { S3VersionSummary vs -> new KeyVersion(vs.getKey(), vs.getVersionId()) })
 
 			if (versionList.isTruncated()) {
 				versionList = s3Client.listNextBatchOfVersions(versionList);
@@ -137,6 +121,29 @@ class S3Directory extends Directory {
 		s3Client.deleteBucket(name)
 	}
 
+    /**
+     * A single DeleteObjects request removes up to 1000 keys
+     */
+	protected Integer getDeleteBatchSize() {
+		return MAX_DELETE_OBJECTS
+	}
+
+    /**
+     * Deletes the batch with a single DeleteObjects request, recording the per key errors it returns
+     */
+	protected void deleteBatch(List<String> keys, DeleteResult result) {
+		Map<String, String> errors = deleteObjects(keys.collect { String key -> new KeyVersion(key) }, false)
+		S3MetadataCache metadataCache = provider.metadataCache
+		keys.each { String key ->
+			metadataCache?.invalidate(name, key)
+			if(errors.containsKey(key)) {
+				result.failed(key, errors[key])
+			} else {
+				result.deleted(key)
+			}
+		}
+	}
+
 	CloudFile getFile(String name) {
 		new S3CloudFile(
                 provider: provider,
@@ -147,6 +154,59 @@ class S3Directory extends Directory {
 
     // PRIVATE
 
+	private List filesFromListing(ObjectListing objectListing, options) {
+		def files = []
+		if(options.delimiter) {
+			def prefixes = []
+			objectListing.commonPrefixes?.each { String prefix ->
+				if(prefix != options.prefix) {
+                    if(options.prefix) {
+                        prefixes << options.prefix + prefix.substring(options.prefix.length()).split(options.delimiter)[0]    
+                    } else {
+                    	def prefixArgs = prefix.split(options.delimiter)
+                    	if(prefixArgs) {
+                    		prefixes << prefixArgs[0]
+                    	}
+                    }
+				}
+			}
+			prefixes.unique()
+			prefixes?.each { String prefix ->
+				files << cloudFileFromPrefix(prefix)
+			}
+
+
+			objectListing.objectSummaries?.each { S3ObjectSummary summary ->
+				if(summary.key != options.prefix || !options.prefix.endsWith(options.delimiter)) {
+					files << cloudFileFromS3Object(summary)
+				}
+			}
+		} else {
+			files += objectListing.objectSummaries.collect { S3ObjectSummary summary -> cloudFileFromS3Object(summary) }
+		}
+		return files
+	}
+
+	/**
+	 * S3 only returns a NextMarker when listing with a delimiter. Otherwise the last key of the page is the marker.
+	 */
+	private String nextMarker(ObjectListing objectListing) {
+		if(!objectListing.isTruncated()) {
+			return null
+		}
+		if(objectListing.nextMarker) {
+			return objectListing.nextMarker
+		}
+		List<String> lastKeys = []
+		if(objectListing.objectSummaries) {
+			lastKeys << objectListing.objectSummaries.last().key
+		}
+		if(objectListing.commonPrefixes) {
+			lastKeys << objectListing.commonPrefixes.last()
+		}
+		return lastKeys ? lastKeys.max() : null
+	}
+
     private S3CloudFile cloudFileFromS3Object(S3ObjectSummary summary) {
         new S3CloudFile(
                 provider: provider,
@@ -168,6 +228,30 @@ class S3Directory extends Directory {
 		)
 	}
 
+    /**
+     * Deletes up to 1000 keys (or key versions) with a quiet DeleteObjects request
+     * @param failOnError throw if any key could not be deleted instead of returning the errors
+     * @return the keys that could not be deleted mapped to their error
+     */
+    private Map<String, String> deleteObjects(List<KeyVersion> keys, boolean failOnError = true) {
+        if(!keys) {
+            return [:]
+        }
+        try {
+            s3Client.deleteObjects(new DeleteObjectsRequest(name).withKeys(keys).withQuiet(true))
+            return [:]
+        } catch(MultiObjectDeleteException ex) {
+            if(failOnError) {
+                throw ex
+            }
+            Map<String, String> errors = [:]
+            ex.errors.each { MultiObjectDeleteException.DeleteError error ->
+                errors[error.key] = "${error.code}: ${error.message}".toString()
+            }
+            return errors
+        }
+    }
+
     private AmazonS3Client getS3Client(String region = '') {
         provider.s3Client
     }
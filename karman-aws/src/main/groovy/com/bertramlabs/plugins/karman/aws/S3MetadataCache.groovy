@@ -0,0 +1,65 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.services.s3.model.ObjectMetadata
+import groovy.transform.CompileStatic
+
+/**
+ * Bounded, TTL based cache of object metadata from HEAD requests, including negative (missing object) results.
+ * Entries written or deleted through the provider are invalidated directly; changes made by other clients are only
+ * seen once the entry expires.
+ */
+@CompileStatic
+class S3MetadataCache {
+	long ttl
+	int maxEntries
+
+	private final LinkedHashMap<String, CachedMetadata> entries
+
+	S3MetadataCache(long ttl, int maxEntries) {
+		this.ttl = ttl
+		this.maxEntries = Math.max(1, maxEntries)
+		final int limit = this.maxEntries
+		entries = new LinkedHashMap<String, CachedMetadata>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, S3MetadataCache.CachedMetadata> eldest) {
+				return size() > limit
+			}
+		}
+	}
+
+	/**
+	 * @return the cached result, or null if nothing is cached or it expired. A cached result with null metadata
+	 * means the object did not exist.
+	 */
+	synchronized CachedMetadata get(String bucketName, String key) {
+		String cacheKey = bucketName + '/' + key
+		CachedMetadata cached = entries.get(cacheKey)
+		if(cached != null && cached.expiresAt < System.currentTimeMillis()) {
+			entries.remove(cacheKey)
+			return null
+		}
+		return cached
+	}
+
+	synchronized void put(String bucketName, String key, ObjectMetadata metadata) {
+		entries.put(bucketName + '/' + key, new CachedMetadata(metadata, System.currentTimeMillis() + ttl))
+	}
+
+	synchronized void invalidate(String bucketName, String key) {
+		entries.remove(bucketName + '/' + key)
+	}
+
+	synchronized void clear() {
+		entries.clear()
+	}
+
+	static class CachedMetadata {
+		final ObjectMetadata metadata
+		final long expiresAt
+
+		CachedMetadata(ObjectMetadata metadata, long expiresAt) {
+			this.metadata = metadata
+			this.expiresAt = expiresAt
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest
+import com.amazonaws.services.s3.model.CannedAccessControlList
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest
+import com.amazonaws.services.s3.model.CopyPartRequest
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.PartETag
+import com.bertramlabs.plugins.karman.util.BoundedUploadPipeline
+import groovy.transform.CompileStatic
+import groovy.util.logging.Commons
+
+import java.util.concurrent.Callable
+
+/**
+ * Server side copy of an object larger than the 5GB CopyObject limit. The target is created as a multipart upload
+ * whose parts are copied from byte ranges of the source with {@code UploadPartCopy}, several parts at once. No data
+ * passes through the client, and the upload is aborted if any part fails.
+ */
+@Commons
+@CompileStatic
+class S3MultipartCopier {
+	static final int MAX_PARTS = 10000
+	static final long MIN_PART_SIZE = 5l * 1024l * 1024l
+	static final long MAX_PART_SIZE = 5l * 1024l * 1024l * 1024l
+
+	AmazonS3 s3Client
+	String sourceBucket
+	String sourceKey
+	String targetBucket
+	String targetKey
+	long partSize
+	int concurrency
+
+	/**
+	 * @param partSize preferred part size, raised if the object would need more than 10000 parts
+	 * @param concurrency maximum number of parts copied at once
+	 */
+	S3MultipartCopier(AmazonS3 s3Client, String sourceBucket, String sourceKey, String targetBucket, String targetKey, long partSize, int concurrency) {
+		this.s3Client = s3Client
+		this.sourceBucket = sourceBucket
+		this.sourceKey = sourceKey
+		this.targetBucket = targetBucket
+		this.targetKey = targetKey
+		this.partSize = Math.min(MAX_PART_SIZE, Math.max(MIN_PART_SIZE, partSize))
+		this.concurrency = Math.max(1, concurrency)
+	}
+
+	/**
+	 * Copies the source object.
+	 * @param sourceMetadata metadata of the source object, its content type and user metadata are carried over
+	 * @param cannedAcl canned acl of the target, or null for the bucket default
+	 */
+	void copy(ObjectMetadata sourceMetadata, CannedAccessControlList cannedAcl) {
+		long contentLength = sourceMetadata.getContentLength()
+		long copyPartSize = Math.max(partSize, Math.floorDiv(contentLength, (long) MAX_PARTS) + 1l)
+
+		InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(targetBucket, targetKey)
+		initRequest.setObjectMetadata(targetMetadata(sourceMetadata))
+		if(cannedAcl != null) {
+			initRequest.setCannedACL(cannedAcl)
+		}
+		String uploadId = s3Client.initiateMultipartUpload(initRequest).getUploadId()
+
+		BoundedUploadPipeline<PartETag> pipeline = new BoundedUploadPipeline<PartETag>("karman-s3-copy", concurrency)
+		try {
+			long position = 0
+			int partNumber = 1
+			while(position < contentLength) {
+				long lastByte = Math.min(position + copyPartSize, contentLength) - 1
+				pipeline.submit(copyPart(uploadId, partNumber, position, lastByte))
+				position = lastByte + 1
+				partNumber++
+			}
+			List<PartETag> partETags = pipeline.awaitAll()
+			s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(targetBucket, targetKey, uploadId, partETags))
+		} catch(Throwable t) {
+			pipeline.cancel()
+			try {
+				s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(targetBucket, targetKey, uploadId))
+			} catch(Exception abortEx) {
+				log.error("Error aborting multipart copy ${uploadId} for ${targetBucket}/${targetKey}", abortEx)
+			}
+			throw t
+		} finally {
+			pipeline.close()
+		}
+	}
+
+	private Callable<PartETag> copyPart(final String uploadId, final int partNumber, final long firstByte, final long lastByte) {
+		return new Callable<PartETag>() {
+			@Override
+			PartETag call() throws Exception {
+				CopyPartRequest request = new CopyPartRequest()
+					.withSourceBucketName(sourceBucket).withSourceKey(sourceKey)
+					.withDestinationBucketName(targetBucket).withDestinationKey(targetKey)
+					.withUploadId(uploadId).withPartNumber(partNumber)
+					.withFirstByte(firstByte).withLastByte(lastByte)
+				return s3Client.copyPart(request).getPartETag()
+			}
+		}
+	}
+
+	/**
+	 * Only the writeable properties of the source are carried over, the initiate request must not send its length
+	 * or ETag.
+	 */
+	private static ObjectMetadata targetMetadata(ObjectMetadata sourceMetadata) {
+		ObjectMetadata metadata = new ObjectMetadata()
+		if(sourceMetadata.getContentType()) {
+			metadata.setContentType(sourceMetadata.getContentType())
+		}
+		if(sourceMetadata.getCacheControl()) {
+			metadata.setCacheControl(sourceMetadata.getCacheControl())
+		}
+		if(sourceMetadata.getContentDisposition()) {
+			metadata.setContentDisposition(sourceMetadata.getContentDisposition())
+		}
+		if(sourceMetadata.getContentEncoding()) {
+			metadata.setContentEncoding(sourceMetadata.getContentEncoding())
+		}
+		if(sourceMetadata.getUserMetadata()) {
+			metadata.setUserMetadata(new HashMap<String, String>(sourceMetadata.getUserMetadata()))
+		}
+		return metadata
+	}
+}
@@ -0,0 +1,117 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.PartETag
+import com.amazonaws.services.s3.model.UploadPartRequest
+import com.bertramlabs.plugins.karman.util.BoundedUploadPipeline
+import com.bertramlabs.plugins.karman.util.StreamUtils
+import groovy.transform.CompileStatic
+import groovy.util.logging.Commons
+
+import java.util.concurrent.Callable
+
+/**
+ * Uploads a stream to S3 as a multipart upload with several parts in flight at once. Parts are read by the calling
+ * thread into a bounded pool of reusable buffers and uploaded by a fixed pool of workers, so memory use is capped at
+ * {@code bufferCount * partSize} regardless of the object size. Part ETags are collected in part order for the
+ * completion request and the upload is aborted if any part fails.
+ */
+@Commons
+@CompileStatic
+class S3MultipartUploader {
+	AmazonS3 s3Client
+	String bucketName
+	String key
+	ObjectMetadata objectMetadata
+	long partSize
+	int concurrency
+	int bufferCount
+
+	/**
+	 * @param partSize size of each part (the last part may be smaller)
+	 * @param concurrency maximum number of parts uploaded at once
+	 * @param maxBufferedBytes maximum memory used for part buffers, null for one buffer per worker plus one being filled
+	 */
+	S3MultipartUploader(AmazonS3 s3Client, String bucketName, String key, ObjectMetadata objectMetadata, long partSize, int concurrency, Long maxBufferedBytes) {
+		if(partSize > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Part size ${partSize} is too large to buffer in memory")
+		}
+		this.s3Client = s3Client
+		this.bucketName = bucketName
+		this.key = key
+		this.objectMetadata = objectMetadata
+		this.partSize = partSize
+		this.concurrency = Math.max(1, concurrency)
+		if(maxBufferedBytes) {
+			this.bufferCount = (int) Math.max(1l, Math.min((long) this.concurrency + 1l, Math.floorDiv(maxBufferedBytes.longValue(), partSize)))
+		} else {
+			this.bufferCount = this.concurrency + 1
+		}
+	}
+
+	/**
+	 * Uploads the stream until it is exhausted or {@code contentLength} bytes have been read.
+	 * @param contentLength expected length of the object, or null if unknown
+	 */
+	void upload(InputStream sourceStream, Long contentLength) {
+		InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucketName, key)
+		initRequest.setObjectMetadata(objectMetadata)
+		String uploadId = s3Client.initiateMultipartUpload(initRequest).getUploadId()
+
+		BoundedUploadPipeline<PartETag> pipeline = new BoundedUploadPipeline<PartETag>("karman-s3-upload", Math.min(concurrency, bufferCount), bufferCount, (int) partSize)
+		try {
+			long filePosition = 0
+			int partNumber = 1
+			while(contentLength == null || filePosition < contentLength || partNumber == 1) {
+				byte[] buffer = pipeline.takeBuffer()
+				int maxLength = contentLength != null ? (int) Math.min(partSize, contentLength - filePosition) : buffer.length
+				int count = StreamUtils.readFully(sourceStream, buffer, maxLength)
+				if(count <= 0 && partNumber > 1) {
+					pipeline.returnBuffer(buffer)
+					break
+				}
+				pipeline.submit(buffer, uploadPart(uploadId, partNumber, buffer, count))
+				filePosition += count
+				partNumber++
+				if(count < maxLength) {
+					break //end of stream
+				}
+			}
+
+			List<PartETag> partETags = pipeline.awaitAll()
+			s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags))
+		} catch(Throwable t) {
+			pipeline.cancel()
+			abort(uploadId)
+			throw t
+		} finally {
+			pipeline.close()
+		}
+	}
+
+	private Callable<PartETag> uploadPart(final String uploadId, final int partNumber, final byte[] buffer, final int length) {
+		return new Callable<PartETag>() {
+			@Override
+			PartETag call() throws Exception {
+				UploadPartRequest uploadRequest = new UploadPartRequest()
+					.withBucketName(bucketName).withKey(key)
+					.withUploadId(uploadId).withPartNumber(partNumber)
+					.withInputStream(new ByteArrayInputStream(buffer, 0, length))
+					.withPartSize(length)
+				return s3Client.uploadPart(uploadRequest).getPartETag()
+			}
+		}
+	}
+
+	private void abort(String uploadId) {
+		try {
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId))
+		} catch(Exception ex) {
+			log.error("Error aborting multipart upload ${uploadId} for ${bucketName}/${key}", ex)
+		}
+	}
+}
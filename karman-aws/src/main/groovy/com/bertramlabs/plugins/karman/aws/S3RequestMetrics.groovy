@@ -0,0 +1,110 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.AmazonClientException
+import com.amazonaws.AmazonWebServiceRequest
+import com.amazonaws.Request
+import com.amazonaws.Response
+import com.amazonaws.handlers.HandlerContextKey
+import com.amazonaws.handlers.RequestHandler2
+import com.amazonaws.http.HttpMethodName
+import com.amazonaws.retry.PredefinedRetryPolicies
+import com.amazonaws.retry.RetryPolicy
+import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.metrics.NoopStorageMetrics
+import com.bertramlabs.plugins.karman.metrics.OperationTimer
+import com.bertramlabs.plugins.karman.metrics.StorageMetrics
+import groovy.transform.CompileStatic
+
+/**
+* Reports the requests of the S3 client to the provider's {@link StorageMetrics}, with the request name as the
+* operation (i.e. {@code GetObject}, {@code PutObject}, {@code UploadPart}). A request is timed once including its
+* retries, the bytes are taken from the {@code Content-Length} of uploads and of GET responses. The timer travels with
+* the request as handler context, so a request the SDK drops without calling back leaves nothing behind.
+*/
+@CompileStatic
+class S3RequestMetrics extends RequestHandler2 {
+	private static final HandlerContextKey<OperationTimer> TIMER = new HandlerContextKey<OperationTimer>('KarmanOperationTimer')
+
+	private final StorageProvider provider
+
+	S3RequestMetrics(StorageProvider provider) {
+		this.provider = provider
+	}
+
+	@Override
+	void beforeRequest(Request<?> request) {
+		StorageMetrics metrics = OperationTimer.metricsOf(provider)
+		if(metrics instanceof NoopStorageMetrics) {
+			return
+		}
+		request.addHandlerContext(TIMER, OperationTimer.start(metrics, OperationTimer.nameOf(provider), operationOf(request.getOriginalRequest())))
+	}
+
+	@Override
+	void afterResponse(Request<?> request, Response<?> response) {
+		OperationTimer timer = request.getHandlerContext(TIMER)
+		if(timer == null) {
+			return
+		}
+		timer.stop()
+		long written = contentLength(request.getHeaders(), 'x-amz-decoded-content-length')
+		if(written < 0) {
+			written = contentLength(request.getHeaders(), 'Content-Length')
+		}
+		if(written > 0) {
+			timer.metrics.bytesWritten(timer.provider, timer.operation, written)
+		}
+		if(request.getHttpMethod() == HttpMethodName.GET && response?.getHttpResponse() != null) {
+			long read = contentLength(response.getHttpResponse().getHeaders(), 'Content-Length')
+			if(read > 0) {
+				timer.metrics.bytesRead(timer.provider, timer.operation, read)
+			}
+		}
+	}
+
+	@Override
+	void afterError(Request<?> request, Response<?> response, Exception e) {
+		request.getHandlerContext(TIMER)?.stop(e)
+	}
+
+	/**
+	* The SDK default retry policy, reporting each retry.
+	*/
+	static RetryPolicy retryPolicy(final StorageProvider provider) {
+		RetryPolicy.RetryCondition condition = new RetryPolicy.RetryCondition() {
+			@Override
+			boolean shouldRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception, int retriesAttempted) {
+				boolean retry = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(originalRequest, exception, retriesAttempted)
+				if(retry) {
+					OperationTimer.metricsOf(provider).retried(OperationTimer.nameOf(provider), operationOf(originalRequest))
+				}
+				return retry
+			}
+		}
+		return new RetryPolicy(condition, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true)
+	}
+
+	static String operationOf(AmazonWebServiceRequest originalRequest) {
+		if(originalRequest == null) {
+			return 'unknown'
+		}
+		String requestName = originalRequest.getClass().getSimpleName()
+		return requestName.endsWith('Request') ? requestName.substring(0, requestName.length() - 7) : requestName
+	}
+
+	private static long contentLength(Map<String, String> headers, String name) {
+		if(headers == null) {
+			return -1
+		}
+		for(Map.Entry<String, String> header : headers.entrySet()) {
+			if(header.key.equalsIgnoreCase(name) && header.value) {
+				try {
+					return Long.parseLong(header.value.trim())
+				} catch(NumberFormatException ex) {
+					return -1
+				}
+			}
+		}
+		return -1
+	}
+}
@@ -0,0 +1,304 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.GetObjectRequest
+import com.amazonaws.services.s3.model.S3Object
+import com.bertramlabs.plugins.karman.util.DaemonThreadFactory
+import com.bertramlabs.plugins.karman.util.StreamUtils
+import groovy.transform.CompileStatic
+import groovy.util.logging.Commons
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Downloads an S3 object as parallel ranged GETs. Each segment is retried on its own if a request fails, and all
+ * requests are pinned to the ETag of the object so a concurrent overwrite fails the download instead of mixing
+ * versions.
+ * <p>
+ * {@link #openStream()} hands the segments back as a single ordered stream, holding at most {@code bufferCount}
+ * segments in memory while later segments are being fetched. {@link #downloadTo(File)} writes every segment straight
+ * to its offset in a local file instead.
+ * </p>
+ */
+@Commons
+@CompileStatic
+class S3SegmentedDownloader {
+	private static final int MAX_ATTEMPTS = 3
+
+	AmazonS3 s3Client
+	String bucketName
+	String key
+	String eTag
+	long contentLength
+	long segmentSize
+	int concurrency
+	int bufferCount
+
+	/**
+	 * @param eTag the ETag every ranged request must match, or null to skip the check
+	 * @param segmentSize size of each ranged request
+	 * @param concurrency number of segments fetched at once
+	 */
+	S3SegmentedDownloader(AmazonS3 s3Client, String bucketName, String key, String eTag, long contentLength, long segmentSize, int concurrency) {
+		if(segmentSize > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Segment size ${segmentSize} is too large to buffer in memory")
+		}
+		this.s3Client = s3Client
+		this.bucketName = bucketName
+		this.key = key
+		this.eTag = eTag
+		this.contentLength = contentLength
+		this.segmentSize = segmentSize
+		this.concurrency = Math.max(1, concurrency)
+		this.bufferCount = this.concurrency * 2
+	}
+
+	long getSegmentCount() {
+		return contentLength == 0 ? 0 : Math.floorDiv(contentLength - 1, segmentSize) + 1
+	}
+
+	/**
+	 * Opens the object as a single ordered stream backed by parallel ranged GETs. The stream must be closed to stop
+	 * outstanding requests.
+	 */
+	InputStream openStream() {
+		return new SegmentedInputStream()
+	}
+
+	/**
+	 * Downloads the object into a local file, writing each segment at its offset as it arrives.
+	 * @return the number of bytes written
+	 */
+	long downloadTo(File targetFile) {
+		FileChannel channel = FileChannel.open(targetFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+		ExecutorService executor = createExecutor()
+		List<Future<Object>> segments = []
+		try {
+			for(long segment = 0; segment < segmentCount; segment++) {
+				final long start = segment * segmentSize
+				final long end = Math.min(contentLength, start + segmentSize) - 1
+				segments << executor.submit(new Callable<Object>() {
+					@Override
+					Object call() throws Exception {
+						fetchWithRetry(start, end) { InputStream rangeStream ->
+							byte[] chunk = new byte[64 * 1024]
+							long position = start
+							int c
+							while((c = rangeStream.read(chunk)) != -1) {
+								ByteBuffer byteBuffer = ByteBuffer.wrap(chunk, 0, c)
+								while(byteBuffer.hasRemaining()) {
+									position += channel.write(byteBuffer, position)
+								}
+							}
+							if(position != end + 1) {
+								throw new IOException("Incomplete segment ${start}-${end} of ${bucketName}/${key}")
+							}
+						}
+						return null
+					}
+				})
+			}
+			for(Future<Object> segment : segments) {
+				await(segment)
+			}
+			channel.truncate(contentLength)
+			return contentLength
+		} finally {
+			for(Future<Object> segment : segments) {
+				segment.cancel(true)
+			}
+			executor.shutdownNow()
+			channel.close()
+		}
+	}
+
+	private byte[] fetchSegment(long start, long end, byte[] buffer) {
+		int length = (int) (end - start + 1)
+		fetchWithRetry(start, end) { InputStream rangeStream ->
+			int total = StreamUtils.readFully(rangeStream, buffer, length)
+			if(total < length) {
+				throw new IOException("Incomplete segment ${start}-${end} of ${bucketName}/${key}")
+			}
+		}
+		return buffer
+	}
+
+	/**
+	 * Opens a ranged GET and passes its content to the consumer, restarting the whole range if the request or the
+	 * consumer fails.
+	 */
+	private void fetchWithRetry(long start, long end, Closure consumer) {
+		int attempts = 0
+		while(true) {
+			S3Object rangeObject = null
+			try {
+				GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(start, end)
+				if(eTag) {
+					request.withMatchingETagConstraint(eTag)
+				}
+				rangeObject = s3Client.getObject(request)
+				if(rangeObject == null) {
+					throw new ObjectChangedException("Object ${bucketName}/${key} changed during download")
+				}
+				consumer.call(rangeObject.getObjectContent())
+				return
+			} catch(InterruptedIOException | ObjectChangedException e) {
+				throw e
+			} catch(Exception e) {
+				attempts++
+				if(attempts >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+					throw e
+				}
+				log.warn("Error downloading segment ${start}-${end} of ${bucketName}/${key}...retrying: ${e.message}")
+				Thread.sleep(1000l * attempts)
+			} finally {
+				if(rangeObject != null) {
+					try {
+						rangeObject.close()
+					} catch(Exception ignore) {
+						//ignore
+					}
+				}
+			}
+		}
+	}
+
+	private ExecutorService createExecutor() {
+		return Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("karman-s3-download"))
+	}
+
+	private static <T> T await(Future<T> future) {
+		try {
+			return future.get()
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause()
+			if(cause instanceof IOException) {
+				throw (IOException) cause
+			}
+			throw new IOException("Error downloading segment", cause)
+		}
+	}
+
+	private static class ObjectChangedException extends IOException {
+		ObjectChangedException(String message) {
+			super(message)
+		}
+	}
+
+	/**
+	 * Ordered stream over the segments. Up to {@code bufferCount} segments are requested ahead of the reader, which
+	 * bounds the reorder buffer when later segments complete before earlier ones.
+	 */
+	private class SegmentedInputStream extends InputStream {
+		private final ExecutorService executor = createExecutor()
+		private final ArrayDeque<Future<byte[]>> pendingSegments = new ArrayDeque<Future<byte[]>>()
+		private final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(bufferCount + 1)
+		private long nextSegment = 0
+		private byte[] currentSegment = null
+		private int currentLength = 0
+		private int currentPosition = 0
+		private long consumedSegments = 0
+		private boolean closed = false
+
+		SegmentedInputStream() {
+			fillWindow()
+		}
+
+		@Override
+		int read() throws IOException {
+			byte[] single = new byte[1]
+			int c = read(single, 0, 1)
+			return c == -1 ? -1 : (single[0] & 0xff)
+		}
+
+		@Override
+		int read(byte[] b, int off, int len) throws IOException {
+			if(closed) {
+				throw new IOException("Stream closed")
+			}
+			if(len == 0) {
+				return 0
+			}
+			if(currentSegment == null || currentPosition >= currentLength) {
+				if(!nextCurrentSegment()) {
+					return -1
+				}
+			}
+			int toCopy = Math.min(len, currentLength - currentPosition)
+			System.arraycopy(currentSegment, currentPosition, b, off, toCopy)
+			currentPosition += toCopy
+			return toCopy
+		}
+
+		@Override
+		int available() {
+			return currentSegment == null ? 0 : currentLength - currentPosition
+		}
+
+		@Override
+		void close() {
+			if(closed) {
+				return
+			}
+			closed = true
+			for(Future<byte[]> pending : pendingSegments) {
+				pending.cancel(true)
+			}
+			pendingSegments.clear()
+			executor.shutdownNow()
+			currentSegment = null
+			bufferPool.clear()
+		}
+
+		private boolean nextCurrentSegment() {
+			if(currentSegment != null) {
+				bufferPool.offer(currentSegment)
+				currentSegment = null
+			}
+			fillWindow()
+			Future<byte[]> next = pendingSegments.pollFirst()
+			if(next == null) {
+				return false
+			}
+			try {
+				currentSegment = await(next)
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt()
+				throw new InterruptedIOException("Interrupted while waiting for segment")
+			}
+			long start = consumedSegments * segmentSize
+			currentLength = (int) (Math.min(contentLength, start + segmentSize) - start)
+			currentPosition = 0
+			consumedSegments++
+			fillWindow()
+			return true
+		}
+
+		private void fillWindow() {
+			while(nextSegment < segmentCount && pendingSegments.size() < bufferCount) {
+				final long start = nextSegment * segmentSize
+				final long end = Math.min(contentLength, start + segmentSize) - 1
+				pendingSegments.addLast(executor.submit(new Callable<byte[]>() {
+					@Override
+					byte[] call() throws Exception {
+						byte[] buffer = bufferPool.poll()
+						if(buffer == null) {
+							buffer = new byte[(int) segmentSize]
+						}
+						return fetchSegment(start, end, buffer)
+					}
+				}))
+				nextSegment++
+			}
+		}
+	}
+}
@@ -96,6 +96,31 @@ class S3StorageProvider extends StorageProvider {
 	private Date clientExpires=null
     AmazonS3Client client = null
     Long chunkSize = 100l*1024l*1024l
+    /**
+     * Number of multipart upload parts sent concurrently, 1 uploads parts one after another
+     */
+    Integer uploadConcurrency = 1
+    /**
+     * Maximum bytes held in part buffers by a concurrent multipart upload, defaults to (uploadConcurrency + 1) * chunkSize
+     */
+    Long maxBufferedBytes
+    /**
+     * Number of ranged GETs used concurrently to download objects larger than downloadSegmentSize, 1 uses a single GET
+     */
+    Integer downloadConcurrency = 1
+    /**
+     * Size of each ranged GET of a segmented download
+     */
+    Long downloadSegmentSize = 16l*1024l*1024l
+    /**
+     * Time in milliseconds object metadata and missing object results from HEAD requests are cached, 0 disables the cache
+     */
+    Long metadataCacheTtl = 0l
+    /**
+     * Maximum number of objects kept in the metadata cache
+     */
+    Integer metadataCacheSize = 10000
+    private S3MetadataCache metadataCache
 
     static {
          sslcontext = new SSLContextBuilder().loadTrustMaterial(null, new TrustStrategy() {
@@ -152,9 +177,28 @@ class S3StorageProvider extends StorageProvider {
         proxyDomain = options.proxyDomain ?: proxyDomain
         proxyWorkstation = options.proxyWorkstation ?: proxyWorkstation
         chunkSize = options.chunkSize ?: chunkSize
+        uploadConcurrency = options.uploadConcurrency ?: uploadConcurrency
+        maxBufferedBytes = options.maxBufferedBytes ?: maxBufferedBytes
+        downloadConcurrency = options.downloadConcurrency ?: downloadConcurrency
+        downloadSegmentSize = options.downloadSegmentSize ?: downloadSegmentSize
+        metadataCacheTtl = options.metadataCacheTtl ?: metadataCacheTtl
+        metadataCacheSize = options.metadataCacheSize ?: metadataCacheSize
 		tempDir = options.tempDir ?: tempDir
     }
 
+    /**
+     * Returns the metadata cache, or null if it is not enabled with metadataCacheTtl
+     */
+    synchronized S3MetadataCache getMetadataCache() {
+        if(!metadataCacheTtl || metadataCacheTtl <= 0) {
+            return null
+        }
+        if(metadataCache == null) {
+            metadataCache = new S3MetadataCache(metadataCacheTtl, metadataCacheSize ?: 10000)
+        }
+        return metadataCache
+    }
+
     Directory getDirectory(String name) {
         new S3Directory(name: name, provider: this)
     }
@@ -248,6 +292,7 @@ class S3StorageProvider extends StorageProvider {
 
 
         configuration.setUseGzip(useGzip)
+        configuration.setRetryPolicy(S3RequestMetrics.retryPolicy(this))
 		if (endpoint) {
 			configuration.getApacheHttpClientConfig().setSslSocketFactory(sslConnectionFactory)
 		}
@@ -282,6 +327,7 @@ class S3StorageProvider extends StorageProvider {
 
         }
 		client.setS3ClientOptions(clientOptions)
+		client.addRequestHandler(new S3RequestMetrics(this))
 
         if (region) {
             Region region = RegionUtils.getRegion(region)
@@ -317,6 +363,7 @@ class S3StorageProvider extends StorageProvider {
         if(client) {
             client.shutdown()
         }
+        metadataCache?.clear()
     }
 
     // PRIVATE
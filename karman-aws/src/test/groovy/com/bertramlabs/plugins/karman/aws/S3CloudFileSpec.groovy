@@ -0,0 +1,162 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.auth.BasicAWSCredentials
+import com.amazonaws.services.s3.AmazonS3Client
+import com.amazonaws.services.s3.model.AmazonS3Exception
+import com.amazonaws.services.s3.model.ObjectListing
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.S3ObjectSummary
+import spock.lang.Specification
+
+class S3CloudFileSpec extends Specification {
+	HeadCountingS3Client s3Client = new HeadCountingS3Client()
+
+	private S3StorageProvider provider(Map options = [:]) {
+		S3StorageProvider provider = new S3StorageProvider([accessKey: 'access', secretKey: 'secret'] + options)
+		provider.client = s3Client
+		return provider
+	}
+
+	private static ObjectMetadata metadata(long length, String eTag) {
+		ObjectMetadata metadata = new ObjectMetadata()
+		metadata.setContentLength(length)
+		metadata.setHeader('ETag', eTag)
+		metadata.setLastModified(new Date(1000l))
+		return metadata
+	}
+
+	def "exists is answered by a single HEAD request instead of a prefix listing"() {
+		given:
+		s3Client.objects['bucket/abcd'] = metadata(10, 'etag-abcd')
+		def directory = provider()['bucket']
+
+		expect:
+		!directory['abc'].exists()
+		directory['abcd'].exists()
+		s3Client.heads == 2
+		s3Client.listings == 0
+	}
+
+	def "the metadata of an existing file reuses the HEAD of exists"() {
+		given:
+		s3Client.objects['bucket/file.txt'] = metadata(42, 'etag-1')
+		def file = provider()['bucket']['file.txt']
+
+		expect:
+		file.exists()
+		file.contentLength == 42
+		file.ETag == 'etag-1'
+		file.dateModified == new Date(1000l)
+		s3Client.heads == 1
+	}
+
+	def "files from a listing answer from their summary without requests"() {
+		given:
+		def provider = provider()
+		S3ObjectSummary summary = new S3ObjectSummary(bucketName: 'bucket', key: 'listed.txt', size: 7, ETag: 'etag-listed', lastModified: new Date(2000l))
+		def file = new S3CloudFile(provider: provider, parent: provider['bucket'], name: 'listed.txt', summary: summary)
+
+		expect:
+		file.contentLength == 7
+		file.ETag == 'etag-listed'
+		file.dateModified == new Date(2000l)
+		s3Client.heads == 0
+	}
+
+	def "a missing object has no metadata"() {
+		given:
+		def file = provider()['bucket']['missing.txt']
+
+		expect:
+		!file.exists()
+		file.dateModified == null
+		file.ETag == null
+		s3Client.heads == 1
+	}
+
+	def "the metadata cache shares HEAD results, including missing objects, between files"() {
+		given:
+		s3Client.objects['bucket/file.txt'] = metadata(42, 'etag-1')
+		def directory = provider(metadataCacheTtl: 60000l)['bucket']
+
+		expect:
+		directory['file.txt'].exists()
+		directory['file.txt'].contentLength == 42
+		!directory['missing.txt'].exists()
+		!directory['missing.txt'].exists()
+		s3Client.heads == 2
+	}
+
+	def "without a ttl every file issues its own HEAD"() {
+		given:
+		s3Client.objects['bucket/file.txt'] = metadata(42, 'etag-1')
+		def directory = provider()['bucket']
+
+		expect:
+		directory['file.txt'].exists()
+		directory['file.txt'].exists()
+		s3Client.heads == 2
+	}
+
+	def "a delete invalidates the cached metadata"() {
+		given:
+		s3Client.objects['bucket/file.txt'] = metadata(42, 'etag-1')
+		def directory = provider(metadataCacheTtl: 60000l)['bucket']
+		assert directory['file.txt'].exists()
+
+		when:
+		directory['file.txt'].delete()
+
+		then:
+		!directory['file.txt'].exists()
+		s3Client.heads == 2
+	}
+
+	def "changes to a file's metadata do not leak into the cache"() {
+		given:
+		s3Client.objects['bucket/file.txt'] = metadata(42, 'etag-1')
+		def directory = provider(metadataCacheTtl: 60000l)['bucket']
+		def file = directory['file.txt']
+		assert file.exists()
+
+		when:
+		file.contentType = 'text/plain'
+
+		then:
+		directory['file.txt'].contentType != 'text/plain'
+		s3Client.heads == 1
+	}
+}
+
+class HeadCountingS3Client extends AmazonS3Client {
+	Map<String, ObjectMetadata> objects = [:]
+	int heads = 0
+	int listings = 0
+
+	HeadCountingS3Client() {
+		super(new BasicAWSCredentials('access', 'secret'))
+	}
+
+	@Override
+	ObjectMetadata getObjectMetadata(String bucketName, String key) {
+		heads++
+		ObjectMetadata metadata = objects[bucketName + '/' + key]
+		if(metadata == null) {
+			AmazonS3Exception notFound = new AmazonS3Exception('Not Found')
+			notFound.setStatusCode(404)
+			throw notFound
+		}
+		return metadata
+	}
+
+	@Override
+	ObjectListing listObjects(String bucketName, String prefix) {
+		listings++
+		throw new UnsupportedOperationException('exists must not list')
+	}
+
+	@Override
+	void deleteObject(String bucketName, String key) {
+		objects.remove(bucketName + '/' + key)
+	}
+}
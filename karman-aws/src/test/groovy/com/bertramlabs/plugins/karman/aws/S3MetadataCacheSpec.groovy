@@ -0,0 +1,61 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.services.s3.model.ObjectMetadata
+import spock.lang.Specification
+
+class S3MetadataCacheSpec extends Specification {
+
+	def "missing objects are cached as null metadata"() {
+		given:
+		def cache = new S3MetadataCache(60000l, 10)
+
+		when:
+		cache.put('bucket', 'missing', null)
+
+		then:
+		cache.get('bucket', 'missing') != null
+		cache.get('bucket', 'missing').metadata == null
+		cache.get('bucket', 'other') == null
+	}
+
+	def "expired entries are dropped"() {
+		given:
+		def cache = new S3MetadataCache(-1l, 10)
+
+		when:
+		cache.put('bucket', 'key', new ObjectMetadata())
+
+		then:
+		cache.get('bucket', 'key') == null
+	}
+
+	def "the least recently used entry is evicted beyond the maximum"() {
+		given:
+		def cache = new S3MetadataCache(60000l, 2)
+		cache.put('bucket', 'a', new ObjectMetadata())
+		cache.put('bucket', 'b', new ObjectMetadata())
+
+		when:
+		cache.get('bucket', 'a')
+		cache.put('bucket', 'c', new ObjectMetadata())
+
+		then:
+		cache.get('bucket', 'a') != null
+		cache.get('bucket', 'b') == null
+		cache.get('bucket', 'c') != null
+	}
+
+	def "entries are scoped by bucket and can be invalidated"() {
+		given:
+		def cache = new S3MetadataCache(60000l, 10)
+		cache.put('bucket', 'key', new ObjectMetadata())
+		cache.put('other', 'key', new ObjectMetadata())
+
+		when:
+		cache.invalidate('bucket', 'key')
+
+		then:
+		cache.get('bucket', 'key') == null
+		cache.get('other', 'key') != null
+	}
+}
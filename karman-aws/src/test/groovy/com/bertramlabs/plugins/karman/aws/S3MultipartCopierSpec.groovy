@@ -0,0 +1,135 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.AmazonClientException
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest
+import com.amazonaws.services.s3.model.CannedAccessControlList
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult
+import com.amazonaws.services.s3.model.CopyPartRequest
+import com.amazonaws.services.s3.model.CopyPartResult
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.PartETag
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+class S3MultipartCopierSpec extends Specification {
+	static final long MB = 1024l * 1024l
+
+	InitiateMultipartUploadRequest initiated
+	List<CopyPartRequest> copiedParts = new CopyOnWriteArrayList<CopyPartRequest>()
+	List<PartETag> completed
+	String aborted
+	int failingPart
+
+	AmazonS3 s3Client = [
+		initiateMultipartUpload: { InitiateMultipartUploadRequest request ->
+			initiated = request
+			new InitiateMultipartUploadResult(uploadId: 'upload-1')
+		},
+		copyPart: { CopyPartRequest request ->
+			if(request.partNumber == failingPart) {
+				throw new AmazonClientException('access denied')
+			}
+			copiedParts << request
+			new CopyPartResult(partNumber: request.partNumber, ETag: "etag-${request.partNumber}".toString())
+		},
+		completeMultipartUpload: { CompleteMultipartUploadRequest request ->
+			completed = request.partETags
+			new CompleteMultipartUploadResult()
+		},
+		abortMultipartUpload: { AbortMultipartUploadRequest request ->
+			aborted = request.uploadId
+		}
+	] as AmazonS3
+
+	private static ObjectMetadata sourceMetadata(long contentLength) {
+		ObjectMetadata metadata = new ObjectMetadata()
+		metadata.setContentLength(contentLength)
+		metadata.setContentType('application/pdf')
+		metadata.setCacheControl('no-cache')
+		metadata.setHeader('ETag', 'source-etag')
+		metadata.setUserMetadata([owner: 'reports'])
+		return metadata
+	}
+
+	private List<List<Long>> copiedRanges() {
+		return copiedParts.sort(false) { it.partNumber }.collect { [it.firstByte, it.lastByte] }
+	}
+
+	def "the parts cover the source in contiguous ranges in part order"() {
+		given:
+		long contentLength = 20l * MB + 10
+		def copier = new S3MultipartCopier(s3Client, 'source', 'report.pdf', 'target', 'copy.pdf', 5l * MB, 3)
+
+		when:
+		copier.copy(sourceMetadata(contentLength), null)
+
+		then:
+		copiedRanges() == [[0l, 5l * MB - 1], [5l * MB, 10l * MB - 1], [10l * MB, 15l * MB - 1], [15l * MB, 20l * MB - 1], [20l * MB, contentLength - 1]]
+		completed*.partNumber == [1, 2, 3, 4, 5]
+		copiedParts.every { it.uploadId == 'upload-1' && it.sourceBucketName == 'source' && it.sourceKey == 'report.pdf' && it.destinationBucketName == 'target' && it.destinationKey == 'copy.pdf' }
+		aborted == null
+	}
+
+	@Unroll
+	def "a preferred part size of #preferred MB is clamped to #expected MB"() {
+		expect:
+		new S3MultipartCopier(s3Client, 'source', 'key', 'target', 'key', preferred * MB, 2).partSize == expected * MB
+
+		where:
+		preferred | expected
+		1         | 5
+		5         | 5
+		64        | 64
+		8192      | 5120
+	}
+
+	def "the part size grows so an object never needs more than 10000 parts"() {
+		given:
+		long contentLength = 10000l * 5l * MB + 1
+		def copier = new S3MultipartCopier(s3Client, 'source', 'key', 'target', 'key', 5l * MB, 8)
+
+		when:
+		copier.copy(sourceMetadata(contentLength), null)
+
+		then:
+		copiedParts.size() <= S3MultipartCopier.MAX_PARTS
+		copiedRanges().last()[1] == contentLength - 1
+	}
+
+	def "only the writeable source metadata and the acl are sent with the initiate request"() {
+		given:
+		def copier = new S3MultipartCopier(s3Client, 'source', 'key', 'target', 'key', 5l * MB, 2)
+
+		when:
+		copier.copy(sourceMetadata(6l * MB), CannedAccessControlList.PublicRead)
+
+		then:
+		initiated.objectMetadata.contentType == 'application/pdf'
+		initiated.objectMetadata.cacheControl == 'no-cache'
+		initiated.objectMetadata.userMetadata == [owner: 'reports']
+		initiated.objectMetadata.getRawMetadataValue('Content-Length') == null
+		initiated.objectMetadata.ETag == null
+		initiated.cannedACL == CannedAccessControlList.PublicRead
+	}
+
+	def "a failing part aborts the copy"() {
+		given:
+		failingPart = 3
+		def copier = new S3MultipartCopier(s3Client, 'source', 'key', 'target', 'key', 5l * MB, 2)
+
+		when:
+		copier.copy(sourceMetadata(30l * MB), null)
+
+		then:
+		AmazonClientException e = thrown()
+		e.message == 'access denied'
+		aborted == 'upload-1'
+		completed == null
+	}
+}
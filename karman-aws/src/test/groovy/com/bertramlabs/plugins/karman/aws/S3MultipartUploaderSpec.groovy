@@ -0,0 +1,177 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.AmazonClientException
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.PartETag
+import com.amazonaws.services.s3.model.UploadPartRequest
+import com.amazonaws.services.s3.model.UploadPartResult
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class S3MultipartUploaderSpec extends Specification {
+	Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>()
+	List<PartETag> completed
+	String aborted
+	AtomicInteger inFlight = new AtomicInteger()
+	int maxInFlight
+	int failingPart
+	long partDelay
+
+	AmazonS3 s3Client = [
+		initiateMultipartUpload: { InitiateMultipartUploadRequest request ->
+			new InitiateMultipartUploadResult(uploadId: 'upload-1')
+		},
+		uploadPart: { UploadPartRequest request ->
+			int current = inFlight.incrementAndGet()
+			synchronized(this) {
+				maxInFlight = Math.max(maxInFlight, current)
+			}
+			try {
+				Thread.sleep(partDelay)
+				if(request.partNumber == failingPart) {
+					throw new AmazonClientException("part ${request.partNumber} failed")
+				}
+				assert request.uploadId == 'upload-1'
+				assert request.partSize == request.inputStream.available()
+				parts[request.partNumber] = request.inputStream.bytes
+				return new UploadPartResult(partNumber: request.partNumber, ETag: "etag-${request.partNumber}".toString())
+			} finally {
+				inFlight.decrementAndGet()
+			}
+		},
+		completeMultipartUpload: { CompleteMultipartUploadRequest request ->
+			completed = request.partETags
+			new CompleteMultipartUploadResult()
+		},
+		abortMultipartUpload: { AbortMultipartUploadRequest request ->
+			aborted = request.uploadId
+		}
+	] as AmazonS3
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length]
+		new Random(length).nextBytes(data)
+		return data
+	}
+
+	private byte[] uploadedBytes() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		completed.each { out.write(parts[it.partNumber]) }
+		return out.toByteArray()
+	}
+
+	@Unroll
+	def "#size bytes of #lengthKnown length are split into parts of #expectedSizes bytes"() {
+		given:
+		byte[] data = randomBytes(size)
+		def uploader = new S3MultipartUploader(s3Client, 'bucket', 'key', new ObjectMetadata(), 100l, 3, null)
+
+		when:
+		uploader.upload(new ByteArrayInputStream(data), lengthKnown == 'known' ? (Long) size : null)
+
+		then:
+		completed*.partNumber == (1..expectedSizes.size()).toList()
+		completed*.ETag == completed.collect { "etag-${it.partNumber}".toString() }
+		completed.collect { parts[it.partNumber].length } == expectedSizes
+		uploadedBytes() == data
+		aborted == null
+
+		where:
+		size | lengthKnown | expectedSizes
+		1000 | 'known'     | [100] * 10
+		950  | 'known'     | [100] * 9 + [50]
+		950  | 'unknown'   | [100] * 9 + [50]
+		1000 | 'unknown'   | [100] * 10
+		40   | 'known'     | [40]
+		0    | 'known'     | [0]
+		0    | 'unknown'   | [0]
+	}
+
+	def "a stream longer than the content length is cut at the content length"() {
+		given:
+		byte[] data = randomBytes(500)
+		def uploader = new S3MultipartUploader(s3Client, 'bucket', 'key', new ObjectMetadata(), 100l, 2, null)
+
+		when:
+		uploader.upload(new ByteArrayInputStream(data), 250l)
+
+		then:
+		completed.collect { parts[it.partNumber].length } == [100, 100, 50]
+		uploadedBytes() == Arrays.copyOf(data, 250)
+	}
+
+	@Unroll
+	def "#maxBufferedBytes buffered bytes allow #expectedBuffers buffers for #concurrency workers"() {
+		expect:
+		new S3MultipartUploader(s3Client, 'bucket', 'key', new ObjectMetadata(), 100l, concurrency, maxBufferedBytes).bufferCount == expectedBuffers
+
+		where:
+		concurrency | maxBufferedBytes | expectedBuffers
+		4           | null             | 5
+		4           | 250l             | 2
+		4           | 50l              | 1
+		4           | 10000l           | 5
+		0           | null             | 2
+	}
+
+	def "parts are uploaded concurrently up to the concurrency"() {
+		given:
+		partDelay = 50
+		byte[] data = randomBytes(1000)
+		def uploader = new S3MultipartUploader(s3Client, 'bucket', 'key', new ObjectMetadata(), 100l, 3, null)
+
+		when:
+		uploader.upload(new ByteArrayInputStream(data), 1000l)
+
+		then:
+		maxInFlight > 1
+		maxInFlight <= 3
+		uploadedBytes() == data
+	}
+
+	def "a buffer limit below the concurrency limits the parts in flight"() {
+		given:
+		partDelay = 20
+		byte[] data = randomBytes(1000)
+		def uploader = new S3MultipartUploader(s3Client, 'bucket', 'key', new ObjectMetadata(), 100l, 4, 200l)
+
+		when:
+		uploader.upload(new ByteArrayInputStream(data), 1000l)
+
+		then:
+		maxInFlight <= 2
+		uploadedBytes() == data
+	}
+
+	def "a failing part aborts the upload and is rethrown"() {
+		given:
+		failingPart = 5
+		def uploader = new S3MultipartUploader(s3Client, 'bucket', 'key', new ObjectMetadata(), 100l, 3, null)
+
+		when:
+		uploader.upload(new ByteArrayInputStream(randomBytes(1000)), 1000l)
+
+		then:
+		AmazonClientException e = thrown()
+		e.message == 'part 5 failed'
+		aborted == 'upload-1'
+		completed == null
+	}
+
+	def "a part size that cannot be buffered in memory is rejected"() {
+		when:
+		new S3MultipartUploader(s3Client, 'bucket', 'key', new ObjectMetadata(), Integer.MAX_VALUE as long, 2, null)
+
+		then:
+		thrown(IllegalArgumentException)
+	}
+}
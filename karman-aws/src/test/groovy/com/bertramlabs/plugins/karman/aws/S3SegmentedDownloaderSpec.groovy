@@ -0,0 +1,186 @@
+package com.bertramlabs.plugins.karman.aws
+
+import com.amazonaws.AmazonClientException
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.GetObjectRequest
+import com.amazonaws.services.s3.model.S3Object
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+class S3SegmentedDownloaderSpec extends Specification {
+	static final int SIZE = 10007
+
+	byte[] data = new byte[SIZE]
+	List<GetObjectRequest> requests = new CopyOnWriteArrayList<GetObjectRequest>()
+	Map<Long, AtomicInteger> attempts = new ConcurrentHashMap<Long, AtomicInteger>()
+	Closure<S3Object> respond = { GetObjectRequest request -> rangeObject(request.range[0], request.range[1]) }
+
+	AmazonS3 s3Client = [
+		getObject: { GetObjectRequest request ->
+			requests << request
+			attempts.computeIfAbsent(request.range[0]) { new AtomicInteger() }.incrementAndGet()
+			return respond.call(request)
+		}
+	] as AmazonS3
+
+	def setup() {
+		new Random(SIZE).nextBytes(data)
+	}
+
+	private S3Object rangeObject(long start, long end) {
+		S3Object object = new S3Object()
+		object.setObjectContent(new ByteArrayInputStream(data, (int) start, (int) (end - start + 1)))
+		return object
+	}
+
+	private static byte[] readAll(InputStream stream, int chunk) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		byte[] buffer = new byte[chunk]
+		int c
+		while((c = stream.read(buffer)) != -1) {
+			out.write(buffer, 0, c)
+		}
+		stream.close()
+		return out.toByteArray()
+	}
+
+	@Unroll
+	def "#contentLength bytes in segments of #segmentSize are #expectedCount segments"() {
+		expect:
+		new S3SegmentedDownloader(s3Client, 'bucket', 'key', null, contentLength, segmentSize, 2).segmentCount == expectedCount
+
+		where:
+		contentLength | segmentSize | expectedCount
+		0             | 100         | 0
+		1             | 100         | 1
+		100           | 100         | 1
+		101           | 100         | 2
+		SIZE          | 1000        | 11
+	}
+
+	def "segments completing out of order are read back in order"() {
+		given:
+		respond = { GetObjectRequest request ->
+			//earlier segments answer slower than later ones
+			Thread.sleep(Math.max(0l, 40l - request.range[0].intdiv(250)))
+			rangeObject(request.range[0], request.range[1])
+		}
+		def downloader = new S3SegmentedDownloader(s3Client, 'bucket', 'key', 'etag-1', SIZE, 1000l, 4)
+
+		expect:
+		readAll(downloader.openStream(), chunk) == data
+		requests.collect { it.range as List }.sort { it[0] } == (0..10).collect { [it * 1000l, Math.min(SIZE, it * 1000l + 1000l) - 1] }
+		requests.every { it.matchingETagConstraints == ['etag-1'] }
+
+		where:
+		chunk << [1, 333, 4096, SIZE * 2]
+	}
+
+	def "a failed or truncated range request is retried on its own"() {
+		given:
+		respond = { GetObjectRequest request ->
+			long start = request.range[0]
+			if(attempts[start].get() == 1 && start == 3000l) {
+				throw new AmazonClientException('connection reset')
+			}
+			if(attempts[start].get() == 1 && start == 7000l) {
+				S3Object truncated = new S3Object()
+				truncated.setObjectContent(new ByteArrayInputStream(data, (int) start, 10))
+				return truncated
+			}
+			rangeObject(start, request.range[1])
+		}
+		def downloader = new S3SegmentedDownloader(s3Client, 'bucket', 'key', null, SIZE, 1000l, 3)
+
+		expect:
+		readAll(downloader.openStream(), 4096) == data
+		attempts[3000l].get() == 2
+		attempts[7000l].get() == 2
+		attempts.findAll { it.key != 3000l && it.key != 7000l }.every { it.value.get() == 1 }
+		requests.every { it.matchingETagConstraints.isEmpty() }
+	}
+
+	def "a segment failing every attempt fails the read"() {
+		given:
+		respond = { GetObjectRequest request ->
+			if(request.range[0] == 1000l) {
+				throw new AmazonClientException('unavailable')
+			}
+			rangeObject(request.range[0], request.range[1])
+		}
+		def downloader = new S3SegmentedDownloader(s3Client, 'bucket', 'key', null, SIZE, 1000l, 2)
+		InputStream stream = downloader.openStream()
+
+		when:
+		readAll(stream, 4096)
+
+		then:
+		IOException e = thrown()
+		e.cause instanceof AmazonClientException
+		attempts[1000l].get() == 3
+
+		cleanup:
+		stream?.close()
+	}
+
+	def "an object changed during the download fails without retrying"() {
+		given:
+		respond = { GetObjectRequest request -> null }
+		def downloader = new S3SegmentedDownloader(s3Client, 'bucket', 'key', 'etag-1', SIZE, 1000l, 2)
+		InputStream stream = downloader.openStream()
+
+		when:
+		stream.read()
+
+		then:
+		IOException e = thrown()
+		e.message.contains('changed during download')
+		attempts[0l].get() == 1
+
+		cleanup:
+		stream?.close()
+	}
+
+	def "a slow reader holds at most the window of segments ahead"() {
+		given:
+		def downloader = new S3SegmentedDownloader(s3Client, 'bucket', 'key', null, SIZE, 500l, 2)
+		InputStream stream = downloader.openStream()
+
+		when:
+		stream.read(new byte[10])
+		Thread.sleep(200)
+
+		then:
+		requests.size() <= downloader.bufferCount + 1
+		requests.size() < downloader.segmentCount
+
+		when:
+		stream.close()
+		stream.read()
+
+		then:
+		thrown(IOException)
+	}
+
+	def "downloadTo writes every segment at its offset"() {
+		given:
+		respond = { GetObjectRequest request ->
+			Thread.sleep(Math.max(0l, 20l - request.range[0].intdiv(500)))
+			rangeObject(request.range[0], request.range[1])
+		}
+		File target = File.createTempFile('karman-segments', '.bin')
+		target.bytes = new byte[SIZE * 2]
+		def downloader = new S3SegmentedDownloader(s3Client, 'bucket', 'key', null, SIZE, 1000l, 4)
+
+		expect:
+		downloader.downloadTo(target) == SIZE
+		target.bytes == data
+
+		cleanup:
+		target.delete()
+	}
+}
@@ -40,6 +40,16 @@ import java.text.*;
 public class AzureBlobStorageProvider extends AzureStorageProvider {
 	static String providerName = "azure-pageblob"
 
+	/**
+	 * Number of page ranges written concurrently when saving a page blob
+	 */
+	Integer pageBlobUploadConcurrency = 1
+
+	/**
+	 * Skip uploading all-zero 512 byte pages when saving a page blob
+	 */
+	Boolean pageBlobSkipZeroPages = false
+
 	public String getProviderName() {
 		return providerName
 	}
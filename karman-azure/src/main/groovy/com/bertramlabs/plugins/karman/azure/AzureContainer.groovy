@@ -1,7 +1,9 @@
 package com.bertramlabs.plugins.karman.azure
 
 import com.bertramlabs.plugins.karman.CloudFile
+import com.bertramlabs.plugins.karman.DeleteResult
 import com.bertramlabs.plugins.karman.Directory
+import com.bertramlabs.plugins.karman.ListingPage
 import groovy.json.JsonSlurper
 import groovy.util.logging.Commons
 import org.apache.http.HttpEntity
@@ -11,18 +13,29 @@ import org.apache.http.client.methods.HttpGet
 import org.apache.http.client.methods.HttpPut
 import org.apache.http.client.methods.HttpDelete
 import org.apache.http.client.methods.HttpHead
+import org.apache.http.client.methods.HttpPost
 import org.apache.http.client.utils.URIBuilder
+import org.apache.http.entity.ByteArrayEntity
 import org.apache.http.impl.client.DefaultHttpClient
 import org.apache.http.message.BasicHeader
 import org.apache.http.params.HttpConnectionParams
 import org.apache.http.params.HttpParams
 import org.apache.http.util.EntityUtils
 
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
 /**
  * Created by bwhiton on 11/22/2016.
  */
 @Commons
 class AzureContainer extends Directory {
+	/**
+	 * Maximum number of sub requests in a single blob batch request
+	 */
+	static final int MAX_BATCH_SIZE = 256
+	static final String BATCH_API_VERSION = '2019-12-12'
+
 	/**
 	 * Check if container exists
 	 * @return Boolean
@@ -39,7 +52,7 @@ class AzureContainer extends Directory {
 		
 		def (HttpClient client, HttpGet request) = azureProvider.prepareRequest(opts) 
 		HttpResponse response = client.execute(request)
-		HttpEntity responseEntity = response.getEntity()
+		EntityUtils.consume(response.entity)
 
 		return (response.statusLine.statusCode == 200)
 	}
@@ -50,14 +63,25 @@ class AzureContainer extends Directory {
 	 * @return List
 	 */
 	List listFiles(options = [:]) {
+		return iterateFiles(options ?: [:]).toList()
+	}
+
+	/**
+	 * Lists a single page of blobs using the Azure NextMarker as the continuation token
+	 * @param options (pageSize and continuationToken)
+	 */
+	ListingPage listFilesPage(Map options = [:]) {
 		AzureBlobStorageProvider azureProvider = (AzureBlobStorageProvider) provider
 
 		def opts = [
 			verb: 'GET',
-			queryParams: [restype:'container', comp: 'list'],
+			queryParams: [restype:'container', comp: 'list', maxresults: ((options?.pageSize ?: DEFAULT_PAGE_SIZE) as Integer).toString()],
 			path: name,
 			uri: "${azureProvider.getEndpointUrl()}/${name}".toString()
 		]
+		if(options?.continuationToken) {
+			opts.queryParams.marker = options.continuationToken.toString()
+		}
 
 		def (HttpClient client, HttpGet request) = azureProvider.prepareRequest(opts) 
 		HttpResponse response = client.execute(request)
@@ -76,7 +100,8 @@ class AzureContainer extends Directory {
 			throw new Exception(errMessage)
 		}
 
-		return blobs
+		String nextMarker = xmlDoc.NextMarker?.text()
+		return new ListingPage(files: blobs, continuationToken: nextMarker ?: null)
 	}
 
 	/**
@@ -99,6 +124,7 @@ class AzureContainer extends Directory {
 		
 		def saveSuccessful = (response.statusLine.statusCode == 201)	
 		if(saveSuccessful) {
+			EntityUtils.consume(response.entity)
 			return true
 		} else {
 			def xmlDoc = new XmlSlurper().parse(responseEntity.content)
@@ -130,6 +156,7 @@ class AzureContainer extends Directory {
 
 		def deleteSuccessful = (response.statusLine.statusCode == 202)
 		if(deleteSuccessful) {
+			EntityUtils.consume(response.entity)
 			return true
 		} else {
 			def xmlDoc = new XmlSlurper().parse(responseEntity.content)
@@ -141,6 +168,90 @@ class AzureContainer extends Directory {
 		}
 	}
 
+	protected Integer getDeleteBatchSize() {
+		return MAX_BATCH_SIZE
+	}
+
+	/**
+	 * Deletes the batch with a single Blob Batch request. Every blob is deleted by its own signed sub request, and the
+	 * multipart response holds the status of each one. Blobs that no longer exist count as deleted.
+	 */
+	protected void deleteBatch(List<String> keys, DeleteResult result) {
+		AzureBlobStorageProvider azureProvider = (AzureBlobStorageProvider) provider
+		String boundary = "batch_${UUID.randomUUID().toString()}"
+		String date = azureProvider.getDateString()
+		StringBuilder body = new StringBuilder()
+		for(int index = 0; index < keys.size(); index++) {
+			String blobPath = "${name}/${encodeBlobName(keys[index])}"
+			def subRequestOpts = [
+				verb: 'DELETE',
+				path: blobPath,
+				headers: ['x-ms-date': date, 'x-ms-delete-snapshots': 'include', 'Content-Length': 0]
+			]
+			String signature = azureProvider.createSignedSignature(subRequestOpts)
+			body << "--${boundary}\r\nContent-Type: application/http\r\nContent-Transfer-Encoding: binary\r\nContent-ID: ${index}\r\n\r\n"
+			body << "DELETE /${blobPath} HTTP/1.1\r\nx-ms-date: ${date}\r\nx-ms-delete-snapshots: include\r\n"
+			body << "Authorization: SharedKey ${azureProvider.storageAccount}:${signature}\r\nContent-Length: 0\r\n\r\n"
+		}
+		body << "--${boundary}--\r\n"
+		byte[] payload = body.toString().getBytes('UTF-8')
+
+		def opts = [
+			verb: 'POST',
+			queryParams: [comp: 'batch'],
+			headers: ['x-ms-version': BATCH_API_VERSION, 'Content-Type': "multipart/mixed; boundary=${boundary}".toString(), 'Content-Length': payload.length],
+			path: '',
+			uri: azureProvider.getEndpointUrl().toString()
+		]
+		def (HttpClient client, HttpPost request) = azureProvider.prepareRequest(opts)
+		request.setEntity(new ByteArrayEntity(payload))
+		HttpResponse response = client.execute(request)
+		if(response.statusLine.statusCode != 202) {
+			azureProvider.throwResponseFailure(response, "Error deleting blob batch from ${name}")
+		}
+		String responseBody = EntityUtils.toString(response.entity, 'UTF-8')
+		Map<Integer, Map> subResponses = parseBatchResponse(response.getFirstHeader('Content-Type')?.value, responseBody)
+		for(int index = 0; index < keys.size(); index++) {
+			Map subResponse = subResponses[index]
+			if(subResponse == null) {
+				result.failed(keys[index], "No response for ${keys[index]} in blob batch")
+			} else if(subResponse.statusCode == 202 || subResponse.errorCode == 'BlobNotFound') {
+				result.deleted(keys[index])
+			} else {
+				result.failed(keys[index], "${subResponse.statusCode} ${subResponse.reason}${subResponse.errorCode ? " (${subResponse.errorCode})" : ''}".toString())
+			}
+		}
+	}
+
+	/**
+	 * Splits a multipart/mixed batch response into the status of each sub request by Content-ID.
+	 */
+	private static Map<Integer, Map> parseBatchResponse(String contentType, String responseBody) {
+		Map<Integer, Map> subResponses = [:]
+		Matcher boundaryMatcher = (contentType ?: '') =~ /boundary=([^;\s]+)/
+		if(!boundaryMatcher.find()) {
+			return subResponses
+		}
+		for(String part : responseBody.split(Pattern.quote("--${boundaryMatcher.group(1)}".toString()))) {
+			Matcher idMatcher = part =~ /(?i)Content-ID:\s*(\d+)/
+			Matcher statusMatcher = part =~ /HTTP\/1\.1 (\d{3}) ?([^\r\n]*)/
+			if(!idMatcher.find() || !statusMatcher.find()) {
+				continue
+			}
+			Matcher errorMatcher = part =~ /(?i)x-ms-error-code:\s*([^\r\n]+)/
+			subResponses[idMatcher.group(1).toInteger()] = [
+				statusCode: statusMatcher.group(1).toInteger(),
+				reason: statusMatcher.group(2),
+				errorCode: errorMatcher.find() ? errorMatcher.group(1).trim() : null
+			]
+		}
+		return subResponses
+	}
+
+	private static String encodeBlobName(String blobName) {
+		return java.net.URLEncoder.encode(blobName, "UTF-8").replaceAll('\\+', '%20')
+	}
+
 	CloudFile getFile(String name) {
 		new AzurePageBlobFile(
 			provider: provider,
@@ -46,7 +46,7 @@ class AzureDirectory extends Directory {
 		
 		def (HttpClient client, HttpGet request) = azureProvider.prepareRequest(opts) 
 		HttpResponse response = client.execute(request)
-		HttpEntity responseEntity = response.getEntity()
+		EntityUtils.consume(response.entity)
 
 		return (response.statusLine.statusCode == 200)
 	}
@@ -127,6 +127,7 @@ class AzureDirectory extends Directory {
 
 			def saveSuccessful = (response.statusLine.statusCode == 201)
 			if(saveSuccessful) {
+				EntityUtils.consume(response.entity)
 				return true
 			} else {
 				def xmlDoc = new XmlSlurper().parse(responseEntity.content)
@@ -158,6 +159,7 @@ class AzureDirectory extends Directory {
 
 		def deleteSuccessful = (response.statusLine.statusCode == 202)
 		if(deleteSuccessful) {
+			EntityUtils.consume(response.entity)
 			return true
 		} else {
 			def xmlDoc = new XmlSlurper().parse(responseEntity.content)
@@ -20,7 +20,6 @@ import org.apache.http.message.BasicHeader
 import org.apache.http.params.HttpConnectionParams
 import org.apache.http.params.HttpParams
 import org.apache.http.util.EntityUtils
-import com.bertramlabs.plugins.karman.util.ChunkedInputStream
 
 import groovy.time.TimeCategory;
 import java.net.URLEncoder
@@ -112,6 +111,16 @@ class AzureFile extends CloudFile {
 		return null
 
 	}
+
+	/**
+	 * ETag of the stored object
+	 */
+	String getETag() {
+		if(!metaDataLoaded) {
+			loadObjectMetaData()
+		}
+		return azureMeta['ETag']
+	}
 	
 	void setContentLength(Long length) {
 		setMetaAttribute('Content-Length', length)
@@ -215,7 +224,8 @@ class AzureFile extends CloudFile {
 			ensurePathExists()
 			
 			// First... must create the file (if it doesn't exist)
-			if(!this.exists()) {
+			boolean newFile = !this.exists()
+			if(newFile) {
 				def createFileOpts = [
 					verb: 'PUT',
 					queryParams: [:],
@@ -231,6 +241,7 @@ class AzureFile extends CloudFile {
 				if(response.statusLine.statusCode != 201) {
 					azureProvider.throwResponseFailure(response, "Error creating file ${getFullPath()}")
 				}
+				EntityUtils.consume(response.entity)
 			} else {
 				// Make sure the size has not changed
 				if(getCloudFileContentLength() != contentLength) {
@@ -249,32 +260,20 @@ class AzureFile extends CloudFile {
 					if(response.statusLine.statusCode != 200) {
 						azureProvider.throwResponseFailure(response, "Error updating file ${getFullPath()}")
 					}
+					EntityUtils.consume(response.entity)
 				}
 			}
 			
 			this.cloudFileContentLength = contentLength
 			
-			// Second.. chunk all the bytes
-			def maxChunkSize = 4l * 1024l * 1024l
-			long partSize = Math.min(maxChunkSize, contentLength)
-
-
-			ChunkedInputStream chunkedStream = new ChunkedInputStream(writeStream, partSize)
-			long filePosition = 0
-			int partNumber = 1
-			long startByte = 0
-			while(chunkedStream.available() >= 0 && (!contentLength || filePosition < contentLength)) {
-				// Last part can be less than 5 MB. Adjust part size.
-				
-				partSize = Math.min(partSize, (contentLength - filePosition));
-
-				uploadChunk(chunkedStream, startByte, partSize)
-
-				filePosition += partSize
-				partNumber++
-				startByte += partSize
-				chunkedStream.nextChunk()
-			}
+			// Second.. write the bytes in ranges
+			AzureRangeUploader uploader = new AzureRangeUploader(azureProvider, getFullPath(), "${azureProvider.getEndpointUrl()}/${getFullPath()}".toString(),
+				azureProvider.fileUploadConcurrency ?: 1, azureProvider.fileSkipZeroRanges as boolean, newFile)
+			uploader.rangeResource = 'range'
+			uploader.writeHeader = 'x-ms-write'
+			uploader.pageAligned = false
+			uploader.rangeSize = (azureProvider.fileUploadRangeSize ?: AzureRangeUploader.MAX_RANGE_SIZE) as int
+			uploader.upload(writeStream, contentLength as Long)
 
 			metaDataLoaded = false
 			azureMeta = [:]
@@ -286,30 +285,6 @@ class AzureFile extends CloudFile {
 		return false
 	}
 
-	private void uploadChunk(ChunkedInputStream chunkedStream, Long startByte, Long contentLength) {
-		AzureFileStorageProvider azureProvider = (AzureFileStorageProvider) provider
-
-		def opts = [
-			verb: 'PUT',
-			queryParams: [comp: 'range'],
-			headers: [
-				'x-ms-range':"bytes=${startByte}-${startByte+contentLength-1}",
-				'Content-Length': contentLength,
-				'x-ms-write':'update'
-			],
-			path: getFullPath(),
-			uri: "${azureProvider.getEndpointUrl()}/${getFullPath()}".toString()
-		]
-	
-		def (HttpClient client, HttpPut request) = azureProvider.prepareRequest(opts) 
-
-		request.setEntity(new InputStreamEntity(chunkedStream, contentLength))
-		HttpResponse response = client.execute(request)	
-		if(response.statusLine.statusCode != 201) {
-			azureProvider.throwResponseFailure(response, "Error sending bytes to file ${getFullPath()} for startByte: ${startByte}, pageSize: ${contentLength}")
-		}
-	}
-
 	def delete() {
 		AzureFileStorageProvider azureProvider = (AzureFileStorageProvider) provider
 
@@ -329,6 +304,7 @@ class AzureFile extends CloudFile {
 
 			return false
 		}
+		EntityUtils.consume(response.entity)
 
 		return true
 	}
@@ -355,6 +331,7 @@ class AzureFile extends CloudFile {
 			if(response.statusLine.statusCode != 202) {
 				azureProvider.throwResponseFailure(response, "Error copying file")
 			}
+			EntityUtils.consume(response.entity)
 
 			metaDataLoaded = false
 			azureMeta = [:]
@@ -366,6 +343,74 @@ class AzureFile extends CloudFile {
 		return false
 	}
 
+	/**
+	 * Copies to another Azure file of the same storage account with {@code Copy File}, the service copies the data
+	 * itself and the call only returns once the copy has completed.
+	 */
+	@Override
+	protected Boolean nativeCopyTo(CloudFile target) {
+		if(!(target instanceof AzureFile) || !valid) {
+			return false
+		}
+		AzureFile fileTarget = (AzureFile) target
+		AzureFileStorageProvider azureProvider = (AzureFileStorageProvider) provider
+		if(!fileTarget.valid || ((AzureStorageProvider) fileTarget.provider).storageAccount != azureProvider.storageAccount) {
+			return false
+		}
+		def copyId = fileTarget.copy("${azureProvider.getEndpointUrl()}/${getFullPath()}".toString())
+		fileTarget.waitForCopy(copyId ? copyId.toString() : null)
+		return true
+	}
+
+	/**
+	 * Polls the copy status of the file until a pending copy has finished. A copy still pending after the provider's
+	 * {@code copyTimeout} is aborted and reported as a failure.
+	 */
+	void waitForCopy(String copyId = null) {
+		Long copyTimeout = ((AzureStorageProvider) provider).copyTimeout
+		long deadline = copyTimeout ? System.currentTimeMillis() + copyTimeout : Long.MAX_VALUE
+		while(true) {
+			loadObjectMetaData()
+			def copyStatus = azureMeta['x-ms-copy-status']
+			if(!copyStatus || copyStatus == 'success') {
+				return
+			}
+			if(copyStatus != 'pending') {
+				throw new Exception("Error copying file ${getFullPath(false)}: ${copyStatus} ${azureMeta['x-ms-copy-status-description'] ?: ''}")
+			}
+			if(System.currentTimeMillis() >= deadline) {
+				abortCopy(copyId ?: azureMeta['x-ms-copy-id']?.toString())
+				throw new Exception("Error copying file ${getFullPath(false)}: the copy was still pending after ${copyTimeout}ms and has been aborted")
+			}
+			sleep(1000)
+		}
+	}
+
+	/**
+	 * Aborts a pending copy, leaving an empty file with the same name behind.
+	 */
+	void abortCopy(String copyId) {
+		if(!copyId) {
+			return
+		}
+		AzureFileStorageProvider azureProvider = (AzureFileStorageProvider) provider
+		def abortCopyOpts = [
+			verb: 'PUT',
+			queryParams: [comp: 'copy', copyid: copyId],
+			headers: ['x-ms-copy-action': 'abort'],
+			path: getFullPath(),
+			uri: "${azureProvider.getEndpointUrl()}/${getFullPath()}".toString()
+		]
+
+		def (HttpClient client, HttpPut request) = azureProvider.prepareRequest(abortCopyOpts)
+		HttpResponse response = client.execute(request)
+		if(response.statusLine.statusCode != 204) {
+			azureProvider.throwResponseFailure(response, "Error aborting copy")
+		}
+		EntityUtils.consume(response.entity)
+		metaDataLoaded = false
+	}
+
 
 	/**
 	 * Get URL or pre-signed URL if expirationDate is set
@@ -451,7 +496,7 @@ class AzureFile extends CloudFile {
 
 			def (HttpClient client, HttpHead request) = azureProvider.prepareRequest(opts) 
 			HttpResponse response = client.execute(request)
-			HttpEntity responseEntity = response.getEntity()
+			EntityUtils.consume(response.entity)
 			
 			if(response.statusLine.statusCode != 200) {
 				existsFlag = false
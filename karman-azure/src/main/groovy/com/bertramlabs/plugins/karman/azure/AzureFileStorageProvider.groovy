@@ -40,6 +40,21 @@ import java.text.*;
 public class AzureFileStorageProvider extends AzureStorageProvider {
 	static String providerName = "azure"
 
+	/**
+	 * Number of ranges written concurrently when saving a file
+	 */
+	Integer fileUploadConcurrency = 1
+
+	/**
+	 * Size of each Put Range request when saving a file (at most 4MB)
+	 */
+	Integer fileUploadRangeSize = 4 * 1024 * 1024
+
+	/**
+	 * Skip uploading all-zero ranges when saving a file
+	 */
+	Boolean fileSkipZeroRanges = false
+
 	public String getProviderName() {
 		return providerName
 	}
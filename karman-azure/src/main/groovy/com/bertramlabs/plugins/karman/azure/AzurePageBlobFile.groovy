@@ -100,6 +100,16 @@ class AzurePageBlobFile extends CloudFile {
 		return null
 
 	}
+
+	/**
+	 * ETag of the stored object
+	 */
+	String getETag() {
+		if(!metaDataLoaded) {
+			loadObjectMetaData()
+		}
+		return azureMeta['ETag']
+	}
 	
 	void setContentLength(Long length) {
 		if(length % 512 != 0) {
@@ -209,7 +219,8 @@ class AzurePageBlobFile extends CloudFile {
 			}
 			
 			// First... must create the page blob (if it doesn't exist)
-			if(!this.exists()) {
+			boolean newBlob = !this.exists()
+			if(newBlob) {
 				def createPageBlobOpts = [
 					verb: 'PUT',
 					queryParams: [:],
@@ -223,9 +234,20 @@ class AzurePageBlobFile extends CloudFile {
 				if(response.statusLine.statusCode != 201) {
 					azureProvider.throwResponseFailure(response, "Error creating page blob ${parent.name}/${getEncodedName()}")
 				}
+				EntityUtils.consume(response.entity)
 			}
 
 			// Second.. chunk all the bytes
+			if(azureProvider.pageBlobUploadConcurrency > 1 || azureProvider.pageBlobSkipZeroPages) {
+				AzureRangeUploader uploader = new AzureRangeUploader(azureProvider, "${parent.name}/${getEncodedName()}".toString(),
+					"${azureProvider.getEndpointUrl()}/${parent.name}/${getEncodedName()}".toString(),
+					azureProvider.pageBlobUploadConcurrency ?: 1, azureProvider.pageBlobSkipZeroPages as boolean, newBlob)
+				uploader.upload(writeStream, contentLength as Long)
+				metaDataLoaded = false
+				azureMeta = [:]
+				existsFlag = true
+				return true
+			}
 			def maxChunkSize = 4l * 1024l * 1024l
 			long partSize = Math.min(maxChunkSize, contentLength)
 
@@ -279,6 +301,7 @@ class AzurePageBlobFile extends CloudFile {
 		if(response.statusLine.statusCode != 201) {
 			azureProvider.throwResponseFailure(response, "Error sending bytes to page blob ${parent.name}/${name} for startByte: ${startByte}, pageSize: ${contentLength}")
 		}
+		EntityUtils.consume(response.entity)
 	}
 
 	def delete() {
@@ -301,6 +324,7 @@ class AzurePageBlobFile extends CloudFile {
 
 			return false
 		}
+		EntityUtils.consume(response.entity)
 
 		return true
 	}
@@ -334,6 +358,7 @@ class AzurePageBlobFile extends CloudFile {
 			if(response.statusLine.statusCode != 202) {
 				azureProvider.throwResponseFailure(response, "Error copying page blob")
 			}
+			EntityUtils.consume(response.entity)
 
 			metaDataLoaded = false
 			azureMeta = [:]
@@ -345,6 +370,74 @@ class AzurePageBlobFile extends CloudFile {
 		return false
 	}
 
+	/**
+	 * Copies to another page blob of the same storage account with {@code Copy Blob}, the service copies the data
+	 * itself and the call only returns once the copy has completed.
+	 */
+	@Override
+	protected Boolean nativeCopyTo(CloudFile target) {
+		if(!(target instanceof AzurePageBlobFile) || !valid) {
+			return false
+		}
+		AzurePageBlobFile blobTarget = (AzurePageBlobFile) target
+		AzureBlobStorageProvider azureProvider = (AzureBlobStorageProvider) provider
+		if(!blobTarget.valid || ((AzureStorageProvider) blobTarget.provider).storageAccount != azureProvider.storageAccount) {
+			return false
+		}
+		def copyId = blobTarget.copy("${azureProvider.getEndpointUrl()}/${parent.name}/${getEncodedName()}".toString())
+		blobTarget.waitForCopy(copyId ? copyId.toString() : null)
+		return true
+	}
+
+	/**
+	 * Polls the copy status of the page blob until a pending copy has finished. A copy still pending after the provider's
+	 * {@code copyTimeout} is aborted and reported as a failure.
+	 */
+	void waitForCopy(String copyId = null) {
+		Long copyTimeout = ((AzureStorageProvider) provider).copyTimeout
+		long deadline = copyTimeout ? System.currentTimeMillis() + copyTimeout : Long.MAX_VALUE
+		while(true) {
+			loadObjectMetaData()
+			def copyStatus = azureMeta['x-ms-copy-status']
+			if(!copyStatus || copyStatus == 'success') {
+				return
+			}
+			if(copyStatus != 'pending') {
+				throw new Exception("Error copying page blob ${parent.name}/${name}: ${copyStatus} ${azureMeta['x-ms-copy-status-description'] ?: ''}")
+			}
+			if(System.currentTimeMillis() >= deadline) {
+				abortCopy(copyId ?: azureMeta['x-ms-copy-id']?.toString())
+				throw new Exception("Error copying page blob ${parent.name}/${name}: the copy was still pending after ${copyTimeout}ms and has been aborted")
+			}
+			sleep(1000)
+		}
+	}
+
+	/**
+	 * Aborts a pending copy, leaving an empty page blob with the same name behind.
+	 */
+	void abortCopy(String copyId) {
+		if(!copyId) {
+			return
+		}
+		AzureBlobStorageProvider azureProvider = (AzureBlobStorageProvider) provider
+		def abortCopyOpts = [
+			verb: 'PUT',
+			queryParams: [comp: 'copy', copyid: copyId],
+			headers: ['x-ms-copy-action': 'abort'],
+			path: "${parent.name}/${getEncodedName()}",
+			uri: "${azureProvider.getEndpointUrl()}/${parent.name}/${getEncodedName()}".toString()
+		]
+
+		def (HttpClient client, HttpPut request) = azureProvider.prepareRequest(abortCopyOpts)
+		HttpResponse response = client.execute(request)
+		if(response.statusLine.statusCode != 204) {
+			azureProvider.throwResponseFailure(response, "Error aborting copy")
+		}
+		EntityUtils.consume(response.entity)
+		metaDataLoaded = false
+	}
+
 	def snapshot() {
 		log.info "snapshot started"
 		if (valid) {
@@ -362,6 +455,7 @@ class AzurePageBlobFile extends CloudFile {
 			if(response.statusLine.statusCode != 201) {
 				azureProvider.throwResponseFailure(response, "Error snapshotting page blob")
 			}
+			EntityUtils.consume(response.entity)
 
 			metaDataLoaded = false
 			azureMeta = [:]
@@ -386,6 +480,7 @@ class AzurePageBlobFile extends CloudFile {
 
 			def (HttpClient client, HttpHead request) = azureProvider.prepareRequest(opts) 
 			HttpResponse response = client.execute(request)
+			EntityUtils.consume(response.entity)
 			return (response.statusLine.statusCode == 200) 
 		}
 		return false
@@ -410,6 +505,7 @@ class AzurePageBlobFile extends CloudFile {
 
 			return false
 		}
+		EntityUtils.consume(response.entity)
 
 		return true
 	}
@@ -433,6 +529,7 @@ class AzurePageBlobFile extends CloudFile {
 
 			return false
 		}
+		EntityUtils.consume(response.entity)
 
 		return true
 	}
@@ -521,7 +618,7 @@ class AzurePageBlobFile extends CloudFile {
 
 			def (HttpClient client, HttpHead request) = azureProvider.prepareRequest(opts) 
 			HttpResponse response = client.execute(request)
-			HttpEntity responseEntity = response.getEntity()
+			EntityUtils.consume(response.entity)
 			
 			if(response.statusLine.statusCode != 200) {
 				existsFlag = false
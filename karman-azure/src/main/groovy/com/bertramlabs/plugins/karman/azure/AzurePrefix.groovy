@@ -89,7 +89,7 @@ class AzurePrefix extends CloudFile {
 
 		def (HttpClient client, HttpGet request) = azureProvider.prepareRequest(opts)
 		HttpResponse response = client.execute(request)
-		HttpEntity responseEntity = response.getEntity()
+		EntityUtils.consume(response.entity)
 
 		return (response.statusLine.statusCode == 200)
 	}
@@ -121,6 +121,7 @@ class AzurePrefix extends CloudFile {
 
 			def saveSuccessful = (response.statusLine.statusCode == 201)
 			if(saveSuccessful) {
+				EntityUtils.consume(response.entity)
 				return true
 			} else {
 				def xmlDoc = new XmlSlurper().parse(responseEntity.content)
@@ -153,6 +154,7 @@ class AzurePrefix extends CloudFile {
 
 		def deleteSuccessful = (response.statusLine.statusCode == 202)
 		if(deleteSuccessful) {
+			EntityUtils.consume(response.entity)
 			return true
 		} else {
 			def xmlDoc = new XmlSlurper().parse(responseEntity.content)
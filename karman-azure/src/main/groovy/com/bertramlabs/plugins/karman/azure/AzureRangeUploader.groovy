@@ -0,0 +1,248 @@
+package com.bertramlabs.plugins.karman.azure
+
+import com.bertramlabs.plugins.karman.util.BoundedUploadPipeline
+import com.bertramlabs.plugins.karman.util.StreamUtils
+import groovy.transform.CompileStatic
+import groovy.util.logging.Commons
+import org.apache.http.HttpResponse
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPut
+import org.apache.http.entity.ByteArrayEntity
+import org.apache.http.util.EntityUtils
+
+import java.util.concurrent.Callable
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Writes a stream to an existing page blob ({@code Put Page}) or Azure file ({@code Put Range}) in windows of up to
+ * 4MB with several windows in flight at once. Window buffers come from a bounded pool so memory use is capped at
+ * {@code (concurrency + 1) * rangeSize}, and each range request is retried on connection errors and server side
+ * failures.
+ * <p>
+ * When {@code skipZeroPages} is set each window is scanned in 512 byte pages: runs of non-zero pages are sent as a
+ * single request, while all-zero runs are skipped on a freshly created blob or file (it already reads as zeros) or
+ * cleared without a body when an existing one is overwritten.
+ * </p>
+ */
+@Commons
+@CompileStatic
+class AzureRangeUploader {
+	static final int PAGE_SIZE = 512
+	static final int MAX_RANGE_SIZE = 4 * 1024 * 1024
+	/**
+	 * Zero runs shorter than this are uploaded along with the surrounding data, as an extra request costs more than
+	 * sending the zeros.
+	 */
+	static final int MIN_SKIPPED_RUN = 64 * 1024
+
+	AzureStorageProvider azureProvider
+	String path
+	String uri
+	int concurrency
+	boolean skipZeroPages
+	boolean newBlob
+
+	/**
+	 * Value of the {@code comp} query parameter ({@code page} for page blobs, {@code range} for files)
+	 */
+	String rangeResource = 'page'
+
+	/**
+	 * Name of the header selecting an update or clear ({@code x-ms-page-write} for page blobs, {@code x-ms-write} for files)
+	 */
+	String writeHeader = 'x-ms-page-write'
+
+	/**
+	 * Page blob writes must cover whole 512 byte pages, so a trailing partial page is padded with zeros
+	 */
+	boolean pageAligned = true
+
+	/**
+	 * Size of each window, at most 4MB
+	 */
+	int rangeSize = MAX_RANGE_SIZE
+
+	/**
+	 * Number of times a single range request is attempted before the upload fails
+	 */
+	int maxAttempts = 3
+
+	private final AtomicLong uploadedCounter = new AtomicLong(0)
+	private final AtomicLong skippedCounter = new AtomicLong(0)
+
+	/**
+	 * @param path signed resource path of the blob or file ({@code container/blob})
+	 * @param uri full url of the blob or file
+	 * @param concurrency maximum number of windows uploaded at once
+	 * @param skipZeroPages detect all-zero pages and do not upload them
+	 * @param newBlob the blob or file was just created, so zero pages do not need to be cleared
+	 */
+	AzureRangeUploader(AzureStorageProvider azureProvider, String path, String uri, int concurrency, boolean skipZeroPages, boolean newBlob) {
+		this.azureProvider = azureProvider
+		this.path = path
+		this.uri = uri
+		this.concurrency = Math.max(1, concurrency)
+		this.skipZeroPages = skipZeroPages
+		this.newBlob = newBlob
+	}
+
+	/**
+	 * Number of bytes sent with range write requests.
+	 */
+	long getUploadedBytes() {
+		return uploadedCounter.get()
+	}
+
+	/**
+	 * Number of all-zero bytes that were not uploaded.
+	 */
+	long getSkippedBytes() {
+		return skippedCounter.get()
+	}
+
+	/**
+	 * Uploads the stream until it is exhausted or {@code contentLength} bytes have been written.
+	 */
+	void upload(InputStream sourceStream, long contentLength) {
+		int windowSize = Math.max(PAGE_SIZE, Math.min(rangeSize, MAX_RANGE_SIZE))
+		if(pageAligned) {
+			windowSize -= windowSize % PAGE_SIZE
+		}
+		BoundedUploadPipeline<Object> pipeline = new BoundedUploadPipeline<Object>("karman-azure-upload", concurrency, concurrency + 1, windowSize)
+		try {
+			long filePosition = 0
+			while(filePosition < contentLength) {
+				pipeline.drainCompleted()
+				byte[] buffer = pipeline.takeBuffer()
+				int maxLength = (int) Math.min((long) windowSize, contentLength - filePosition)
+				int count = StreamUtils.readFully(sourceStream, buffer, maxLength)
+				if(count <= 0) {
+					pipeline.returnBuffer(buffer)
+					break
+				}
+				int windowLength = pageAligned ? StreamUtils.alignToPage(buffer, count, PAGE_SIZE) : count
+				pipeline.submit(buffer, uploadWindow(filePosition, buffer, windowLength))
+				filePosition += windowLength
+				if(count < maxLength) {
+					break //end of stream
+				}
+			}
+			pipeline.awaitAll()
+			log.debug("Upload of ${path} complete, uploaded ${uploadedCounter.get()} bytes, skipped ${skippedCounter.get()} zero bytes")
+		} finally {
+			pipeline.close()
+		}
+	}
+
+	private Callable<Object> uploadWindow(final long windowOffset, final byte[] buffer, final int length) {
+		return new Callable<Object>() {
+			@Override
+			Object call() throws Exception {
+				if(!skipZeroPages) {
+					writeRange(windowOffset, buffer, 0, length)
+					return null
+				}
+				int position = 0
+				while(position < length) {
+					int dataEnd = nextZeroRun(buffer, position, length)
+					if(dataEnd > position) {
+						writeRange(windowOffset + position, buffer, position, dataEnd - position)
+					}
+					int zeroEnd = nextDataPage(buffer, dataEnd, length)
+					if(zeroEnd > dataEnd) {
+						if(!newBlob) {
+							writeRange(windowOffset + dataEnd, null, 0, zeroEnd - dataEnd)
+						}
+						skippedCounter.addAndGet(zeroEnd - dataEnd)
+					}
+					position = zeroEnd
+				}
+				return null
+			}
+		}
+	}
+
+	/**
+	 * Writes a range from the buffer, or clears it when the buffer is null.
+	 */
+	private void writeRange(long startByte, byte[] buffer, int offset, int length) {
+		int attempt = 1
+		while(true) {
+			Map opts = [
+				verb: 'PUT',
+				queryParams: [comp: rangeResource],
+				headers: [
+					'x-ms-range':"bytes=${startByte}-${startByte + length - 1}".toString(),
+					'Content-Length': buffer != null ? length : 0,
+					(writeHeader): buffer != null ? 'update' : 'clear'
+				],
+				path: path,
+				uri: uri
+			]
+			List clientRequest = (List) azureProvider.prepareRequest(opts)
+			HttpClient client = (HttpClient) clientRequest[0]
+			HttpPut request = (HttpPut) clientRequest[1]
+			if(buffer != null) {
+				request.setEntity(new ByteArrayEntity(buffer, offset, length))
+			}
+			int statusCode
+			try {
+				HttpResponse response = client.execute(request)
+				statusCode = response.statusLine.statusCode
+				if(statusCode == 201) {
+					EntityUtils.consume(response.entity)
+					if(buffer != null) {
+						uploadedCounter.addAndGet(length)
+					}
+					return
+				}
+				if(attempt >= maxAttempts || !isRetryable(statusCode)) {
+					azureProvider.throwResponseFailure(response, "Error sending bytes to ${path} for startByte: ${startByte}, pageSize: ${length}")
+				}
+				EntityUtils.consume(response.entity)
+			} catch(IOException ex) {
+				if(attempt >= maxAttempts) {
+					throw ex
+				}
+				log.warn("Error sending bytes to ${path} for startByte: ${startByte}, retrying: ${ex.message}")
+			}
+			Thread.sleep(1000l * attempt)
+			attempt++
+		}
+	}
+
+	private static boolean isRetryable(int statusCode) {
+		return statusCode >= 500 || statusCode == 408 || statusCode == 429
+	}
+
+	/**
+	 * Returns the end of the data run starting at {@code start}: the offset of the first zero run of at least
+	 * {@link #MIN_SKIPPED_RUN} bytes (or reaching the end of the window), or {@code length} if there is none.
+	 */
+	static int nextZeroRun(byte[] buffer, int start, int length) {
+		int position = start
+		while(position < length) {
+			if(!StreamUtils.isZeroFilled(buffer, position, Math.min(PAGE_SIZE, length - position))) {
+				position += PAGE_SIZE
+				continue
+			}
+			int zeroEnd = nextDataPage(buffer, position, length)
+			if(zeroEnd - position >= MIN_SKIPPED_RUN || zeroEnd == length) {
+				return position
+			}
+			position = zeroEnd
+		}
+		return length
+	}
+
+	/**
+	 * Returns the offset of the first page at or after {@code start} that contains data, or {@code length}.
+	 */
+	static int nextDataPage(byte[] buffer, int start, int length) {
+		int position = start
+		while(position < length && StreamUtils.isZeroFilled(buffer, position, Math.min(PAGE_SIZE, length - position))) {
+			position += PAGE_SIZE
+		}
+		return Math.min(position, length)
+	}
+}
@@ -2,76 +2,20 @@ package com.bertramlabs.plugins.karman.azure
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidKeyException;
-import com.bertramlabs.plugins.karman.Directory
 import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.util.HttpTransport
 import groovy.util.XmlSlurper
 import groovy.util.logging.Commons
-import org.apache.http.Header
 import org.apache.http.HttpEntity
-import org.apache.http.HttpHost
-import org.apache.http.HttpRequest
-import org.apache.http.HttpResponse
-import org.apache.http.ParseException
-import org.apache.http.auth.AuthScope
-import org.apache.http.auth.NTCredentials
-import org.apache.http.client.CredentialsProvider
 import org.apache.http.client.HttpClient
 import org.apache.http.client.methods.HttpDelete
 import org.apache.http.client.methods.HttpGet
 import org.apache.http.client.methods.HttpHead
+import org.apache.http.client.methods.HttpPost
 import org.apache.http.client.methods.HttpPut
 import org.apache.http.client.utils.URIBuilder
-import org.apache.http.config.MessageConstraints
-import org.apache.http.config.Registry
-import org.apache.http.config.RegistryBuilder
-import org.apache.http.conn.ConnectTimeoutException
-import org.apache.http.conn.HttpConnectionFactory
-import org.apache.http.conn.ManagedHttpClientConnection
-import org.apache.http.conn.routing.HttpRoute
-import org.apache.http.conn.socket.ConnectionSocketFactory
-import org.apache.http.conn.socket.PlainConnectionSocketFactory
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory
-import org.apache.http.conn.ssl.X509HostnameVerifier
-import org.apache.http.conn.ssl.SSLContextBuilder
-import org.apache.http.conn.ssl.TrustStrategy
-import org.apache.http.entity.InputStreamEntity
-import org.apache.http.entity.StringEntity
-import org.apache.http.impl.DefaultHttpResponseFactory
-import org.apache.http.impl.client.BasicCredentialsProvider
-import org.apache.http.impl.client.DefaultHttpClient
-import org.apache.http.client.config.RequestConfig
-import org.apache.http.impl.client.HttpClientBuilder
-import org.apache.http.impl.client.HttpClients
-import org.apache.http.impl.client.ProxyAuthenticationStrategy
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager
-import org.apache.http.impl.conn.DefaultHttpResponseParser
-import org.apache.http.impl.conn.DefaultHttpResponseParserFactory
-import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory
-import org.apache.http.impl.io.DefaultHttpRequestWriterFactory
-import org.apache.http.io.HttpMessageParser
-import org.apache.http.io.HttpMessageParserFactory
-import org.apache.http.io.HttpMessageWriterFactory
-import org.apache.http.io.SessionInputBuffer
-import org.apache.http.message.BasicHeader
-import org.apache.http.message.BasicLineParser
-import org.apache.http.message.LineParser
-import org.apache.http.params.HttpConnectionParams
-import org.apache.http.params.HttpParams
-import org.apache.http.protocol.HttpContext
-import org.apache.http.ssl.SSLContexts
-import org.apache.http.util.CharArrayBuffer
 import org.apache.http.util.EntityUtils
 
-import javax.net.ssl.SSLContext
-import javax.net.ssl.SSLSession
-import javax.net.ssl.SSLSocket
-import javax.net.ssl.TrustManager
-import javax.net.ssl.X509TrustManager
-import java.lang.reflect.InvocationTargetException
-import java.net.URLEncoder
-import java.security.SecureRandom
-import java.security.cert.X509Certificate
 
 import java.text.*;
 
@@ -89,6 +33,15 @@ abstract class AzureStorageProvider extends StorageProvider {
 	String noProxy
 	String protocol = 'https'
 	String baseEndpointDomain
+	Integer maxConnections = 100
+	Integer maxConnectionsPerRoute = 50
+	Integer connectionRequestTimeout = 30000
+	/**
+	 * Milliseconds {@code copyTo()} waits for a server side copy before aborting it (default 1 hour)
+	 */
+	Long copyTimeout = 60l * 60l * 1000l
+
+	private HttpTransport httpTransport
 
 	abstract String getEndpointUrl()
 
@@ -152,7 +105,7 @@ abstract class AzureStorageProvider extends StorageProvider {
 		return encodedSignature
 	}
 
-	private String getDateString() {
+	protected String getDateString() {
 		Calendar calendar = Calendar.getInstance();
 		SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
 		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
@@ -176,6 +129,9 @@ abstract class AzureStorageProvider extends StorageProvider {
 			case 'PUT':
 				request = new HttpPut(uri)
 				break
+			case 'POST':
+				request = new HttpPost(uri)
+				break
 			case 'GET':
 				request = new HttpGet(uri)
 				break
@@ -204,118 +160,41 @@ abstract class AzureStorageProvider extends StorageProvider {
 			}
 		}
 		
-		HttpClientBuilder clientBuilder = HttpClients.custom()
-		clientBuilder.setHostnameVerifier(new X509HostnameVerifier() {
-			public boolean verify(String host, SSLSession sess) {
-				return true
-			}
-
-			public void verify(String host, SSLSocket ssl) {
-
-			}
-
-			public void verify(String host, String[] cns, String[] subjectAlts) {
-
-			}
-
-			public void verify(String host, X509Certificate cert) {
-
-			}
-
-		})
-
-		SSLContext sslcontext = new SSLContextBuilder().loadTrustMaterial(null, new TrustStrategy() {
-				@Override
-				public boolean isTrusted(X509Certificate[] chain, String authType) throws java.security.cert.CertificateException {
-					return true
-				}
-			}).build()
-		SSLConnectionSocketFactory sslConnectionFactory = new SSLConnectionSocketFactory(sslcontext, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER) {
-			@Override
-			public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException, ConnectTimeoutException {
-				if(socket instanceof SSLSocket) {
-					try {
-						socket.setEnabledProtocols(['SSLv3', 'TLSv1', 'TLSv1.1', 'TLSv1.2'] as String[])
-						log.debug "hostname: ${host?.getHostName()}"
-						PropertyUtils.setProperty(socket, "host", host.getHostName());
-					} catch (NoSuchMethodException ex) {}
-					catch (IllegalAccessException ex) {}
-					catch (InvocationTargetException ex) {}
-					catch (Exception ex) {
-						log.error "We have an unhandled exception when attempting to connect to ${host} ignoring SSL errors", ex
-					}
-				}
-				return super.connectSocket(20 * 1000, socket, host, remoteAddress, localAddress, context)
-			}
-		}
-
-		HttpMessageParserFactory<HttpResponse> responseParserFactory = new DefaultHttpResponseParserFactory() {
+		HttpClient client = getHttpTransport().client
 
-			@Override
-			public HttpMessageParser<HttpResponse> create(SessionInputBuffer ibuffer, MessageConstraints constraints) {
-				LineParser lineParser = new BasicLineParser() {
-
-					@Override
-					public Header parseHeader(final CharArrayBuffer buffer) {
-						try {
-							return super.parseHeader(buffer);
-						} catch (ParseException ex) {
-							return new BasicHeader(buffer.toString(), null);
-						}
-					}
-
-				};
-				return new DefaultHttpResponseParser(
-					ibuffer, lineParser, DefaultHttpResponseFactory.INSTANCE, constraints ?: MessageConstraints.DEFAULT) {
-
-					@Override
-					protected boolean reject(final CharArrayBuffer line, int count) {
-						//We need to break out of forever head reads
-						if(count > 100) {
-							return true
-						}
-						return false;
-
-					}
+		return [client, request]
+	}
 
-				};
-			}
+	/**
+	 * Pooled HTTP client shared by every request of this provider
+	 */
+	synchronized HttpTransport getHttpTransport() {
+		if(httpTransport == null) {
+			httpTransport = new HttpTransport(
+				maxConnections: maxConnections,
+				maxConnectionsPerRoute: maxConnectionsPerRoute,
+				connectionRequestTimeout: connectionRequestTimeout,
+				trustAllCertificates: true,
+				tlsProtocols: ['TLSv1', 'TLSv1.1', 'TLSv1.2', 'TLSv1.3'],
+				connectTimeout: 30000,
+				socketTimeout: 20000,
+				proxyHost: proxyHost,
+				proxyPort: proxyPort,
+				proxyUser: proxyUser,
+				proxyPassword: proxyPassword,
+				proxyWorkstation: proxyWorkstation,
+				proxyDomain: proxyDomain,
+				provider: this
+			)
 		}
+		return httpTransport
+	}
 
-		clientBuilder.setSSLSocketFactory(sslConnectionFactory)
-		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
-			.register("https", sslConnectionFactory)
-			.register("http", PlainConnectionSocketFactory.INSTANCE)
-			.build();
-
-		HttpMessageWriterFactory<HttpRequest> requestWriterFactory = new DefaultHttpRequestWriterFactory();
-
-		HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connFactory = new ManagedHttpClientConnectionFactory(
-			requestWriterFactory, responseParserFactory);
-		BasicHttpClientConnectionManager connectionManager = new BasicHttpClientConnectionManager(registry, connFactory)
-		clientBuilder.setConnectionManager(connectionManager)
-
-		// Proxy Settings
-		if(proxyHost) {
-			clientBuilder.setProxy(new HttpHost(proxyHost, proxyPort))
-			if(proxyUser) {
-				CredentialsProvider credsProvider = new BasicCredentialsProvider();
-				NTCredentials ntCreds = new NTCredentials(proxyUser, proxyPassword, proxyWorkstation, proxyDomain)
-				credsProvider.setCredentials(new AuthScope(proxyHost, proxyPort), ntCreds)
-
-				clientBuilder.setDefaultCredentialsProvider(credsProvider)
-				clientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy())
-			}
+	public void shutdown() {
+		synchronized(this) {
+			httpTransport?.close()
+			httpTransport = null
 		}
-
-		RequestConfig config = RequestConfig.custom()
-			.setConnectTimeout(30000)
-			.setSocketTimeout(20000).build()
-		clientBuilder.setDefaultRequestConfig(config)
-
-		HttpClient client = clientBuilder.build()
-
-		return [client, request]
 	}
 
 	protected throwResponseFailure(response, message) {
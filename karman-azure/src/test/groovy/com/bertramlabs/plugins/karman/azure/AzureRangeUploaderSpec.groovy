@@ -0,0 +1,89 @@
+package com.bertramlabs.plugins.karman.azure
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class AzureRangeUploaderSpec extends Specification {
+	static final int PAGE = AzureRangeUploader.PAGE_SIZE
+	static final int MIN_RUN = AzureRangeUploader.MIN_SKIPPED_RUN
+
+	def "a buffer of zeros is a single zero run"() {
+		given:
+		byte[] buffer = new byte[MIN_RUN * 2]
+
+		expect:
+		AzureRangeUploader.nextZeroRun(buffer, 0, buffer.length) == 0
+		AzureRangeUploader.nextDataPage(buffer, 0, buffer.length) == buffer.length
+	}
+
+	def "a buffer without zero pages is a single data run"() {
+		given:
+		byte[] buffer = new byte[MIN_RUN * 2]
+		Arrays.fill(buffer, (byte) 1)
+
+		expect:
+		AzureRangeUploader.nextZeroRun(buffer, 0, buffer.length) == buffer.length
+		AzureRangeUploader.nextDataPage(buffer, 0, buffer.length) == 0
+	}
+
+	def "a zero run of at least the minimum length ends the data run"() {
+		given:
+		byte[] buffer = new byte[PAGE * 2 + MIN_RUN + PAGE]
+		Arrays.fill(buffer, 0, PAGE * 2, (byte) 1)
+		buffer[buffer.length - 1] = 1
+
+		expect:
+		AzureRangeUploader.nextZeroRun(buffer, 0, buffer.length) == PAGE * 2
+		AzureRangeUploader.nextDataPage(buffer, PAGE * 2, buffer.length) == PAGE * 2 + MIN_RUN
+		AzureRangeUploader.nextZeroRun(buffer, PAGE * 2 + MIN_RUN, buffer.length) == buffer.length
+	}
+
+	def "zero runs shorter than the minimum are sent with the data"() {
+		given:
+		byte[] buffer = new byte[MIN_RUN * 2]
+		buffer[0] = 1
+		buffer[MIN_RUN - PAGE] = 1
+		buffer[buffer.length - 1] = 1
+
+		expect:
+		AzureRangeUploader.nextZeroRun(buffer, 0, buffer.length) == buffer.length
+		AzureRangeUploader.nextDataPage(buffer, PAGE, buffer.length) == MIN_RUN - PAGE
+	}
+
+	def "a short zero run reaching the end of the window is skipped"() {
+		given:
+		byte[] buffer = new byte[MIN_RUN]
+		Arrays.fill(buffer, 0, PAGE * 3, (byte) 1)
+
+		expect:
+		AzureRangeUploader.nextZeroRun(buffer, 0, buffer.length) == PAGE * 3
+		AzureRangeUploader.nextDataPage(buffer, PAGE * 3, buffer.length) == buffer.length
+	}
+
+	@Unroll
+	def "a single byte at #offset makes its page a data page"() {
+		given:
+		byte[] buffer = new byte[PAGE * 4]
+		buffer[offset] = 1
+
+		expect:
+		AzureRangeUploader.nextDataPage(buffer, 0, buffer.length) == dataPage
+
+		where:
+		offset       | dataPage
+		0            | 0
+		PAGE - 1     | 0
+		PAGE         | PAGE
+		PAGE * 3 + 7 | PAGE * 3
+	}
+
+	def "the last page may be shorter than a full page"() {
+		given:
+		byte[] buffer = new byte[PAGE + 100]
+		buffer[PAGE + 99] = 1
+
+		expect:
+		AzureRangeUploader.nextDataPage(buffer, 0, buffer.length) == PAGE
+		AzureRangeUploader.nextDataPage(buffer, 0, PAGE + 99) == PAGE + 99
+	}
+}
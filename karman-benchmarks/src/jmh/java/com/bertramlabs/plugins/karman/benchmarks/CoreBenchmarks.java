@@ -0,0 +1,96 @@
+package com.bertramlabs.plugins.karman.benchmarks;
+
+import com.bertramlabs.plugins.karman.Directory;
+import com.bertramlabs.plugins.karman.util.ChunkedInputStream;
+import com.bertramlabs.plugins.karman.util.Mimetypes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro benchmarks of the karman-core helpers called for every file or every buffer of a transfer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoreBenchmarks {
+    private static final String[] FILE_NAMES = {
+        "backups/2016/mydisk.qcow2", "images/logo.png", "index.html", "archive.tar.gz",
+        "README", "assets/app.min.js", "video/intro.mp4", "data/report.PDF"
+    };
+
+    private static final String[] PATHS = {
+        "uploads/2016/../2017/./report.pdf", "a/b/c/d/e/f/g.txt", "../escape/attempt/../../x",
+        "folder/", "./a/./b/../c/", "plain-file-name.txt"
+    };
+
+    /**
+     * Size of the stream split by {@link ChunkedInputStream}
+     */
+    @Param({"32"})
+    public int sourceSizeMb;
+
+    /**
+     * Size of each chunk, 5MB is the smallest S3 multipart upload part
+     */
+    @Param({"5242880"})
+    public int chunkSize;
+
+    @Param({"8192", "65536"})
+    public int readSize;
+
+    private byte[] source;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        source = new byte[sourceSizeMb * 1024 * 1024];
+        new Random(42).nextBytes(source);
+        buffer = new byte[readSize];
+    }
+
+    @Benchmark
+    public void mimetype(Blackhole blackhole) {
+        Mimetypes mimetypes = Mimetypes.getInstance();
+        for(String fileName : FILE_NAMES) {
+            blackhole.consume(mimetypes.getMimetype(fileName));
+        }
+    }
+
+    @Benchmark
+    public void normalizePath(Blackhole blackhole) {
+        for(String path : PATHS) {
+            blackhole.consume(Directory.normalizePath(path));
+        }
+    }
+
+    @Benchmark
+    public long chunkedInputStream() throws IOException {
+        ChunkedInputStream chunkedStream = new ChunkedInputStream(new ByteArrayInputStream(source), (long) chunkSize);
+        long total = 0;
+        do {
+            int bytesRead;
+            while((bytesRead = chunkedStream.read(buffer, 0, buffer.length)) > 0) {
+                total += bytesRead;
+            }
+        } while(chunkedStream.nextChunk());
+        return total;
+    }
+}
@@ -0,0 +1,138 @@
+package com.bertramlabs.plugins.karman.benchmarks;
+
+import com.bertramlabs.plugins.karman.CloudFile;
+import com.bertramlabs.plugins.karman.Directory;
+import com.bertramlabs.plugins.karman.differential.DifferentialCloudFile;
+import com.bertramlabs.plugins.karman.differential.DifferentialStorageProvider;
+import com.bertramlabs.plugins.karman.local.LocalStorageProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End to end save and restore of differential files backed by a {@link LocalStorageProvider} in a temporary
+ * directory. The trial setup stores a base image and a changed image linked to it, so incremental saves compare
+ * against a real manifest and restores read blocks from both files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class DifferentialFileBenchmarks {
+    @Param({"64"})
+    public int imageSizeMb;
+
+    /**
+     * Share of blocks changed between the base and the changed image
+     */
+    @Param({"0.01", "0.1"})
+    public double changeRate;
+
+    /**
+     * Share of zero filled blocks in the images
+     */
+    @Param({"0.3"})
+    public double zeroRatio;
+
+    @Param({"gzip"})
+    public String blockCodec;
+
+    @Param({"1"})
+    public int saveWorkers;
+
+    @Param({"1"})
+    public int restoreWorkers;
+
+    private Path storagePath;
+    private Directory directory;
+    private byte[] baseImage;
+    private byte[] changedImage;
+    private DifferentialCloudFile baseFile;
+    private byte[] buffer = new byte[64 * 1024];
+
+    @Setup
+    public void setup() throws IOException {
+        storagePath = Files.createTempDirectory("karman-benchmarks");
+        LocalStorageProvider localProvider = new LocalStorageProvider(Collections.singletonMap("basePath", storagePath.toString()));
+
+        DifferentialStorageProvider provider = new DifferentialStorageProvider();
+        provider.setSourceProvider(localProvider);
+        provider.setBlockCodec(blockCodec);
+        provider.setSaveWorkers(saveWorkers);
+        provider.setRestoreWorkers(restoreWorkers);
+        directory = provider.getDirectory("images");
+        directory.save();
+
+        int blockSize = provider.getBlockSize();
+        baseImage = SyntheticImage.base(imageSizeMb * 1024 * 1024, blockSize, zeroRatio, 42L);
+        changedImage = SyntheticImage.changed(baseImage, blockSize, changeRate, 43L);
+        baseFile = save("base.img", baseImage, null);
+        save("changed.img", changedImage, baseFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try(Stream<Path> paths = Files.walk(storagePath)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public CloudFile saveFull() {
+        return save("full.img", baseImage, null);
+    }
+
+    @Benchmark
+    public CloudFile saveIncremental() {
+        return save("incremental.img", changedImage, baseFile);
+    }
+
+    /**
+     * Restores the changed image, about {@code changeRate} of its blocks are read from its own block files and the
+     * rest from the base image.
+     */
+    @Benchmark
+    public long restore() throws IOException {
+        long total = 0;
+        try(InputStream restoreStream = directory.getFile("changed.img").getInputStream()) {
+            int bytesRead;
+            while((bytesRead = restoreStream.read(buffer, 0, buffer.length)) > 0) {
+                total += bytesRead;
+            }
+        }
+        return total;
+    }
+
+    private DifferentialCloudFile save(String name, byte[] image, DifferentialCloudFile linkedFile) {
+        DifferentialCloudFile file = (DifferentialCloudFile) directory.getFile(name);
+        if(linkedFile != null) {
+            file.setLinkedFile(linkedFile);
+        }
+        file.setContentLength((long) image.length);
+        file.setInputStream(new ByteArrayInputStream(image));
+        file.save();
+        return file;
+    }
+}
@@ -0,0 +1,51 @@
+package com.bertramlabs.plugins.karman.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic disk image content for the differential benchmarks. A base image is made of random blocks with a
+ * share of zero filled blocks (unallocated space), a changed image rewrites small regions of a share of its blocks
+ * the way a running VM dirties sectors between two backups.
+ */
+public class SyntheticImage {
+    private static final int CHANGED_REGION_SIZE = 4096;
+
+    /**
+     * @param zeroRatio share of blocks left zero filled, between 0 and 1
+     */
+    public static byte[] base(int sizeBytes, int blockSize, double zeroRatio, long seed) {
+        Random random = new Random(seed);
+        byte[] image = new byte[sizeBytes];
+        byte[] block = new byte[blockSize];
+        for(int offset = 0; offset < sizeBytes; offset += blockSize) {
+            int length = Math.min(blockSize, sizeBytes - offset);
+            if(random.nextDouble() < zeroRatio) {
+                continue;
+            }
+            random.nextBytes(block);
+            System.arraycopy(block, 0, image, offset, length);
+        }
+        return image;
+    }
+
+    /**
+     * @param changeRate share of blocks with a rewritten region, between 0 and 1
+     */
+    public static byte[] changed(byte[] base, int blockSize, double changeRate, long seed) {
+        Random random = new Random(seed);
+        byte[] image = Arrays.copyOf(base, base.length);
+        byte[] region = new byte[CHANGED_REGION_SIZE];
+        for(int offset = 0; offset < image.length; offset += blockSize) {
+            if(random.nextDouble() >= changeRate) {
+                continue;
+            }
+            int length = Math.min(blockSize, image.length - offset);
+            int regionLength = Math.min(CHANGED_REGION_SIZE, length);
+            int regionOffset = offset + random.nextInt(length - regionLength + 1);
+            random.nextBytes(region);
+            System.arraycopy(region, 0, image, regionOffset, regionLength);
+        }
+        return image;
+    }
+}
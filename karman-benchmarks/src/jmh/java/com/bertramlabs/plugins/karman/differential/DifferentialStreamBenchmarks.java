@@ -0,0 +1,144 @@
+package com.bertramlabs.plugins.karman.differential;
+
+import com.bertramlabs.plugins.karman.benchmarks.SyntheticImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the block hashing and manifest handling done for every block of a differential save or restore,
+ * without any storage involved. Lives in the differential package to reach the package private manifest API.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DifferentialStreamBenchmarks {
+    @Param({"64"})
+    public int imageSizeMb;
+
+    @Param({"1048576"})
+    public int blockSize;
+
+    @Param({"0.0", "0.5"})
+    public double zeroRatio;
+
+    @Param({"0.1"})
+    public double changeRate;
+
+    private byte[] baseImage;
+    private byte[] changedImage;
+    private byte[] baseManifest;
+    private byte[] buffer;
+    private ManifestData.BlockData blockData;
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        baseImage = SyntheticImage.base(imageSizeMb * 1024 * 1024, blockSize, zeroRatio, 42L);
+        changedImage = SyntheticImage.changed(baseImage, blockSize, changeRate, 43L);
+        buffer = new byte[blockSize];
+
+        ManifestData manifestData = new ManifestData();
+        manifestData.fileName = "base.img";
+        manifestData.fileSize = (long) baseImage.length;
+        manifestData.blockSize = blockSize;
+        manifestData.version = 2;
+        ByteArrayOutputStream manifestOutput = new ByteArrayOutputStream();
+        manifestOutput.write(manifestData.getHeader().getBytes(StandardCharsets.UTF_8));
+        digest(baseImage, manifestOutput, null);
+        baseManifest = manifestOutput.toByteArray();
+
+        blockData = new ManifestData.BlockData();
+        blockData.block = 12345L;
+        blockData.blockSize = blockSize;
+        blockData.fileIndex = 1;
+        blockData.hash = new byte[28];
+        for(int i = 0; i < blockData.hash.length; i++) {
+            blockData.hash[i] = (byte) (i * 31 + 7);
+        }
+    }
+
+    /**
+     * Hashes a full image as done by a save without a linked file.
+     */
+    @Benchmark
+    public long blockDigestStream() throws IOException, NoSuchAlgorithmException {
+        return digest(baseImage, new DiscardingOutputStream(), null);
+    }
+
+    /**
+     * Hashes a changed image and compares each block against the manifest of the base image, as done by an
+     * incremental save.
+     */
+    @Benchmark
+    public long blockDigestStreamLinked() throws IOException, NoSuchAlgorithmException {
+        return digest(changedImage, new DiscardingOutputStream(), openBaseManifest());
+    }
+
+    @Benchmark
+    public long manifestNextBlockData() throws IOException {
+        DifferentialInputStream manifestStream = openBaseManifest();
+        long blocks = 0;
+        while(manifestStream.getNextBlockData() != null) {
+            blocks++;
+        }
+        return blocks;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void blockDataGenerateBytes(Blackhole blackhole) {
+        blackhole.consume(blockData.generateBytes());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public ManifestData.BlockData blockDataFromBytes() {
+        return ManifestData.BlockData.fromBytes(blockData.generateBytes());
+    }
+
+    private DifferentialInputStream openBaseManifest() throws IOException {
+        return new DifferentialInputStream(null, new ByteArrayInputStream(baseManifest));
+    }
+
+    private long digest(byte[] image, OutputStream manifestOutput, DifferentialInputStream linkedManifest) throws IOException, NoSuchAlgorithmException {
+        BlockDigestStream digestStream = new BlockDigestStream(new ByteArrayInputStream(image), manifestOutput, blockSize, linkedManifest);
+        long total = 0;
+        int bytesRead;
+        while((bytesRead = digestStream.read(buffer, 0, buffer.length)) > 0) {
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
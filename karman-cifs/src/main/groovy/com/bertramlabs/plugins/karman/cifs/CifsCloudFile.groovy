@@ -17,6 +17,10 @@
 package com.bertramlabs.plugins.karman.cifs
 
 import com.bertramlabs.plugins.karman.*
+import com.bertramlabs.plugins.karman.metrics.MeteredInputStream
+import com.bertramlabs.plugins.karman.metrics.MeteredOutputStream
+import com.bertramlabs.plugins.karman.metrics.NoopStorageMetrics
+import com.bertramlabs.plugins.karman.metrics.StorageMetrics
 import groovy.util.logging.Commons
 import java.io.ByteArrayInputStream;
 import com.bertramlabs.plugins.karman.util.Mimetypes
@@ -30,6 +34,12 @@ class CifsCloudFile extends CloudFile {
 	CifsStorageProvider provider
 	InputStream sourceStream
 	SmbFile baseFile
+
+	private Boolean existsCache
+	private Boolean directoryCache
+	private Long lengthCache
+	private Long lastModifiedCache
+
 	SmbFile getCifsFile() {
 		if(baseFile) {
 			return baseFile
@@ -53,7 +63,13 @@ class CifsCloudFile extends CloudFile {
 	}
 
 	InputStream getInputStream() {
-		getCifsFile().getInputStream()
+		//SmbFileInputStream sends a read request for every read call, so read in chunks of the negotiated size
+		InputStream inputStream = new BufferedInputStream(getCifsFile().getInputStream(), provider.transferBufferSize)
+		StorageMetrics metrics = provider?.metrics
+		if(metrics == null || metrics instanceof NoopStorageMetrics) {
+			return inputStream
+		}
+		return new MeteredInputStream(inputStream, metrics, provider.providerName, 'read')
 	}
 
 	@CompileStatic
@@ -67,23 +83,26 @@ class CifsCloudFile extends CloudFile {
 			ensurePathExists()
 			cifsFile.createNewFile()
 		}
-		cifsFile.getOutputStream()
+		clearAttributes()
+		return metered(cifsFile.getOutputStream())
 	}
 
 	String getText(String encoding = null) {
 		def result = null
+		def fileStream = inputStream
 		if(encoding) {
-			result = inputStream?.getText(encoding)
+			result = fileStream?.getText(encoding)
 		} else {
-			result = inputStream?.text
+			result = fileStream?.text
 		}
-		inputStream?.close()
+		fileStream?.close()
 		return result
 	}
 
 	byte[] getBytes() {
-		def result = inputStream?.bytes
-		inputStream?.close()
+		def fileStream = inputStream
+		def result = fileStream?.bytes
+		fileStream?.close()
 		return result
 	}
 
@@ -98,12 +117,13 @@ class CifsCloudFile extends CloudFile {
 	}
 
 	Long getContentLength() {
-		def cifsFile = getCifsFile()
-		return cifsFile.length()
+		loadAttributes()
+		return lengthCache
 	}
 
 	Date getDateModified() {
-		return new Date(cifsFile.lastModified())
+		loadAttributes()
+		return new Date(lastModifiedCache)
 	}
 
 
@@ -117,8 +137,34 @@ class CifsCloudFile extends CloudFile {
 	}
 
 	Boolean exists() {
-		def cifsFile = getCifsFile()
-		return cifsFile.exists()
+		loadAttributes()
+		return existsCache
+	}
+
+	/**
+	 * Captures the attributes of the resolved SmbFile once, so later getters make no further requests. For files
+	 * returned by a listing they come from the directory entry itself.
+	 */
+	@CompileStatic
+	protected void loadAttributes() {
+		if(existsCache != null) {
+			return
+		}
+		SmbFile cifsFile = getCifsFile()
+		Boolean fileExists = cifsFile.exists()
+		directoryCache = fileExists ? cifsFile.isDirectory() : false
+		lengthCache = fileExists ? cifsFile.length() : 0l
+		lastModifiedCache = fileExists ? cifsFile.lastModified() : 0l
+		existsCache = fileExists
+	}
+
+	/**
+	 * Drops the captured attributes and the resolved handle after the file was changed.
+	 */
+	@CompileStatic
+	protected void clearAttributes() {
+		existsCache = null
+		baseFile = null
 	}
 
   void setMetaAttribute(key, value) {
@@ -140,26 +186,30 @@ class CifsCloudFile extends CloudFile {
 	@CompileStatic
   	def save(acl = '') {
 		if(sourceStream) {
-			SmbFile parentFile = new SmbFile(cifsFile.parent,provider.getCifsContext())
-			try {
-				if(!parentFile.exists()) {
-					parentFile.mkdirs()
-				}
-			} catch(ex) {
-				log.warn("Error ensuring path exists: ${parentFile.path} - ${ex.message}...This may be ok though, moving on.")
-			}
-
-			copyStream(sourceStream, getOutputStream())
+			ensurePathExists()
+			clearAttributes()
+			//opening the output stream creates or truncates the file
+			copyStream(sourceStream, metered(getCifsFile().getOutputStream()))
 			sourceStream = null
 		}
 
 		return
 	}
 
+	@CompileStatic
+	private OutputStream metered(OutputStream outputStream) {
+		StorageMetrics metrics = provider?.metrics
+		if(metrics == null || metrics instanceof NoopStorageMetrics) {
+			return outputStream
+		}
+		return new MeteredOutputStream(outputStream, metrics, provider.providerName, 'write')
+	}
+
 	@CompileStatic
 	private copyStream(InputStream source, OutputStream out) {
 		try {
-			byte[] buffer = new byte[8192*2];
+			//each write is split into requests of the negotiated max write size
+			byte[] buffer = new byte[provider.transferBufferSize];
 			int len;
 			while ((len = source.read(buffer)) != -1) {
 				out.write(buffer, 0, len);
@@ -175,23 +225,24 @@ class CifsCloudFile extends CloudFile {
 
 	def delete() {
 		def cifsFile = getCifsFile()
-		if(cifsFile.exists()) {
+		if(exists()) {
 			cifsFile.delete()
 		}
+		clearAttributes()
 
 		cleanUpTree()
 	}
 
 	@Override
 	Boolean isFile() {
-		def cifsFile = getCifsFile()
-		return cifsFile.isFile()
+		loadAttributes()
+		return existsCache && !directoryCache
 	}
 
 	@Override
 	Boolean isDirectory() {
-		def cifsFile = getCifsFile()
-		return cifsFile.isDirectory()
+		loadAttributes()
+		return directoryCache
 	}
 
 	private cleanUpTree() {
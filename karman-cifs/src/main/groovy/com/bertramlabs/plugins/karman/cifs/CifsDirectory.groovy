@@ -17,25 +17,38 @@
 package com.bertramlabs.plugins.karman.cifs
 
 import com.bertramlabs.plugins.karman.*
+import com.bertramlabs.plugins.karman.util.DaemonThreadFactory
+import com.bertramlabs.plugins.karman.util.TreeListing
 import java.nio.file.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import jcifs.smb.NtlmPasswordAuthentication
 import jcifs.smb.SmbFile
 import jcifs.context.SingletonContext
 
 class CifsDirectory extends com.bertramlabs.plugins.karman.Directory {
 
+
 	CifsStorageProvider provider
 	String region
+	private SmbFile baseFile
 
 	SmbFile getCifsFile(String prefix=null) {
 		def rtn
 		def dirName = name + '/'
 		if(prefix) {
 			dirName = dirName + normalizePath(prefix)
+		} else if(baseFile != null) {
+			return baseFile
 		}
 		
 		rtn = new SmbFile(provider.getSmbUrl(dirName), provider.getCifsContext())
-		
+		if(!prefix) {
+			baseFile = rtn
+		}
 		return rtn
 	}
 
@@ -46,7 +59,71 @@ class CifsDirectory extends com.bertramlabs.plugins.karman.Directory {
 
 	List listFiles(options = [:]) {
 		Collection<CifsCloudFile> rtn = []
+		Map filter = listingFilter(options)
+		def delimiter = options.delimiter
+		def baseFile = filter.rootFolder
+		def includes = filter.includes
+		def excludes = filter.excludes
 
+		if(delimiter != '/') {
+			walkTree(baseFile, includes, excludes, rtn)
+		} else {
+			rtn.addAll(convertFilesToCloudFiles(baseFile, includes, excludes))
+		}
+
+		rtn = rtn?.findAll {
+			isMatchedFile(it.name,includes,excludes)
+		}
+//		if(prefix) {
+//			rtn = rtn.findAll { file ->
+//				if(file.name.length() >= prefix.length()) {
+//					if(file.name.take(prefix.length()) == prefix) {
+//						return true
+//					}
+//				}
+//				return false
+//			}
+//		}
+
+		return rtn
+	}
+
+	/**
+	 * Lists a single page of files in depth first, name sorted order without building the whole tree.
+	 * The continuation token is the name of the last file returned.
+	 * @param options same as listFiles plus pageSize and continuationToken
+	 */
+	ListingPage listFilesPage(Map options = [:]) {
+		Map filter = listingFilter(options)
+		def includes = filter.includes
+		def excludes = filter.excludes
+		String basePath = getCifsFile().path
+		CifsDirectory directory = this
+		TreeListing<SmbFile> listing = new TreeListing<SmbFile>() {
+			protected Collection<SmbFile> listChildren(SmbFile folder) {
+				return folder.exists() ? folder.listFiles()?.toList() : null
+			}
+
+			protected String getKey(SmbFile entry) {
+				return directory.relativePath(basePath, entry)
+			}
+
+			protected boolean isFolder(SmbFile entry) {
+				return entry.isDirectory()
+			}
+
+			protected boolean matches(String key) {
+				return directory.isMatchedFile(key, includes, excludes)
+			}
+
+			protected CloudFile toCloudFile(SmbFile entry, String key) {
+				return new CifsCloudFile(provider: directory.provider, parent: directory, name: key, baseFile: entry)
+			}
+		}
+		return listing.listPage(filter.rootFolder as SmbFile, options?.delimiter != '/', (options?.pageSize ?: DEFAULT_PAGE_SIZE) as Integer, options?.continuationToken as String)
+	}
+
+	private Map listingFilter(options) {
 		def delimiter = options.delimiter
 		FileSystem fileSystem = FileSystems.getDefault()
 		def prefix
@@ -88,59 +165,86 @@ class CifsDirectory extends com.bertramlabs.plugins.karman.Directory {
 			excludes << fileSystem.getPathMatcher("glob:**/*")
 			includes << fileSystem.getPathMatcher("glob:*")
 		}
+		return [rootFolder: baseFile, includes: includes, excludes: excludes]
+	}
 
+	private String relativePath(String basePath, SmbFile file) {
+		def path = file.path.substring(basePath.length() - 1)
+		if(path.startsWith('/')) {
+			path = path.substring(1)
+		}
+		if(path.endsWith('/')) {
+			path = path.substring(0,path.length() - 1)
+		}
+		return path
+	}
 
-		convertFilesToCloudFiles(baseFile, includes,excludes,  rtn)
-
-		if(delimiter != '/') {
-			for(int counter=0;counter < rtn.size(); counter++) {
-				CifsCloudFile currentFile = rtn[counter]
-				if(currentFile.isDirectory()) {
-
-					convertFilesToCloudFiles(currentFile.getCifsFile(), includes,excludes, rtn, counter+1)
+	/**
+	 * Lists the folder and all its sub folders with up to listConcurrency folders listed at once. Each folder is
+	 * submitted as soon as its parent has been listed, while the calling thread assembles the results in the same
+	 * order as a sequential walk (every folder directly followed by its contents).
+	 */
+	private void walkTree(SmbFile rootFolder, includes, excludes, Collection<CifsCloudFile> fileList) {
+		Map<String, Future<List<CifsCloudFile>>> folderListings = new ConcurrentHashMap<String, Future<List<CifsCloudFile>>>()
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, provider.listConcurrency ?: 1), new DaemonThreadFactory("karman-cifs-list"))
+		Closure<Future<List<CifsCloudFile>>> submitFolder
+		submitFolder = { SmbFile folder ->
+			executor.submit({
+				List<CifsCloudFile> files = convertFilesToCloudFiles(folder, includes, excludes)
+				files.each { CifsCloudFile file ->
+					if(file.isDirectory()) {
+						folderListings.put(file.name, submitFolder(file.getCifsFile()))
+					}
+				}
+				return files
+			} as java.util.concurrent.Callable<List<CifsCloudFile>>)
+		}
+		try {
+			LinkedList<Object> pending = new LinkedList<Object>()
+			pending.add(submitFolder(rootFolder))
+			while(pending) {
+				def next = pending.removeFirst()
+				if(next instanceof Future) {
+					List<CifsCloudFile> files = awaitListing((Future<List<CifsCloudFile>>) next)
+					for(int i = files.size() - 1; i >= 0; i--) {
+						pending.addFirst(files[i])
+					}
+				} else {
+					CifsCloudFile file = (CifsCloudFile) next
+					fileList << file
+					if(file.isDirectory()) {
+						pending.addFirst(folderListings.remove(file.name))
+					}
 				}
 			}
+		} finally {
+			executor.shutdownNow()
 		}
+	}
 
-		rtn = rtn?.findAll {
-			isMatchedFile(it.name,includes,excludes)
+	private List<CifsCloudFile> awaitListing(Future<List<CifsCloudFile>> listing) {
+		try {
+			return listing.get()
+		} catch(ExecutionException e) {
+			throw e.getCause() ?: e
 		}
-//		if(prefix) {
-//			rtn = rtn.findAll { file ->
-//				if(file.name.length() >= prefix.length()) {
-//					if(file.name.take(prefix.length()) == prefix) {
-//						return true
-//					}
-//				}
-//				return false
-//			}
-//		}
-
-		return rtn
 	}
 
-
-	private void convertFilesToCloudFiles(SmbFile parentFile, includes, excludes, fileList, position=0) {
-		Collection<CifsCloudFile> files = [];
+	private List<CifsCloudFile> convertFilesToCloudFiles(SmbFile parentFile, includes, excludes) {
+		List<CifsCloudFile> files = [];
 		def baseFile = getCifsFile()
 		if(parentFile.exists()) {
 			parentFile.listFiles()?.each { listFile ->
-				def path = listFile.path.substring(baseFile.path.length() - 1)
-				if(path.startsWith('/')) {
-					path = path.substring(1)
-				}
-				if(path.endsWith('/')) {
-					path = path.substring(0,path.length() - 1)
-				}
+				def path = relativePath(baseFile.path, listFile)
 				if(isMatchedFile(path,includes,excludes)) {
-					files << new CifsCloudFile(provider:provider, parent:this, name:path, baseFile: listFile)
+					CifsCloudFile file = new CifsCloudFile(provider:provider, parent:this, name:path, baseFile: listFile)
+					//attributes of a listed file come from its directory entry and need no extra request
+					file.loadAttributes()
+					files << file
 				}
 			}
-			if(files) {
-				fileList.addAll(position, files)
-			}
 		}
-
+		return files
 	}
 
 	private Boolean isMatchedFile(String stringPath, includes,excludes) {
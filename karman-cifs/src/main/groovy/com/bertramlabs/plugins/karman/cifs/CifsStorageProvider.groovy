@@ -39,6 +39,23 @@ class CifsStorageProvider extends StorageProvider {
 	String domain = ''
 	String host
 	String baseUrl
+
+	/**
+	 * jcifs rejects SMB2 messages larger than its fixed maximum buffer size (64KB), so the socket buffers that bound
+	 * the negotiated read and write sizes must not exceed it
+	 */
+	static final int MAX_SMB_BUFFER_SIZE = 65536
+
+	/**
+	 * Size of the copy buffer and of the buffered input streams, the SMB read and write sizes are capped at
+	 * {@link #MAX_SMB_BUFFER_SIZE}
+	 */
+	Integer transferBufferSize = 1024 * 1024
+
+	/**
+	 * Number of folders listed concurrently by a recursive listFiles
+	 */
+	Integer listConcurrency = 4
 	// NtlmPasswordAuthentication cifsAuthentication
 	CIFSContext cifsContext
 
@@ -50,6 +67,8 @@ class CifsStorageProvider extends StorageProvider {
 
 		password = options.password ?: password
 		domain = options.domain ?: domain
+		transferBufferSize = options.transferBufferSize ?: transferBufferSize
+		listConcurrency = options.listConcurrency ?: listConcurrency
 		if(options.defaultFileACL) {
 			//this.defaultFileACL = options.defaultFileACL
 		}
@@ -62,12 +81,18 @@ class CifsStorageProvider extends StorageProvider {
 	// 	return cifsAuthentication
 	// }
 
-	CIFSContext getCifsContext() {
+	synchronized CIFSContext getCifsContext() {
 		if(cifsContext) {
 			return cifsContext
 		} else {
 			Properties prop = new Properties();
 			prop.put("resolveOrder", "DNS")
+			//the negotiated max read / write sizes are capped by these buffers, larger responses than the jcifs
+			//maximum buffer size would be rejected and drop the connection
+			String smbBufferSize = Math.min(transferBufferSize, MAX_SMB_BUFFER_SIZE).toString()
+			prop.put("jcifs.smb.client.rcv_buf_size", smbBufferSize)
+			prop.put("jcifs.smb.client.snd_buf_size", smbBufferSize)
+			prop.put("jcifs.smb.client.transaction_buf_size", smbBufferSize)
 			// prop.put( "jcifs.smb.client.enableSMB2", "true");
 			// prop.put( "jcifs.smb.client.disableSMB1", "false");
 			// prop.put( "jcifs.traceResources", "true" );
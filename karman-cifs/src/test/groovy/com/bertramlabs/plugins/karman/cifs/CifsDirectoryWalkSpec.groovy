@@ -0,0 +1,143 @@
+package com.bertramlabs.plugins.karman.cifs
+
+import jcifs.CIFSContext
+import jcifs.smb.SmbException
+import jcifs.smb.SmbFile
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class CifsDirectoryWalkSpec extends Specification {
+	static final Map<String, List<String>> TREE = [
+		'': ['a/', 'b.txt', 'c/'],
+		'a/': ['a1.txt', 'a2/', 'a3.txt'],
+		'a/a2/': ['deep.txt'],
+		'c/': ['c1.txt', 'c2/'],
+		'c/c2/': []
+	]
+	static final List<String> WALK_ORDER = ['a', 'a/a1.txt', 'a/a2', 'a/a2/deep.txt', 'a/a3.txt', 'b.txt', 'c', 'c/c1.txt', 'c/c2']
+
+	FakeShare share = new FakeShare(tree: TREE)
+
+	private CifsDirectory directory(int listConcurrency) {
+		CifsStorageProvider provider = new CifsStorageProvider([host: 'fakehost', listConcurrency: listConcurrency])
+		CifsDirectory directory = new CifsDirectory(name: 'share', provider: provider)
+		directory.@baseFile = new FakeSmbFile(share, '', provider.cifsContext)
+		return directory
+	}
+
+	@Unroll
+	def "a walk listing #listConcurrency folders at once returns the sequential walk order"() {
+		when:
+		def files = directory(listConcurrency).listFiles()
+
+		then:
+		files*.name == WALK_ORDER
+		files.find { it.name == 'b.txt' }.contentLength == 42l
+		files.find { it.name == 'a/a2' }.isDirectory()
+		share.listings.get() == TREE.size()
+
+		where:
+		listConcurrency << [1, 2, 4]
+	}
+
+	def "folders are listed concurrently up to the list concurrency"() {
+		when:
+		directory(4).listFiles()
+
+		then:
+		share.maxInFlight.get() > 1
+		share.maxInFlight.get() <= 4
+	}
+
+	def "a sequential walk lists one folder at a time"() {
+		when:
+		directory(1).listFiles()
+
+		then:
+		share.maxInFlight.get() == 1
+	}
+
+	def "a delimited listing does not walk into folders"() {
+		when:
+		def files = directory(4).listFiles(delimiter: '/')
+
+		then:
+		files*.name == ['a', 'b.txt', 'c']
+		share.listings.get() == 1
+	}
+
+	def "a folder that cannot be listed fails the walk"() {
+		given:
+		share.failingFolder = 'c/c2/'
+
+		when:
+		directory(4).listFiles()
+
+		then:
+		SmbException e = thrown()
+		e.message == 'Access denied to c/c2/'
+	}
+}
+
+/**
+ * In memory folder tree with listing statistics.
+ */
+class FakeShare {
+	Map<String, List<String>> tree
+	String failingFolder
+	AtomicInteger listings = new AtomicInteger()
+	AtomicInteger inFlight = new AtomicInteger()
+	AtomicInteger maxInFlight = new AtomicInteger()
+}
+
+class FakeSmbFile extends SmbFile {
+	FakeShare fakeShare
+	String relativePath
+
+	FakeSmbFile(FakeShare fakeShare, String relativePath, CIFSContext context) {
+		super('smb://fakehost/share/' + relativePath, context)
+		this.fakeShare = fakeShare
+		this.relativePath = relativePath
+	}
+
+	@Override
+	boolean exists() {
+		return true
+	}
+
+	@Override
+	boolean isDirectory() {
+		return relativePath == '' || relativePath.endsWith('/')
+	}
+
+	@Override
+	long length() {
+		return 42l
+	}
+
+	@Override
+	long lastModified() {
+		return 1000l
+	}
+
+	@Override
+	SmbFile[] listFiles() {
+		fakeShare.listings.incrementAndGet()
+		int current = fakeShare.inFlight.incrementAndGet()
+		synchronized(fakeShare) {
+			fakeShare.maxInFlight.set(Math.max(fakeShare.maxInFlight.get(), current))
+		}
+		try {
+			//the first folder lists slowest so later folders complete out of order
+			Thread.sleep(relativePath.startsWith('a') ? 60 : 10)
+			if(relativePath == fakeShare.failingFolder) {
+				throw new SmbException("Access denied to ${relativePath}")
+			}
+			return fakeShare.tree[relativePath].collect { new FakeSmbFile(fakeShare, relativePath + it, context) } as SmbFile[]
+		} finally {
+			fakeShare.inFlight.decrementAndGet()
+		}
+	}
+}
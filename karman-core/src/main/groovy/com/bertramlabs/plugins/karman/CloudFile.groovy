@@ -16,6 +16,8 @@
 
 package com.bertramlabs.plugins.karman
 
+import com.bertramlabs.plugins.karman.metrics.OperationTimer
+
 import java.nio.file.Files
 import java.nio.file.Path
 import groovy.transform.CompileStatic
@@ -75,6 +77,14 @@ abstract class CloudFile implements CloudFileInterface {
 	}
 
 
+	/**
+	* Opens the file for positional writes, replacing any existing content. Returns null if the provider
+	* does not support writing at arbitrary offsets, in which case the content has to be streamed with setInputStream.
+	*/
+	RandomAccessOutput getRandomAccessOutput() {
+		return null
+	}
+
 	/**
 	* Sets the contentType of the file. This is a chainable method that returns an instance of itself.
 	* @param type String used to identify the type of content (i.e. image/png)
@@ -106,6 +116,59 @@ abstract class CloudFile implements CloudFileInterface {
 		save(provider.defaultFileACL)
 	}
 
+	/**
+	* Copies the content of this file to the target file, replacing any existing content. A provider native copy
+	* (i.e. a server side copy between two objects of the same account) is used when one applies to the target,
+	* otherwise the content is streamed through the JVM.
+	* <pre>
+	* provider['bucket']['report.pdf'].copyTo(otherProvider['archive']['report.pdf'])
+	* </pre>
+	* @param target the file to copy to, of this or any other provider
+	* @return the target file
+	*/
+	CloudFile copyTo(CloudFile target) {
+		OperationTimer.time(provider, 'copy') {
+			if(!nativeCopyTo(target)) {
+				streamCopyTo(target)
+			}
+		}
+		return target
+	}
+
+	/**
+	* Provider specific fast path for {@link #copyTo(CloudFile)}.
+	* @param target the file to copy to
+	* @return false if no native copy applies to the target, in which case the content is streamed
+	*/
+	protected Boolean nativeCopyTo(CloudFile target) {
+		return false
+	}
+
+	/**
+	* Copies the file by streaming its content into the target, carrying over the content type and length.
+	* @param target the file to copy to
+	*/
+	protected void streamCopyTo(CloudFile target) {
+		Long contentLength = getContentLength()
+		String type = getContentType()
+		InputStream sourceStream = getInputStream()
+		if(sourceStream == null) {
+			throw new FileNotFoundException("Unable to copy ${name}, the file does not exist")
+		}
+		try {
+			if(type) {
+				target.setContentType(type)
+			}
+			if(contentLength != null) {
+				target.setContentLength(contentLength)
+			}
+			target.setInputStream(sourceStream)
+			target.save()
+		} finally {
+			try { sourceStream.close() } catch(ex) {}
+		}
+	}
+
 	/**
 	 * This method is used for storing file contents to a temporary on disk file so the final ContentLength can be assessed
 	 * before being uploaded to a target cloud
@@ -0,0 +1,41 @@
+package com.bertramlabs.plugins.karman
+
+/**
+* Outcome of a bulk delete as returned by {@link Directory#deleteFiles(Collection, Map)} and
+* {@link Directory#deletePrefix(String, Map)}. A failed key does not stop the remaining deletes, each failure is
+* recorded here with its error message. The batched S3 and Azure deletes count keys that did not exist as deleted.
+* <p>
+* Batches are deleted concurrently, so the recording methods are synchronized.
+* </p>
+*/
+class DeleteResult {
+	/**
+	* Number of keys deleted
+	*/
+	private long deletedCount = 0
+
+	/**
+	* Keys that could not be deleted, mapped to the reason
+	*/
+	private Map<String, String> failures = new LinkedHashMap<String, String>()
+
+	synchronized void deleted(String key) {
+		deletedCount++
+	}
+
+	synchronized void failed(String key, String message) {
+		failures[key] = message
+	}
+
+	synchronized long getDeletedCount() {
+		return deletedCount
+	}
+
+	synchronized Map<String, String> getFailures() {
+		return new LinkedHashMap<String, String>(failures)
+	}
+
+	synchronized Boolean isSuccess() {
+		return failures.isEmpty()
+	}
+}
@@ -16,7 +16,17 @@
 
 package com.bertramlabs.plugins.karman
 
+import com.bertramlabs.plugins.karman.metrics.OperationTimer
+import com.bertramlabs.plugins.karman.util.DaemonThreadFactory
 import com.bertramlabs.plugins.karman.util.Mimetypes
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
 
 /** 
 * This is an abstract class implementation for managing directories / buckets in the cloud.
@@ -37,10 +47,24 @@ import com.bertramlabs.plugins.karman.util.Mimetypes
 *
 * //List Files in a sub"folder"
 * dir.listFiles(prefix: 'config/')
+*
+* //Walk a large bucket one page at a time
+* dir.iterateFiles(prefix: 'logs/', pageSize: 1000).each { file ->
+*     println file.name
+* }
 * </pre>
 * @author David Estes
 */
 abstract class Directory implements DirectoryInterface {
+	/**
+	* Page size used by paginated listings when no pageSize option is given
+	*/
+	static final Integer DEFAULT_PAGE_SIZE = 1000
+	/**
+	* Number of delete requests in flight during a bulk delete when no concurrency option is given
+	*/
+	static final Integer DEFAULT_DELETE_CONCURRENCY = 8
+
 	/**
 	* Reference to the provider which instantiated this class
 	*/
@@ -219,6 +243,204 @@ abstract class Directory implements DirectoryInterface {
 		return null
 	}
 
+	/**
+	* Lists a single page of files. Providers with a native paginated listing (i.e. S3 markers or Google page tokens)
+	* override this so each call makes a single request. The default implementation returns the full
+	* {@link #listFiles} result as one last page.
+	* <p>
+	* Options are the same as for listFiles plus:
+	* </p>
+	* <ul>
+	*     <li>pageSize - Hint for the maximum number of entries per page (providers may return fewer)</li>
+	*     <li>continuationToken - Token of the previous page, omitted for the first page</li>
+	* </ul>
+	* @param options listing options
+	* @return the page of files and the token of the next page
+	*/
+	ListingPage listFilesPage(Map options = [:]) {
+		Map listOptions = options ? new LinkedHashMap(options) : [:]
+		listOptions.remove('pageSize')
+		listOptions.remove('continuationToken')
+		return new ListingPage(files: listFiles(listOptions) ?: [])
+	}
+
+	/**
+	* Lazily iterates the files of a listing, requesting the next page from {@link #listFilesPage} only once the
+	* current one has been consumed. Useful for walking directories too large to be listed into memory.
+	* @param options same options as {@link #listFilesPage}
+	* @return an iterator over the listing
+	*/
+	Iterator<CloudFile> iterateFiles(Map options = [:]) {
+		return new ListingIterator(this, options)
+	}
+
+	/**
+	* Lazily streams the files of a listing. See {@link #iterateFiles}.
+	* @param options same options as {@link #listFilesPage}
+	* @return a sequential stream over the listing
+	*/
+	Stream<CloudFile> streamFiles(Map options = [:]) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterateFiles(options), Spliterator.ORDERED | Spliterator.NONNULL), false)
+	}
+
+	/**
+	* Deletes files of this directory in bulk. Keys are grouped into batches of {@link #getDeleteBatchSize()} and
+	* several batches are deleted at once. Providers with a native batch api (i.e. S3 {@code DeleteObjects}) delete a
+	* whole batch per request, the others delete each file on its own.
+	* <p>
+	* A failure does not stop the remaining deletes, it is reported per key in the result.
+	* </p>
+	* <pre>
+	* DeleteResult result = directory.deleteFiles(['logs/1.txt', 'logs/2.txt'])
+	* result.failures.each { key, message -&gt; println "${key}: ${message}" }
+	* </pre>
+	* @param keys names of the files to delete
+	* @param options concurrency - Number of batches deleted at once (default 8)
+	* @return the number of deleted keys and the failed keys
+	*/
+	DeleteResult deleteFiles(Collection<String> keys, Map options = [:]) {
+		return deleteKeys(keys.iterator(), options)
+	}
+
+	/**
+	* Deletes every file whose name starts with the prefix, listing one page at a time with {@link #iterateFiles} so
+	* the keys never have to fit in memory. Folder entries of file system providers are not deleted.
+	* @param prefix name prefix of the files to delete, i.e. {@code logs/2016/}
+	* @param options same options as {@link #deleteFiles(Collection, Map)}
+	* @return the number of deleted keys and the failed keys
+	*/
+	DeleteResult deletePrefix(String prefix, Map options = [:]) {
+		Iterator<CloudFile> files = iterateFiles(prefix: prefix)
+		Iterator<String> keys = new Iterator<String>() {
+			String nextKey
+
+			boolean hasNext() {
+				while(nextKey == null && files.hasNext()) {
+					CloudFile file = files.next()
+					if(!file.isDirectory()) {
+						nextKey = file.name
+					}
+				}
+				return nextKey != null
+			}
+
+			String next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException()
+				}
+				String key = nextKey
+				nextKey = null
+				return key
+			}
+		}
+		return deleteKeys(keys, options)
+	}
+
+	/**
+	* Mirrors the files of this directory into the target directory, which may belong to another provider. Files
+	* whose size and modification time (or ETag) already match are skipped, the others are copied several at once.
+	* Both listings are streamed and merged by key; memory holds the target files no source file matched (the extraneous
+	* ones), or up to the whole target listing when the two providers list in a different order. See
+	* {@link DirectorySync} for the details and options.
+	* <pre>
+	* SyncResult result = directory.syncTo(otherProvider['backup'], [prefix: 'uploads/', delete: true])
+	* println "${result.filesCopied} copied, ${result.filesSkipped} unchanged"
+	* </pre>
+	* @param target the directory to copy to
+	* @param options prefix, targetPrefix, concurrency (default 8), delete, sizeOnly, dryRun, onProgress and
+	*   progressInterval
+	* @return the counters and failures of the sync
+	*/
+	SyncResult syncTo(Directory target, Map options = [:]) {
+		return new DirectorySync(this, target, options).sync()
+	}
+
+	/**
+	* Maximum number of keys passed to a single {@link #deleteBatch} call. Providers with a batch api override this
+	* with the limit of a single request.
+	*/
+	protected Integer getDeleteBatchSize() {
+		return 1
+	}
+
+	/**
+	* Deletes a batch of keys, recording each key as deleted or failed in the result. Exceptions thrown from here
+	* mark the whole batch as failed. The default implementation deletes the files one by one.
+	* @param keys at most {@link #getDeleteBatchSize()} keys
+	* @param result the result to record to, safe to call from concurrent batches
+	*/
+	protected void deleteBatch(List<String> keys, DeleteResult result) {
+		for(String key : keys) {
+			try {
+				def deleted = getFile(key).delete()
+				if(deleted instanceof Boolean && !deleted) {
+					result.failed(key, "Delete of ${key} was not successful".toString())
+				} else {
+					result.deleted(key)
+				}
+			} catch(Exception ex) {
+				result.failed(key, ex.message ?: ex.class.name)
+			}
+		}
+	}
+
+	@CompileStatic
+	private DeleteResult deleteKeys(Iterator<String> keys, Map options) {
+		DeleteResult result = new DeleteResult()
+		int concurrency = Math.max(1, (options?.get('concurrency') ?: DEFAULT_DELETE_CONCURRENCY) as Integer)
+		int batchSize = Math.max(1, getDeleteBatchSize() ?: 1)
+		ExecutorService executor = null
+		Semaphore permits = new Semaphore(concurrency)
+		try {
+			List<String> batch = []
+			while(keys.hasNext()) {
+				batch << keys.next()
+				if(batch.size() < batchSize && keys.hasNext()) {
+					continue
+				}
+				List<String> currentBatch = batch
+				batch = []
+				if(concurrency == 1) {
+					runDeleteBatch(currentBatch, result)
+					continue
+				}
+				if(executor == null) {
+					executor = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("karman-delete"))
+				}
+				//bounds the queued batches, so listing keys never runs far ahead of the deletes
+				permits.acquire()
+				executor.execute({
+					try {
+						runDeleteBatch(currentBatch, result)
+					} finally {
+						permits.release()
+					}
+				} as Runnable)
+			}
+		} finally {
+			if(executor != null) {
+				executor.shutdown()
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+			}
+		}
+		return result
+	}
+
+	@CompileStatic
+	private void runDeleteBatch(List<String> keys, DeleteResult result) {
+		//timed without a closure, a protected method called from one is invoked reflectively and its exceptions wrapped
+		OperationTimer timer = OperationTimer.start(OperationTimer.metricsOf(provider), OperationTimer.nameOf(provider), 'deleteBatch')
+		try {
+			deleteBatch(keys, result)
+			timer.stop()
+		} catch(Exception ex) {
+			timer.stop(ex)
+			for(String key : keys) {
+				result.failed(key, ex.message ?: ex.class.name)
+			}
+		}
+	}
+
 	/**
 	* Displays the name of the directory when cast to a String.
 	* @return name of the directory
@@ -0,0 +1,312 @@
+package com.bertramlabs.plugins.karman
+
+import com.bertramlabs.plugins.karman.util.DaemonThreadFactory
+import groovy.transform.CompileDynamic
+import groovy.transform.CompileStatic
+import groovy.util.logging.Commons
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+* Mirrors the files of a source directory (optionally below a prefix) into a target directory of the same or of
+* another provider, i.e. local to S3 or NFS to Azure.
+* <p>
+* Both directories are listed page by page and merged by key: for each source file the target listing is read up to
+* that key, so its size, modification time and ETag are known without a request. Files that are already up to date are
+* skipped, the others are copied with {@link CloudFile#copyTo(CloudFile)} (server side where the providers allow it),
+* several at once.
+* </p>
+* <p>
+* Only target files read ahead of the source, or not matched by any source file, are held in memory, which is about the
+* number of extraneous target files when both listings come in key order. Listings ordered differently (i.e. the depth
+* first local listing around names containing {@code .} or {@code -}) are detected; the rest of the target listing is
+* then read into memory, so the memory use can grow up to the size of the target directory, and files are only deleted
+* once confirmed missing from the source.
+* </p>
+* <p>
+* A target file is up to date when its size matches and either its ETag matches the source ETag or it was modified
+* no earlier than the source file. Files whose size is unknown, or whose modification time is unknown on either side
+* without a matching ETag, are always copied. With {@code sizeOnly} only the size is compared.
+* </p>
+* <pre>
+* SyncResult result = localProvider['exports'].syncTo(s3Provider['backup'], [prefix: '2016/', concurrency: 16,
+*     onProgress: { SyncResult progress -&gt; println progress }])
+* </pre>
+*/
+@Commons
+@CompileStatic
+class DirectorySync {
+	/**
+	* Number of files copied at once when no concurrency option is given
+	*/
+	static final Integer DEFAULT_CONCURRENCY = 8
+	/**
+	* Minimum time between two progress listener calls when no progressInterval option is given
+	*/
+	static final Long DEFAULT_PROGRESS_INTERVAL = 5000l
+
+
+	Directory source
+	Directory target
+	/**
+	* Only sync source files whose name starts with this prefix
+	*/
+	String prefix = ''
+	/**
+	* Prefix of the target keys replacing the source prefix, defaults to the source prefix
+	*/
+	String targetPrefix
+	Integer concurrency = DEFAULT_CONCURRENCY
+	/**
+	* Delete target files below the target prefix that do not exist in the source
+	*/
+	Boolean delete = false
+	/**
+	* Only compare the file sizes, for targets whose modification time is not meaningful
+	*/
+	Boolean sizeOnly = false
+	/**
+	* Only report what would be copied and deleted
+	*/
+	Boolean dryRun = false
+	/**
+	* Called with the {@link SyncResult} while the sync runs and once it is done, possibly from a copying thread
+	*/
+	Closure onProgress
+	Long progressInterval = DEFAULT_PROGRESS_INTERVAL
+
+	private final AtomicLong lastProgress = new AtomicLong(0)
+	/**
+	* Target files read from the listing but not matched by a source file yet, by key relative to the target prefix
+	*/
+	private final Map<String, FileState> pendingTargets = new HashMap<String, FileState>()
+	private Iterator<CloudFile> targetFiles
+	private String lastTargetKey
+	private Boolean targetSorted = true
+
+	/**
+	* @param options prefix, targetPrefix, concurrency, delete, sizeOnly, dryRun, onProgress and progressInterval
+	*/
+	DirectorySync(Directory source, Directory target, Map options = [:]) {
+		this.source = source
+		this.target = target
+		prefix = (options?.get('prefix') ?: prefix) as String
+		targetPrefix = (options?.get('targetPrefix') ?: prefix) as String
+		concurrency = Math.max(1, (options?.get('concurrency') ?: concurrency) as Integer)
+		delete = (options?.get('delete') ?: delete) as Boolean
+		sizeOnly = (options?.get('sizeOnly') ?: sizeOnly) as Boolean
+		dryRun = (options?.get('dryRun') ?: dryRun) as Boolean
+		onProgress = (options?.get('onProgress') ?: onProgress) as Closure
+		progressInterval = (options?.get('progressInterval') ?: progressInterval) as Long
+	}
+
+	/**
+	* Runs the sync. A file that fails to copy does not stop the others, it is reported in the result. Target files
+	* are only deleted once the whole source was listed.
+	* @return the counters and failures of the sync
+	*/
+	SyncResult sync() {
+		SyncResult result = new SyncResult()
+		targetFiles = target.iterateFiles(prefix: targetPrefix)
+
+		ExecutorService executor = null
+		Semaphore permits = new Semaphore(concurrency * 2)
+		try {
+			Iterator<CloudFile> sourceFiles = source.iterateFiles(prefix: prefix)
+			while(sourceFiles.hasNext()) {
+				CloudFile sourceFile = sourceFiles.next()
+				if(sourceFile.isDirectory()) {
+					continue
+				}
+				result.listed()
+				String relativeKey = sourceFile.name.substring(prefix.length())
+				FileState targetState = targetStateFor(relativeKey)
+				if(concurrency == 1) {
+					syncFile(sourceFile, relativeKey, targetState, result)
+					continue
+				}
+				if(executor == null) {
+					executor = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("karman-sync"))
+				}
+				//bounds the queued copies, so the source listing never runs far ahead of them
+				permits.acquire()
+				executor.execute({
+					try {
+						syncFile(sourceFile, relativeKey, targetState, result)
+					} finally {
+						permits.release()
+					}
+				} as Runnable)
+			}
+		} finally {
+			if(executor != null) {
+				executor.shutdown()
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+			}
+		}
+
+		if(delete) {
+			List<String> extraneousKeys = extraneousTargetKeys()
+			if(dryRun) {
+				result.deleted(extraneousKeys.size())
+			} else if(extraneousKeys) {
+				DeleteResult deleteResult = target.deleteFiles(extraneousKeys, [concurrency: concurrency])
+				result.deleted(deleteResult.deletedCount)
+				deleteResult.failures.each { String key, String message ->
+					result.failed(key, message)
+				}
+			}
+		}
+		result.finish()
+		if(onProgress != null) {
+			onProgress.call(result)
+		}
+		log.debug("Synced ${source.name}/${prefix} to ${target.name}/${targetPrefix}: ${result}")
+		return result
+	}
+
+	/**
+	* State of the target file for a source file, or null if the target has none. The target listing is read until it
+	* passes the key, entries read on the way wait in {@link #pendingTargets} for a later source file.
+	*/
+	private FileState targetStateFor(String relativeKey) {
+		FileState pending = pendingTargets.remove(relativeKey)
+		if(pending != null) {
+			return pending
+		}
+		//out of order, a missing key is only known once the whole listing was read
+		while(!targetSorted || lastTargetKey == null || lastTargetKey < relativeKey) {
+			String targetKey = nextTargetKey()
+			if(targetKey == null) {
+				break
+			}
+			if(targetKey == relativeKey) {
+				return pendingTargets.remove(targetKey)
+			}
+		}
+		return null
+	}
+
+	/**
+	* Reads the next file of the target listing into {@link #pendingTargets}.
+	* @return its key relative to the target prefix, or null once the listing is exhausted
+	*/
+	private String nextTargetKey() {
+		while(targetFiles.hasNext()) {
+			CloudFile targetFile = targetFiles.next()
+			if(targetFile.isDirectory() || !targetFile.name.startsWith(targetPrefix)) {
+				continue
+			}
+			String targetKey = targetFile.name.substring(targetPrefix.length())
+			if(targetSorted && lastTargetKey != null && targetKey < lastTargetKey) {
+				log.debug("Listing of ${target.name}/${targetPrefix} is not in key order, reading it ahead of the source")
+				targetSorted = false
+			}
+			lastTargetKey = targetKey
+			pendingTargets.put(targetKey, FileState.of(targetFile))
+			return targetKey
+		}
+		return null
+	}
+
+	/**
+	* Target keys no source file matched. If the target listing was not in key order a source file may have been
+	* taken as missing before its target entry was read, so each key is checked against the source first.
+	*/
+	private List<String> extraneousTargetKeys() {
+		while(nextTargetKey() != null) {
+			//reads the rest of the target listing
+		}
+		Collection<String> relativeKeys = pendingTargets.keySet()
+		if(!targetSorted) {
+			relativeKeys = relativeKeys.findAll { String relativeKey -> !source.getFile(prefix + relativeKey).exists() }
+		}
+		return relativeKeys.collect { String relativeKey -> targetPrefix + relativeKey }
+	}
+
+	private void syncFile(CloudFile sourceFile, String relativeKey, FileState targetState, SyncResult result) {
+		try {
+			FileState sourceState = FileState.of(sourceFile)
+			if(isUpToDate(sourceState, targetState)) {
+				result.skipped(sourceFile.name)
+			} else {
+				if(!dryRun) {
+					sourceFile.copyTo(target.getFile(targetPrefix + relativeKey))
+				}
+				result.copied(sourceFile.name, sourceState.length >= 0 ? sourceState.length : null)
+			}
+		} catch(Exception ex) {
+			log.debug("Error syncing ${sourceFile.name}", ex)
+			result.failed(sourceFile.name, ex.message ?: ex.class.name)
+		}
+		reportProgress(result)
+	}
+
+	private Boolean isUpToDate(FileState sourceState, FileState targetState) {
+		if(targetState == null) {
+			return false
+		}
+		if(sourceState.length < 0 || sourceState.length != targetState.length) {
+			return false
+		}
+		if(sizeOnly) {
+			return true
+		}
+		if(sourceState.eTag != null && sourceState.eTag == targetState.eTag) {
+			return true
+		}
+		if(sourceState.modified < 0 || targetState.modified < 0) {
+			//a matching size alone does not tell an unchanged file from a rewritten one
+			return false
+		}
+		return targetState.modified >= sourceState.modified
+	}
+
+	private void reportProgress(SyncResult result) {
+		if(onProgress == null) {
+			return
+		}
+		long now = System.currentTimeMillis()
+		long last = lastProgress.get()
+		if(now - last >= progressInterval && lastProgress.compareAndSet(last, now)) {
+			onProgress.call(result)
+		}
+	}
+
+	/**
+	* What is compared of a file, read once from the listing. Unknown values are -1 or null.
+	*/
+	static class FileState {
+		final long length
+		final long modified
+		final String eTag
+
+		FileState(long length, long modified, String eTag) {
+			this.length = length
+			this.modified = modified
+			this.eTag = eTag
+		}
+
+		static FileState of(CloudFile file) {
+			Long length = file.getContentLength()
+			Date modified = file.getDateModified()
+			return new FileState(length != null ? length : -1l, modified != null ? modified.time : -1l, eTagOf(file))
+		}
+
+		/**
+		* ETag of providers exposing one (i.e. S3), without the surrounding quotes
+		*/
+		@CompileDynamic
+		private static String eTagOf(CloudFile file) {
+			if(!file.respondsTo('getETag')) {
+				return null
+			}
+			String eTag = file.getETag()
+			return eTag ? eTag.replace('"', '') : null
+		}
+	}
+}
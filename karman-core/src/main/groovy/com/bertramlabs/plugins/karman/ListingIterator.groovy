@@ -0,0 +1,63 @@
+package com.bertramlabs.plugins.karman
+
+import com.bertramlabs.plugins.karman.metrics.OperationTimer
+
+/**
+* Lazy iterator over a directory listing. Pages are requested from {@link Directory#listFilesPage(Map)} one at a time
+* as the previous page is consumed, so only a single page of files is held in memory regardless of the directory size.
+* <p>
+* {@link #getContinuationToken()} can be saved to resume an interrupted walk later from the next page.
+* </p>
+*/
+class ListingIterator implements Iterator<CloudFile> {
+	private final Directory directory
+	private final Map options
+	private Iterator<CloudFile> currentPage
+	private String continuationToken
+	private Boolean lastPage = false
+
+	ListingIterator(Directory directory, Map options = [:]) {
+		this.directory = directory
+		this.options = options ? new LinkedHashMap(options) : [:]
+		this.continuationToken = options?.continuationToken
+	}
+
+	/**
+	* Token of the page following the page currently being iterated, or null if it is the last page.
+	*/
+	String getContinuationToken() {
+		return continuationToken
+	}
+
+	boolean hasNext() {
+		while(currentPage == null || !currentPage.hasNext()) {
+			if(lastPage) {
+				return false
+			}
+			fetchNextPage()
+		}
+		return true
+	}
+
+	CloudFile next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException()
+		}
+		return currentPage.next()
+	}
+
+	void remove() {
+		throw new UnsupportedOperationException("remove")
+	}
+
+	private void fetchNextPage() {
+		Map pageOptions = new LinkedHashMap(options)
+		pageOptions.continuationToken = continuationToken
+		ListingPage page = OperationTimer.time(directory.provider, 'listPage') {
+			directory.listFilesPage(pageOptions)
+		}
+		currentPage = (page?.files ?: []).iterator()
+		continuationToken = page?.continuationToken
+		lastPage = continuationToken == null
+	}
+}
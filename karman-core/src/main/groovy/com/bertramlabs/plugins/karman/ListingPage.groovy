@@ -0,0 +1,24 @@
+package com.bertramlabs.plugins.karman
+
+/**
+* A single page of a paginated directory listing as returned by {@link Directory#listFilesPage(Map)}.
+* <p>
+* The {@code continuationToken} is opaque and provider specific (i.e. an S3 marker or a Google page token). Passing it
+* back as the {@code continuationToken} option fetches the next page. It is null once the last page has been reached.
+* </p>
+*/
+class ListingPage {
+	/**
+	* Files (and prefixes when listing with a delimiter) within this page
+	*/
+	List<CloudFile> files = []
+
+	/**
+	* Token used to request the next page, or null if this is the last page
+	*/
+	String continuationToken
+
+	Boolean isLastPage() {
+		return continuationToken == null
+	}
+}
@@ -0,0 +1,20 @@
+package com.bertramlabs.plugins.karman
+
+/**
+* Positional writer over a file, provided by storage providers whose files can be written at arbitrary offsets
+* (i.e. local disk or NFS). Regions that are never written read back as zeros and, where the underlying file system
+* supports it, are not allocated so the resulting file is sparse.
+* @see CloudFile#getRandomAccessOutput()
+*/
+interface RandomAccessOutput extends Closeable {
+
+	/**
+	* Writes bytes at the given position of the file.
+	*/
+	void write(long position, byte[] buffer, int offset, int length) throws IOException
+
+	/**
+	* Sets the final length of the file, extending it without writing data if it is shorter.
+	*/
+	void setLength(long length) throws IOException
+}
@@ -17,6 +17,8 @@
 package com.bertramlabs.plugins.karman
 
 import com.bertramlabs.plugins.karman.exceptions.ProviderNotFoundException
+import com.bertramlabs.plugins.karman.metrics.NoopStorageMetrics
+import com.bertramlabs.plugins.karman.metrics.StorageMetrics
 
 
 /**
@@ -45,6 +47,7 @@ abstract class StorageProvider implements StorageProviderInterface {
 
 	CloudFileACL defaultFileACL
 	String tempDir
+	StorageMetrics metrics
 
 
 	/**
@@ -75,6 +78,19 @@ abstract class StorageProvider implements StorageProviderInterface {
 		return defaultFileACL
 	}
 
+	/**
+	* Gets the {@link StorageMetrics} requests and operations of this provider are reported to.
+	* It can come from either an instance of the StorageProvider (the {@code metrics} option of {@link #create}) or
+	* will be pulled from the {@link com.bertramlabs.plugins.karman.KarmanConfigHolder}, and discards everything
+	* if neither is set.
+	*/
+	public StorageMetrics getMetrics() {
+		if(!metrics) {
+			return (StorageMetrics) KarmanConfigHolder.config.metrics ?: NoopStorageMetrics.INSTANCE
+		}
+		return metrics
+	}
+
 
 	/**
 	* A Factory method for creating a new storage provider of a type. Typically the type is passed as a provider
@@ -91,7 +107,12 @@ abstract class StorageProvider implements StorageProviderInterface {
 		if(!providerClass) {
 			throw new ProviderNotFoundException(provider)
 		}
-		return providerClass.newInstance(options)
+		def metrics = options.remove('metrics')
+		StorageProvider storageProvider = providerClass.newInstance(options)
+		if(metrics) {
+			storageProvider.metrics = metrics
+		}
+		return storageProvider
 	}
 
 	/**
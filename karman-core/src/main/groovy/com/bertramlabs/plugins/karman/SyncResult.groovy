@@ -0,0 +1,121 @@
+package com.bertramlabs.plugins.karman
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+* Progress and outcome of a {@link DirectorySync}. The same instance is passed to the progress listener while the
+* sync runs and returned once it is done, so the counters may be read at any time.
+* <p>
+* Files are copied concurrently, so the counters are atomic and the failures are synchronized.
+* </p>
+*/
+class SyncResult {
+	private final long startTime = System.currentTimeMillis()
+	private volatile long endTime = 0
+	private final AtomicLong filesListed = new AtomicLong()
+	private final AtomicLong filesCopied = new AtomicLong()
+	private final AtomicLong filesSkipped = new AtomicLong()
+	private final AtomicLong filesDeleted = new AtomicLong()
+	private final AtomicLong bytesCopied = new AtomicLong()
+	private final Map<String, String> failures = new LinkedHashMap<String, String>()
+
+	void listed() {
+		filesListed.incrementAndGet()
+	}
+
+	void copied(String key, Long length) {
+		filesCopied.incrementAndGet()
+		if(length) {
+			bytesCopied.addAndGet(length)
+		}
+	}
+
+	void skipped(String key) {
+		filesSkipped.incrementAndGet()
+	}
+
+	void deleted(long count) {
+		filesDeleted.addAndGet(count)
+	}
+
+	synchronized void failed(String key, String message) {
+		failures[key] = message
+	}
+
+	void finish() {
+		endTime = System.currentTimeMillis()
+	}
+
+	/**
+	* Number of source files read from the listing so far
+	*/
+	long getFilesListed() {
+		return filesListed.get()
+	}
+
+	/**
+	* Number of files copied to the target
+	*/
+	long getFilesCopied() {
+		return filesCopied.get()
+	}
+
+	/**
+	* Number of files skipped because the target was already up to date
+	*/
+	long getFilesSkipped() {
+		return filesSkipped.get()
+	}
+
+	/**
+	* Number of target files deleted because they no longer exist in the source
+	*/
+	long getFilesDeleted() {
+		return filesDeleted.get()
+	}
+
+	/**
+	* Total length of the copied files
+	*/
+	long getBytesCopied() {
+		return bytesCopied.get()
+	}
+
+	/**
+	* Keys that could not be copied or deleted, mapped to the reason
+	*/
+	synchronized Map<String, String> getFailures() {
+		return new LinkedHashMap<String, String>(failures)
+	}
+
+	synchronized Boolean isSuccess() {
+		return failures.isEmpty()
+	}
+
+	/**
+	* Time spent so far, or in total once the sync is done
+	*/
+	long getElapsedMillis() {
+		return (endTime ?: System.currentTimeMillis()) - startTime
+	}
+
+	/**
+	* Average copy throughput since the sync started
+	*/
+	long getBytesPerSecond() {
+		long elapsed = Math.max(1l, getElapsedMillis())
+		return (long) (getBytesCopied() * 1000d / elapsed)
+	}
+
+	/**
+	* Average number of source files processed (copied or skipped) per second
+	*/
+	long getFilesPerSecond() {
+		long elapsed = Math.max(1l, getElapsedMillis())
+		return (long) ((getFilesCopied() + getFilesSkipped()) * 1000d / elapsed)
+	}
+
+	String toString() {
+		return "listed=${filesListed} copied=${filesCopied} skipped=${filesSkipped} deleted=${filesDeleted} failed=${getFailures().size()} bytes=${bytesCopied} (${getBytesPerSecond()} B/s)".toString()
+	}
+}
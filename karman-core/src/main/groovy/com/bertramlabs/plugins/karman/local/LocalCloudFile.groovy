@@ -17,12 +17,20 @@
 package com.bertramlabs.plugins.karman.local
 
 import com.bertramlabs.plugins.karman.*
+import com.bertramlabs.plugins.karman.metrics.MeteredInputStream
+import com.bertramlabs.plugins.karman.metrics.MeteredOutputStream
+import com.bertramlabs.plugins.karman.metrics.NoopStorageMetrics
+import com.bertramlabs.plugins.karman.metrics.StorageMetrics
 import groovy.util.logging.Commons
 import java.io.ByteArrayInputStream;
 import java.io.BufferedOutputStream;
 import com.bertramlabs.plugins.karman.util.Mimetypes
 import groovy.transform.CompileStatic
 
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+
 @Commons
 class LocalCloudFile extends CloudFile {
 	LocalDirectory parent
@@ -41,7 +49,12 @@ class LocalCloudFile extends CloudFile {
 	}
 
 	InputStream getInputStream() {
-		fsFile.newInputStream()
+		InputStream inputStream = fsFile.newInputStream()
+		StorageMetrics metrics = provider?.metrics
+		if(metrics == null || metrics instanceof NoopStorageMetrics) {
+			return inputStream
+		}
+		return new MeteredInputStream(inputStream, metrics, provider.providerName, 'read')
 	}
 
 	@CompileStatic
@@ -67,7 +80,18 @@ class LocalCloudFile extends CloudFile {
 			ensurePathExists()
 			fsFile.createNewFile()
 		}
-		fsFile.newOutputStream()
+		OutputStream outputStream = fsFile.newOutputStream()
+		StorageMetrics metrics = provider?.metrics
+		if(metrics == null || metrics instanceof NoopStorageMetrics) {
+			return outputStream
+		}
+		return new MeteredOutputStream(outputStream, metrics, provider.providerName, 'write')
+	}
+
+	@Override
+	RandomAccessOutput getRandomAccessOutput() {
+		ensurePathExists()
+		return new LocalRandomAccessOutput(fsFile)
 	}
 
 	String getText(String encoding=null) {
@@ -135,6 +159,51 @@ class LocalCloudFile extends CloudFile {
 		return
 	}
 
+	/**
+	* Copies to another local file with {@link FileChannel#transferTo}, letting the operating system move the bytes
+	* without passing them through the JVM heap.
+	*/
+	@Override
+	protected Boolean nativeCopyTo(CloudFile target) {
+		if(!(target instanceof LocalCloudFile)) {
+			return false
+		}
+		LocalCloudFile localTarget = (LocalCloudFile) target
+		if(!fsFile.exists()) {
+			throw new FileNotFoundException("Unable to copy ${name}, the file does not exist")
+		}
+		//opening the target truncates it, which would wipe the source when copying a file onto itself
+		if(localTarget.fsFile.exists() && Files.isSameFile(fsFile.toPath(), localTarget.fsFile.toPath())) {
+			return true
+		}
+		localTarget.ensurePathExists()
+		transferFile(fsFile, localTarget.fsFile)
+		return true
+	}
+
+	@CompileStatic
+	private static void transferFile(File sourceFile, File targetFile) {
+		FileChannel source = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ)
+		try {
+			FileChannel destination = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+			try {
+				long size = source.size()
+				long position = 0
+				while(position < size) {
+					long transferred = source.transferTo(position, size - position, destination)
+					if(transferred <= 0) {
+						break //the source was truncated while copying
+					}
+					position += transferred
+				}
+			} finally {
+				destination.close()
+			}
+		} finally {
+			source.close()
+		}
+	}
+
 	def delete() {
 		if(fsFile.exists()) {
 			if(fsFile.isDirectory()) {
@@ -17,9 +17,11 @@
 package com.bertramlabs.plugins.karman.local
 
 import com.bertramlabs.plugins.karman.*
+import com.bertramlabs.plugins.karman.util.TreeListing
 
 import java.nio.file.FileSystems
 import java.nio.file.Path
+import java.nio.file.PathMatcher
 import java.nio.file.Paths
 import java.nio.file.FileSystem
 
@@ -35,9 +37,57 @@ class LocalDirectory extends com.bertramlabs.plugins.karman.Directory {
 		fsFile.exists()
 	}
 
+	/**
+	 * Lists the files below this directory, folders first and then by name. Recursive listings are read in parallel
+	 * when the provider's {@code listConcurrency} is above one.
+	 */
 	List listFiles(options = [:]) {
-		Collection<LocalCloudFile> rtn = []
+		Map filter = listingFilter(options)
+		File rootFolder = filter.rootFolder
+		LocalFileWalker walker = new LocalFileWalker(fsFile.toPath(), filter.includes as List<PathMatcher>, filter.excludes as List<PathMatcher>,
+			options.delimiter != '/', (provider.listConcurrency ?: 1) as Integer)
+		List<LocalCloudFile> rtn = []
+		for(LocalFileWalker.Entry entry : walker.walk(rootFolder.toPath())) {
+			rtn << new LocalCloudFile(provider: provider, parent: this, name: entry.key)
+		}
+		return rtn
+	}
+
+	/**
+	 * Lists a single page of files in depth first, name sorted order without building the whole tree.
+	 * The continuation token is the name of the last file returned.
+	 * @param options same as listFiles plus pageSize and continuationToken
+	 */
+	ListingPage listFilesPage(Map options = [:]) {
+		Map filter = listingFilter(options)
+		def includes = filter.includes
+		def excludes = filter.excludes
+		LocalDirectory directory = this
+		TreeListing<File> listing = new TreeListing<File>() {
+			protected Collection<File> listChildren(File folder) {
+				return folder.listFiles()?.toList()
+			}
+
+			protected String getKey(File entry) {
+				return directory.relativePath(entry)
+			}
 
+			protected boolean isFolder(File entry) {
+				return entry.isDirectory()
+			}
+
+			protected boolean matches(String key) {
+				return directory.isMatchedFile(key, includes, excludes)
+			}
+
+			protected CloudFile toCloudFile(File entry, String key) {
+				return new LocalCloudFile(provider: directory.provider, parent: directory, name: key)
+			}
+		}
+		return listing.listPage(filter.rootFolder as File, options?.delimiter != '/', (options?.pageSize ?: DEFAULT_PAGE_SIZE) as Integer, options?.continuationToken as String)
+	}
+
+	private Map listingFilter(options) {
 		def delimiter = options.delimiter
 		FileSystem fileSystem = FileSystems.getDefault()
 		String prefix
@@ -84,40 +134,17 @@ class LocalDirectory extends com.bertramlabs.plugins.karman.Directory {
 			excludes << fileSystem.getPathMatcher("glob:**/*")
 			includes << fileSystem.getPathMatcher("glob:*")
 		}
-		convertFilesToCloudFiles(rootFolder, includes,excludes, rtn)
-
-		if(delimiter != '/') {
-			for(int counter = 0; counter < rtn.size(); counter++) {
-				LocalCloudFile currentFile = rtn[counter]
-				if(currentFile.isDirectory()) {
-					convertFilesToCloudFiles(currentFile.fsFile, includes, excludes, rtn, counter + 1)
-				}
-			}
-		}
-		rtn = rtn?.findAll {
-			isMatchedFile(it.name,includes,excludes)
-		}?.sort{ a, b ->  a.isFile() <=> b.isFile() ?: a.name <=> b.name}
-
-		return rtn
+		return [rootFolder: rootFolder, includes: includes, excludes: excludes]
 	}
 
-	private void convertFilesToCloudFiles(File parentFile, includes, excludes, fileList, position=0) {
-		Collection<LocalCloudFile> files = [];
-		parentFile.listFiles()?.each { listFile ->
-			def path = listFile.path.substring(fsFile.path.length())
-			if(path.startsWith('/')) {
-				path = path.substring(1)
-			}
-			if(isMatchedFile(path,includes,excludes)) {
-				files << new LocalCloudFile(provider: provider, parent: this, name: path)
-			}
-		}
-		if(files) {
-			fileList.addAll(position, files)
+	private String relativePath(File file) {
+		def path = file.path.substring(fsFile.path.length())
+		if(path.startsWith('/')) {
+			path = path.substring(1)
 		}
+		return path
 	}
 
-
 	private Boolean isMatchedFile(String stringPath, includes,excludes) {
 		Path path = Paths.get(stringPath)
 		Boolean rtn = true
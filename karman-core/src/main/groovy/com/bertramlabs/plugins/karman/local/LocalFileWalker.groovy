@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bertramlabs.plugins.karman.local
+
+import groovy.transform.CompileStatic
+
+import java.nio.file.DirectoryIteratorException
+import java.nio.file.DirectoryStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.PathMatcher
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinWorkerThread
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Walks a local folder for {@link LocalDirectory#listFiles}. Each folder is read once with a {@link DirectoryStream}
+ * and only matched entries are stat'ed, with a single attribute read that is kept for sorting. A folder that does not
+ * match the include / exclude filters is not descended into, so prefix listings never visit unrelated subtrees.
+ * <p>
+ * With a concurrency above one subtrees are listed in parallel on a fork join pool. The entries are sorted afterwards,
+ * so the result is the same either way.
+ * </p>
+ */
+@CompileStatic
+class LocalFileWalker {
+	/**
+	 * Listing order of listFiles: folders (and anything else that is not a regular file) first, then by name
+	 */
+	static final Comparator<Entry> LISTING_ORDER = new Comparator<Entry>() {
+		@Override
+		int compare(Entry a, Entry b) {
+			if(a.file != b.file) {
+				return a.file ? 1 : -1
+			}
+			return a.key <=> b.key
+		}
+	}
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0)
+
+	Path basePath
+	List<PathMatcher> includes
+	List<PathMatcher> excludes
+	boolean recursive
+	int concurrency
+
+	private final int baseNameCount
+
+	/**
+	 * @param basePath folder the entry keys are relative to
+	 * @param recursive descend into matched sub folders
+	 * @param concurrency maximum number of folders listed at once
+	 */
+	LocalFileWalker(Path basePath, List<PathMatcher> includes, List<PathMatcher> excludes, boolean recursive, int concurrency) {
+		this.basePath = basePath
+		this.includes = includes ?: Collections.<PathMatcher>emptyList()
+		this.excludes = excludes ?: Collections.<PathMatcher>emptyList()
+		this.recursive = recursive
+		this.concurrency = Math.max(1, concurrency)
+		this.baseNameCount = basePath.getNameCount()
+	}
+
+	/**
+	 * Lists the matched entries below the root folder, sorted in {@link #LISTING_ORDER}.
+	 */
+	List<Entry> walk(Path rootFolder) {
+		BasicFileAttributes rootAttributes = readAttributes(rootFolder)
+		if(rootAttributes == null || !rootAttributes.isDirectory()) {
+			return []
+		}
+		Ancestor root = new Ancestor(rootAttributes.fileKey(), null)
+		List<Entry> entries
+		if(!recursive || concurrency == 1) {
+			entries = new ArrayList<Entry>()
+			walkFolder(rootFolder, root, entries)
+		} else {
+			Queue<Entry> foundEntries = new ConcurrentLinkedQueue<Entry>()
+			ForkJoinPool pool = new ForkJoinPool(concurrency, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				@Override
+				ForkJoinWorkerThread newThread(ForkJoinPool forkJoinPool) {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool)
+					thread.setName("karman-local-list-" + threadCount.incrementAndGet())
+					thread.setDaemon(true)
+					return thread
+				}
+			}, null, false)
+			try {
+				pool.invoke(new FolderTask(this, rootFolder, root, foundEntries))
+			} finally {
+				pool.shutdownNow()
+			}
+			entries = new ArrayList<Entry>(foundEntries)
+		}
+		Collections.sort(entries, LISTING_ORDER)
+		return entries
+	}
+
+	private void walkFolder(Path folder, Ancestor ancestor, Collection<Entry> entries) {
+		for(Subfolder subfolder : listFolder(folder, ancestor, entries)) {
+			walkFolder(subfolder.path, subfolder.ancestor, entries)
+		}
+	}
+
+	/**
+	 * Adds the matched children of a folder to the entries and returns the sub folders to descend into. A folder that
+	 * cannot be read is treated as empty, as {@link File#listFiles} does.
+	 */
+	private List<Subfolder> listFolder(Path folder, Ancestor ancestor, Collection<Entry> entries) {
+		List<Subfolder> subfolders = []
+		DirectoryStream<Path> stream
+		try {
+			stream = Files.newDirectoryStream(folder)
+		} catch(IOException ex) {
+			return subfolders
+		}
+		try {
+			for(Path child : stream) {
+				Path relativePath = child.subpath(baseNameCount, child.getNameCount())
+				if(!isMatched(relativePath)) {
+					continue
+				}
+				BasicFileAttributes attributes = readAttributes(child)
+				entries.add(new Entry(relativePath.toString(), attributes != null && attributes.isRegularFile()))
+				if(recursive && attributes != null && attributes.isDirectory() && !ancestor.contains(attributes.fileKey())) {
+					subfolders.add(new Subfolder(child, new Ancestor(attributes.fileKey(), ancestor)))
+				}
+			}
+		} catch(DirectoryIteratorException ex) {
+			//folder removed or became unreadable while listing, keep what was read
+		} finally {
+			stream.close()
+		}
+		return subfolders
+	}
+
+	private boolean isMatched(Path relativePath) {
+		for(PathMatcher include : includes) {
+			if(include.matches(relativePath)) {
+				return true
+			}
+		}
+		for(PathMatcher exclude : excludes) {
+			if(exclude.matches(relativePath)) {
+				return false
+			}
+		}
+		return true
+	}
+
+	/**
+	 * Reads the attributes following symbolic links, or null for a broken link or a file that vanished.
+	 */
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes)
+		} catch(IOException ex) {
+			return null
+		}
+	}
+
+	static class Entry {
+		final String key
+		final boolean file
+
+		Entry(String key, boolean file) {
+			this.key = key
+			this.file = file
+		}
+	}
+
+	/**
+	 * File keys of the folders above a sub folder, so a symbolic link back to one of them is not followed forever.
+	 */
+	private static class Ancestor {
+		final Object fileKey
+		final Ancestor parent
+
+		Ancestor(Object fileKey, Ancestor parent) {
+			this.fileKey = fileKey
+			this.parent = parent
+		}
+
+		boolean contains(Object key) {
+			if(key == null) {
+				return false
+			}
+			for(Ancestor current = this; current != null; current = current.parent) {
+				if(key == current.fileKey) {
+					return true
+				}
+			}
+			return false
+		}
+	}
+
+	private static class Subfolder {
+		final Path path
+		final Ancestor ancestor
+
+		Subfolder(Path path, Ancestor ancestor) {
+			this.path = path
+			this.ancestor = ancestor
+		}
+	}
+
+	private static class FolderTask extends RecursiveAction {
+		final LocalFileWalker walker
+		final Path folder
+		final Ancestor ancestor
+		final Collection<Entry> entries
+
+		FolderTask(LocalFileWalker walker, Path folder, Ancestor ancestor, Collection<Entry> entries) {
+			this.walker = walker
+			this.folder = folder
+			this.ancestor = ancestor
+			this.entries = entries
+		}
+
+		@Override
+		protected void compute() {
+			List<FolderTask> tasks = []
+			for(Subfolder subfolder : walker.listFolder(folder, ancestor, entries)) {
+				tasks.add(new FolderTask(walker, subfolder.path, subfolder.ancestor, entries))
+			}
+			if(tasks) {
+				invokeAll(tasks)
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.bertramlabs.plugins.karman.local
+
+import com.bertramlabs.plugins.karman.RandomAccessOutput
+import groovy.transform.CompileStatic
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+/**
+* Positional writer for a {@link LocalCloudFile} backed by a {@link FileChannel}. The file is opened as sparse
+* so regions that are skipped are left as holes by file systems that support them.
+*/
+@CompileStatic
+class LocalRandomAccessOutput implements RandomAccessOutput {
+	private static final byte[] ZERO_BYTE = new byte[1]
+	private FileChannel channel
+
+	LocalRandomAccessOutput(File file) {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE)
+	}
+
+	@Override
+	void write(long position, byte[] buffer, int offset, int length) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length)
+		while(byteBuffer.hasRemaining()) {
+			position += channel.write(byteBuffer, position)
+		}
+	}
+
+	@Override
+	void setLength(long length) throws IOException {
+		long currentSize = channel.size()
+		if(currentSize > length) {
+			channel.truncate(length)
+		} else if(currentSize < length) {
+			//writing the last byte extends the file without allocating the skipped region
+			write(length - 1, ZERO_BYTE, 0, 1)
+		}
+	}
+
+	@Override
+	void close() throws IOException {
+		channel.close()
+	}
+}
@@ -25,9 +25,15 @@ class LocalStorageProvider extends StorageProvider {
 	String basePath
 	String baseUrl
 
+	/**
+	 * Number of folders listed concurrently by a recursive listFiles
+	 */
+	Integer listConcurrency = 1
+
 	public LocalStorageProvider(Map options) {
 		basePath = options.basePath ?: basePath
 		baseUrl  = options.baseUrl  ?: baseUrl
+		listConcurrency = options.listConcurrency ?: listConcurrency
 		if(options.defaultFileACL) {
 		//	this.defaultFileACL = options.defaultFileACL
 		}
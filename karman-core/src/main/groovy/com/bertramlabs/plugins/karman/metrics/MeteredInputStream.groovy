@@ -0,0 +1,68 @@
+package com.bertramlabs.plugins.karman.metrics
+
+import groovy.transform.CompileStatic
+
+/**
+* Counts the bytes read from a stream and reports them to {@link StorageMetrics#bytesRead} once, at the end of the
+* stream or when it is closed.
+*/
+@CompileStatic
+class MeteredInputStream extends FilterInputStream {
+	private final StorageMetrics metrics
+	private final String provider
+	private final String operation
+	private long count = 0
+	private boolean reported = false
+
+	MeteredInputStream(InputStream inputStream, StorageMetrics metrics, String provider, String operation) {
+		super(inputStream)
+		this.metrics = metrics
+		this.provider = provider
+		this.operation = operation
+	}
+
+	@Override
+	int read() throws IOException {
+		int b = super.read()
+		if(b < 0) {
+			report()
+		} else {
+			count++
+		}
+		return b
+	}
+
+	@Override
+	int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len)
+		if(n < 0) {
+			report()
+		} else {
+			count += n
+		}
+		return n
+	}
+
+	@Override
+	long skip(long n) throws IOException {
+		long skipped = super.skip(n)
+		count += skipped
+		return skipped
+	}
+
+	@Override
+	void close() throws IOException {
+		try {
+			super.close()
+		} finally {
+			report()
+		}
+	}
+
+	private void report() {
+		if(!reported) {
+			reported = true
+			metrics.bytesRead(provider, operation, count)
+		}
+	}
+}
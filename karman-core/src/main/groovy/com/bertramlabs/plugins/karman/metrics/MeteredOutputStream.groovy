@@ -0,0 +1,47 @@
+package com.bertramlabs.plugins.karman.metrics
+
+import groovy.transform.CompileStatic
+
+/**
+* Counts the bytes written to a stream and reports them to {@link StorageMetrics#bytesWritten} once it is closed.
+*/
+@CompileStatic
+class MeteredOutputStream extends FilterOutputStream {
+	private final StorageMetrics metrics
+	private final String provider
+	private final String operation
+	private long count = 0
+	private boolean reported = false
+
+	MeteredOutputStream(OutputStream outputStream, StorageMetrics metrics, String provider, String operation) {
+		super(outputStream)
+		this.metrics = metrics
+		this.provider = provider
+		this.operation = operation
+	}
+
+	@Override
+	void write(int b) throws IOException {
+		out.write(b)
+		count++
+	}
+
+	@Override
+	void write(byte[] b, int off, int len) throws IOException {
+		//FilterOutputStream would write the array one byte at a time
+		out.write(b, off, len)
+		count += len
+	}
+
+	@Override
+	void close() throws IOException {
+		try {
+			super.close()
+		} finally {
+			if(!reported) {
+				reported = true
+				metrics.bytesWritten(provider, operation, count)
+			}
+		}
+	}
+}
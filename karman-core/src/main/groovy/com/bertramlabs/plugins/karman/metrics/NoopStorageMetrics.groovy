@@ -0,0 +1,23 @@
+package com.bertramlabs.plugins.karman.metrics
+
+import groovy.transform.CompileStatic
+
+/**
+* Default {@link StorageMetrics} discarding every measurement.
+*/
+@CompileStatic
+class NoopStorageMetrics implements StorageMetrics {
+	static final NoopStorageMetrics INSTANCE = new NoopStorageMetrics()
+
+	void operationStarted(String provider, String operation) {}
+
+	void operationFinished(String provider, String operation, long durationNanos, Throwable error) {}
+
+	void bytesRead(String provider, String operation, long bytes) {}
+
+	void bytesWritten(String provider, String operation, long bytes) {}
+
+	void retried(String provider, String operation) {}
+
+	void count(String provider, String name, long amount) {}
+}
@@ -0,0 +1,74 @@
+package com.bertramlabs.plugins.karman.metrics
+
+import com.bertramlabs.plugins.karman.StorageProvider
+import groovy.transform.CompileStatic
+
+/**
+* Reports one operation to {@link StorageMetrics}: started when created, finished by {@link #stop(Throwable)}.
+* <pre>
+* OperationTimer.time(provider, 'listPage') {
+*     listFilesPage(options)
+* }
+* </pre>
+*/
+@CompileStatic
+class OperationTimer {
+	final StorageMetrics metrics
+	final String provider
+	final String operation
+	final long startNanos
+
+	private boolean stopped = false
+
+	private OperationTimer(StorageMetrics metrics, String provider, String operation) {
+		this.metrics = metrics
+		this.provider = provider
+		this.operation = operation
+		this.startNanos = System.nanoTime()
+	}
+
+	static OperationTimer start(StorageMetrics metrics, String provider, String operation) {
+		OperationTimer timer = new OperationTimer(metrics, provider, operation)
+		metrics.operationStarted(provider, operation)
+		return timer
+	}
+
+	/**
+	* Reports the operation as finished, only the first call counts.
+	* @param error the failure or null if it succeeded
+	*/
+	void stop(Throwable error = null) {
+		if(stopped) {
+			return
+		}
+		stopped = true
+		metrics.operationFinished(provider, operation, System.nanoTime() - startNanos, error)
+	}
+
+	/**
+	* Runs the work as an operation of the provider, a thrown exception is reported as its error.
+	*/
+	static <T> T time(StorageProvider storageProvider, String operation, Closure<T> work) {
+		StorageMetrics metrics = metricsOf(storageProvider)
+		if(metrics instanceof NoopStorageMetrics) {
+			return work.call()
+		}
+		OperationTimer timer = start(metrics, nameOf(storageProvider), operation)
+		try {
+			T result = work.call()
+			timer.stop()
+			return result
+		} catch(Throwable t) {
+			timer.stop(t)
+			throw t
+		}
+	}
+
+	static StorageMetrics metricsOf(StorageProvider storageProvider) {
+		return storageProvider?.getMetrics() ?: NoopStorageMetrics.INSTANCE
+	}
+
+	static String nameOf(StorageProvider storageProvider) {
+		return storageProvider?.getProviderName() ?: 'unknown'
+	}
+}
@@ -0,0 +1,44 @@
+package com.bertramlabs.plugins.karman.metrics
+
+/**
+* Service provider interface receiving the measurements of the storage providers. Every call is tagged with the
+* provider name (i.e. {@code s3}, {@code azure-pageblob}, {@code local}) and the operation, which is the HTTP method
+* for the REST providers, the request name for S3 (i.e. {@code GetObject}, {@code UploadPart}) and the Karman level
+* operation for the rest ({@code listPage}, {@code deleteBatch}, {@code copy}, {@code read}, {@code write}).
+* <p>
+* Implementations are called from many threads at once and on the request path, so they must be thread safe and
+* cheap. A Micrometer adapter would map {@link #operationFinished} to a timer, the byte and retry calls to counters
+* and keep an in-flight gauge per tag set that is incremented and decremented by the operation calls.
+* </p>
+* <p>
+* Set one for all providers with {@code KarmanConfigHolder.setConfig(metrics: ...)} or per provider with the
+* {@code metrics} option. The default is {@link NoopStorageMetrics}.
+* </p>
+*/
+interface StorageMetrics {
+	/**
+	* A request or operation was started, it is followed by exactly one {@link #operationFinished} call
+	*/
+	void operationStarted(String provider, String operation)
+
+	/**
+	* A request or operation ended.
+	* @param durationNanos time since the matching {@link #operationStarted} call
+	* @param error the failure or null if it succeeded
+	*/
+	void operationFinished(String provider, String operation, long durationNanos, Throwable error)
+
+	void bytesRead(String provider, String operation, long bytes)
+
+	void bytesWritten(String provider, String operation, long bytes)
+
+	/**
+	* A failed request is sent again
+	*/
+	void retried(String provider, String operation)
+
+	/**
+	* Any other event worth counting, i.e. {@code metadataCache.hit}
+	*/
+	void count(String provider, String name, long amount)
+}
@@ -0,0 +1,238 @@
+package com.bertramlabs.plugins.karman.util
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Skeleton of the chunked transfers that read a stream on the calling thread and send the chunks from a pool of
+ * workers (multipart and composite uploads, page and range writes, pipelined NFS writes, differential blocks).
+ * <p>
+ * Chunk buffers come from a bounded pool, allocated lazily up to {@code bufferCount}, and a task gives its buffer
+ * back once it is done, so memory use is capped at {@code bufferCount * bufferSize} however large the stream is.
+ * Results are collected in submission order. The first failed task makes the next {@link #takeBuffer()} throw, so the
+ * reader stops early instead of reading the rest of the stream.
+ * </p>
+ * <pre>
+ * BoundedUploadPipeline&lt;String&gt; pipeline = new BoundedUploadPipeline&lt;String&gt;('karman-upload', 4, 5, partSize)
+ * try {
+ *     while(true) {
+ *         byte[] buffer = pipeline.takeBuffer()
+ *         int count = StreamUtils.readFully(sourceStream, buffer)
+ *         if(count &lt;= 0) {
+ *             pipeline.returnBuffer(buffer)
+ *             break
+ *         }
+ *         pipeline.submit(buffer, uploadPart(buffer, count))
+ *     }
+ *     List&lt;String&gt; parts = pipeline.awaitAll()
+ * } catch(Throwable t) {
+ *     pipeline.cancel()
+ *     throw t
+ * } finally {
+ *     pipeline.close()
+ * }
+ * </pre>
+ * @param <T> result of a single task
+ */
+@CompileStatic
+class BoundedUploadPipeline<T> implements Closeable {
+	private final ExecutorService executor
+	private final BlockingQueue<byte[]> bufferPool
+	private final int bufferCount
+	private final int bufferSize
+	private int allocatedBuffers = 0
+	private final ArrayDeque<Future<T>> pendingTasks = new ArrayDeque<Future<T>>()
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>()
+
+	/**
+	 * @param threadNamePrefix name of the worker threads, see {@link DaemonThreadFactory}
+	 * @param concurrency number of tasks run at once
+	 * @param bufferCount maximum number of buffers, usually one per worker plus the one being filled
+	 * @param bufferSize size of each buffer
+	 */
+	BoundedUploadPipeline(String threadNamePrefix, int concurrency, int bufferCount, int bufferSize) {
+		this.bufferCount = Math.max(0, bufferCount)
+		this.bufferSize = bufferSize
+		this.bufferPool = new ArrayBlockingQueue<byte[]>(Math.max(1, this.bufferCount))
+		this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), new DaemonThreadFactory(threadNamePrefix))
+	}
+
+	/**
+	 * Pipeline for tasks that do not need a buffer (i.e. server side part copies).
+	 */
+	BoundedUploadPipeline(String threadNamePrefix, int concurrency) {
+		this(threadNamePrefix, concurrency, 0, 0)
+	}
+
+	/**
+	 * Returns a free buffer, allocating one while fewer than {@code bufferCount} exist and otherwise waiting for a
+	 * task to give its buffer back.
+	 * @throws IOException (or the original unchecked exception) if a task has failed
+	 */
+	byte[] takeBuffer() throws IOException, InterruptedException {
+		checkFailure()
+		byte[] buffer = bufferPool.poll()
+		if(buffer != null) {
+			return buffer
+		}
+		if(allocatedBuffers < bufferCount) {
+			allocatedBuffers++
+			return new byte[bufferSize]
+		}
+		if(bufferCount == 0) {
+			throw new IllegalStateException("This pipeline has no buffers")
+		}
+		buffer = bufferPool.take()
+		if(failure.get() != null) {
+			bufferPool.offer(buffer)
+			checkFailure()
+		}
+		return buffer
+	}
+
+	/**
+	 * Gives back a buffer that was not submitted (i.e. after reading the end of the stream).
+	 */
+	void returnBuffer(byte[] buffer) {
+		bufferPool.offer(buffer)
+	}
+
+	/**
+	 * Runs a task that uses a buffer from {@link #takeBuffer()}, the buffer is returned to the pool once it is done.
+	 */
+	void submit(byte[] buffer, Callable<T> task) {
+		pendingTasks.addLast(executor.submit(new PipelineTask<T>(task, buffer, bufferPool, failure)))
+	}
+
+	/**
+	 * Runs a task without a buffer.
+	 */
+	void submit(Callable<T> task) {
+		submit(null, task)
+	}
+
+	/**
+	 * Number of submitted tasks whose result was not collected yet.
+	 */
+	int getPendingCount() {
+		return pendingTasks.size()
+	}
+
+	/**
+	 * Collects the results of the oldest tasks that are already done, stopping at the first one still running. Keeps
+	 * the pending list short for long transfers whose results are not needed.
+	 */
+	List<T> drainCompleted() throws IOException {
+		List<T> results = []
+		while(!pendingTasks.isEmpty() && pendingTasks.peekFirst().isDone()) {
+			results.add(awaitNext())
+		}
+		return results
+	}
+
+	/**
+	 * Waits for the oldest pending task and returns its result.
+	 * @throws IOException (or the original unchecked exception) if the task failed
+	 */
+	T awaitNext() throws IOException, InterruptedException {
+		Future<T> task = pendingTasks.pollFirst()
+		if(task == null) {
+			throw new NoSuchElementException()
+		}
+		try {
+			return task.get()
+		} catch(ExecutionException e) {
+			throw failureOf(e.getCause() ?: e)
+		}
+	}
+
+	/**
+	 * Waits for every pending task.
+	 * @return the results in submission order
+	 */
+	List<T> awaitAll() throws IOException, InterruptedException {
+		List<T> results = new ArrayList<T>(pendingTasks.size())
+		while(!pendingTasks.isEmpty()) {
+			results.add(awaitNext())
+		}
+		return results
+	}
+
+	/**
+	 * Cancels the pending tasks, interrupting the running ones.
+	 */
+	void cancel() {
+		for(Future<T> task : pendingTasks) {
+			task.cancel(true)
+		}
+		pendingTasks.clear()
+	}
+
+	/**
+	 * Waits for cancelled tasks to finish their current request after {@link #close()}, i.e. before cleaning up what
+	 * they create.
+	 */
+	boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit)
+	}
+
+	/**
+	 * Cancels whatever is still pending and stops the workers.
+	 */
+	@Override
+	void close() {
+		cancel()
+		executor.shutdownNow()
+	}
+
+	private void checkFailure() {
+		Throwable cause = failure.get()
+		if(cause != null) {
+			throw failureOf(cause)
+		}
+	}
+
+	private static Throwable failureOf(Throwable cause) {
+		if(cause instanceof IOException || cause instanceof RuntimeException || cause instanceof Error) {
+			return cause
+		}
+		return new IOException(cause.message ?: cause.class.name, cause)
+	}
+
+	private static class PipelineTask<T> implements Callable<T> {
+		private final Callable<T> task
+		private final byte[] buffer
+		private final BlockingQueue<byte[]> bufferPool
+		private final AtomicReference<Throwable> failure
+
+		PipelineTask(Callable<T> task, byte[] buffer, BlockingQueue<byte[]> bufferPool, AtomicReference<Throwable> failure) {
+			this.task = task
+			this.buffer = buffer
+			this.bufferPool = bufferPool
+			this.failure = failure
+		}
+
+		@Override
+		T call() throws Exception {
+			try {
+				return task.call()
+			} catch(Throwable t) {
+				failure.compareAndSet(null, t)
+				throw t
+			} finally {
+				if(buffer != null) {
+					bufferPool.offer(buffer)
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.bertramlabs.plugins.karman.util
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Creates the numbered daemon worker threads of the transfer pools (i.e. {@code karman-s3-upload-12}), so a pool
+ * that is not shut down never keeps the JVM from exiting.
+ */
+@CompileStatic
+class DaemonThreadFactory implements ThreadFactory {
+	private static final AtomicInteger threadCount = new AtomicInteger(0)
+
+	private final String namePrefix
+
+	/**
+	 * @param namePrefix thread name without the trailing number, i.e. {@code karman-s3-upload}
+	 */
+	DaemonThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix
+	}
+
+	@Override
+	Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, namePrefix + "-" + threadCount.incrementAndGet())
+		thread.setDaemon(true)
+		return thread
+	}
+}
@@ -0,0 +1,279 @@
+package com.bertramlabs.plugins.karman.util
+
+import com.bertramlabs.plugins.karman.StorageProvider
+import groovy.util.logging.Commons
+import org.apache.http.Header
+import org.apache.http.HttpHost
+import org.apache.http.HttpResponse
+import org.apache.http.ParseException
+import org.apache.http.auth.AuthScope
+import org.apache.http.auth.NTCredentials
+import org.apache.http.client.CredentialsProvider
+import org.apache.http.client.config.RequestConfig
+import org.apache.http.config.MessageConstraints
+import org.apache.http.config.Registry
+import org.apache.http.config.RegistryBuilder
+import org.apache.http.conn.ConnectionKeepAliveStrategy
+import org.apache.http.conn.socket.ConnectionSocketFactory
+import org.apache.http.conn.socket.PlainConnectionSocketFactory
+import org.apache.http.conn.ssl.NoopHostnameVerifier
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory
+import org.apache.http.conn.ssl.TrustStrategy
+import org.apache.http.conn.util.InetAddressUtils
+import org.apache.http.impl.DefaultHttpResponseFactory
+import org.apache.http.impl.client.BasicCredentialsProvider
+import org.apache.http.impl.client.CloseableHttpClient
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy
+import org.apache.http.impl.client.HttpClientBuilder
+import org.apache.http.impl.client.HttpClients
+import org.apache.http.impl.client.ProxyAuthenticationStrategy
+import org.apache.http.impl.conn.DefaultHttpResponseParser
+import org.apache.http.impl.conn.DefaultHttpResponseParserFactory
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager
+import org.apache.http.impl.io.DefaultHttpRequestWriterFactory
+import org.apache.http.io.HttpMessageParser
+import org.apache.http.io.SessionInputBuffer
+import org.apache.http.message.BasicHeader
+import org.apache.http.message.BasicLineParser
+import org.apache.http.pool.PoolStats
+import org.apache.http.protocol.HttpContext
+import org.apache.http.ssl.SSLContextBuilder
+import org.apache.http.ssl.SSLContexts
+import org.apache.http.util.CharArrayBuffer
+
+import javax.net.ssl.HostnameVerifier
+import javax.net.ssl.SNIHostName
+import javax.net.ssl.SNIServerName
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLParameters
+import javax.net.ssl.SSLSocket
+import java.security.cert.X509Certificate
+import java.util.concurrent.TimeUnit
+
+/**
+* Shared HTTP client for the REST based storage providers (i.e. Azure, Google and Openstack). Each provider owns one
+* transport whose connections are pooled and kept alive between requests, so consecutive calls to the same endpoint
+* reuse an open connection instead of paying for a new TCP and TLS handshake every time.
+* <p>
+* The client is built lazily on first use and released by {@link #close()}, which providers call from
+* {@link com.bertramlabs.plugins.karman.StorageProvider#shutdown()}. Responses must be fully consumed or closed
+* (i.e. with {@code EntityUtils.consume}) for their connection to return to the pool.
+* </p>
+* <p>
+* Note: This class requires Apache HttpClient 4.5 on the classpath, which is provided by the providers using it.
+* </p>
+*/
+@Commons
+class HttpTransport implements Closeable {
+	/**
+	* Maximum number of pooled connections across all hosts
+	*/
+	Integer maxConnections = 100
+
+	/**
+	* Maximum number of pooled connections to a single host
+	*/
+	Integer maxConnectionsPerRoute = 50
+
+	/**
+	* Connect timeout in milliseconds (null for the system default)
+	*/
+	Integer connectTimeout = 30000
+
+	/**
+	* Socket read timeout in milliseconds (null for no timeout)
+	*/
+	Integer socketTimeout = 20000
+
+	/**
+	* Time in milliseconds to wait for a free connection from the pool before failing the request (null to wait
+	* indefinitely)
+	*/
+	Integer connectionRequestTimeout = 30000
+
+	/**
+	* Time in milliseconds idle connections are kept open when the server does not specify a keep-alive timeout
+	*/
+	Long keepAliveTime = 60000l
+
+	/**
+	* Accept any server certificate and host name, as the Azure and Google providers have always done
+	*/
+	Boolean trustAllCertificates = false
+
+	/**
+	* TLS protocols enabled on https connections, limited to those the JVM supports (null for the JVM defaults)
+	*/
+	List<String> tlsProtocols
+
+	String proxyHost
+	Integer proxyPort
+	String proxyUser
+	String proxyPassword
+	String proxyWorkstation
+	String proxyDomain
+
+	/**
+	* Provider whose {@link com.bertramlabs.plugins.karman.StorageProvider#getMetrics()} receives the request
+	* timings, body sizes and retries
+	*/
+	StorageProvider provider
+
+	private PoolingHttpClientConnectionManager connectionManager
+	private CloseableHttpClient client
+
+	/**
+	* Returns the pooled client, building it on first use. The client must not be closed by the caller.
+	*/
+	synchronized CloseableHttpClient getClient() {
+		if(client == null) {
+			client = buildClient()
+		}
+		return client
+	}
+
+	/**
+	* Statistics of the connection pool (leased, available and pending connections).
+	*/
+	synchronized PoolStats getPoolStats() {
+		return connectionManager?.getTotalStats()
+	}
+
+	/**
+	* Closes all pooled connections. A later call to {@link #getClient()} builds a new pool.
+	*/
+	synchronized void close() {
+		if(client != null) {
+			try {
+				client.close()
+			} catch(IOException ex) {
+				log.debug("Error closing http client", ex)
+			}
+			connectionManager?.shutdown()
+			client = null
+			connectionManager = null
+		}
+	}
+
+	private CloseableHttpClient buildClient() {
+		HttpClientBuilder clientBuilder = HttpClients.custom()
+		SSLConnectionSocketFactory sslConnectionFactory
+		if(trustAllCertificates) {
+			def sslContext = new SSLContextBuilder().loadTrustMaterial(null, new TrustStrategy() {
+				@Override
+				boolean isTrusted(X509Certificate[] chain, String authType) {
+					return true
+				}
+			}).build()
+			sslConnectionFactory = new TlsSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE, tlsProtocols)
+		} else {
+			sslConnectionFactory = new TlsSocketFactory(SSLContexts.createDefault(), SSLConnectionSocketFactory.getDefaultHostnameVerifier(), tlsProtocols)
+		}
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
+			.register("https", sslConnectionFactory)
+			.register("http", PlainConnectionSocketFactory.INSTANCE)
+			.build()
+		def connFactory = new ManagedHttpClientConnectionFactory(new DefaultHttpRequestWriterFactory(), new LenientResponseParserFactory())
+		connectionManager = new PoolingHttpClientConnectionManager(registry, connFactory)
+		connectionManager.setMaxTotal(maxConnections)
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute)
+		//pooled connections may have been closed by the server while idle
+		connectionManager.setValidateAfterInactivity(2000)
+		clientBuilder.setConnectionManager(connectionManager)
+		clientBuilder.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			@Override
+			long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context)
+				return duration > 0 ? duration : keepAliveTime
+			}
+		})
+		clientBuilder.evictExpiredConnections()
+		clientBuilder.evictIdleConnections(keepAliveTime, TimeUnit.MILLISECONDS)
+
+		RequestConfig.Builder configBuilder = RequestConfig.custom()
+		if(connectTimeout != null) {
+			configBuilder.setConnectTimeout(connectTimeout)
+		}
+		if(socketTimeout != null) {
+			configBuilder.setSocketTimeout(socketTimeout)
+		}
+		if(connectionRequestTimeout != null) {
+			configBuilder.setConnectionRequestTimeout(connectionRequestTimeout)
+		}
+		clientBuilder.setDefaultRequestConfig(configBuilder.build())
+
+		if(proxyHost && proxyPort) {
+			clientBuilder.setProxy(new HttpHost(proxyHost, proxyPort))
+			if(proxyUser) {
+				CredentialsProvider credsProvider = new BasicCredentialsProvider()
+				NTCredentials ntCreds = new NTCredentials(proxyUser, proxyPassword, proxyWorkstation, proxyDomain)
+				credsProvider.setCredentials(new AuthScope(proxyHost, proxyPort), ntCreds)
+				clientBuilder.setDefaultCredentialsProvider(credsProvider)
+				clientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy())
+			}
+		}
+		clientBuilder.setRetryHandler(MeteredHttpClient.retryHandler(provider))
+		return new MeteredHttpClient(clientBuilder.build(), provider)
+	}
+
+	/**
+	* Enables the configured TLS protocols and always sends the host name for SNI, including when certificates
+	* are not verified.
+	*/
+	private static class TlsSocketFactory extends SSLConnectionSocketFactory {
+		private final List<String> protocols
+
+		TlsSocketFactory(SSLContext sslContext, HostnameVerifier hostnameVerifier, List<String> protocols) {
+			super(sslContext, hostnameVerifier)
+			this.protocols = protocols
+		}
+
+		@Override
+		protected void prepareSocket(SSLSocket socket) throws IOException {
+			if(protocols) {
+				List<String> supported = socket.getSupportedProtocols() as List<String>
+				String[] enabled = protocols.findAll { supported.contains(it) } as String[]
+				if(enabled) {
+					socket.setEnabledProtocols(enabled)
+				}
+			}
+			String host = socket.getPeerHost()
+			if(host && !InetAddressUtils.isIPv4Address(host) && !InetAddressUtils.isIPv6Address(host)) {
+				try {
+					SSLParameters sslParams = socket.getSSLParameters()
+					sslParams.setServerNames([new SNIHostName(host)] as List<SNIServerName>)
+					socket.setSSLParameters(sslParams)
+				} catch(IllegalArgumentException ex) {
+					log.debug("Host name ${host} is not a valid SNI name", ex)
+				}
+			}
+		}
+	}
+
+	/**
+	* Tolerates malformed response headers and endless garbage before the status line.
+	*/
+	private static class LenientResponseParserFactory extends DefaultHttpResponseParserFactory {
+		@Override
+		HttpMessageParser<HttpResponse> create(SessionInputBuffer ibuffer, MessageConstraints constraints) {
+			def lineParser = new BasicLineParser() {
+				@Override
+				Header parseHeader(final CharArrayBuffer buffer) {
+					try {
+						return super.parseHeader(buffer)
+					} catch(ParseException ex) {
+						return new BasicHeader(buffer.toString(), null)
+					}
+				}
+			}
+			return new DefaultHttpResponseParser(ibuffer, lineParser, DefaultHttpResponseFactory.INSTANCE, constraints ?: MessageConstraints.DEFAULT) {
+				@Override
+				protected boolean reject(final CharArrayBuffer line, int count) {
+					//We need to break out of forever head reads
+					return count > 100
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.bertramlabs.plugins.karman.util
+
+import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.metrics.MeteredInputStream
+import com.bertramlabs.plugins.karman.metrics.NoopStorageMetrics
+import com.bertramlabs.plugins.karman.metrics.OperationTimer
+import com.bertramlabs.plugins.karman.metrics.StorageMetrics
+import groovy.transform.CompileStatic
+import org.apache.http.HttpEntity
+import org.apache.http.HttpEntityEnclosingRequest
+import org.apache.http.HttpHost
+import org.apache.http.HttpRequest
+import org.apache.http.client.ClientProtocolException
+import org.apache.http.client.HttpRequestRetryHandler
+import org.apache.http.client.methods.CloseableHttpResponse
+import org.apache.http.client.protocol.HttpClientContext
+import org.apache.http.conn.ClientConnectionManager
+import org.apache.http.entity.HttpEntityWrapper
+import org.apache.http.impl.client.CloseableHttpClient
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler
+import org.apache.http.params.HttpParams
+import org.apache.http.protocol.HttpContext
+
+/**
+* Reports every request of an {@link HttpTransport} client to the {@link StorageMetrics} of its provider, with the
+* HTTP method as the operation. The duration is measured until the response headers arrive, the body bytes are
+* counted as they are streamed. Requests that fail with an exception are reported with that error, HTTP error
+* statuses are not errors at this level.
+*/
+@CompileStatic
+class MeteredHttpClient extends CloseableHttpClient {
+	private final CloseableHttpClient delegate
+	private final StorageProvider provider
+
+	MeteredHttpClient(CloseableHttpClient delegate, StorageProvider provider) {
+		this.delegate = delegate
+		this.provider = provider
+	}
+
+	@Override
+	protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException {
+		StorageMetrics metrics = OperationTimer.metricsOf(provider)
+		if(metrics instanceof NoopStorageMetrics) {
+			return delegate.execute(target, request, context)
+		}
+		String providerName = OperationTimer.nameOf(provider)
+		String operation = request.getRequestLine().getMethod()
+		if(request instanceof HttpEntityEnclosingRequest) {
+			HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request
+			HttpEntity entity = entityRequest.getEntity()
+			if(entity != null && !(entity instanceof MeteredRequestEntity)) {
+				entityRequest.setEntity(new MeteredRequestEntity(entity, metrics, providerName, operation))
+			}
+		}
+		OperationTimer timer = OperationTimer.start(metrics, providerName, operation)
+		try {
+			CloseableHttpResponse response = delegate.execute(target, request, context)
+			timer.stop()
+			HttpEntity entity = response.getEntity()
+			if(entity != null && operation != 'HEAD') {
+				response.setEntity(new MeteredResponseEntity(entity, metrics, providerName, operation))
+			}
+			return response
+		} catch(Throwable t) {
+			timer.stop(t)
+			throw t
+		}
+	}
+
+	/**
+	* Retry handler behaving like the HttpClient default, reporting each retry.
+	*/
+	static HttpRequestRetryHandler retryHandler(final StorageProvider provider) {
+		return new HttpRequestRetryHandler() {
+			@Override
+			boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+				boolean retry = DefaultHttpRequestRetryHandler.INSTANCE.retryRequest(exception, executionCount, context)
+				if(retry) {
+					HttpRequest request = HttpClientContext.adapt(context).getRequest()
+					OperationTimer.metricsOf(provider).retried(OperationTimer.nameOf(provider), request?.getRequestLine()?.getMethod() ?: 'unknown')
+				}
+				return retry
+			}
+		}
+	}
+
+	@Override
+	@Deprecated
+	HttpParams getParams() {
+		return delegate.getParams()
+	}
+
+	@Override
+	@Deprecated
+	ClientConnectionManager getConnectionManager() {
+		return delegate.getConnectionManager()
+	}
+
+	@Override
+	void close() throws IOException {
+		delegate.close()
+	}
+
+	private static class MeteredRequestEntity extends HttpEntityWrapper {
+		private final StorageMetrics metrics
+		private final String provider
+		private final String operation
+
+		MeteredRequestEntity(HttpEntity entity, StorageMetrics metrics, String provider, String operation) {
+			super(entity)
+			this.metrics = metrics
+			this.provider = provider
+			this.operation = operation
+		}
+
+		@Override
+		void writeTo(OutputStream outStream) throws IOException {
+			CountingOutputStream countingStream = new CountingOutputStream(outStream)
+			try {
+				wrappedEntity.writeTo(countingStream)
+			} finally {
+				metrics.bytesWritten(provider, operation, countingStream.count)
+			}
+		}
+	}
+
+	private static class MeteredResponseEntity extends HttpEntityWrapper {
+		private final StorageMetrics metrics
+		private final String provider
+		private final String operation
+		private InputStream content
+
+		MeteredResponseEntity(HttpEntity entity, StorageMetrics metrics, String provider, String operation) {
+			super(entity)
+			this.metrics = metrics
+			this.provider = provider
+			this.operation = operation
+		}
+
+		@Override
+		synchronized InputStream getContent() throws IOException {
+			//a streamed entity returns the same stream on every call, so it is counted by a single wrapper
+			if(content == null || wrappedEntity.isRepeatable()) {
+				InputStream wrappedContent = wrappedEntity.getContent()
+				content = wrappedContent != null ? new MeteredInputStream(wrappedContent, metrics, provider, operation) : null
+			}
+			return content
+		}
+	}
+
+	/**
+	* Counts without closing or reporting, the connection's stream stays open after the request body is written.
+	*/
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0
+
+		CountingOutputStream(OutputStream outputStream) {
+			super(outputStream)
+		}
+
+		@Override
+		void write(int b) throws IOException {
+			out.write(b)
+			count++
+		}
+
+		@Override
+		void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len)
+			count += len
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.bertramlabs.plugins.karman.util
+
+import groovy.transform.CompileStatic
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Buffer helpers shared by the chunked transfer paths of the providers (multipart and range uploads, pipelined
+ * writes and differential block storage).
+ */
+@CompileStatic
+class StreamUtils {
+
+	/**
+	 * Fills the buffer up to length bytes, only returning a short count at the end of the stream.
+	 */
+	static int readFully(InputStream sourceStream, byte[] buffer, int length) throws IOException {
+		int total = 0
+		while(total < length) {
+			int c = sourceStream.read(buffer, total, length - total)
+			if(c < 0) {
+				break
+			}
+			total += c
+		}
+		return total
+	}
+
+	/**
+	 * Fills the whole buffer, only returning a short count at the end of the stream.
+	 */
+	static int readFully(InputStream sourceStream, byte[] buffer) throws IOException {
+		return readFully(sourceStream, buffer, buffer.length)
+	}
+
+	/**
+	 * Checks whether a region of the buffer only contains zeros, comparing a machine word (8 bytes) at a time.
+	 */
+	static boolean isZeroFilled(byte[] buffer, int offset, int length) {
+		ByteBuffer words = ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder())
+		int end = offset + length
+		int i = offset
+		for(; i + 32 <= end; i += 32) {
+			if((words.getLong(i) | words.getLong(i + 8) | words.getLong(i + 16) | words.getLong(i + 24)) != 0l) {
+				return false
+			}
+		}
+		for(; i + 8 <= end; i += 8) {
+			if(words.getLong(i) != 0l) {
+				return false
+			}
+		}
+		for(; i < end; i++) {
+			if(buffer[i] != (byte) 0) {
+				return false
+			}
+		}
+		return true
+	}
+
+	/**
+	 * Pads the data in the buffer with zeros up to the next multiple of the page size, for apis that only accept
+	 * whole pages (i.e. 512 byte Azure page blob writes). The buffer must have room for the padding.
+	 * @return the padded length
+	 */
+	static int alignToPage(byte[] buffer, int count, int pageSize) {
+		int remainder = count % pageSize
+		if(remainder == 0) {
+			return count
+		}
+		int alignedCount = count + pageSize - remainder
+		Arrays.fill(buffer, count, alignedCount, (byte) 0)
+		return alignedCount
+	}
+}
@@ -0,0 +1,99 @@
+package com.bertramlabs.plugins.karman.util
+
+import com.bertramlabs.plugins.karman.CloudFile
+import com.bertramlabs.plugins.karman.ListingPage
+import groovy.transform.CompileStatic
+
+/**
+* Paginated walk over a hierarchical file system (i.e. local disk, NFS or CIFS) used to implement
+* {@link com.bertramlabs.plugins.karman.Directory#listFilesPage(java.util.Map)}.
+* <p>
+* Entries are returned depth first with siblings sorted by name, each folder directly followed by its contents. The
+* continuation token is simply the key of the last entry returned, so resuming a listing skips every folder before it
+* without reading it and only a single folder listing per level is held in memory at once.
+* </p>
+* @param <T> the provider specific file type
+*/
+@CompileStatic
+abstract class TreeListing<T> {
+
+	/**
+	* Lists the direct children of a folder.
+	*/
+	protected abstract Collection<T> listChildren(T folder)
+
+	/**
+	* Key of an entry relative to the directory being listed (i.e. {@code path/to/file.txt}).
+	*/
+	protected abstract String getKey(T entry)
+
+	protected abstract boolean isFolder(T entry)
+
+	/**
+	* Checks if a key matches the include / exclude filters of the listing.
+	*/
+	protected abstract boolean matches(String key)
+
+	protected abstract CloudFile toCloudFile(T entry, String key)
+
+	/**
+	* Lists a single page starting after the given continuation token.
+	* @param root folder to list
+	* @param recursive descend into matched folders (false when listing with a '/' delimiter)
+	* @param pageSize maximum number of entries in the page
+	* @param continuationToken key of the last entry of the previous page or null for the first page
+	*/
+	ListingPage listPage(T root, boolean recursive, int pageSize, String continuationToken) {
+		List<CloudFile> files = []
+		String lastKey = null
+		Deque<Iterator<T>> stack = new ArrayDeque<Iterator<T>>()
+		stack.push(sortedChildren(root))
+		while(!stack.isEmpty()) {
+			Iterator<T> siblings = stack.peek()
+			if(!siblings.hasNext()) {
+				stack.pop()
+				continue
+			}
+			T entry = siblings.next()
+			String key = getKey(entry)
+			if(!matches(key)) {
+				continue
+			}
+			boolean pending = continuationToken == null || compareKeys(key, continuationToken) > 0
+			if(pending) {
+				if(files.size() >= pageSize) {
+					return new ListingPage(files: files, continuationToken: lastKey)
+				}
+				files << toCloudFile(entry, key)
+				lastKey = key
+			}
+			//folders before the token are skipped entirely unless the token is the folder itself or within it
+			if(recursive && isFolder(entry) && (pending || continuationToken == key || continuationToken.startsWith(key + '/'))) {
+				stack.push(sortedChildren(entry))
+			}
+		}
+		return new ListingPage(files: files)
+	}
+
+	private Iterator<T> sortedChildren(T folder) {
+		List<T> children = new ArrayList<T>(listChildren(folder) ?: Collections.<T>emptyList())
+		children.sort { T a, T b -> compareKeys(getKey(a), getKey(b)) }
+		return children.iterator()
+	}
+
+	/**
+	* Orders keys by path segment so a folder sorts directly before its contents.
+	*/
+	static int compareKeys(String a, String b) {
+		String[] aSegments = a.split('/')
+		String[] bSegments = b.split('/')
+		int length = Math.min(aSegments.length, bSegments.length)
+		for(int i = 0; i < length; i++) {
+			int result = aSegments[i] <=> bSegments[i]
+			if(result != 0) {
+				return result
+			}
+		}
+		return aSegments.length <=> bSegments.length
+	}
+}
@@ -0,0 +1,127 @@
+package com.bertramlabs.plugins.karman
+
+import com.bertramlabs.plugins.karman.local.LocalDirectory
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class DeleteResultSpec extends Specification {
+
+    File baseDir
+    StorageProvider provider
+
+    def setup() {
+        baseDir = File.createTempDir()
+        provider = StorageProvider.create(provider: 'local', basePath: baseDir.path)
+        ['keep.txt', 'logs/1.log', 'logs/2.log', 'logs/old/3.log', 'logs2/x.txt'].each { String path ->
+            File file = new File(baseDir, "d/${path}")
+            file.parentFile.mkdirs()
+            file.text = path
+        }
+        50.times {
+            File file = new File(baseDir, "d/bulk/${it}.dat")
+            file.parentFile.mkdirs()
+            file.text = 'x'
+        }
+    }
+
+    def cleanup() {
+        baseDir.deleteDir()
+    }
+
+    @Unroll
+    def "deleteFiles with a concurrency of #concurrency counts every deleted key"() {
+        when:
+        DeleteResult result = provider['d'].deleteFiles((0..<50).collect { "bulk/${it}.dat".toString() }, [concurrency: concurrency])
+
+        then:
+        result.success
+        result.deletedCount == 50
+        result.failures.isEmpty()
+        !new File(baseDir, 'd/bulk').exists()
+        new File(baseDir, 'd/keep.txt').exists()
+
+        where:
+        concurrency << [1, 8]
+    }
+
+    def "deletePrefix only deletes files below the prefix"() {
+        when:
+        DeleteResult result = provider['d'].deletePrefix('logs/')
+
+        then:
+        result.success
+        result.deletedCount == 3
+        !new File(baseDir, 'd/logs').exists()
+        new File(baseDir, 'd/logs2/x.txt').exists()
+        new File(baseDir, 'd/keep.txt').exists()
+    }
+
+    def "deletePrefix of an unknown prefix deletes nothing"() {
+        expect:
+        provider['d'].deletePrefix('missing/').deletedCount == 0
+    }
+
+    @Unroll
+    def "a failed batch is recorded per key and the other batches still run with a concurrency of #concurrency"() {
+        given:
+        BatchDirectory directory = new BatchDirectory(name: 'd', provider: provider, failingKey: 'bulk/7.dat')
+
+        when:
+        DeleteResult result = directory.deleteFiles((0..<50).collect { "bulk/${it}.dat".toString() }, [concurrency: concurrency])
+
+        then:
+        !result.success
+        result.deletedCount == 47
+        result.failures == ['bulk/6.dat': 'batch failed', 'bulk/7.dat': 'batch failed', 'bulk/8.dat': 'batch failed']
+        directory.batches.every { it.size() <= 3 }
+        directory.batches.sum { it.size() } == 50
+        new File(baseDir, 'd/bulk/7.dat').exists()
+        !new File(baseDir, 'd/bulk/49.dat').exists()
+
+        where:
+        concurrency << [1, 4]
+    }
+
+    def "recording is safe from concurrent batches"() {
+        given:
+        DeleteResult result = new DeleteResult()
+
+        when:
+        List<Thread> threads = (0..<8).collect { int thread ->
+            Thread.start {
+                1000.times {
+                    result.deleted("${thread}/${it}".toString())
+                    if(it % 100 == 0) {
+                        result.failed("${thread}/${it}/failed".toString(), 'failed')
+                    }
+                }
+            }
+        }
+        threads*.join()
+
+        then:
+        result.deletedCount == 8000
+        result.failures.size() == 80
+        !result.success
+    }
+}
+
+/**
+ * Local directory deleting in batches of three and failing the whole batch that holds the failing key
+ */
+class BatchDirectory extends LocalDirectory {
+    String failingKey
+    List<List<String>> batches = Collections.synchronizedList([])
+
+    protected Integer getDeleteBatchSize() {
+        return 3
+    }
+
+    protected void deleteBatch(List<String> keys, DeleteResult result) {
+        batches << new ArrayList<String>(keys)
+        if(keys.contains(failingKey)) {
+            throw new IOException('batch failed')
+        }
+        super.deleteBatch(keys, result)
+    }
+}
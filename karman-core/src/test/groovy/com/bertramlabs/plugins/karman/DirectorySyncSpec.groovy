@@ -0,0 +1,190 @@
+package com.bertramlabs.plugins.karman
+
+import com.bertramlabs.plugins.karman.DirectorySync.FileState
+import com.bertramlabs.plugins.karman.local.LocalDirectory
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class DirectorySyncSpec extends Specification {
+
+    File sourceDir
+    File targetDir
+    StorageProvider sourceProvider
+    StorageProvider targetProvider
+
+    def setup() {
+        sourceDir = File.createTempDir()
+        targetDir = File.createTempDir()
+        sourceProvider = StorageProvider.create(provider: 'local', basePath: sourceDir.path)
+        targetProvider = StorageProvider.create(provider: 'local', basePath: targetDir.path)
+        20.times {
+            File file = new File(sourceDir, "data/in/${it % 4}/f${it}.txt")
+            file.parentFile.mkdirs()
+            file.text = "content ${it}"
+        }
+        new File(sourceDir, 'data/other.txt').text = 'other'
+    }
+
+    def cleanup() {
+        sourceDir.deleteDir()
+        targetDir.deleteDir()
+    }
+
+    @Unroll
+    def "a sync with a concurrency of #concurrency copies the prefix and then skips unchanged files"() {
+        given:
+        List<SyncResult> progress = []
+
+        when:
+        SyncResult first = sync(concurrency: concurrency, onProgress: { SyncResult result -> progress << result })
+        SyncResult second = sync(concurrency: concurrency)
+
+        then:
+        first.success
+        first.filesListed == 20
+        first.filesCopied == 20
+        first.bytesCopied == (0..<20).sum { "content ${it}".length() }
+        new File(targetDir, 'mirror/copy/3/f7.txt').text == 'content 7'
+        !new File(targetDir, 'mirror/other.txt').exists()
+        progress.last().is(first)
+
+        second.filesCopied == 0
+        second.filesSkipped == 20
+
+        where:
+        concurrency << [1, 8]
+    }
+
+    def "changed files are copied and extraneous target files below the prefix deleted"() {
+        given:
+        sync()
+        new File(sourceDir, 'data/in/3/f3.txt').text = 'changed content'
+        File touched = new File(sourceDir, 'data/in/0/f4.txt')
+        touched.setLastModified(System.currentTimeMillis() + 100000l)
+        new File(targetDir, 'mirror/copy/stray.txt').text = 'stray'
+        new File(targetDir, 'mirror/unrelated.txt').text = 'unrelated'
+
+        when:
+        SyncResult result = sync(delete: true)
+
+        then:
+        result.success
+        result.filesCopied == 2
+        result.filesSkipped == 18
+        result.filesDeleted == 1
+        new File(targetDir, 'mirror/copy/3/f3.txt').text == 'changed content'
+        !new File(targetDir, 'mirror/copy/stray.txt').exists()
+        new File(targetDir, 'mirror/unrelated.txt').exists()
+    }
+
+    def "a dry run only counts what it would copy and delete"() {
+        given:
+        new File(targetDir, 'mirror/copy').mkdirs()
+        new File(targetDir, 'mirror/copy/stray.txt').text = 'stray'
+
+        when:
+        SyncResult result = sync(dryRun: true, delete: true)
+
+        then:
+        result.filesCopied == 20
+        result.filesDeleted == 1
+        new File(targetDir, 'mirror/copy/stray.txt').exists()
+        !new File(targetDir, 'mirror/copy/0').exists()
+    }
+
+    def "a failed copy is reported without stopping the others"() {
+        given:
+        new File(targetDir, 'mirror/copy').mkdirs()
+        new File(targetDir, 'mirror/copy/1').text = 'blocks the folder'
+
+        when:
+        SyncResult result = sync()
+
+        then:
+        !result.success
+        result.failures.keySet() == (0..<20).findAll { it % 4 == 1 }.collect { "in/1/f${it}.txt".toString() } as Set
+        result.filesCopied == 15
+    }
+
+    def "listings in key order are merged without holding the target in memory"() {
+        given:
+        sync()
+        new File(targetDir, 'mirror/copy/2/stray.txt').text = 'stray'
+        DirectorySync directorySync = new DirectorySync(sourceProvider['data'], targetProvider['mirror'], [prefix: 'in/', targetPrefix: 'copy/', concurrency: 1, delete: true])
+        int maxPending = 0
+        directorySync.progressInterval = 0
+        directorySync.onProgress = { SyncResult progress ->
+            maxPending = Math.max(maxPending, directorySync.pendingTargets.size())
+        }
+
+        when:
+        SyncResult result = directorySync.sync()
+
+        then:
+        result.filesSkipped == 20
+        result.filesDeleted == 1
+        maxPending <= 1
+        directorySync.targetSorted
+    }
+
+    def "a target listed in another order than the source never loses a source file"() {
+        given:
+        ['a.txt', 'a/x.txt', 'b.txt'].each { String path ->
+            File file = new File(sourceDir, "ordered/${path}")
+            file.parentFile.mkdirs()
+            file.text = path
+        }
+        sourceProvider['ordered'].syncTo(targetProvider['mirror'])
+        new File(targetDir, 'mirror/stray.txt').text = 'stray'
+        DirectorySync directorySync = new DirectorySync(new KeyOrderDirectory(name: 'ordered', provider: sourceProvider), targetProvider['mirror'], [delete: true, concurrency: 1])
+
+        when:
+        SyncResult result = directorySync.sync()
+
+        then:
+        !directorySync.targetSorted
+        result.success
+        result.filesDeleted == 1
+        ['a.txt', 'a/x.txt', 'b.txt'].every { new File(targetDir, "mirror/${it}").text == it }
+        !new File(targetDir, 'mirror/stray.txt').exists()
+    }
+
+    @Unroll
+    def "a target of #targetState is up to date with a source of #sourceState: #upToDate"() {
+        given:
+        DirectorySync directorySync = new DirectorySync(sourceProvider['data'], targetProvider['mirror'], [sizeOnly: sizeOnly])
+
+        expect:
+        directorySync.isUpToDate(new FileState(*sourceState), targetState == null ? null : new FileState(*targetState)) == upToDate
+
+        where:
+        sourceState        | targetState        | sizeOnly | upToDate
+        [10l, 100l, null]  | null               | false    | false
+        [10l, 100l, null]  | [10l, 100l, null]  | false    | true
+        [10l, 100l, null]  | [10l, 200l, null]  | false    | true
+        [10l, 200l, null]  | [10l, 100l, null]  | false    | false
+        [10l, 100l, null]  | [11l, 200l, null]  | false    | false
+        [-1l, 100l, null]  | [-1l, 200l, null]  | false    | false
+        [10l, -1l, null]   | [10l, 200l, null]  | false    | false
+        [10l, 100l, null]  | [10l, -1l, null]   | false    | false
+        [10l, -1l, 'abc']  | [10l, -1l, 'abc']  | false    | true
+        [10l, 200l, 'abc'] | [10l, 100l, 'abc'] | false    | true
+        [10l, 200l, 'abc'] | [10l, 100l, 'def'] | false    | false
+        [10l, 200l, null]  | [10l, 100l, null]  | true     | true
+        [10l, 200l, null]  | [11l, 100l, null]  | true     | false
+    }
+
+    private SyncResult sync(Map options = [:]) {
+        return sourceProvider['data'].syncTo(targetProvider['mirror'], [prefix: 'in/', targetPrefix: 'copy/'] + options)
+    }
+}
+
+/**
+ * Local directory listed in plain key order, like S3, instead of the depth first order of the local provider
+ */
+class KeyOrderDirectory extends LocalDirectory {
+
+    ListingPage listFilesPage(Map options = [:]) {
+        return new ListingPage(files: listFiles(prefix: options.prefix).sort { CloudFile file -> file.name })
+    }
+}
@@ -0,0 +1,99 @@
+package com.bertramlabs.plugins.karman
+
+import com.bertramlabs.plugins.karman.local.LocalDirectory
+import spock.lang.Specification
+
+import java.util.stream.Collectors
+
+class ListingIteratorSpec extends Specification {
+
+    File baseDir
+    StorageProvider provider
+
+    def setup() {
+        baseDir = File.createTempDir()
+        ['a.txt', 'b.log', 'logs/1.log', 'logs/2.txt', 'logs/old/3.log', 'logs2/x.txt'].each { String path ->
+            File file = new File(baseDir, "d/${path}")
+            file.parentFile.mkdirs()
+            file.text = path
+        }
+        new File(baseDir, 'd/z').mkdirs()
+        provider = StorageProvider.create(provider: 'local', basePath: baseDir.path)
+    }
+
+    def cleanup() {
+        baseDir.deleteDir()
+    }
+
+    def "iterating small pages returns the same files as listFiles"() {
+        expect:
+        provider['d'].iterateFiles(options + [pageSize: 2]).collect { it.name }.sort() == provider['d'].listFiles(options).collect { it.name }.sort()
+
+        where:
+        options << [[:], [delimiter: '/'], [prefix: 'logs/'], [prefix: 'logs/', delimiter: '/'], [excludes: ['glob:logs/**']]]
+    }
+
+    def "a walk resumes from the continuation token"() {
+        given:
+        Iterator<CloudFile> first = provider['d'].iterateFiles(pageSize: 3)
+        List<String> names = (1..3).collect { first.next().name }
+        String token = ((ListingIterator) first).continuationToken
+
+        when:
+        provider['d'].iterateFiles(pageSize: 3, continuationToken: token).each { names << it.name }
+
+        then:
+        token != null
+        names.size() == provider['d'].listFiles().size()
+        names as Set == provider['d'].listFiles().collect { it.name } as Set
+    }
+
+    def "the iterator throws once exhausted"() {
+        given:
+        Iterator<CloudFile> files = provider['d'].iterateFiles(prefix: 'logs2/', pageSize: 1)
+
+        expect:
+        files.next().name == 'logs2/x.txt'
+        !files.hasNext()
+        ((ListingIterator) files).continuationToken == null
+
+        when:
+        files.next()
+
+        then:
+        thrown(NoSuchElementException)
+    }
+
+    def "empty pages are skipped until the last page"() {
+        given:
+        List<ListingPage> pages = [
+            new ListingPage(files: [], continuationToken: '1'),
+            new ListingPage(files: [provider['d']['a.txt']], continuationToken: '2'),
+            new ListingPage(files: [], continuationToken: '3'),
+            new ListingPage(files: [], continuationToken: null)
+        ]
+        PagedDirectory directory = new PagedDirectory(name: 'd', provider: provider, pages: pages)
+
+        expect:
+        directory.iterateFiles().collect { it.name } == ['a.txt']
+        directory.tokens == [null, '1', '2', '3']
+    }
+
+    def "streamFiles streams the paginated listing"() {
+        expect:
+        provider['d'].streamFiles(prefix: 'logs/', delimiter: '/', pageSize: 2).map { it.name }.collect(Collectors.toList()) as Set == ['logs/old', 'logs/1.log', 'logs/2.txt'] as Set
+    }
+}
+
+/**
+ * Directory returning canned pages and recording the tokens it was asked for
+ */
+class PagedDirectory extends LocalDirectory {
+    List<ListingPage> pages
+    List<String> tokens = []
+
+    ListingPage listFilesPage(Map options = [:]) {
+        tokens << options.continuationToken
+        return pages[tokens.size() - 1]
+    }
+}
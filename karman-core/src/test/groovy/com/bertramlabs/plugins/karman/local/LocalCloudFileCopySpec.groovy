@@ -0,0 +1,124 @@
+package com.bertramlabs.plugins.karman.local
+
+import com.bertramlabs.plugins.karman.CloudFile
+import com.bertramlabs.plugins.karman.StorageProvider
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class LocalCloudFileCopySpec extends Specification {
+
+    File baseDir
+    StorageProvider provider
+
+    def setup() {
+        baseDir = File.createTempDir()
+        provider = StorageProvider.create(provider: 'local', basePath: baseDir.path)
+        provider['d']['report.pdf'].bytes = 'report content'.bytes
+    }
+
+    def cleanup() {
+        baseDir.deleteDir()
+    }
+
+    def "a local copy creates the target folders and replaces longer content"() {
+        given:
+        File existing = new File(baseDir, 'archive/2024/report.pdf')
+        existing.parentFile.mkdirs()
+        existing.text = 'a much longer previous version of the report'
+
+        when:
+        CloudFile target = provider['d']['report.pdf'].copyTo(provider['archive']['2024/report.pdf'])
+
+        then:
+        target.bytes == 'report content'.bytes
+        existing.text == 'report content'
+    }
+
+    def "a file copied onto itself keeps its content"() {
+        when:
+        provider['d']['report.pdf'].copyTo(provider['d']['report.pdf'])
+
+        then:
+        provider['d']['report.pdf'].text == 'report content'
+    }
+
+    def "a copy to another provider's folder is a local copy"() {
+        given:
+        File otherBase = File.createTempDir()
+        StorageProvider otherProvider = StorageProvider.create(provider: 'local', basePath: otherBase.path)
+
+        when:
+        provider['d']['report.pdf'].copyTo(otherProvider['backup']['report.pdf'])
+
+        then:
+        new File(otherBase, 'backup/report.pdf').text == 'report content'
+
+        cleanup:
+        otherBase.deleteDir()
+    }
+
+    @Unroll
+    def "copying a missing file fails for #copyType copies"() {
+        given:
+        LocalDirectory directory = (LocalDirectory) provider['d']
+        RecordingLocalCloudFile source = new RecordingLocalCloudFile(provider: provider, parent: directory, name: 'missing.txt', nativeCopies: nativeCopies)
+
+        when:
+        source.copyTo(provider['d']['copy.txt'])
+
+        then:
+        thrown(FileNotFoundException)
+        !new File(baseDir, 'd/copy.txt').exists()
+
+        where:
+        copyType   | nativeCopies
+        'native'   | true
+        'streamed' | false
+    }
+
+    def "without a native copy the content, type and length are streamed and the target saved"() {
+        given:
+        LocalDirectory directory = (LocalDirectory) provider['d']
+        RecordingLocalCloudFile source = new RecordingLocalCloudFile(provider: provider, parent: directory, name: 'report.pdf', nativeCopies: false)
+        RecordingLocalCloudFile target = new RecordingLocalCloudFile(provider: provider, parent: directory, name: 'streamed.pdf')
+
+        when:
+        source.copyTo(target)
+
+        then:
+        target.text == 'report content'
+        target.recordedContentType == 'application/pdf'
+        target.recordedContentLength == 14l
+        target.saves == 1
+    }
+}
+
+/**
+ * Local file whose native copy can be turned off and that records what a streamed copy sets on it.
+ */
+class RecordingLocalCloudFile extends LocalCloudFile {
+    boolean nativeCopies = true
+    String recordedContentType
+    Long recordedContentLength
+    int saves = 0
+
+    @Override
+    protected Boolean nativeCopyTo(CloudFile target) {
+        return nativeCopies ? super.nativeCopyTo(target) : false
+    }
+
+    @Override
+    void setContentType(String contentType) {
+        recordedContentType = contentType
+    }
+
+    @Override
+    void setContentLength(Long length) {
+        recordedContentLength = length
+    }
+
+    @Override
+    def save(acl = '') {
+        saves++
+    }
+}
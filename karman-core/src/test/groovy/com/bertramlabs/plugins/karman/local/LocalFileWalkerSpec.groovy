@@ -0,0 +1,74 @@
+package com.bertramlabs.plugins.karman.local
+
+import com.bertramlabs.plugins.karman.StorageProvider
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.file.Files
+
+class LocalFileWalkerSpec extends Specification {
+
+    File baseDir
+
+    def setup() {
+        baseDir = File.createTempDir()
+        ['a.txt', 'b.log', 'logs/1.log', 'logs/2.txt', 'logs/old/3.log', 'logs2/x.txt'].each { String path ->
+            File file = new File(baseDir, "d/${path}")
+            file.parentFile.mkdirs()
+            file.text = path
+        }
+        new File(baseDir, 'd/z').mkdirs()
+    }
+
+    def cleanup() {
+        baseDir.deleteDir()
+    }
+
+    @Unroll
+    def "listFiles with #options and a list concurrency of #concurrency keeps the original order"() {
+        given:
+        StorageProvider provider = StorageProvider.create(provider: 'local', basePath: baseDir.path, listConcurrency: concurrency)
+
+        expect:
+        provider['d'].listFiles(options).collect { it.name } == expected
+
+        where:
+        [options, expected, concurrency] << [
+            [[:], ['logs', 'logs/old', 'logs2', 'z', 'a.txt', 'b.log', 'logs/1.log', 'logs/2.txt', 'logs/old/3.log', 'logs2/x.txt']],
+            [[delimiter: '/'], ['logs', 'logs2', 'z', 'a.txt', 'b.log']],
+            [[prefix: 'logs'], ['logs', 'logs2']],
+            [[prefix: 'logs/'], ['logs/old', 'logs/1.log', 'logs/2.txt', 'logs/old/3.log']],
+            [[prefix: 'logs/', delimiter: '/'], ['logs/old', 'logs/1.log', 'logs/2.txt']],
+            [[excludes: ['glob:logs/**']], ['logs', 'logs2', 'z', 'a.txt', 'b.log', 'logs2/x.txt']]
+        ].collectMany { List listing -> [1, 4].collect { listing + it } }
+    }
+
+    def "a parallel walk of a wide tree matches the serial walk"() {
+        given:
+        Random random = new Random(3)
+        200.times {
+            File file = new File(baseDir, "wide/f${random.nextInt(10)}/g${random.nextInt(10)}/${it}.dat")
+            file.parentFile.mkdirs()
+            file.text = 'x'
+        }
+        StorageProvider serial = StorageProvider.create(provider: 'local', basePath: baseDir.path, listConcurrency: 1)
+        StorageProvider parallel = StorageProvider.create(provider: 'local', basePath: baseDir.path, listConcurrency: 4)
+
+        expect:
+        parallel['wide'].listFiles().collect { it.name } == serial['wide'].listFiles().collect { it.name }
+        serial['wide'].listFiles().count { !it.name.endsWith('.dat') } + 200 == serial['wide'].listFiles().size()
+    }
+
+    def "a symbolic link back to a parent folder is not followed forever"() {
+        given:
+        Files.createSymbolicLink(new File(baseDir, 'd/logs/old/loop').toPath(), new File(baseDir, 'd/logs').toPath())
+        StorageProvider provider = StorageProvider.create(provider: 'local', basePath: baseDir.path, listConcurrency: 4)
+
+        when:
+        List<String> names = provider['d'].listFiles(prefix: 'logs/').collect { it.name }
+
+        then:
+        names.contains('logs/old/loop')
+        names.every { it.count('loop') <= 1 }
+    }
+}
@@ -0,0 +1,139 @@
+package com.bertramlabs.plugins.karman.util
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+class BoundedUploadPipelineSpec extends Specification {
+
+    def "results come back in submission order with bounded buffers and workers"() {
+        given:
+        BoundedUploadPipeline<Integer> pipeline = new BoundedUploadPipeline<Integer>('karman-spec', 3, 4, 16)
+        Set<byte[]> buffers = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>())
+        AtomicInteger running = new AtomicInteger()
+        AtomicInteger maxRunning = new AtomicInteger()
+
+        when:
+        50.times { int n ->
+            byte[] buffer = pipeline.takeBuffer()
+            buffers << buffer
+            pipeline.submit(buffer, {
+                int current = running.incrementAndGet()
+                synchronized(maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current))
+                }
+                Thread.sleep(2)
+                running.decrementAndGet()
+                return n
+            } as Callable<Integer>)
+        }
+        List<Integer> results = pipeline.awaitAll()
+
+        then:
+        results == (0..<50).toList()
+        buffers.size() <= 4
+        maxRunning.get() <= 3
+        pipeline.pendingCount == 0
+
+        cleanup:
+        pipeline.close()
+    }
+
+    def "the first failure is thrown by takeBuffer"() {
+        given:
+        BoundedUploadPipeline<Integer> pipeline = new BoundedUploadPipeline<Integer>('karman-spec', 2, 3, 16)
+        int submitted = 0
+
+        when:
+        1000.times { int n ->
+            byte[] buffer = pipeline.takeBuffer()
+            pipeline.submit(buffer, {
+                if(n == 3) {
+                    throw new IOException('boom')
+                }
+                Thread.sleep(2)
+                return n
+            } as Callable<Integer>)
+            submitted++
+        }
+
+        then:
+        IOException e = thrown()
+        e.message == 'boom'
+        submitted < 1000
+
+        cleanup:
+        pipeline.close()
+    }
+
+    def "checked failures are wrapped in an IOException"() {
+        given:
+        BoundedUploadPipeline<Integer> pipeline = new BoundedUploadPipeline<Integer>('karman-spec', 1)
+        pipeline.submit({ throw new Exception('checked') } as Callable<Integer>)
+
+        when:
+        pipeline.awaitAll()
+
+        then:
+        IOException e = thrown()
+        e.cause.message == 'checked'
+
+        cleanup:
+        pipeline.close()
+    }
+
+    def "drainCompleted stops at the first task still running"() {
+        given:
+        BoundedUploadPipeline<Integer> pipeline = new BoundedUploadPipeline<Integer>('karman-spec', 2)
+        CountDownLatch release = new CountDownLatch(1)
+        pipeline.submit({ 1 } as Callable<Integer>)
+        Thread.sleep(100)
+        pipeline.submit({ release.await(); 2 } as Callable<Integer>)
+        pipeline.submit({ 3 } as Callable<Integer>)
+
+        expect:
+        pipeline.drainCompleted() == [1]
+        pipeline.pendingCount == 2
+
+        when:
+        release.countDown()
+
+        then:
+        pipeline.awaitAll() == [2, 3]
+
+        cleanup:
+        pipeline.close()
+    }
+
+    def "a pipeline without buffers refuses takeBuffer"() {
+        given:
+        BoundedUploadPipeline<Integer> pipeline = new BoundedUploadPipeline<Integer>('karman-spec', 1)
+
+        when:
+        pipeline.takeBuffer()
+
+        then:
+        thrown(IllegalStateException)
+
+        cleanup:
+        pipeline.close()
+    }
+
+    def "worker threads are named daemons"() {
+        given:
+        BoundedUploadPipeline<Thread> pipeline = new BoundedUploadPipeline<Thread>('karman-spec', 1)
+        pipeline.submit({ Thread.currentThread() } as Callable<Thread>)
+
+        when:
+        Thread worker = pipeline.awaitNext()
+
+        then:
+        worker.daemon
+        worker.name ==~ /karman-spec-\d+/
+
+        cleanup:
+        pipeline.close()
+    }
+}
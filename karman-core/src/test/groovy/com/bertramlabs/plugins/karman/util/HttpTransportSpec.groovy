@@ -0,0 +1,101 @@
+package com.bertramlabs.plugins.karman.util
+
+import com.sun.net.httpserver.HttpServer
+import org.apache.http.client.methods.CloseableHttpResponse
+import org.apache.http.client.methods.HttpGet
+import org.apache.http.conn.ConnectionPoolTimeoutException
+import org.apache.http.conn.ssl.NoopHostnameVerifier
+import org.apache.http.util.EntityUtils
+import spock.lang.Specification
+
+import javax.net.ssl.SNIHostName
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLSocket
+
+class HttpTransportSpec extends Specification {
+
+    HttpServer server
+    HttpTransport transport
+
+    def setup() {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        server.createContext('/') { exchange ->
+            byte[] body = 'ok'.bytes
+            exchange.sendResponseHeaders(200, body.length)
+            exchange.responseBody.write(body)
+            exchange.close()
+        }
+        server.start()
+    }
+
+    def cleanup() {
+        transport?.close()
+        server.stop(0)
+    }
+
+    private String getUrl() {
+        return "http://127.0.0.1:${server.address.port}/file"
+    }
+
+    def "a request fails once it waited connectionRequestTimeout for a pooled connection"() {
+        given:
+        transport = new HttpTransport(maxConnections: 1, maxConnectionsPerRoute: 1, connectionRequestTimeout: 200)
+        CloseableHttpResponse leased = transport.client.execute(new HttpGet(url))
+
+        when:
+        long started = System.nanoTime()
+        transport.client.execute(new HttpGet(url))
+
+        then:
+        thrown(ConnectionPoolTimeoutException)
+        (System.nanoTime() - started) / 1000000 >= 150
+
+        cleanup:
+        leased?.close()
+    }
+
+    def "a released connection is handed to the waiting request"() {
+        given:
+        transport = new HttpTransport(maxConnections: 1, maxConnectionsPerRoute: 1, connectionRequestTimeout: 200)
+        CloseableHttpResponse first = transport.client.execute(new HttpGet(url))
+        EntityUtils.consume(first.entity)
+        first.close()
+
+        when:
+        CloseableHttpResponse second = transport.client.execute(new HttpGet(url))
+
+        then:
+        EntityUtils.toString(second.entity) == 'ok'
+        transport.poolStats.max == 1
+
+        cleanup:
+        second?.close()
+    }
+
+    def "the connection request timeout defaults to a finite value"() {
+        expect:
+        new HttpTransport().connectionRequestTimeout == 30000
+    }
+
+    def "https sockets enable the supported configured protocols and send the host name for SNI"() {
+        given:
+        def factory = new HttpTransport.TlsSocketFactory(SSLContext.getDefault(), NoopHostnameVerifier.INSTANCE, ['SSLv2', 'TLSv1.2', 'TLSv1.3'])
+        Socket plain = new Socket(InetAddress.getLoopbackAddress(), server.address.port)
+        SSLSocket socket = (SSLSocket) SSLContext.getDefault().socketFactory.createSocket(plain, host, server.address.port, true)
+
+        when:
+        factory.prepareSocket(socket)
+
+        then:
+        socket.enabledProtocols as List == expectedProtocols
+        socket.SSLParameters.serverNames == expectedServerNames
+
+        cleanup:
+        socket?.close()
+
+        where:
+        host                   | expectedProtocols      | expectedServerNames
+        'account.example.com'  | ['TLSv1.2', 'TLSv1.3'] | [new SNIHostName('account.example.com')]
+        '127.0.0.1'            | ['TLSv1.2', 'TLSv1.3'] | null
+    }
+}
@@ -0,0 +1,127 @@
+package com.bertramlabs.plugins.karman.util
+
+import com.bertramlabs.plugins.karman.local.LocalStorageProvider
+import com.bertramlabs.plugins.karman.metrics.StorageMetrics
+import com.sun.net.httpserver.HttpServer
+import org.apache.http.client.methods.HttpGet
+import org.apache.http.client.methods.HttpHead
+import org.apache.http.client.methods.HttpPut
+import org.apache.http.conn.HttpHostConnectException
+import org.apache.http.entity.ByteArrayEntity
+import org.apache.http.util.EntityUtils
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class MeteredHttpClientSpec extends Specification {
+
+    HttpServer server
+    HttpTransport transport
+    StorageMetrics metrics = Mock()
+    AtomicInteger dropped = new AtomicInteger()
+
+    def setup() {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        server.createContext('/') { exchange ->
+            exchange.requestBody.bytes
+            if(exchange.requestURI.path == '/drop' && dropped.getAndIncrement() == 0) {
+                //closing without a response makes the client retry the idempotent request
+                exchange.close()
+                return
+            }
+            byte[] body = 'abcdef'.bytes
+            exchange.sendResponseHeaders(200, exchange.requestMethod == 'HEAD' ? -1 : body.length)
+            if(exchange.requestMethod != 'HEAD') {
+                exchange.responseBody.write(body)
+            }
+            exchange.close()
+        }
+        server.start()
+        def provider = new LocalStorageProvider(basePath: File.createTempDir().absolutePath)
+        provider.metrics = metrics
+        transport = new HttpTransport(provider: provider)
+    }
+
+    def cleanup() {
+        transport?.close()
+        server.stop(0)
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:${server.address.port}${path}"
+    }
+
+    def "a GET is timed and its response body bytes are counted as they are read"() {
+        given:
+        long read = 0
+
+        when:
+        def response = transport.client.execute(new HttpGet(url('/file')))
+
+        then:
+        1 * metrics.operationStarted('local', 'GET')
+        1 * metrics.operationFinished('local', 'GET', { it > 0 }, null)
+        0 * metrics.bytesRead(*_)
+
+        when:
+        String body = EntityUtils.toString(response.entity)
+        response.close()
+
+        then:
+        body == 'abcdef'
+        (1.._) * metrics.bytesRead('local', 'GET', _) >> { args -> read += args[2] }
+        read == 6
+        0 * metrics.operationStarted(*_)
+    }
+
+    def "a PUT counts the request body bytes written"() {
+        when:
+        def response = transport.client.execute(new HttpPut(url('/file')).with { it.entity = new ByteArrayEntity(new byte[1000]); it })
+        EntityUtils.consume(response.entity)
+        response.close()
+
+        then:
+        1 * metrics.operationStarted('local', 'PUT')
+        1 * metrics.bytesWritten('local', 'PUT', 1000)
+        1 * metrics.operationFinished('local', 'PUT', _, null)
+    }
+
+    def "a HEAD response is not counted as read"() {
+        when:
+        def response = transport.client.execute(new HttpHead(url('/file')))
+        response.close()
+
+        then:
+        1 * metrics.operationStarted('local', 'HEAD')
+        1 * metrics.operationFinished('local', 'HEAD', _, null)
+        0 * metrics.bytesRead(*_)
+    }
+
+    def "a retried request reports the retry and a single operation"() {
+        when:
+        def response = transport.client.execute(new HttpGet(url('/drop')))
+        String body = EntityUtils.toString(response.entity)
+        response.close()
+
+        then:
+        body == 'abcdef'
+        dropped.get() == 2
+        1 * metrics.retried('local', 'GET')
+        1 * metrics.operationStarted('local', 'GET')
+        1 * metrics.operationFinished('local', 'GET', _, null)
+    }
+
+    def "a request failing with an exception is reported with its error"() {
+        given:
+        int port = server.address.port
+        server.stop(0)
+
+        when:
+        transport.client.execute(new HttpGet("http://127.0.0.1:${port}/file"))
+
+        then:
+        thrown(HttpHostConnectException)
+        1 * metrics.operationStarted('local', 'GET')
+        1 * metrics.operationFinished('local', 'GET', _, { it instanceof HttpHostConnectException })
+    }
+}
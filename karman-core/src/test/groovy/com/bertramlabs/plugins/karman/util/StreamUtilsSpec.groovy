@@ -0,0 +1,82 @@
+package com.bertramlabs.plugins.karman.util
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class StreamUtilsSpec extends Specification {
+
+    def "readFully fills the buffer from a stream returning short reads"() {
+        given:
+        byte[] source = new byte[1000]
+        new Random(1).nextBytes(source)
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(source)) {
+            @Override
+            int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7))
+            }
+        }
+        byte[] buffer = new byte[600]
+
+        expect:
+        StreamUtils.readFully(trickle, buffer) == 600
+        buffer == Arrays.copyOf(source, 600)
+        StreamUtils.readFully(trickle, buffer, 500) == 400
+        Arrays.copyOf(buffer, 400) == Arrays.copyOfRange(source, 600, 1000)
+        StreamUtils.readFully(trickle, buffer) == 0
+    }
+
+    @Unroll
+    def "isZeroFilled detects a byte at #offset in a #length byte region"() {
+        given:
+        byte[] buffer = new byte[length + 16]
+        buffer[offset] = 1
+
+        expect:
+        !StreamUtils.isZeroFilled(buffer, 8, length)
+        StreamUtils.isZeroFilled(buffer, 0, 8) == (offset >= 8)
+
+        where:
+        length | offset
+        3      | 10
+        64     | 8
+        64     | 71
+        100    | 40
+        100    | 107
+        1000   | 1007
+    }
+
+    def "isZeroFilled ignores data outside the region"() {
+        given:
+        byte[] buffer = new byte[100]
+        buffer[9] = 1
+        buffer[50] = 1
+
+        expect:
+        StreamUtils.isZeroFilled(buffer, 10, 40)
+        StreamUtils.isZeroFilled(buffer, 51, 49)
+        StreamUtils.isZeroFilled(buffer, 0, 0)
+    }
+
+    @Unroll
+    def "alignToPage pads #count bytes to #aligned"() {
+        given:
+        byte[] buffer = new byte[1024]
+        Arrays.fill(buffer, (byte) 1)
+
+        when:
+        int result = StreamUtils.alignToPage(buffer, count, 512)
+
+        then:
+        result == aligned
+        (count..<aligned).every { buffer[it] == (byte) 0 }
+        aligned == 1024 || buffer[aligned] == (byte) 1
+
+        where:
+        count | aligned
+        0     | 0
+        1     | 512
+        512   | 512
+        513   | 1024
+        1000  | 1024
+    }
+}
@@ -0,0 +1,157 @@
+package com.bertramlabs.plugins.karman.differential;
+
+import com.bertramlabs.plugins.karman.util.StreamUtils;
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression codecs available for storing differential blocks.
+ * <p>
+ * The original {@code gzip} codec stores each block as a plain gzip stream. All other codecs, as well as blocks stored
+ * raw because they did not compress well enough, use a small frame: a one byte codec marker followed by a 4 byte
+ * uncompressed length and the encoded payload. Markers never collide with the gzip magic number so blocks written
+ * by any codec (including blocks of older linked files) can be decoded without consulting the manifest.
+ * </p>
+ */
+public enum BlockCodec {
+    GZIP("gzip", (byte) -1),
+    LZ4("lz4", (byte) 1),
+    ZSTD("zstd", (byte) 2),
+    NONE("none", (byte) 0);
+
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+    private static final int FRAME_HEADER_SIZE = 5;
+    private static final int ZSTD_LEVEL = 1;
+
+    private final String codecName;
+    private final byte marker;
+
+    BlockCodec(String codecName, byte marker) {
+        this.codecName = codecName;
+        this.marker = marker;
+    }
+
+    public String getCodecName() {
+        return codecName;
+    }
+
+    public static BlockCodec forName(String name) {
+        if(name == null) {
+            return GZIP;
+        }
+        for(BlockCodec codec : values()) {
+            if(codec.codecName.equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown differential block codec: " + name);
+    }
+
+    /**
+     * Encodes a raw block into the target buffer. If the block does not compress by at least {@code minCompressionRatio}
+     * (raw size / compressed size) it is stored raw instead.
+     * @param buffer raw block data
+     * @param length number of bytes of the block
+     * @param target the output buffer (reset by this method)
+     * @param minCompressionRatio minimum ratio required to keep the compressed form, 0 or less to always compress
+     */
+    public void encode(byte[] buffer, int length, ByteArrayOutputStream target, double minCompressionRatio) throws IOException {
+        target.reset();
+        switch(this) {
+            case NONE:
+                writeFrame(NONE.marker, length, buffer, length, target);
+                return;
+            case GZIP:
+                GZIPOutputStream gzip = new GZIPOutputStream(target);
+                gzip.write(buffer, 0, length);
+                gzip.finish();
+                break;
+            case LZ4:
+                LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+                byte[] lz4Bytes = new byte[compressor.maxCompressedLength(length)];
+                int lz4Length = compressor.compress(buffer, 0, length, lz4Bytes, 0, lz4Bytes.length);
+                writeFrame(LZ4.marker, length, lz4Bytes, lz4Length, target);
+                break;
+            case ZSTD:
+                byte[] zstdBytes = new byte[(int) Zstd.compressBound(length)];
+                long zstdLength = Zstd.compressByteArray(zstdBytes, 0, zstdBytes.length, buffer, 0, length, ZSTD_LEVEL);
+                if(Zstd.isError(zstdLength)) {
+                    throw new IOException("Error compressing block: " + Zstd.getErrorName(zstdLength));
+                }
+                writeFrame(ZSTD.marker, length, zstdBytes, (int) zstdLength, target);
+                break;
+        }
+        if(minCompressionRatio > 0 && target.size() > 0 && ((double) length / (double) target.size()) < minCompressionRatio) {
+            target.reset();
+            writeFrame(NONE.marker, length, buffer, length, target);
+        }
+    }
+
+    /**
+     * Opens the decoded content of a stored block, detecting the codec it was written with.
+     */
+    public static InputStream decode(InputStream storedBlock) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(storedBlock, 8192);
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if(first == GZIP_MAGIC_1 && second == GZIP_MAGIC_2) {
+            return new GZIPInputStream(in, 8192);
+        }
+        byte[] header = new byte[FRAME_HEADER_SIZE];
+        if(StreamUtils.readFully(in, header) < FRAME_HEADER_SIZE) {
+            in.close();
+            throw new IOException("Unexpected EOF reading block frame header");
+        }
+        int rawLength = ((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16) | ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+        if(header[0] == NONE.marker) {
+            return in;
+        }
+        byte[] payload;
+        try {
+            ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(rawLength);
+            byte[] chunk = new byte[8192];
+            int c;
+            while((c = in.read(chunk)) != -1) {
+                payloadBuffer.write(chunk, 0, c);
+            }
+            payload = payloadBuffer.toByteArray();
+        } finally {
+            in.close();
+        }
+        byte[] raw = new byte[rawLength];
+        if(header[0] == LZ4.marker) {
+            LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+            decompressor.decompress(payload, 0, raw, 0, rawLength);
+        } else if(header[0] == ZSTD.marker) {
+            long decoded = Zstd.decompressByteArray(raw, 0, rawLength, payload, 0, payload.length);
+            if(Zstd.isError(decoded)) {
+                throw new IOException("Error decompressing block: " + Zstd.getErrorName(decoded));
+            }
+        } else {
+            throw new IOException("Unknown differential block codec marker: " + header[0]);
+        }
+        return new ByteArrayInputStream(raw);
+    }
+
+    private static void writeFrame(byte marker, int rawLength, byte[] payload, int payloadLength, ByteArrayOutputStream target) {
+        target.write(marker);
+        target.write((rawLength >> 24) & 0xff);
+        target.write((rawLength >> 16) & 0xff);
+        target.write((rawLength >> 8) & 0xff);
+        target.write(rawLength & 0xff);
+        target.write(payload, 0, payloadLength);
+    }
+}
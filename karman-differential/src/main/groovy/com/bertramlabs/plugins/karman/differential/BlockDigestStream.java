@@ -1,6 +1,6 @@
 package com.bertramlabs.plugins.karman.differential;
 
-
+import com.bertramlabs.plugins.karman.util.StreamUtils;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
@@ -56,11 +56,29 @@ public class BlockDigestStream extends InputStream {
      *
      */
     public boolean lastBlockDifferent = true;
+    /**
+     * Whether the data returned by the last read was entirely zeros, so callers do not need to scan it again.
+     */
+    public boolean lastReadZeroFilled = false;
     private boolean zeroFilled = true;
+    //zero bytes of the current block not yet fed to the digest, zero filled blocks are never hashed
+    private long pendingZeroBytes = 0;
+    private static final byte[] ZERO_CHUNK = new byte[8192];
+
+    private void digestPendingZeros() {
+        while(pendingZeroBytes > 0) {
+            int chunk = (int) Math.min(pendingZeroBytes, ZERO_CHUNK.length);
+            shaDigest.update(ZERO_CHUNK, 0, chunk);
+            pendingZeroBytes -= chunk;
+        }
+    }
+
     @Override
     public int read() throws IOException {
         lastBlockDifferent=true;
+        digestPendingZeros();
         int c = sourceStream.read();
+        lastReadZeroFilled = c == 0;
         if(c>0) {
             zeroFilled = false;
         }
@@ -145,17 +163,17 @@ public class BlockDigestStream extends InputStream {
         }
         if(c > 0) {
             bytesRead += c;
-            if(bytesRead > blockSize) {
-                shaDigest.update(buffer, offset, c - (int) (bytesRead - blockSize));
+            int blockPart = bytesRead > blockSize ? c - (int) (bytesRead - blockSize) : c;
+            boolean readZeroFilled = StreamUtils.isZeroFilled(buffer, offset, c);
+            lastReadZeroFilled = readZeroFilled;
+            if(zeroFilled && readZeroFilled) {
+                //defer hashing until we know the block is not all zeros
+                pendingZeroBytes += blockPart;
             } else {
-                shaDigest.update(buffer, offset,c);
-            }
-            if(zeroFilled) {
-                for(int i = offset; i < offset+c; i++) {
-                    if(buffer[i] != 0) {
-                        zeroFilled = false;
-                        break;
-                    }
+                digestPendingZeros();
+                shaDigest.update(buffer, offset, blockPart);
+                if(zeroFilled && (blockPart == c || !StreamUtils.isZeroFilled(buffer, offset, blockPart))) {
+                    zeroFilled = false;
                 }
             }
 
@@ -207,9 +225,11 @@ public class BlockDigestStream extends InputStream {
                 currentBlock++;
                 bytesRead = bytesRead-blockSize;
                 shaDigest.reset();
+                pendingZeroBytes = 0;
                 zeroFilled=true;
                 if(bytesRead > 0) {
                     shaDigest.update(buffer, offset + c - (int) bytesRead, (int) bytesRead);
+                    zeroFilled = StreamUtils.isZeroFilled(buffer, offset + c - (int) bytesRead, (int) bytesRead);
                 }
                 blockData = new ManifestData.BlockData();
                 blockData.block = currentBlock;
@@ -219,8 +239,10 @@ public class BlockDigestStream extends InputStream {
                 blockData.zeroFilled = true;
                 blockData.hash = new byte[28];
             } else {
+                digestPendingZeros();
                 blockData.hash = shaDigest.digest();
             }
+            pendingZeroBytes = 0;
 
             blockData.blockSize = (int) bytesRead;
             manifestOutput.write(blockData.generateBytes());
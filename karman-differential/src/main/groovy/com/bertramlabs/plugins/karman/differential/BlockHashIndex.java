@@ -0,0 +1,97 @@
+package com.bertramlabs.plugins.karman.differential;
+
+import com.bertramlabs.plugins.karman.StorageProvider;
+import com.bertramlabs.plugins.karman.metrics.OperationTimer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Persistent on-disk index of block hashes already present in content addressed block stores.
+ * The index is an append-only text file with one {@code <store scope>/<hash>} key per line, the scope identifies the
+ * backing store (see {@link ContentBlockStore}) so one index file can safely be shared by several stores. It is
+ * loaded into memory on first use so lookups never touch the backing storage provider. Lookups are reported to the
+ * provider's metrics as {@code blockHashIndex.hit} and {@code blockHashIndex.miss}.
+ */
+public class BlockHashIndex {
+    private static final org.apache.commons.logging.Log log = org.apache.commons.logging.LogFactory.getLog(BlockHashIndex.class);
+    private final File indexFile;
+    private final StorageProvider provider;
+    private Set<String> keys = null;
+    private Writer writer = null;
+
+    public BlockHashIndex(File indexFile) {
+        this(indexFile, null);
+    }
+
+    /**
+     * @param provider the provider whose metrics receive the hit and miss counts, optional
+     */
+    public BlockHashIndex(File indexFile, StorageProvider provider) {
+        this.indexFile = indexFile;
+        this.provider = provider;
+    }
+
+    public synchronized boolean contains(String scope, String hash) throws IOException {
+        load();
+        boolean found = keys.contains(scope + "/" + hash);
+        if(provider != null) {
+            OperationTimer.metricsOf(provider).count(OperationTimer.nameOf(provider), found ? "blockHashIndex.hit" : "blockHashIndex.miss", 1);
+        }
+        return found;
+    }
+
+    public synchronized void add(String scope, String hash) throws IOException {
+        load();
+        String key = scope + "/" + hash;
+        if(keys.add(key)) {
+            if(writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8));
+            }
+            writer.write(key);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    public synchronized void close() {
+        if(writer != null) {
+            try {
+                writer.close();
+            } catch(IOException e) {
+                log.warn("Error closing block hash index " + indexFile, e);
+            }
+            writer = null;
+        }
+        keys = null;
+    }
+
+    private void load() throws IOException {
+        if(keys != null) {
+            return;
+        }
+        keys = new HashSet<>();
+        if(indexFile.exists()) {
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if(!line.isEmpty()) {
+                        keys.add(line);
+                    }
+                }
+            }
+        } else if(indexFile.getParentFile() != null) {
+            indexFile.getParentFile().mkdirs();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.bertramlabs.plugins.karman.differential;
+
+import com.bertramlabs.plugins.karman.DirectoryInterface;
+
+import java.io.IOException;
+
+/**
+ * Shared, content addressed block store used by differential files saved with {@code contentAddressed: true}.
+ * Blocks are keyed by their SHA3-224 hash under a common prefix of the backing directory so identical blocks at
+ * different positions, or in different files, are only stored once.
+ * <p>
+ * When a {@link BlockHashIndex} is configured, blocks missing from it are uploaded without checking the backing store.
+ * A block found in the index is still confirmed with an {@code exists()} call before its upload is skipped, as the index
+ * outlives the store (i.e. the directory was deleted or the blocks removed out of band) and a stale entry would leave
+ * manifests referencing missing blocks. Without an index every block is checked before upload. Index entries are scoped by
+ * the store identity (provider type and location), the directory and the store path, so a block stored in one store
+ * is never reported as present in another store sharing the same index file.
+ * </p>
+ * <p>
+ * Blocks are never removed from the store, deleting a file only removes its manifest.
+ * </p>
+ */
+public class ContentBlockStore {
+    private final String storeIdentity;
+    private final String storePath;
+    private final BlockHashIndex index;
+
+    /**
+     * @param storeIdentity identity of the backing store, i.e. {@code s3|endpoint=https://s3.example.com}
+     * @param storePath directory relative path of the block store
+     * @param index optional persistent index of the stored blocks
+     */
+    public ContentBlockStore(String storeIdentity, String storePath, BlockHashIndex index) {
+        this.storeIdentity = storeIdentity;
+        this.storePath = storePath;
+        this.index = index;
+    }
+
+    public String getStorePath() {
+        return storePath;
+    }
+
+    public boolean isStored(DirectoryInterface directory, byte[] hash) throws IOException {
+        if(index != null && !index.contains(getIndexScope(directory), ManifestData.hashToHex(hash))) {
+            return false;
+        }
+        return directory.getFile(ManifestData.BlockData.getContentBlockPath(storePath, hash)).exists();
+    }
+
+    public void markStored(DirectoryInterface directory, byte[] hash) throws IOException {
+        if(index != null) {
+            index.add(getIndexScope(directory), ManifestData.hashToHex(hash));
+        }
+    }
+
+    private String getIndexScope(DirectoryInterface directory) {
+        return storeIdentity + "|" + directory.getName() + "|" + storePath;
+    }
+}
@@ -3,17 +3,16 @@ package com.bertramlabs.plugins.karman.differential
 import com.bertramlabs.plugins.karman.CloudFile
 import com.bertramlabs.plugins.karman.CloudFileACL
 import com.bertramlabs.plugins.karman.CloudFileInterface
+import com.bertramlabs.plugins.karman.DeleteResult
+import com.bertramlabs.plugins.karman.Directory
+import com.bertramlabs.plugins.karman.RandomAccessOutput
 import com.bertramlabs.plugins.karman.StorageProvider
 import com.bertramlabs.plugins.karman.util.Mimetypes
 import groovy.transform.CompileStatic
 import groovy.util.logging.Commons
-import org.tukaani.xz.LZMA2Options
-import org.tukaani.xz.XZ
-import org.tukaani.xz.XZOutputStream
 
 import java.nio.file.Files
 import java.nio.file.Path
-import java.util.zip.GZIPOutputStream
 
 
 @Commons
@@ -32,25 +31,125 @@ public class DifferentialCloudFile extends CloudFile {
 		this.sourceFile = sourceFile
 	}
 
+	/**
+	 * Returns the parsed manifest of this file from the provider's manifest cache, loading it if necessary.
+	 * @return the cached manifest entry or null if this is not a differential file
+	 */
+	@CompileStatic
+	protected ManifestCache.Entry getManifestEntry() {
+		CloudFileInterface manifestFile = parent.sourceDirectory[sourceFile.name + "/karman.diff"]
+		return ((DifferentialStorageProvider) provider).getManifestCache().get(getManifestCacheKey(), sourceFile, manifestFile)
+	}
+
+	/**
+	 * Like {@link #getManifestEntry}, but pinned so the local manifest copy stays available until
+	 * {@link ManifestCache.Entry#release} is called.
+	 */
+	@CompileStatic
+	protected ManifestCache.Entry acquireManifestEntry() {
+		CloudFileInterface manifestFile = parent.sourceDirectory[sourceFile.name + "/karman.diff"]
+		return ((DifferentialStorageProvider) provider).getManifestCache().acquire(getManifestCacheKey(), sourceFile, manifestFile)
+	}
+
+	@CompileStatic
+	protected String getManifestCacheKey() {
+		return parent.sourceDirectory.name + "/" + sourceFile.name + "/karman.diff"
+	}
+
 	@Override
 	@CompileStatic
 	InputStream getInputStream() {
-		CloudFile manifestFile = parent.sourceDirectory[sourceFile.name + "/karman.diff"]
-		if(manifestFile.exists()) {
-			//we need to copy the index table to local storage for read in case of slow connections
-			Path localManifestCache = Files.createTempFile("karman",".diff")
-			File manifestLocalFile = localManifestCache.toFile()
-			manifestFile.getInputStream().withStream { InputStream is ->
-				manifestLocalFile.withOutputStream { OutputStream os ->
-					os << is
+		//the cached manifest is a local copy of the index table so reads are not affected by slow connections
+		ManifestCache.Entry manifestEntry = acquireManifestEntry()
+		if(manifestEntry != null) {
+			try {
+				DifferentialInputStream diffStream = new DifferentialInputStream(sourceFile, manifestEntry.newManifestStream())
+				DifferentialStorageProvider differentialProvider = (DifferentialStorageProvider) provider
+				if(differentialProvider.restoreWorkers != null && differentialProvider.restoreWorkers > 1) {
+					diffStream.enablePrefetch(differentialProvider.getRestoreExecutor(), differentialProvider.getRestorePrefetchBlocks())
 				}
+				return diffStream
+			} finally {
+				manifestEntry.release()
 			}
-			return new DifferentialInputStream(sourceFile, manifestLocalFile)
 		} else {
 			return sourceFile.getInputStream()
 		}
 	}
 
+	/**
+	 * Opens a positional reader over this differential file for reading arbitrary byte ranges without streaming
+	 * the file from the beginning. The reader must be closed when no longer needed.
+	 * @param cacheBlocks number of decoded blocks kept in memory by the reader
+	 */
+	@CompileStatic
+	DifferentialRandomAccessReader getRandomAccessReader(int cacheBlocks = 4) {
+		ManifestCache.Entry manifestEntry = acquireManifestEntry()
+		if(manifestEntry == null) {
+			throw new IOException("Random access is only supported for differential files: ${name}")
+		}
+		//the reader keeps the entry pinned until it is closed so eviction does not remove the mapped manifest
+		try {
+			return new DifferentialRandomAccessReader(sourceFile, manifestEntry.localManifest, cacheBlocks, new ManifestCache.Release(manifestEntry))
+		} catch(IOException ex) {
+			manifestEntry.release()
+			throw ex
+		}
+	}
+
+	/**
+	 * Reads a range of bytes from this differential file.
+	 * @param position offset within the original file
+	 * @param length maximum number of bytes to read
+	 * @return the bytes read, which may be shorter than length at the end of the file
+	 */
+	byte[] read(long position, int length) {
+		DifferentialRandomAccessReader reader = getRandomAccessReader()
+		try {
+			byte[] buffer = new byte[length]
+			int bytesRead = reader.read(position, buffer, 0, length)
+			if(bytesRead <= 0) {
+				return new byte[0]
+			}
+			return bytesRead == length ? buffer : Arrays.copyOf(buffer, bytesRead)
+		} finally {
+			reader.close()
+		}
+	}
+
+	/**
+	 * Restores this file to a target file. When the target supports positional writes (i.e. local or NFS files)
+	 * and {@code sparse} is set, zero filled blocks are skipped instead of written so the restored file is sparse.
+	 * Other targets receive the full contents as a stream.
+	 * @param target the file to restore to, any existing content is replaced
+	 * @param sparse whether zero filled blocks may be skipped
+	 * @return the number of bytes restored
+	 */
+	@CompileStatic
+	long restoreTo(CloudFileInterface target, boolean sparse = true) {
+		InputStream restoreStream = getInputStream()
+		RandomAccessOutput output = null
+		if(sparse && restoreStream instanceof DifferentialInputStream && target instanceof CloudFile) {
+			output = ((CloudFile) target).getRandomAccessOutput()
+		}
+		if(output == null) {
+			Long contentLength = getContentLength()
+			if(contentLength != null) {
+				target.setContentLength(contentLength)
+			}
+			target.setInputStream(restoreStream)
+			target.save()
+			restoreStream.close()
+			return contentLength ?: 0l
+		}
+		try {
+			return ((DifferentialInputStream) restoreStream).restoreSparse(output)
+		} finally {
+			output.close()
+			restoreStream.close()
+		}
+	}
+
 	@Override
 	Boolean isDirectory() {
 		CloudFile manifestFile = parent.sourceDirectory[sourceFile.name + "/karman.diff"]
@@ -99,54 +198,40 @@ public class DifferentialCloudFile extends CloudFile {
 
 	@Override
 	Long getContentLength() {
-		CloudFile manifestFile = parent[sourceFile.name + "/karman.diff"]
-		if(manifestFile.exists()) {
-			DifferentialInputStream is = null
-			try {
-				is = new DifferentialInputStream(sourceFile, manifestFile.getInputStream())
-				if(is.manifestData.fileSize != null) {
-					return is.manifestData.fileSize
-				} else {
-					long contentLength = 0
-					ManifestData.BlockData currentBlock = is.getNextBlockData()
-					while(currentBlock != null) {
-						contentLength += currentBlock.blockSize
-						currentBlock = is.getNextBlockData()
-					}
-					return contentLength
-				}
-			} finally {
-				try {
-					if(is != null) {
-						is.close()
-					}
-				} catch(ignore) {
-					//ignore
-				}
-			}
+		ManifestCache.Entry manifestEntry = getManifestEntry()
+		if(manifestEntry != null) {
+			return manifestEntry.contentLength
 		} else {
 			return sourceFile.getContentLength()
 		}
 	}
 
 	Long getOnDeviceContentLength() {
-		CloudFile manifestFile = parent.sourceDirectory[sourceFile.name + "/karman.diff"]
+		ManifestCache.Entry manifestEntry = acquireManifestEntry()
 
-		if(manifestFile.exists()) {
+		if(manifestEntry != null) {
 			DifferentialInputStream is = null
 			try {
-				long contentLength = manifestFile.contentLength
-				is = new DifferentialInputStream(sourceFile, manifestFile.getInputStream())
+				if(manifestEntry.manifestData.storedSize != null) {
+					//recorded at save time, no need to stat every block
+					return manifestEntry.manifestLength + manifestEntry.manifestData.storedSize
+				}
+				if(manifestEntry.onDeviceContentLength != null) {
+					return manifestEntry.onDeviceContentLength
+				}
+				long contentLength = manifestEntry.manifestLength
+				is = new DifferentialInputStream(sourceFile, manifestEntry.newManifestStream())
 				ManifestData.BlockData currentBlock = is.getNextBlockData()
 				while(currentBlock != null) {
 //					contentLength += currentBlock.blockSize //this is the uncompressed size and is not accurate
 					if(currentBlock.fileIndex == 0 && !currentBlock.zeroFilled) {
-						String blockFilePath = ManifestData.BlockData.getBlockPath(sourceFile, currentBlock.block, 0, is.manifestData);
+						String blockFilePath = ManifestData.BlockData.getBlockPath(sourceFile, currentBlock, is.manifestData);
 						CloudFile blockFile = parent.sourceDirectory[blockFilePath]
 						contentLength += blockFile.contentLength
 					}
 					currentBlock = is.getNextBlockData()
 				}
+				manifestEntry.onDeviceContentLength = contentLength
 				return contentLength
 			} finally {
 				try {
@@ -157,6 +242,7 @@ public class DifferentialCloudFile extends CloudFile {
 				} catch(ignore) {
 					//ignore
 				}
+				manifestEntry.release()
 			}
 
 
@@ -173,9 +259,9 @@ public class DifferentialCloudFile extends CloudFile {
 
 	@Override
 	Date getDateModified() {
-		CloudFile manifestFile = parent[sourceFile.name + "/karman.diff"]
-		if(manifestFile.exists()) {
-			return manifestFile.getDateModified()
+		ManifestCache.Entry manifestEntry = getManifestEntry()
+		if(manifestEntry != null) {
+			return manifestEntry.dateModified
 		} else {
 			return sourceFile.getDateModified()
 		}
@@ -215,11 +301,13 @@ public class DifferentialCloudFile extends CloudFile {
 	@CompileStatic
 	def save(acl) {
 		CloudFileInterface manifestFile = parent.sourceDirectory[sourceFile.name + "/karman.diff"]
+		ManifestCache manifestCache = ((DifferentialStorageProvider) provider).getManifestCache()
 		DifferentialInputStream diffInput = null
 		File manifestLocalFile=null
 
 		if(!sourceFile.exists() || manifestFile.exists()) {
 			try {
+				manifestCache.invalidate(getManifestCacheKey())
 				if(manifestFile.exists())
 					manifestFile.delete()
 
@@ -231,18 +319,24 @@ public class DifferentialCloudFile extends CloudFile {
 				ManifestData manifestData = new ManifestData()
 				manifestData.fileSize = internalContentLength
 				manifestData.fileName = sourceFile.name
-				manifestData.blockSize = ((DifferentialStorageProvider) provider).blockSize
-				if(linkedFile != null) {
-					CloudFileInterface linkedManifest = parent.sourceDirectory[linkedFile.name + "/karman.diff"]
-					if(linkedManifest.exists()) {
-						Path localDifferentialCache = Files.createTempFile("karman-linked",".diff")
-						File localDifferentialFile = localDifferentialCache.toFile()
-						linkedManifest.getInputStream().withStream { InputStream is ->
-							localDifferentialFile.withOutputStream { OutputStream os ->
-								os << is
-							}
+				DifferentialStorageProvider differentialProvider = (DifferentialStorageProvider) provider
+				manifestData.blockSize = differentialProvider.blockSize
+				BlockCodec codec = BlockCodec.forName(differentialProvider.blockCodec)
+				manifestData.codec = codec.codecName
+				//plain gzip blocks without a shared block store keep the version 1 format older readers understand
+				boolean legacyFormat = codec == BlockCodec.GZIP && !differentialProvider.contentAddressed && !(differentialProvider.getMinCompressionRatio() > 0)
+				manifestData.version = legacyFormat ? 1 : 2
+				if(differentialProvider.contentAddressed) {
+					//blocks are shared by hash so there is no need to reference the linked file by position
+					manifestData.blockStore = differentialProvider.blockStorePath
+				} else if(linkedFile != null) {
+					ManifestCache.Entry linkedManifestEntry = linkedFile.acquireManifestEntry()
+					if(linkedManifestEntry != null) {
+						try {
+							diffInput = new DifferentialInputStream(linkedFile, linkedManifestEntry.newManifestStream())
+						} finally {
+							linkedManifestEntry.release()
 						}
-						diffInput = new DifferentialInputStream(linkedFile, localDifferentialFile)
 
 						manifestData.sourceFiles = diffInput.manifestData.sourceFiles
 						if(manifestData.sourceFiles == null) {
@@ -252,77 +346,55 @@ public class DifferentialCloudFile extends CloudFile {
 					}
 
 				}
-				String headerString = manifestData.getHeader()
-				Long calculateDiffSize = 0
-				calculateDiffSize += headerString.getBytes().size()
-				if(internalContentLength) {
-					calculateDiffSize += ((long)((long)internalContentLength/(long)manifestData.blockSize)*44l)
-					if(((long)internalContentLength%(long)manifestData.blockSize) > 0) {
-						calculateDiffSize += 44l
-					}
-				}
+				//block records are written first, the header follows once the stored size is known
 				OutputStream pos = localManifestCache.newOutputStream()
-				pos.write(headerString.getBytes())
-
-				BlockDigestStream dataStream = new BlockDigestStream(rawSourceStream, pos, manifestData.blockSize, diffInput)
-				byte[] buffer = new byte[manifestData.blockSize]
-				int bytesRead = 0
-				long blockNumber = 0
-
-
-				while((bytesRead = dataStream.read(buffer)) != -1) {
-					//confirm the buffer is not full of zero byte arrays
-
-					boolean allZero = true
-					for(byte b : buffer) {
-						if(b != 0) {
-							allZero = false
-							break
-						}
+				long totalBytes = 0
+				long storedBytes = 0
+
+				if(differentialProvider.contentAddressed || (differentialProvider.saveWorkers != null && differentialProvider.saveWorkers > 1)) {
+					PipelinedBlockWriter blockWriter = new PipelinedBlockWriter(sourceFile, parent.sourceDirectory, manifestData, pos, diffInput, differentialProvider.saveWorkers ?: 1, differentialProvider.getSaveBufferCount())
+					blockWriter.setCodec(codec, differentialProvider.minCompressionRatio ?: 0d)
+					if(differentialProvider.contentAddressed) {
+						blockWriter.setContentStore(differentialProvider.getContentBlockStore())
 					}
-
-					if(!allZero && dataStream.lastBlockDifferent) {
-
-						ByteArrayOutputStream compressedBuffer = new ByteArrayOutputStream()
-						GZIPOutputStream xz = new GZIPOutputStream(compressedBuffer)
-						//XZOutputStream xz = new XZOutputStream(compressedBuffer, new LZMA2Options(0), XZ.CHECK_NONE)
-						xz.write(buffer, 0, bytesRead)
-						xz.finish()
-
-
-						String blockFilePath = ManifestData.BlockData.getBlockPath(sourceFile, blockNumber, 0, manifestData);
-						int attempts=0
-						while(attempts < 5) {
-							try {
-								CloudFileInterface blockFile = parent.sourceDirectory[blockFilePath]
-								byte[] compressedBufferArray = compressedBuffer.toByteArray()
-								blockFile.setContentLength(compressedBufferArray.size())
-								blockFile.setInputStream(new ByteArrayInputStream(compressedBufferArray));
-								blockFile.save()
-								break
-							} catch(Exception e) {
-								attempts++
-								sleep(5000l*attempts + 5000l)
-
-								if(attempts == 5) {
-									log.error("Error saving block file...Max Attempts Reached...",e)
-									throw new Exception("Error saving block file...Max Attempts Reached...",e)
-								} else {
-									log.error("Error saving block file...sleeping and trying again shortly...",e)
-								}
-							}
+					blockWriter.write(rawSourceStream)
+					totalBytes = blockWriter.getTotalBytes()
+					storedBytes = blockWriter.getStoredBytes()
+				} else {
+					BlockDigestStream dataStream = new BlockDigestStream(rawSourceStream, pos, manifestData.blockSize, diffInput)
+					byte[] buffer = new byte[manifestData.blockSize]
+					int bytesRead = 0
+					long blockNumber = 0
+
+
+					while((bytesRead = dataStream.read(buffer)) != -1) {
+						totalBytes += bytesRead
+						//zero filled blocks were already detected by the digest stream and are never stored
+						if(!dataStream.lastReadZeroFilled && dataStream.lastBlockDifferent) {
+							ByteArrayOutputStream compressedBuffer = new ByteArrayOutputStream()
+							codec.encode(buffer, bytesRead, compressedBuffer, differentialProvider.minCompressionRatio ?: 0d)
+
+							String blockFilePath = ManifestData.BlockData.getBlockPath(sourceFile, blockNumber, 0, manifestData);
+							byte[] compressedBufferArray = compressedBuffer.toByteArray()
+							PipelinedBlockWriter.saveBlockFile(parent.sourceDirectory, blockFilePath, compressedBufferArray, compressedBufferArray.length)
+							storedBytes += compressedBufferArray.length
 						}
-
-
+						blockNumber++
 					}
-					blockNumber++
 				}
 				pos.flush()
 				pos.close()
-				InputStream localFileStream = manifestLocalFile.newInputStream()
+				if(manifestData.fileSize == null) {
+					manifestData.fileSize = totalBytes
+				}
+				manifestData.storedSize = storedBytes
+				byte[] headerBytes = manifestData.getHeader().getBytes()
+				InputStream localFileStream = new SequenceInputStream(new ByteArrayInputStream(headerBytes), manifestLocalFile.newInputStream())
+				manifestFile.setContentLength(headerBytes.length + manifestLocalFile.length())
 				manifestFile.setInputStream(localFileStream)
 				manifestFile.save()
 				localFileStream.close()
+				manifestCache.invalidate(getManifestCacheKey())
 			} finally {
 				if(diffInput != null) {
 					try {
@@ -342,12 +414,26 @@ public class DifferentialCloudFile extends CloudFile {
 		}
 	}
 
+	/**
+	 * Deletes the manifest and the blocks stored under this file's prefix. Blocks of a content addressed store are
+	 * shared and not reference counted, so they are left in place.
+	 */
 	@Override
 	def delete() {
 		CloudFile manifestFile = parent.sourceDirectory[sourceFile.name + "/karman.diff"]
+		((DifferentialStorageProvider) provider).getManifestCache().invalidate(getManifestCacheKey())
 		if(manifestFile.exists()) {
-			parent.sourceDirectory.listFiles(prefix: sourceFile.name + "/", delimiter: "/")?.each { CloudFileInterface file ->
-				file.delete()
+			if(parent.sourceDirectory instanceof Directory) {
+				//blocks are removed in bulk (i.e. S3 DeleteObjects) instead of one request per block
+				DeleteResult result = ((Directory) parent.sourceDirectory).deletePrefix(sourceFile.name + "/", [:])
+				if(!result.success) {
+					Map.Entry<String, String> failure = result.failures.entrySet().first()
+					throw new IOException("Unable to delete ${result.failures.size()} blocks of ${name}, i.e. ${failure.key}: ${failure.value}")
+				}
+			} else {
+				parent.sourceDirectory.listFiles(prefix: sourceFile.name + "/", delimiter: "/")?.each { CloudFileInterface file ->
+					file.delete()
+				}
 			}
 			if(sourceFile.exists()) {
 				try {
@@ -414,8 +500,10 @@ public class DifferentialCloudFile extends CloudFile {
 	void flatten(List<DifferentialCloudFile> children = null) {
 		CloudFile manifestFile = parent.sourceDirectory[sourceFile.name + "/karman.diff"]
 		List<String> sourceFilesToUnlink = []
+		ManifestCache manifestCache = ((DifferentialStorageProvider) provider).getManifestCache()
 		//only do this if it is indeed a differential file
 		if(manifestFile.exists()) {
+			manifestCache.invalidate(getManifestCacheKey())
 			DifferentialInputStream unflattenedStream = null
 			OutputStream pos
 //			PipedInputStream pis
@@ -443,6 +531,11 @@ public class DifferentialCloudFile extends CloudFile {
 					manifestData.fileSize = unflattenedStream.manifestData.fileSize
 					manifestData.fileName = unflattenedStream.manifestData.fileName
 					manifestData.blockSize = unflattenedStream.manifestData.blockSize
+					manifestData.version = unflattenedStream.manifestData.version
+					manifestData.blockStore = unflattenedStream.manifestData.blockStore
+					manifestData.codec = unflattenedStream.manifestData.codec
+					//linked blocks are copied into this file so the stored size recorded at save time no longer applies
+					manifestData.storedSize = null
 					sourceFilesToUnlink = unflattenedStream.manifestData.sourceFiles
 					manifestData.sourceFiles = null //clear source files
 
@@ -498,6 +591,7 @@ public class DifferentialCloudFile extends CloudFile {
 					}
 					manifestFile.setInputStream(sourceManifestIs)
 					manifestFile.save()
+					manifestCache.invalidate(getManifestCacheKey())
 
 					originalManifest.delete()
 
@@ -526,6 +620,10 @@ public class DifferentialCloudFile extends CloudFile {
 									childManifestData.fileName = unflattenedChildStream.manifestData.fileName
 									childManifestData.blockSize = unflattenedChildStream.manifestData.blockSize
 									childManifestData.sourceFiles = unflattenedChildStream.manifestData.sourceFiles
+									childManifestData.version = unflattenedChildStream.manifestData.version
+									childManifestData.blockStore = unflattenedChildStream.manifestData.blockStore
+									childManifestData.codec = unflattenedChildStream.manifestData.codec
+									childManifestData.storedSize = unflattenedChildStream.manifestData.storedSize
 									def fileIndicesToUnlink = []
 
 									if(sourceFilesToUnlink) {
@@ -561,6 +659,7 @@ public class DifferentialCloudFile extends CloudFile {
 										}
 									}
 									flattenThread.join()
+									manifestCache.invalidate(childrenFile.getManifestCacheKey())
 								}
 							} finally {
 								if(childPos != null) {
@@ -4,6 +4,7 @@ import com.bertramlabs.plugins.karman.CloudFile
 import com.bertramlabs.plugins.karman.CloudFileInterface
 import com.bertramlabs.plugins.karman.Directory
 import com.bertramlabs.plugins.karman.DirectoryInterface
+import com.bertramlabs.plugins.karman.ListingPage
 
 public class DifferentialDirectory extends Directory{
 	DirectoryInterface sourceDirectory
@@ -27,6 +28,19 @@ public class DifferentialDirectory extends Directory{
 		return rtn
 	}
 
+	@Override
+	ListingPage listFilesPage(Map options = [:]) {
+		if(!(sourceDirectory instanceof Directory)) {
+			//paged listings are only available on Directory implementations
+			return super.listFilesPage(options)
+		}
+		ListingPage sourcePage = ((Directory) sourceDirectory).listFilesPage(options)
+		List<CloudFile> files = sourcePage.files?.collect { CloudFileInterface file ->
+			(CloudFile) new DifferentialCloudFile(file.name, this, file)
+		} ?: []
+		return new ListingPage(files: files, continuationToken: sourcePage.continuationToken)
+	}
+
 	@Override
 	CloudFile getFile(String name) {
 		CloudFileInterface file = sourceDirectory.getFile(name)
@@ -2,12 +2,20 @@ package com.bertramlabs.plugins.karman.differential;
 
 import com.bertramlabs.plugins.karman.CloudFile;
 import com.bertramlabs.plugins.karman.CloudFileInterface;
+import com.bertramlabs.plugins.karman.RandomAccessOutput;
+import com.bertramlabs.plugins.karman.util.StreamUtils;
 import org.tukaani.xz.XZInputStream;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class DifferentialInputStream extends InputStream {
     //get commons logger
@@ -17,6 +25,14 @@ public class DifferentialInputStream extends InputStream {
     private InputStream sourceManifest = null;
     private File sourceManifestFile = null;
     private long totalBlocks;
+    private ExecutorService prefetchExecutor = null;
+    private int prefetchWindow = 0;
+    private BlockingQueue<byte[]> prefetchBuffers = null;
+    private final ArrayDeque<PrefetchedBlock> prefetchQueue = new ArrayDeque<>();
+    private byte[] currentPrefetchBuffer = null;
+    private boolean manifestExhausted = false;
+    private int headerLength = 0;
+    private byte[] zeroBlock = null;
 
     DifferentialInputStream(CloudFileInterface baseFile, File sourceManifest) throws IOException {
         this(baseFile, new FileInputStream(sourceManifest));
@@ -29,6 +45,7 @@ public class DifferentialInputStream extends InputStream {
         int b = sourceManifest.read();
         boolean lastNewLine = false;
         while(b != -1) {
+            headerLength++;
             headerStringB.append((char)b);
             if(b == 10) {
                 if(lastNewLine) {
@@ -58,6 +75,12 @@ public class DifferentialInputStream extends InputStream {
                 manifestData.sourceFiles = new ArrayList<>(Arrays.asList(filePaths));
             } else if(headerPartParts[0].equalsIgnoreCase("version")) {
                 manifestData.version = Integer.parseInt(headerPartParts[1]);
+            } else if(headerPartParts[0].equalsIgnoreCase("blockStore")) {
+                manifestData.blockStore = headerPartParts[1];
+            } else if(headerPartParts[0].equalsIgnoreCase("codec")) {
+                manifestData.codec = headerPartParts[1];
+            } else if(headerPartParts[0].equalsIgnoreCase("storedSize")) {
+                manifestData.storedSize = Long.parseLong(headerPartParts[1]);
             }
         }
         this.baseFile = baseFile;
@@ -148,15 +171,35 @@ public class DifferentialInputStream extends InputStream {
     private ManifestData.BlockData currentBlockData = null;
     private InputStream currentBlockInputStream = null;
 
+    /**
+     * Enables read-ahead for this stream. Up to {@code windowSize} upcoming blocks from the manifest are resolved,
+     * fetched and decompressed on the executor while the caller consumes the current block, so a stream never has
+     * more than {@code windowSize} fetches outstanding. The executor is shared and owned by the caller, closing the
+     * stream only cancels its own fetches. Must be called before the first read.
+     * @param executor executor running the block fetches, i.e. {@link DifferentialStorageProvider#getRestoreExecutor()}
+     * @param windowSize maximum number of decompressed blocks held ahead of the reader
+     */
+    public void enablePrefetch(ExecutorService executor, int windowSize) {
+        if(executor == null || windowSize <= 0) {
+            return;
+        }
+        this.prefetchWindow = windowSize;
+        //one extra buffer for the block currently being consumed by the reader
+        this.prefetchBuffers = new ArrayBlockingQueue<>(windowSize + 1);
+        this.prefetchExecutor = executor;
+    }
+
     private void loadCurrentBlock() throws IOException {
+        if(prefetchExecutor != null) {
+            loadPrefetchedBlock();
+            return;
+        }
         currentBlockData = getNextBlockData();
         if(currentBlockData != null) {
             if(currentBlockData.zeroFilled) {
-                currentBlockInputStream = new ByteArrayInputStream(new byte[currentBlockData.blockSize]);
+                currentBlockInputStream = new ByteArrayInputStream(getZeroBlock(), 0, currentBlockData.blockSize);
             } else {
-                GZIPInputStream xzInputStream = new GZIPInputStream(baseFile.getParent().getFile(getBlockPath(currentBlockData)).getInputStream(),8192);
-                //XZInputStream xzInputStream = new XZInputStream(baseFile.getParent().getFile(getBlockPath(currentBlockData)).getInputStream());
-                currentBlockInputStream = xzInputStream;
+                currentBlockInputStream = openBlock(currentBlockData);
             }
         } else {
             currentBlockInputStream = null;
@@ -164,25 +207,133 @@ public class DifferentialInputStream extends InputStream {
 
     }
 
-    private String getBlockPath(ManifestData.BlockData blockData) {
-        String filePath = ManifestData.BlockData.getBlockPath(baseFile, blockData.block,blockData.fileIndex, manifestData);
-        if(blockData.fileIndex > 1) {
-            //we should verify it exists
-            CloudFileInterface file = baseFile.getParent().getFile(filePath);
-            int currentFileIndex = blockData.fileIndex;
-            while (!file.exists() && currentFileIndex > 1) { //<= instead of < because we subtract 1 in getBlockPath as index 0 means no reference
-                currentFileIndex--;
-                filePath = ManifestData.BlockData.getBlockPath(baseFile, blockData.block,currentFileIndex, manifestData);
-                file = baseFile.getParent().getFile(filePath);
+    /**
+     * Opens the decompressed content stream of a stored (non zero-filled) block. The codec is detected per block
+     * since linked files may have been written with a different codec.
+     */
+    private InputStream openBlock(ManifestData.BlockData blockData) throws IOException {
+        return BlockCodec.decode(baseFile.getParent().getFile(getBlockPath(blockData)).getInputStream());
+    }
+
+    private void loadPrefetchedBlock() throws IOException {
+        if(currentPrefetchBuffer != null) {
+            prefetchBuffers.offer(currentPrefetchBuffer);
+            currentPrefetchBuffer = null;
+        }
+        fillPrefetchWindow();
+        PrefetchedBlock next = prefetchQueue.pollFirst();
+        if(next == null) {
+            currentBlockData = null;
+            currentBlockInputStream = null;
+            return;
+        }
+        currentBlockData = next.blockData;
+        if(next.future == null) {
+            currentBlockInputStream = new ByteArrayInputStream(getZeroBlock(), 0, currentBlockData.blockSize);
+        } else {
+            try {
+                currentPrefetchBuffer = next.future.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for block " + currentBlockData.block, e);
+            } catch(ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Error loading block " + currentBlockData.block, cause);
             }
+            currentBlockInputStream = new ByteArrayInputStream(currentPrefetchBuffer, 0, currentBlockData.blockSize);
         }
-        return filePath;
+        fillPrefetchWindow();
     }
 
+    private void fillPrefetchWindow() throws IOException {
+        while(!manifestExhausted && prefetchQueue.size() < prefetchWindow) {
+            final ManifestData.BlockData blockData = getNextBlockData();
+            if(blockData == null) {
+                manifestExhausted = true;
+                break;
+            }
+            Future<byte[]> future = null;
+            if(!blockData.zeroFilled) {
+                future = prefetchExecutor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        byte[] buffer = prefetchBuffers.poll();
+                        if(buffer == null || buffer.length < blockData.blockSize) {
+                            buffer = new byte[Math.max(blockData.blockSize, manifestData.blockSize)];
+                        }
+                        try(InputStream blockStream = openBlock(blockData)) {
+                            int total = StreamUtils.readFully(blockStream, buffer);
+                            if(total < blockData.blockSize) {
+                                throw new IOException("Unexpected EOF reading block " + blockData.block);
+                            }
+                        }
+                        return buffer;
+                    }
+                });
+            }
+            prefetchQueue.addLast(new PrefetchedBlock(blockData, future));
+        }
+    }
 
+    /**
+     * Shared read-only buffer of zeros backing every zero filled block of this stream.
+     */
+    private byte[] getZeroBlock() {
+        if(zeroBlock == null) {
+            zeroBlock = new byte[manifestData.blockSize];
+        }
+        return zeroBlock;
+    }
+
+    /**
+     * Restores the remaining blocks of this stream to a positional output. Zero filled blocks are skipped instead
+     * of written, so on file systems that support it the restored file is sparse. Must be called before the first read.
+     * @param output the target, expected to be empty
+     * @return the number of bytes restored (including skipped zero blocks)
+     */
+    public long restoreSparse(RandomAccessOutput output) throws IOException {
+        if(currentBlockData != null) {
+            throw new IOException("Sparse restore must start at a block boundary");
+        }
+        byte[] buffer = new byte[manifestData.blockSize];
+        long position = 0;
+        loadCurrentBlock();
+        while(currentBlockData != null) {
+            int blockSize = currentBlockData.blockSize;
+            if(!currentBlockData.zeroFilled) {
+                try {
+                    if(StreamUtils.readFully(currentBlockInputStream, buffer) < blockSize) {
+                        throw new IOException("Unexpected EOF reading block " + currentBlockData.block);
+                    }
+                } finally {
+                    currentBlockInputStream.close();
+                }
+                output.write(position, buffer, 0, blockSize);
+            }
+            position += blockSize;
+            currentBlockData = null;
+            currentBlockInputStream = null;
+            loadCurrentBlock();
+        }
+        output.setLength(position);
+        return position;
+    }
+
+    private String getBlockPath(ManifestData.BlockData blockData) {
+        return ManifestData.BlockData.resolveBlockPath(baseFile, blockData, manifestData);
+    }
+
+    /**
+     * Number of bytes taken by the manifest header, block records start at this offset of the manifest.
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
 
     public ManifestData.BlockData getNextBlockData() throws IOException {
-        ManifestData.BlockData blockData = new ManifestData.BlockData();
         byte[] blockDataBytes = new byte[ManifestData.BlockData.SIZE];
         int bytesRead = sourceManifest.read(blockDataBytes);
         if(bytesRead == -1) {
@@ -200,31 +351,7 @@ public class DifferentialInputStream extends InputStream {
             }
 
         }
-        long value = 0;
-        for (int i = 0; i < 8; i++) {
-            value = (value << 8) + (blockDataBytes[i] & 0xff);
-        }
-        blockData.block = value;
-
-        int blSize=0;
-        for (int i = 8; i < 12; i++) {
-            blSize = (blSize << 8) + (blockDataBytes[i] & 0xff);
-        }
-        blockData.blockSize = blSize;
-        int fileIndex=0;
-        for (int i = 12; i < 16; i++) {
-            fileIndex = (fileIndex << 8) + (blockDataBytes[i] & 0xff);
-        }
-        blockData.fileIndex= fileIndex;
-        blockData.hash = Arrays.copyOfRange(blockDataBytes, 16, blockDataBytes.length);
-        //check if blockData.hash is an empty byte array
-        blockData.zeroFilled = true;
-        for(byte b : blockData.hash) {
-            if(b != 0) {
-                blockData.zeroFilled = false;
-                break;
-            }
-        }
+        ManifestData.BlockData blockData = ManifestData.BlockData.fromBytes(blockDataBytes);
 
         //System.out.println("Block Data: " + blockData.block + "hash: " + hexString + " s:" + blockData.blockSize + " f:" + blockData.fileIndex + " z" + blockData.zeroFilled);
 
@@ -233,6 +360,14 @@ public class DifferentialInputStream extends InputStream {
 
     @Override
     public void close() {
+        if(prefetchExecutor != null) {
+            for(PrefetchedBlock pending : prefetchQueue) {
+                if(pending.future != null) {
+                    pending.future.cancel(true);
+                }
+            }
+            prefetchQueue.clear();
+        }
         try {
             sourceManifest.close();
         } catch(Exception e) {
@@ -242,4 +377,14 @@ public class DifferentialInputStream extends InputStream {
             sourceManifestFile.delete(); //cleanup temp file
         }
     }
+
+    private static class PrefetchedBlock {
+        final ManifestData.BlockData blockData;
+        final Future<byte[]> future; //null for zero filled blocks
+
+        PrefetchedBlock(ManifestData.BlockData blockData, Future<byte[]> future) {
+            this.blockData = blockData;
+            this.future = future;
+        }
+    }
 }
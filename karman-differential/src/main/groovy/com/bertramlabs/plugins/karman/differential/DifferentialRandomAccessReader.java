@@ -0,0 +1,191 @@
+package com.bertramlabs.plugins.karman.differential;
+
+import com.bertramlabs.plugins.karman.CloudFileInterface;
+import com.bertramlabs.plugins.karman.util.StreamUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Positional reader over a differential file. The block records of a local copy of the manifest ({@code karman.diff})
+ * are memory mapped as a fixed width array so the block holding any offset is located in O(1) and only the blocks
+ * covering the requested range are fetched from the backing store.
+ * <p>
+ * A small LRU cache of decoded blocks is kept so that consecutive small reads do not fetch the same block twice.
+ * </p>
+ */
+public class DifferentialRandomAccessReader implements Closeable {
+    private final CloudFileInterface baseFile;
+    private final File manifestFile;
+    private final Closeable onClose;
+    private final ManifestData manifestData;
+    private final RandomAccessFile manifestRandomAccessFile;
+    private final MappedByteBuffer blockRecords;
+    private final long blockCount;
+    private final long length;
+    private final BlockCache blockCache;
+    private boolean closed = false;
+
+    /**
+     * @param baseFile the backing file of the differential file (used to resolve block paths)
+     * @param manifestFile a local copy of the manifest
+     * @param cacheBlocks number of decoded blocks to keep in memory
+     * @param onClose closed along with the reader, i.e. to release the local manifest copy (may be null). It is not
+     *                closed if the constructor throws.
+     */
+    public DifferentialRandomAccessReader(CloudFileInterface baseFile, File manifestFile, int cacheBlocks, Closeable onClose) throws IOException {
+        this.baseFile = baseFile;
+        this.manifestFile = manifestFile;
+        this.onClose = onClose;
+        int headerLength;
+        DifferentialInputStream headerStream = new DifferentialInputStream(baseFile, new FileInputStream(manifestFile));
+        try {
+            manifestData = headerStream.manifestData;
+            headerLength = headerStream.getHeaderLength();
+        } finally {
+            headerStream.close();
+        }
+        manifestRandomAccessFile = new RandomAccessFile(manifestFile, "r");
+        long recordsLength = manifestRandomAccessFile.length() - headerLength;
+        if(recordsLength > Integer.MAX_VALUE) {
+            manifestRandomAccessFile.close();
+            throw new IOException("Manifest too large to index: " + manifestFile);
+        }
+        blockCount = recordsLength / ManifestData.BlockData.SIZE;
+        blockRecords = manifestRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, headerLength, blockCount * ManifestData.BlockData.SIZE);
+        if(manifestData.fileSize != null) {
+            length = manifestData.fileSize;
+        } else if(blockCount > 0) {
+            length = (blockCount - 1) * (long) manifestData.blockSize + getBlockData(blockCount - 1).blockSize;
+        } else {
+            length = 0;
+        }
+        blockCache = new BlockCache(Math.max(1, cacheBlocks));
+    }
+
+    public ManifestData getManifestData() {
+        return manifestData;
+    }
+
+    /**
+     * The uncompressed length of the differential file.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Reads up to {@code len} bytes starting at {@code position} of the original file.
+     * @return the number of bytes read, or -1 if the position is at or past the end of the file
+     */
+    public synchronized int read(long position, byte[] buffer, int offset, int len) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        if(position >= length) {
+            return -1;
+        }
+        int totalRead = 0;
+        while(totalRead < len && position < length) {
+            long blockNumber = position / manifestData.blockSize;
+            int blockOffset = (int) (position % manifestData.blockSize);
+            ManifestData.BlockData blockData = getBlockData(blockNumber);
+            int available = blockData.blockSize - blockOffset;
+            if(available <= 0) {
+                break;
+            }
+            int toCopy = Math.min(available, len - totalRead);
+            if(blockData.zeroFilled) {
+                Arrays.fill(buffer, offset + totalRead, offset + totalRead + toCopy, (byte) 0);
+            } else {
+                System.arraycopy(loadBlock(blockData), blockOffset, buffer, offset + totalRead, toCopy);
+            }
+            totalRead += toCopy;
+            position += toCopy;
+        }
+        return totalRead;
+    }
+
+    /**
+     * Reads the block record for a block number directly from the mapped manifest.
+     */
+    public ManifestData.BlockData getBlockData(long blockNumber) throws IOException {
+        if(blockNumber < 0 || blockNumber >= blockCount) {
+            throw new IOException("Block " + blockNumber + " out of range (" + blockCount + " blocks)");
+        }
+        byte[] record = new byte[ManifestData.BlockData.SIZE];
+        int recordOffset = (int) (blockNumber * ManifestData.BlockData.SIZE);
+        for(int i = 0; i < record.length; i++) {
+            record[i] = blockRecords.get(recordOffset + i);
+        }
+        ManifestData.BlockData blockData = ManifestData.BlockData.fromBytes(record);
+        if(blockData.block != blockNumber) {
+            throw new IOException("Manifest block records are out of order at block " + blockNumber);
+        }
+        return blockData;
+    }
+
+    private byte[] loadBlock(ManifestData.BlockData blockData) throws IOException {
+        byte[] block = blockCache.get(blockData.block);
+        if(block != null) {
+            return block;
+        }
+        block = new byte[blockData.blockSize];
+        String blockPath = ManifestData.BlockData.resolveBlockPath(baseFile, blockData, manifestData);
+        try(InputStream blockStream = BlockCodec.decode(baseFile.getParent().getFile(blockPath).getInputStream())) {
+            if(StreamUtils.readFully(blockStream, block) < blockData.blockSize) {
+                throw new IOException("Unexpected EOF reading block " + blockData.block);
+            }
+        }
+        blockCache.put(blockData.block, block);
+        return block;
+    }
+
+    @Override
+    public synchronized void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        blockCache.clear();
+        try {
+            manifestRandomAccessFile.close();
+        } catch(IOException ignore) {
+            //ignore
+        }
+        if(onClose != null) {
+            try {
+                onClose.close();
+            } catch(IOException ignore) {
+                //ignore
+            }
+        }
+    }
+
+    /**
+     * LRU map of decoded blocks by block number.
+     */
+    private static class BlockCache extends LinkedHashMap<Long, byte[]> {
+        private static final long serialVersionUID = 1L;
+        private final int maxBlocks;
+
+        BlockCache(int maxBlocks) {
+            super(16, 0.75f, true);
+            this.maxBlocks = maxBlocks;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > maxBlocks;
+        }
+    }
+}
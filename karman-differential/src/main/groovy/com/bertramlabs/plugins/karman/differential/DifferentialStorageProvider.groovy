@@ -3,6 +3,11 @@ package com.bertramlabs.plugins.karman.differential
 import com.bertramlabs.plugins.karman.DirectoryInterface
 import com.bertramlabs.plugins.karman.Directory
 import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.local.LocalStorageProvider
+import com.bertramlabs.plugins.karman.util.DaemonThreadFactory
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 class DifferentialStorageProvider extends StorageProvider {
 
@@ -10,6 +15,92 @@ class DifferentialStorageProvider extends StorageProvider {
 
 	Integer blockSize = 1024 * 1024 * 1 //1 megabytes per block
 
+	/**
+	 * Number of concurrent workers used to digest, compress and upload blocks during a save.
+	 * A value of 1 keeps the original sequential save path.
+	 */
+	Integer saveWorkers = 1
+
+	/**
+	 * Number of reusable block buffers held by a pipelined save. Defaults to twice the number of save workers.
+	 * This bounds the memory used by a save to roughly {@code saveBufferCount * blockSize}.
+	 */
+	Integer saveBufferCount
+
+	/**
+	 * Number of concurrent block fetches used when restoring files through {@code getInputStream()}. The fetch threads
+	 * are shared by every open stream of the provider and stopped by {@link #shutdown()}.
+	 * A value of 1 keeps the original behavior of fetching one block at a time.
+	 */
+	Integer restoreWorkers = 1
+
+	/**
+	 * Maximum number of decompressed blocks read ahead of the consumer during a restore. Defaults to twice the number of restore workers.
+	 */
+	Integer restorePrefetchBlocks
+
+	/**
+	 * Codec used to compress stored blocks: {@code gzip} (default), {@code lz4}, {@code zstd} or {@code none} for store-only.
+	 * The codec is recorded in the manifest and detected per block on read so files remain readable regardless of this setting.
+	 */
+	String blockCodec = 'gzip'
+
+	/**
+	 * Minimum compression ratio (uncompressed size / compressed size) a block must achieve to be stored compressed.
+	 * Blocks that do not compress well, such as already compressed or encrypted regions, are stored raw. Set to 0 to always compress.
+	 * Defaults to 1.05 for {@code lz4} and {@code zstd} and to 0 for {@code gzip}, so gzip files keep the original
+	 * format readable by releases without block codec support.
+	 */
+	Double minCompressionRatio
+
+	Double getMinCompressionRatio() {
+		if(minCompressionRatio != null) {
+			return minCompressionRatio
+		}
+		return BlockCodec.forName(blockCodec) == BlockCodec.GZIP ? 0d : 1.05d
+	}
+
+	/**
+	 * When enabled, blocks are stored once by content hash in a shared block store within each directory
+	 * instead of per file and block position. Identical blocks across files and positions are only uploaded once.
+	 */
+	Boolean contentAddressed = false
+
+	/**
+	 * Path prefix (relative to the directory) of the shared content addressed block store.
+	 */
+	String blockStorePath = '.karman-blocks'
+
+	/**
+	 * Optional local file used as a persistent index of blocks already present in the content addressed store.
+	 * Without an index each block is checked with an {@code exists()} call before upload.
+	 */
+	String blockIndexPath
+
+	/**
+	 * Identity of the backing store used to scope the entries of the {@code blockIndexPath} index, so stores sharing an
+	 * index file never consider a block stored in another store as present. Defaults to the source provider name and
+	 * location (endpoint, region, host or base path), set it explicitly when these do not tell two stores apart.
+	 */
+	String blockStoreIdentity
+
+	/**
+	 * Maximum number of parsed manifests kept in the manifest cache.
+	 */
+	Integer manifestCacheSize = 100
+
+	/**
+	 * Time in milliseconds a cached manifest is trusted before it is revalidated with a metadata request (ETag, or
+	 * modified date and size). The default of 1 second serves the back to back calls of a single operation from the
+	 * cache, 0 revalidates on every access and so costs one metadata request each time.
+	 */
+	Long manifestCacheTtl = 1000l
+
+	private ContentBlockStore contentBlockStore
+	private ManifestCache manifestCache
+	private BlockHashIndex blockHashIndex
+	private ExecutorService restoreExecutor
+
 	StorageProvider sourceProvider
 
 	/**
@@ -27,10 +118,76 @@ class DifferentialStorageProvider extends StorageProvider {
 
 	}
 
+	Integer getSaveBufferCount() {
+		return saveBufferCount ?: (saveWorkers ?: 1) * 2
+	}
+
+	Integer getRestorePrefetchBlocks() {
+		return restorePrefetchBlocks ?: (restoreWorkers ?: 1) * 2
+	}
+
+	String getBlockStoreIdentity() {
+		if(blockStoreIdentity) {
+			return blockStoreIdentity
+		}
+		List<String> parts = [sourceProvider.getProviderName()]
+		['endpointUrl', 'endpoint', 'region', 'identityUrl', 'projectId', 'host', 'exportFolder', 'basePath'].each { String property ->
+			if(sourceProvider.hasProperty(property)) {
+				def value = sourceProvider.getProperty(property)
+				if(value && property == 'basePath' && sourceProvider instanceof LocalStorageProvider) {
+					//relative local paths resolve against the working directory
+					value = new File(value.toString()).canonicalPath
+				}
+				if(value) {
+					parts << "${property}=${value}".toString()
+				}
+			}
+		}
+		return parts.join('|')
+	}
+
+	synchronized ContentBlockStore getContentBlockStore() {
+		if(contentBlockStore == null) {
+			if(blockIndexPath) {
+				blockHashIndex = new BlockHashIndex(new File(blockIndexPath), this)
+			}
+			contentBlockStore = new ContentBlockStore(getBlockStoreIdentity(), blockStorePath, blockHashIndex)
+		}
+		return contentBlockStore
+	}
+
+	/**
+	 * Executor fetching the blocks read ahead by restore streams, created on first use with {@code restoreWorkers}
+	 * threads.
+	 */
+	synchronized ExecutorService getRestoreExecutor() {
+		if(restoreExecutor == null) {
+			restoreExecutor = Executors.newFixedThreadPool(restoreWorkers ?: 1, new DaemonThreadFactory("karman-differential-prefetch"))
+		}
+		return restoreExecutor
+	}
+
+	synchronized ManifestCache getManifestCache() {
+		if(manifestCache == null) {
+			manifestCache = new ManifestCache(manifestCacheSize ?: 1, manifestCacheTtl ?: 0l, this)
+		}
+		return manifestCache
+	}
+
 	@Override
 	List<Directory> getDirectories() {
 		return sourceProvider.getDirectories()?.collect { DirectoryInterface dir ->
 			new DifferentialDirectory(dir.name, this, dir)
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public void shutdown() {
+		synchronized(this) {
+			restoreExecutor?.shutdownNow()
+			restoreExecutor = null
+		}
+		blockHashIndex?.close()
+		manifestCache?.clear()
+	}
+}
@@ -0,0 +1,296 @@
+package com.bertramlabs.plugins.karman.differential
+
+import com.bertramlabs.plugins.karman.CloudFileInterface
+import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.metrics.OperationTimer
+import groovy.transform.CompileDynamic
+import groovy.transform.CompileStatic
+import groovy.util.logging.Commons
+
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Bounded cache of parsed differential manifests ({@code karman.diff}) and their aggregate stats, keyed by manifest path.
+ * Each entry keeps a local copy of the manifest so metadata calls and repeated reads do not fetch it again from the
+ * backing provider. Within {@code ttl} milliseconds of its last validation an entry is used without any request, after
+ * that it is revalidated with one metadata request and reloaded when the manifest object has changed. The ETag is
+ * compared when the backing file exposes one, otherwise the size and modified date are.
+ * <p>
+ * Readers holding on to the local copy pin the entry with {@link #acquire}, an entry evicted or invalidated while
+ * pinned keeps its local copy until the last pin is released.
+ * </p>
+ * <p>
+ * Lookups are reported to the provider's metrics as {@code manifestCache.hit} (served from the local copy) and
+ * {@code manifestCache.miss} (the manifest is fetched).
+ * </p>
+ */
+@Commons
+@CompileStatic
+class ManifestCache {
+	/**
+	 * Modified dates usually have a one second resolution, an entry loaded less than this long after the manifest was
+	 * modified could miss a rewrite of the same size in that second, so it is not validated by date
+	 */
+	static final long MODIFIED_DATE_RESOLUTION = 2000l
+
+	int maxEntries
+	long ttl
+	StorageProvider provider
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ManifestCache.Entry> eldest) {
+			if(size() > maxEntries) {
+				eldest.value.cleanup()
+				return true
+			}
+			return false
+		}
+	}
+
+	/**
+	 * @param provider the provider whose metrics receive the hit and miss counts, optional
+	 */
+	ManifestCache(int maxEntries, long ttl, StorageProvider provider = null) {
+		this.maxEntries = Math.max(1, maxEntries)
+		this.ttl = ttl
+		this.provider = provider
+	}
+
+	/**
+	 * Returns the cached manifest for a file, loading it if it is missing or the manifest object changed.
+	 * @param key unique path of the manifest
+	 * @param baseFile the backing file of the differential file
+	 * @param manifestFile the manifest object in the backing provider
+	 * @return the entry or null if the manifest does not exist
+	 */
+	Entry get(String key, CloudFileInterface baseFile, CloudFileInterface manifestFile) {
+		Entry entry
+		synchronized(entries) {
+			entry = entries.get(key)
+		}
+		if(entry != null) {
+			if(System.currentTimeMillis() - entry.validatedAt < ttl) {
+				count('manifestCache.hit')
+				return entry
+			}
+			try {
+				if(isCurrent(entry, manifestFile)) {
+					entry.validatedAt = System.currentTimeMillis()
+					count('manifestCache.hit')
+					return entry
+				}
+			} catch(Exception ex) {
+				log.debug("Unable to validate cached manifest ${key}, reloading", ex)
+			}
+			invalidate(key)
+		}
+		count('manifestCache.miss')
+		if(!manifestFile.exists()) {
+			return null
+		}
+		entry = load(baseFile, manifestFile)
+		synchronized(entries) {
+			Entry existing = entries.put(key, entry)
+			if(existing != null && existing != entry) {
+				existing.cleanup()
+			}
+		}
+		return entry
+	}
+
+	/**
+	 * Returns the cached manifest like {@link #get}, pinned so its local copy is not removed until
+	 * {@link Entry#release} is called even if the entry is evicted or invalidated in the meantime.
+	 * @return the pinned entry or null if the manifest does not exist
+	 */
+	Entry acquire(String key, CloudFileInterface baseFile, CloudFileInterface manifestFile) {
+		while(true) {
+			Entry entry = get(key, baseFile, manifestFile)
+			if(entry == null || entry.retain()) {
+				return entry
+			}
+			//removed by another thread between the lookup and the pin, the next lookup loads it again
+		}
+	}
+
+	private void count(String name) {
+		if(provider != null) {
+			OperationTimer.metricsOf(provider).count(OperationTimer.nameOf(provider), name, 1)
+		}
+	}
+
+	private static boolean isCurrent(Entry entry, CloudFileInterface manifestFile) {
+		if(entry.eTag != null) {
+			String eTag = eTagOf(manifestFile)
+			if(eTag != null) {
+				return eTag == entry.eTag
+			}
+		}
+		if(entry.dateModified == null || entry.loadedAt - entry.dateModified.time < MODIFIED_DATE_RESOLUTION) {
+			return false
+		}
+		return entry.manifestLength == manifestFile.getContentLength() && entry.dateModified == manifestFile.getDateModified()
+	}
+
+	/**
+	 * ETag of backing files exposing one (i.e. S3 and Azure)
+	 */
+	@CompileDynamic
+	private static String eTagOf(CloudFileInterface file) {
+		if(!file.respondsTo('getETag')) {
+			return null
+		}
+		String eTag = file.getETag()
+		return eTag ?: null
+	}
+
+	void invalidate(String key) {
+		synchronized(entries) {
+			Entry entry = entries.remove(key)
+			entry?.cleanup()
+		}
+	}
+
+	void clear() {
+		synchronized(entries) {
+			entries.values().each { Entry entry -> entry.cleanup() }
+			entries.clear()
+		}
+	}
+
+	private Entry load(CloudFileInterface baseFile, CloudFileInterface manifestFile) {
+		Entry entry = new Entry()
+		entry.loadedAt = System.currentTimeMillis()
+		entry.eTag = eTagOf(manifestFile)
+		entry.dateModified = manifestFile.getDateModified()
+		entry.localManifest = Files.createTempFile("karman",".diff").toFile()
+		manifestFile.getInputStream().withStream { InputStream is ->
+			entry.localManifest.withOutputStream { OutputStream os ->
+				os << is
+			}
+		}
+		entry.manifestLength = entry.localManifest.length()
+		DifferentialInputStream is = new DifferentialInputStream(baseFile, entry.localManifest.newInputStream())
+		try {
+			entry.manifestData = is.manifestData
+			long contentLength = 0
+			ManifestData.BlockData currentBlock = is.getNextBlockData()
+			while(currentBlock != null) {
+				entry.blockCount++
+				contentLength += currentBlock.blockSize
+				currentBlock = is.getNextBlockData()
+			}
+			entry.contentLength = is.manifestData.fileSize != null ? is.manifestData.fileSize : contentLength
+		} finally {
+			is.close()
+		}
+		entry.validatedAt = System.currentTimeMillis()
+		return entry
+	}
+
+	static class Entry {
+		ManifestData manifestData
+		File localManifest
+		Long manifestLength
+		Date dateModified
+		String eTag
+		long loadedAt
+		long blockCount = 0
+		long contentLength = 0
+		Long onDeviceContentLength
+		long validatedAt
+		private int references = 0
+		private boolean removed = false
+		private boolean deleted = false
+
+		/**
+		 * Pins the local copy of the manifest.
+		 * @return false if the local copy was already deleted
+		 */
+		synchronized boolean retain() {
+			if(deleted) {
+				return false
+			}
+			references++
+			return true
+		}
+
+		synchronized void release() {
+			references--
+			if(removed && references <= 0) {
+				deleteLocalManifest()
+			}
+		}
+
+		/**
+		 * Opens the local copy of the manifest, pinning the entry until the stream is closed.
+		 */
+		InputStream newManifestStream() {
+			if(!retain()) {
+				throw new IOException("Cached manifest copy was already removed: ${localManifest}")
+			}
+			try {
+				return new PinnedInputStream(localManifest.newInputStream(), new Release(this))
+			} catch(IOException ex) {
+				release()
+				throw ex
+			}
+		}
+
+		/**
+		 * Called once the entry is evicted or invalidated, deletes the local copy as soon as it is no longer pinned.
+		 */
+		synchronized void cleanup() {
+			removed = true
+			if(references <= 0) {
+				deleteLocalManifest()
+			}
+		}
+
+		private void deleteLocalManifest() {
+			deleted = true
+			if(localManifest?.exists() && !localManifest.delete()) {
+				localManifest.deleteOnExit()
+			}
+		}
+	}
+
+	/**
+	 * Releases a pinned entry when closed, at most once.
+	 */
+	static class Release implements Closeable {
+		private final Entry entry
+		private final AtomicBoolean released = new AtomicBoolean(false)
+
+		Release(Entry entry) {
+			this.entry = entry
+		}
+
+		@Override
+		void close() {
+			if(released.compareAndSet(false, true)) {
+				entry.release()
+			}
+		}
+	}
+
+	private static class PinnedInputStream extends FilterInputStream {
+		private final Release release
+
+		PinnedInputStream(InputStream inputStream, Release release) {
+			super(inputStream)
+			this.release = release
+		}
+
+		@Override
+		void close() {
+			try {
+				super.close()
+			} finally {
+				release.close()
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.bertramlabs.plugins.karman.differential;
 
 import com.bertramlabs.plugins.karman.CloudFileInterface;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class ManifestData {
@@ -10,6 +11,9 @@ public class ManifestData {
     public int blockSize; //could be unspecified
     public List<String> sourceFiles;
     public int version = 1;
+    public String blockStore; //set when blocks are stored by hash in a shared content addressed store
+    public String codec; //block codec used when writing, gzip if unspecified
+    public Long storedSize; //bytes of block data stored by this file when it was saved, could be unspecified
 
     public static class BlockData {
         public static final int SIZE = 44;
@@ -69,6 +73,79 @@ public class ManifestData {
                 return manifestData.sourceFiles.get(fileIndex - 1) + "/" + blockDirectory + "/" + blockFileName;
             }
         }
+
+        /**
+         * Decodes a 44 byte manifest block record.
+         */
+        public static BlockData fromBytes(byte[] blockDataBytes) {
+            BlockData blockData = new BlockData();
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) + (blockDataBytes[i] & 0xff);
+            }
+            blockData.block = value;
+
+            int blSize=0;
+            for (int i = 8; i < 12; i++) {
+                blSize = (blSize << 8) + (blockDataBytes[i] & 0xff);
+            }
+            blockData.blockSize = blSize;
+            int fileIndex=0;
+            for (int i = 12; i < 16; i++) {
+                fileIndex = (fileIndex << 8) + (blockDataBytes[i] & 0xff);
+            }
+            blockData.fileIndex= fileIndex;
+            blockData.hash = Arrays.copyOfRange(blockDataBytes, 16, SIZE);
+            //check if blockData.hash is an empty byte array
+            blockData.zeroFilled = true;
+            for(byte b : blockData.hash) {
+                if(b != 0) {
+                    blockData.zeroFilled = false;
+                    break;
+                }
+            }
+            return blockData;
+        }
+
+        /**
+         * Resolves the path of a stored block for reading. Blocks referencing a linked file step down the file list
+         * until a file containing the block is found, in case intermediate files were flattened or removed.
+         */
+        public static String resolveBlockPath(CloudFileInterface baseFile, BlockData blockData, ManifestData manifestData) {
+            if(manifestData.blockStore != null) {
+                return getContentBlockPath(manifestData.blockStore, blockData.hash);
+            }
+            String filePath = getBlockPath(baseFile, blockData.block,blockData.fileIndex, manifestData);
+            if(blockData.fileIndex > 1) {
+                //we should verify it exists
+                CloudFileInterface file = baseFile.getParent().getFile(filePath);
+                int currentFileIndex = blockData.fileIndex;
+                while (!file.exists() && currentFileIndex > 1) { //<= instead of < because we subtract 1 in getBlockPath as index 0 means no reference
+                    currentFileIndex--;
+                    filePath = getBlockPath(baseFile, blockData.block,currentFileIndex, manifestData);
+                    file = baseFile.getParent().getFile(filePath);
+                }
+            }
+            return filePath;
+        }
+
+        /**
+         * Resolves the storage path of a block, taking content addressed manifests into account.
+         */
+        public static String getBlockPath(CloudFileInterface baseFile, BlockData blockData, ManifestData manifestData) {
+            if(manifestData.blockStore != null) {
+                return getContentBlockPath(manifestData.blockStore, blockData.hash);
+            }
+            return getBlockPath(baseFile, blockData.block, blockData.fileIndex, manifestData);
+        }
+
+        /**
+         * Content addressed blocks are stored by hash with the first byte of the hash as the directory (i.e. {@code store/ab/ab12...}).
+         */
+        public static String getContentBlockPath(String blockStore, byte[] hash) {
+            String hexHash = hashToHex(hash);
+            return blockStore + "/" + hexHash.substring(0, 2) + "/" + hexHash;
+        }
     }
 
     public String getHeader() {
@@ -83,6 +160,15 @@ public class ManifestData {
 
         header.append("blockSize:").append(blockSize).append("\n");
         header.append("version:").append(version).append("\n");
+        if(blockStore != null) {
+            header.append("blockStore:").append(blockStore).append("\n");
+        }
+        if(codec != null) {
+            header.append("codec:").append(codec).append("\n");
+        }
+        if(storedSize != null) {
+            header.append("storedSize:").append(storedSize).append("\n");
+        }
         if(sourceFiles != null && !sourceFiles.isEmpty()) {
             header.append("files:");
             for(String file : sourceFiles) {
@@ -95,4 +181,16 @@ public class ManifestData {
         header.append("\n");
         return header.toString();
     }
+
+    public static String hashToHex(byte[] hash) {
+        StringBuilder hexString = new StringBuilder(hash.length * 2);
+        for(byte b : hash) {
+            final String hex = Integer.toHexString(0xff & b);
+            if(hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
 }
@@ -0,0 +1,234 @@
+package com.bertramlabs.plugins.karman.differential;
+
+import com.bertramlabs.plugins.karman.CloudFileInterface;
+import com.bertramlabs.plugins.karman.DirectoryInterface;
+import com.bertramlabs.plugins.karman.util.BoundedUploadPipeline;
+import com.bertramlabs.plugins.karman.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipelined save path for {@link DifferentialCloudFile}. The calling thread reads the source stream into a fixed pool
+ * of reusable block buffers while a pool of workers digests, compresses and uploads each block concurrently.
+ * Completed blocks are written to the manifest strictly in block order regardless of which worker finishes first.
+ * <p>
+ * Memory is bounded by the buffer pool: at most {@code bufferCount} raw blocks (plus one compressed block per worker)
+ * are held at any given time.
+ * </p>
+ */
+public class PipelinedBlockWriter {
+    private static final org.apache.commons.logging.Log log = org.apache.commons.logging.LogFactory.getLog(PipelinedBlockWriter.class);
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final CloudFileInterface baseFile;
+    private final DirectoryInterface targetDirectory;
+    private final ManifestData manifestData;
+    private final OutputStream manifestOutput;
+    private final DifferentialInputStream linkedFileStream;
+    private final int workers;
+    private final int bufferCount;
+    private ContentBlockStore contentStore = null;
+    private BlockCodec codec = BlockCodec.GZIP;
+    private double minCompressionRatio = 0;
+    private final AtomicLong storedBytes = new AtomicLong(0);
+    private long totalBytes = 0;
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA3-224");
+            } catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private final ThreadLocal<BlockOutputBuffer> compressionBuffers = new ThreadLocal<BlockOutputBuffer>() {
+        @Override
+        protected BlockOutputBuffer initialValue() {
+            return new BlockOutputBuffer(manifestData.blockSize);
+        }
+    };
+
+    public PipelinedBlockWriter(CloudFileInterface baseFile, DirectoryInterface targetDirectory, ManifestData manifestData, OutputStream manifestOutput, DifferentialInputStream linkedFileStream, int workers, int bufferCount) {
+        this.baseFile = baseFile;
+        this.targetDirectory = targetDirectory;
+        this.manifestData = manifestData;
+        this.manifestOutput = manifestOutput;
+        this.linkedFileStream = linkedFileStream;
+        this.workers = Math.max(1, workers);
+        this.bufferCount = Math.max(this.workers, bufferCount);
+    }
+
+    /**
+     * Stores blocks by hash in the given shared store instead of by block position. Blocks already present in the
+     * store are not uploaded again.
+     */
+    public void setContentStore(ContentBlockStore contentStore) {
+        this.contentStore = contentStore;
+    }
+
+    /**
+     * Sets the codec used to store blocks and the minimum compression ratio below which a block is stored raw.
+     */
+    public void setCodec(BlockCodec codec, double minCompressionRatio) {
+        this.codec = codec;
+        this.minCompressionRatio = minCompressionRatio;
+    }
+
+    /**
+     * Number of (compressed) block bytes uploaded by this writer.
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Number of raw bytes read from the source stream.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Reads the source stream to completion, storing changed blocks and writing one manifest record per block.
+     * @param sourceStream the raw file contents being saved
+     * @return the number of blocks processed
+     */
+    public long write(InputStream sourceStream) throws IOException {
+        BoundedUploadPipeline<ManifestData.BlockData> pipeline = new BoundedUploadPipeline<>("karman-differential-save", workers, bufferCount, manifestData.blockSize);
+        ManifestData.BlockData linkedBlockData = linkedFileStream != null ? linkedFileStream.getNextBlockData() : null;
+        long blockNumber = 0;
+        try {
+            while(true) {
+                //keep the number of outstanding blocks bounded by the buffer pool and flush completed blocks in order
+                for(ManifestData.BlockData completedBlock : pipeline.drainCompleted()) {
+                    manifestOutput.write(completedBlock.generateBytes());
+                }
+                while(pipeline.getPendingCount() >= bufferCount) {
+                    manifestOutput.write(pipeline.awaitNext().generateBytes());
+                }
+                final byte[] buffer = pipeline.takeBuffer();
+                final int bytesRead = StreamUtils.readFully(sourceStream, buffer);
+                if(bytesRead <= 0) {
+                    pipeline.returnBuffer(buffer);
+                    break;
+                }
+                totalBytes += bytesRead;
+                ManifestData.BlockData linkedBlock = null;
+                if(linkedBlockData != null && linkedBlockData.block == blockNumber) {
+                    linkedBlock = linkedBlockData;
+                    linkedBlockData = linkedFileStream.getNextBlockData();
+                }
+                final ManifestData.BlockData previousBlock = linkedBlock;
+                final long currentBlock = blockNumber;
+                pipeline.submit(buffer, new Callable<ManifestData.BlockData>() {
+                    @Override
+                    public ManifestData.BlockData call() throws Exception {
+                        return processBlock(currentBlock, buffer, bytesRead, previousBlock);
+                    }
+                });
+                blockNumber++;
+                if(bytesRead < manifestData.blockSize) {
+                    break; //short read means we hit the end of the source stream
+                }
+            }
+            for(ManifestData.BlockData completedBlock : pipeline.awaitAll()) {
+                manifestOutput.write(completedBlock.generateBytes());
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving differential blocks", e);
+        } finally {
+            pipeline.close();
+        }
+        return blockNumber;
+    }
+
+    private ManifestData.BlockData processBlock(long blockNumber, byte[] buffer, int length, ManifestData.BlockData linkedBlock) throws Exception {
+        ManifestData.BlockData blockData = new ManifestData.BlockData();
+        blockData.block = blockNumber;
+        blockData.blockSize = length;
+        blockData.fileIndex = 0;
+        if(StreamUtils.isZeroFilled(buffer, 0, length)) {
+            blockData.zeroFilled = true;
+            blockData.hash = new byte[28];
+        } else {
+            MessageDigest digest = digests.get();
+            digest.reset();
+            digest.update(buffer, 0, length);
+            blockData.hash = digest.digest();
+        }
+
+        if(linkedBlock != null && Arrays.equals(linkedBlock.hash, blockData.hash)) {
+            blockData.fileIndex = linkedBlock.fileIndex + 1;
+            return blockData;
+        }
+        if(blockData.zeroFilled) {
+            return blockData;
+        }
+        if(contentStore != null) {
+            if(!contentStore.isStored(targetDirectory, blockData.hash)) {
+                storeBlock(ManifestData.BlockData.getContentBlockPath(contentStore.getStorePath(), blockData.hash), buffer, length);
+                contentStore.markStored(targetDirectory, blockData.hash);
+            }
+        } else {
+            storeBlock(ManifestData.BlockData.getBlockPath(baseFile, blockNumber, 0, manifestData), buffer, length);
+        }
+        return blockData;
+    }
+
+    private void storeBlock(String blockFilePath, byte[] buffer, int length) throws Exception {
+        BlockOutputBuffer compressed = compressionBuffers.get();
+        codec.encode(buffer, length, compressed, minCompressionRatio);
+        saveBlockFile(targetDirectory, blockFilePath, compressed.getBuffer(), compressed.size());
+        storedBytes.addAndGet(compressed.size());
+    }
+
+    /**
+     * Uploads a compressed block to the backing store, retrying with a backoff in case of connection issues.
+     */
+    static void saveBlockFile(DirectoryInterface targetDirectory, String blockFilePath, byte[] data, int length) throws Exception {
+        int attempts = 0;
+        while(attempts < MAX_ATTEMPTS) {
+            try {
+                CloudFileInterface blockFile = targetDirectory.getFile(blockFilePath);
+                blockFile.setContentLength((long) length);
+                blockFile.setInputStream(new ByteArrayInputStream(data, 0, length));
+                blockFile.save();
+                return;
+            } catch(Exception e) {
+                attempts++;
+                if(attempts == MAX_ATTEMPTS) {
+                    log.error("Error saving block file...Max Attempts Reached...", e);
+                    throw new Exception("Error saving block file...Max Attempts Reached...", e);
+                } else {
+                    log.error("Error saving block file...sleeping and trying again shortly...", e);
+                }
+                Thread.sleep(5000L * attempts + 5000L);
+            }
+        }
+    }
+
+    /**
+     * Reusable compression buffer that exposes its backing array so the block can be uploaded without an extra copy.
+     */
+    static class BlockOutputBuffer extends ByteArrayOutputStream {
+        BlockOutputBuffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
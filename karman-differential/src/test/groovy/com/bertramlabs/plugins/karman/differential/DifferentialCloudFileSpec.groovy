@@ -0,0 +1,453 @@
+package com.bertramlabs.plugins.karman.differential
+
+import com.bertramlabs.plugins.karman.StorageProvider
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.security.MessageDigest
+import java.util.zip.GZIPOutputStream
+
+class DifferentialCloudFileSpec extends Specification {
+	static final int BLOCK_SIZE = 64 * 1024
+
+	File baseDir
+	StorageProvider localProvider
+
+	def setup() {
+		baseDir = File.createTempDir()
+		new File(baseDir, 'store').mkdirs()
+		localProvider = StorageProvider.create(provider: 'local', basePath: baseDir.path)
+	}
+
+	def cleanup() {
+		baseDir.deleteDir()
+	}
+
+	@Unroll
+	def "save and restore with #saveWorkers save workers"() {
+		given:
+		DifferentialStorageProvider provider = differentialProvider(saveWorkers: saveWorkers, saveBufferCount: saveBufferCount)
+		byte[] image = image(20, 1234)
+
+		when:
+		saveFile(provider, 'image', image)
+
+		then:
+		provider['store']['image'].inputStream.bytes == image
+		provider['store']['image'].contentLength == image.length
+
+		cleanup:
+		provider.shutdown()
+
+		where:
+		saveWorkers | saveBufferCount
+		1           | null
+		3           | null
+		4           | 1
+	}
+
+	@Unroll
+	def "incremental save with #saveWorkers save workers only stores changed blocks"() {
+		given:
+		DifferentialStorageProvider provider = differentialProvider(saveWorkers: saveWorkers)
+		byte[] image = image(10, 0)
+		saveFile(provider, 'base', image)
+		byte[] changed = image.clone()
+		changed[BLOCK_SIZE * 2 + 10] = (byte) (changed[BLOCK_SIZE * 2 + 10] + 1)
+		changed[BLOCK_SIZE * 7] = (byte) (changed[BLOCK_SIZE * 7] + 1)
+
+		when:
+		saveFile(provider, 'child', changed, provider['store']['base'])
+
+		then:
+		storedBlocks('child') == 2
+		provider['store']['child'].inputStream.bytes == changed
+		provider['store']['base'].inputStream.bytes == image
+
+		cleanup:
+		provider.shutdown()
+
+		where:
+		saveWorkers << [1, 3]
+	}
+
+	def "restore streams share the prefetch executor of the provider"() {
+		given:
+		DifferentialStorageProvider provider = differentialProvider(restoreWorkers: 3, restorePrefetchBlocks: 4)
+		byte[] image = image(20, 1234)
+		saveFile(provider, 'image', image)
+
+		when:
+		List<InputStream> streams = (1..10).collect { provider['store']['image'].inputStream }
+		streams*.read()
+		def executor = provider.restoreExecutor
+
+		then:
+		streams.every { it.@prefetchExecutor.is(executor) }
+		streams.every { it.@prefetchQueue.size() <= 4 }
+		streams[0].bytes == Arrays.copyOfRange(image, 1, image.length)
+
+		when:
+		streams*.close()
+
+		then:
+		!executor.isShutdown()
+		provider['store']['image'].inputStream.bytes == image
+
+		when:
+		provider.shutdown()
+
+		then:
+		executor.isShutdown()
+		!provider.restoreExecutor.is(executor)
+
+		cleanup:
+		provider.shutdown()
+	}
+
+	def "a pipelined save of an empty stream restores an empty file"() {
+		given:
+		DifferentialStorageProvider provider = differentialProvider(saveWorkers: 3)
+
+		when:
+		saveFile(provider, 'empty', new byte[0])
+
+		then:
+		provider['store']['empty'].inputStream.bytes.length == 0
+		storedBlocks('empty') == 0
+
+		cleanup:
+		provider.shutdown()
+	}
+
+	@Unroll
+	def "content addressed saves store identical blocks once with index #useIndex"() {
+		given:
+		Map options = [contentAddressed: true, saveWorkers: 2]
+		if(useIndex) {
+			options.blockIndexPath = new File(baseDir, 'index').path
+		}
+		DifferentialStorageProvider provider = differentialProvider(options)
+		byte[] image = image(6, 100)
+
+		when:
+		saveFile(provider, 'first', image)
+		int blocksAfterFirst = contentBlocks()
+		saveFile(provider, 'second', image)
+
+		then:
+		blocksAfterFirst == 7
+		contentBlocks() == 7
+		storedBlocks('second') == 0
+		provider['store']['second'].inputStream.bytes == image
+
+		when:
+		provider['store']['first'].delete()
+
+		then:
+		!provider['store']['first'].exists()
+		provider['store']['second'].inputStream.bytes == image
+
+		cleanup:
+		provider.shutdown()
+
+		where:
+		useIndex << [false, true]
+	}
+
+	def "a block hash index shared by two stores does not report the blocks of one store in the other"() {
+		given:
+		File indexFile = new File(baseDir, 'index')
+		byte[] image = image(4, 0)
+		List<DifferentialStorageProvider> providers = ['one', 'two'].collect { String name ->
+			new File(baseDir, "${name}/store").mkdirs()
+			StorageProvider sourceProvider = StorageProvider.create(provider: 'local', basePath: new File(baseDir, name).path)
+			new DifferentialStorageProvider(sourceProvider: sourceProvider, blockSize: BLOCK_SIZE, contentAddressed: true, blockIndexPath: indexFile.path)
+		}
+
+		when:
+		providers.each { DifferentialStorageProvider provider ->
+			saveFile(provider, 'image', image)
+		}
+
+		then:
+		providers[0].blockStoreIdentity != providers[1].blockStoreIdentity
+		providers.every { DifferentialStorageProvider provider -> provider['store']['image'].inputStream.bytes == image }
+		indexFile.readLines().size() == 8
+
+		cleanup:
+		providers*.shutdown()
+	}
+
+	@Unroll
+	def "blocks of a deleted store are uploaded again despite the index with a new provider #newProvider"() {
+		given:
+		Map options = [contentAddressed: true, saveWorkers: 2, blockIndexPath: new File(baseDir, 'index').path]
+		DifferentialStorageProvider provider = differentialProvider(options)
+		byte[] image = image(6, 100)
+		saveFile(provider, 'first', image)
+
+		when:
+		provider['store'].delete()
+		new File(baseDir, 'store').mkdirs()
+		if(newProvider) {
+			provider.shutdown()
+			provider = differentialProvider(options)
+		}
+		saveFile(provider, 'second', image)
+
+		then:
+		contentBlocks() == 7
+		provider['store']['second'].inputStream.bytes == image
+
+		cleanup:
+		provider.shutdown()
+
+		where:
+		newProvider << [false, true]
+	}
+
+	@Unroll
+	def "a file saved with the #writeCodec codec is restored by a provider using #readCodec"() {
+		given:
+		DifferentialStorageProvider writer = differentialProvider(blockCodec: writeCodec, saveWorkers: 2)
+		DifferentialStorageProvider reader = differentialProvider(blockCodec: readCodec, restoreWorkers: 2)
+		byte[] image = compressibleImage()
+
+		when:
+		saveFile(writer, 'image', image)
+
+		then:
+		reader['store']['image'].inputStream.bytes == image
+
+		cleanup:
+		writer.shutdown()
+		reader.shutdown()
+
+		where:
+		writeCodec | readCodec
+		'gzip'     | 'lz4'
+		'lz4'      | 'gzip'
+		'zstd'     | 'none'
+		'none'     | 'zstd'
+	}
+
+	@Unroll
+	def "an incremental #codec save links to blocks written with another codec"() {
+		given:
+		DifferentialStorageProvider baseProvider = differentialProvider(blockCodec: 'gzip')
+		DifferentialStorageProvider provider = differentialProvider(blockCodec: codec)
+		//whole blocks only, a trailing partial block is always stored again
+		byte[] image = Arrays.copyOf(compressibleImage(), BLOCK_SIZE * 12)
+		saveFile(baseProvider, 'base', image)
+		byte[] changed = image.clone()
+		Arrays.fill(changed, BLOCK_SIZE * 4, BLOCK_SIZE * 4 + 100, (byte) 1)
+
+		when:
+		saveFile(provider, 'child', changed, provider['store']['base'])
+
+		then:
+		storedBlocks('child') == 1
+		baseProvider['store']['child'].inputStream.bytes == changed
+
+		cleanup:
+		baseProvider.shutdown()
+		provider.shutdown()
+
+		where:
+		codec << ['lz4', 'zstd', 'none']
+	}
+
+	def "the default gzip codec keeps the version 1 manifest and plain gzip blocks"() {
+		given:
+		DifferentialStorageProvider provider = differentialProvider()
+		byte[] image = compressibleImage()
+
+		when:
+		saveFile(provider, 'image', image)
+		List<String> header = manifestHeader('image')
+		List<byte[]> blocks = []
+		new File(baseDir, 'store/image').eachFileRecurse { File file ->
+			if(file.isFile() && file.name != 'karman.diff') {
+				blocks << file.bytes
+			}
+		}
+
+		then:
+		header.contains('version:1')
+		blocks.size() == 11
+		blocks.every { byte[] block -> (block[0] & 0xff) == 0x1f && (block[1] & 0xff) == 0x8b }
+	}
+
+	@Unroll
+	def "a manifest written before block codecs existed is restored by a provider using #codec"() {
+		given:
+		byte[] image = image(5, 300)
+		Arrays.fill(image, BLOCK_SIZE, BLOCK_SIZE * 2, (byte) 0)
+		writeLegacyFile('legacy', image)
+		DifferentialStorageProvider provider = differentialProvider(blockCodec: codec)
+		byte[] changed = image.clone()
+		changed[BLOCK_SIZE * 3] = (byte) (changed[BLOCK_SIZE * 3] + 1)
+
+		when:
+		saveFile(provider, 'child', changed, provider['store']['legacy'])
+
+		then:
+		provider['store']['legacy'].inputStream.bytes == image
+		provider['store']['legacy'].contentLength == image.length
+		//the changed block and the trailing partial block, which is always stored again
+		storedBlocks('child') == 2
+		provider['store']['child'].inputStream.bytes == changed
+
+		cleanup:
+		provider.shutdown()
+
+		where:
+		codec << ['gzip', 'lz4']
+	}
+
+	@Unroll
+	def "zero filled blocks are not stored with #saveWorkers save workers"() {
+		given:
+		DifferentialStorageProvider provider = differentialProvider(saveWorkers: saveWorkers)
+		byte[] image = new byte[BLOCK_SIZE * 8 + 10]
+		image[BLOCK_SIZE * 2 + 7] = 1
+		image[BLOCK_SIZE * 5 - 1] = 2
+		image[BLOCK_SIZE * 6] = 3
+
+		when:
+		saveFile(provider, 'sparse', image)
+
+		then:
+		storedBlocks('sparse') == 3
+		provider['store']['sparse'].inputStream.bytes == image
+
+		cleanup:
+		provider.shutdown()
+
+		where:
+		saveWorkers << [1, 3]
+	}
+
+	@Unroll
+	def "restoreTo writes the image with sparse #sparse"() {
+		given:
+		DifferentialStorageProvider provider = differentialProvider()
+		byte[] image = image(6, 0)
+		Arrays.fill(image, BLOCK_SIZE, BLOCK_SIZE * 3, (byte) 0)
+		//a short trailing zero block must still extend the target to its full length
+		image = Arrays.copyOf(image, BLOCK_SIZE * 7 + 100)
+		saveFile(provider, 'disk', image)
+		new File(baseDir, 'out').mkdirs()
+
+		when:
+		long restored = ((DifferentialCloudFile) provider['store']['disk']).restoreTo(localProvider['out']['disk.img'], sparse)
+
+		then:
+		restored == image.length
+		new File(baseDir, 'out/disk.img').bytes == image
+
+		cleanup:
+		provider.shutdown()
+
+		where:
+		sparse << [true, false]
+	}
+
+	private DifferentialStorageProvider differentialProvider(Map options = [:]) {
+		return new DifferentialStorageProvider([sourceProvider: localProvider, blockSize: BLOCK_SIZE] + options)
+	}
+
+	private static void saveFile(DifferentialStorageProvider provider, String name, byte[] content, linkedFile = null) {
+		DifferentialCloudFile file = (DifferentialCloudFile) provider['store'][name]
+		if(linkedFile) {
+			file.setLinkedFile(linkedFile)
+		}
+		file.setContentLength(content.length as Long)
+		file.setInputStream(new ByteArrayInputStream(content))
+		file.save()
+	}
+
+	/**
+	 * Random image of whole blocks plus a trailing partial block
+	 */
+	private static byte[] image(int blocks, int remainder) {
+		byte[] image = new byte[BLOCK_SIZE * blocks + remainder]
+		new Random(42).nextBytes(image)
+		return image
+	}
+
+	/**
+	 * Image mixing random, repeated text and zero filled blocks, 11 of its 13 blocks are stored
+	 */
+	private static byte[] compressibleImage() {
+		byte[] image = image(12, 777)
+		byte[] text = ('hello world ' * 50000).bytes
+		System.arraycopy(text, 0, image, BLOCK_SIZE * 5, BLOCK_SIZE * 4)
+		Arrays.fill(image, BLOCK_SIZE * 2, BLOCK_SIZE * 4, (byte) 0)
+		return image
+	}
+
+	/**
+	 * Writes a file the way versions without block codecs did: a header without codec and stored size followed by
+	 * the block records, and every non zero block as a plain gzip stream.
+	 */
+	private void writeLegacyFile(String name, byte[] content) {
+		File fileDir = new File(baseDir, "store/${name}")
+		ByteArrayOutputStream manifest = new ByteArrayOutputStream()
+		manifest.write("fileName:${name}\nfileSize:${content.length}\nblockSize:${BLOCK_SIZE}\nversion:1\n\n".toString().bytes)
+		int blockCount = (int) ((content.length + BLOCK_SIZE - 1) / BLOCK_SIZE)
+		for(int block = 0; block < blockCount; block++) {
+			byte[] data = Arrays.copyOfRange(content, block * BLOCK_SIZE, Math.min(content.length, (block + 1) * BLOCK_SIZE))
+			ManifestData.BlockData blockData = new ManifestData.BlockData(block: block, blockSize: data.length)
+			if(data.every { it == (byte) 0 }) {
+				blockData.hash = new byte[28]
+			} else {
+				blockData.hash = MessageDigest.getInstance('SHA3-224').digest(data)
+				File blockFile = new File(fileDir, String.format('%02x/%03x', block >> 12, block & 0xfff))
+				blockFile.parentFile.mkdirs()
+				blockFile.withOutputStream { OutputStream out ->
+					GZIPOutputStream gzip = new GZIPOutputStream(out)
+					gzip.write(data)
+					gzip.finish()
+				}
+			}
+			manifest.write(blockData.generateBytes())
+		}
+		new File(fileDir, 'karman.diff').bytes = manifest.toByteArray()
+	}
+
+	private List<String> manifestHeader(String name) {
+		return new String(new File(baseDir, "store/${name}/karman.diff").bytes, 'ISO-8859-1').split('\n\n')[0].readLines()
+	}
+
+	/**
+	 * Number of block files stored under the prefix of a file
+	 */
+	private int storedBlocks(String name) {
+		int count = 0
+		File fileDir = new File(baseDir, "store/${name}")
+		if(!fileDir.exists()) {
+			return 0
+		}
+		fileDir.eachFileRecurse { File file ->
+			if(file.isFile() && file.name != 'karman.diff') {
+				count++
+			}
+		}
+		return count
+	}
+
+	/**
+	 * Number of blocks in the shared content addressed store of the directory
+	 */
+	private int contentBlocks() {
+		int count = 0
+		new File(baseDir, 'store/.karman-blocks').eachFileRecurse { File file ->
+			if(file.isFile()) {
+				count++
+			}
+		}
+		return count
+	}
+}
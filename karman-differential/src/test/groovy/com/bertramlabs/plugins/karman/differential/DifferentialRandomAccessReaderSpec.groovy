@@ -0,0 +1,106 @@
+package com.bertramlabs.plugins.karman.differential
+
+import com.bertramlabs.plugins.karman.StorageProvider
+import spock.lang.Specification
+
+class DifferentialRandomAccessReaderSpec extends Specification {
+	static final int BLOCK_SIZE = 64 * 1024
+
+	File baseDir
+	StorageProvider localProvider
+	DifferentialStorageProvider provider
+	byte[] baseImage
+	byte[] childImage
+
+	def setup() {
+		baseDir = File.createTempDir()
+		new File(baseDir, 'store').mkdirs()
+		localProvider = StorageProvider.create(provider: 'local', basePath: baseDir.path)
+		provider = new DifferentialStorageProvider(sourceProvider: localProvider, blockSize: BLOCK_SIZE, blockCodec: 'lz4', manifestCacheSize: 1)
+		baseImage = new byte[BLOCK_SIZE * 12 + 1234]
+		new Random(42).nextBytes(baseImage)
+		Arrays.fill(baseImage, BLOCK_SIZE * 3, BLOCK_SIZE * 5, (byte) 0)
+		saveFile('base', baseImage)
+		childImage = baseImage.clone()
+		Arrays.fill(childImage, BLOCK_SIZE * 9 - 50, BLOCK_SIZE * 9 + 50, (byte) 1)
+		//saved without a content length, so the manifest has no file size
+		DifferentialCloudFile child = (DifferentialCloudFile) provider['store']['child']
+		child.setLinkedFile(provider['store']['base'])
+		child.setInputStream(new ByteArrayInputStream(childImage))
+		child.save()
+	}
+
+	def cleanup() {
+		provider.shutdown()
+		baseDir.deleteDir()
+	}
+
+	def "random reads of a linked file return the same bytes as a full read"() {
+		given:
+		DifferentialRandomAccessReader reader = ((DifferentialCloudFile) provider['store']['child']).getRandomAccessReader()
+		Random random = new Random(7)
+
+		expect:
+		reader.length() == childImage.length
+		200.times {
+			long position = (long) (random.nextDouble() * childImage.length)
+			byte[] buffer = new byte[random.nextInt(BLOCK_SIZE * 3) + 1]
+			int count = reader.read(position, buffer, 0, buffer.length)
+			assert count == Math.min(buffer.length, (int) (childImage.length - position))
+			assert Arrays.copyOf(buffer, count) == Arrays.copyOfRange(childImage, (int) position, (int) position + count)
+		}
+
+		cleanup:
+		reader?.close()
+	}
+
+	def "reads at or past the end of the file return -1"() {
+		given:
+		DifferentialRandomAccessReader reader = ((DifferentialCloudFile) provider['store']['child']).getRandomAccessReader()
+
+		expect:
+		reader.read(childImage.length, new byte[10], 0, 10) == -1
+		reader.read(childImage.length + BLOCK_SIZE, new byte[10], 0, 10) == -1
+		reader.read(childImage.length - 4, new byte[10], 0, 10) == 4
+
+		cleanup:
+		reader?.close()
+	}
+
+	def "read returns a range spanning zero filled and changed blocks"() {
+		expect:
+		((DifferentialCloudFile) provider['store']['child']).read(BLOCK_SIZE * 5 - 20, 40) == Arrays.copyOfRange(childImage, BLOCK_SIZE * 5 - 20, BLOCK_SIZE * 5 + 20)
+		((DifferentialCloudFile) provider['store']['child']).read(BLOCK_SIZE * 9 - 60, 120) == Arrays.copyOfRange(childImage, BLOCK_SIZE * 9 - 60, BLOCK_SIZE * 9 + 60)
+	}
+
+	def "an open reader keeps its manifest copy when the cache entry is evicted or invalidated"() {
+		given:
+		DifferentialRandomAccessReader reader = ((DifferentialCloudFile) provider['store']['child']).getRandomAccessReader()
+		File manifestCopy = provider.manifestCache.get('store/child/karman.diff', localProvider['store']['child'], localProvider['store']['child/karman.diff']).localManifest
+		byte[] buffer = new byte[100]
+
+		when:
+		provider['store']['base'].contentLength
+		provider.manifestCache.invalidate('store/child/karman.diff')
+
+		then:
+		manifestCopy.exists()
+		reader.read(BLOCK_SIZE * 9 - 50, buffer, 0, 100) == 100
+		buffer == Arrays.copyOfRange(childImage, BLOCK_SIZE * 9 - 50, BLOCK_SIZE * 9 + 50)
+
+		when:
+		reader.close()
+		reader.close()
+
+		then:
+		!manifestCopy.exists()
+		((DifferentialCloudFile) provider['store']['child']).read(5, 10) == Arrays.copyOfRange(childImage, 5, 15)
+	}
+
+	private void saveFile(String name, byte[] content) {
+		DifferentialCloudFile file = (DifferentialCloudFile) provider['store'][name]
+		file.setContentLength(content.length as Long)
+		file.setInputStream(new ByteArrayInputStream(content))
+		file.save()
+	}
+}
@@ -0,0 +1,209 @@
+package com.bertramlabs.plugins.karman.differential
+
+import com.bertramlabs.plugins.karman.CloudFileInterface
+import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.local.LocalCloudFile
+import spock.lang.Specification
+
+class ManifestCacheSpec extends Specification {
+	static final int BLOCK_SIZE = 64 * 1024
+	static final String KEY = 'store/image/karman.diff'
+
+	File baseDir
+	StorageProvider localProvider
+	DifferentialStorageProvider writer
+	byte[] firstImage
+	byte[] secondImage
+
+	def setup() {
+		baseDir = File.createTempDir()
+		new File(baseDir, 'store').mkdirs()
+		localProvider = StorageProvider.create(provider: 'local', basePath: baseDir.path)
+		writer = new DifferentialStorageProvider(sourceProvider: localProvider, blockSize: BLOCK_SIZE)
+		Random random = new Random(7)
+		firstImage = new byte[BLOCK_SIZE * 4]
+		random.nextBytes(firstImage)
+		secondImage = new byte[BLOCK_SIZE * 4]
+		random.nextBytes(secondImage)
+	}
+
+	def cleanup() {
+		writer.shutdown()
+		baseDir.deleteDir()
+	}
+
+	def "the default ttl trusts an entry for one second"() {
+		expect:
+		new DifferentialStorageProvider(sourceProvider: localProvider).manifestCacheTtl == 1000l
+	}
+
+	def "an entry is used without validation within the ttl"() {
+		given:
+		ManifestCache cache = new ManifestCache(10, 60000l)
+		saveImage(firstImage)
+		ManifestCache.Entry first = cache.get(KEY, baseFile(), manifestFile())
+
+		when:
+		saveImage(new byte[BLOCK_SIZE])
+
+		then:
+		cache.get(KEY, baseFile(), manifestFile()).is(first)
+		first.contentLength == firstImage.length
+
+		cleanup:
+		cache.clear()
+	}
+
+	def "a same size rewrite within the modified date resolution is reloaded"() {
+		given:
+		ManifestCache cache = new ManifestCache(10, 0l)
+		saveImage(firstImage)
+		ManifestCache.Entry first = cache.get(KEY, baseFile(), manifestFile())
+
+		when:
+		saveImage(secondImage)
+		ManifestCache.Entry second = cache.get(KEY, baseFile(), manifestFile())
+
+		then:
+		!second.is(first)
+		second.manifestLength == first.manifestLength
+		!first.localManifest.exists()
+		readImage(second) == secondImage
+
+		cleanup:
+		cache.clear()
+	}
+
+	def "a settled manifest is validated by size and modified date without reloading"() {
+		given:
+		ManifestCache cache = new ManifestCache(10, 0l)
+		saveImage(firstImage)
+		File manifest = new File(baseDir, KEY)
+		manifest.setLastModified(System.currentTimeMillis() - 10000l)
+		ManifestCache.Entry first = cache.get(KEY, baseFile(), manifestFile())
+
+		expect:
+		cache.get(KEY, baseFile(), manifestFile()).is(first)
+
+		when:
+		manifest.setLastModified(System.currentTimeMillis() - 5000l)
+
+		then:
+		!cache.get(KEY, baseFile(), manifestFile()).is(first)
+
+		cleanup:
+		cache.clear()
+	}
+
+	def "an entry with an ETag is only reloaded when the ETag changes"() {
+		given:
+		ManifestCache cache = new ManifestCache(10, 0l)
+		saveImage(firstImage)
+		ManifestCache.Entry first = cache.get(KEY, baseFile(), manifestFile('"one"'))
+
+		expect:
+		first.eTag == '"one"'
+		cache.get(KEY, baseFile(), manifestFile('"one"')).is(first)
+
+		when:
+		saveImage(secondImage)
+		ManifestCache.Entry second = cache.get(KEY, baseFile(), manifestFile('"two"'))
+
+		then:
+		!second.is(first)
+		readImage(second) == secondImage
+
+		cleanup:
+		cache.clear()
+	}
+
+	def "a missing manifest returns null and drops the entry"() {
+		given:
+		ManifestCache cache = new ManifestCache(10, 0l)
+		saveImage(firstImage)
+		ManifestCache.Entry first = cache.get(KEY, baseFile(), manifestFile())
+
+		when:
+		new File(baseDir, KEY).delete()
+
+		then:
+		cache.get(KEY, baseFile(), manifestFile()) == null
+		!first.localManifest.exists()
+	}
+
+	def "evicted and invalidated entries keep their local copy while pinned"() {
+		given:
+		ManifestCache cache = new ManifestCache(1, 60000l)
+		saveImage(firstImage)
+		ManifestCache.Entry pinned = cache.acquire(KEY, baseFile(), manifestFile())
+		ManifestCache.Entry unpinned = cache.get(KEY, baseFile(), manifestFile())
+
+		when:
+		cache.invalidate(KEY)
+
+		then:
+		pinned.is(unpinned)
+		pinned.localManifest.exists()
+		readImage(pinned) == firstImage
+
+		when:
+		pinned.release()
+
+		then:
+		!pinned.localManifest.exists()
+		!pinned.retain()
+	}
+
+	def "the oldest entry is evicted once the cache is full"() {
+		given:
+		ManifestCache cache = new ManifestCache(1, 60000l)
+		saveImage(firstImage)
+		ManifestCache.Entry first = cache.get(KEY, baseFile(), manifestFile())
+		DifferentialCloudFile other = (DifferentialCloudFile) writer['store']['other']
+		other.setInputStream(new ByteArrayInputStream(secondImage))
+		other.save()
+
+		when:
+		cache.get('store/other/karman.diff', localProvider['store']['other'], localProvider['store']['other/karman.diff'])
+
+		then:
+		!first.localManifest.exists()
+		!cache.get(KEY, baseFile(), manifestFile()).is(first)
+
+		cleanup:
+		cache.clear()
+	}
+
+	private void saveImage(byte[] image) {
+		DifferentialCloudFile file = (DifferentialCloudFile) writer['store']['image']
+		file.setContentLength(image.length as Long)
+		file.setInputStream(new ByteArrayInputStream(image))
+		file.save()
+	}
+
+	private CloudFileInterface baseFile() {
+		return localProvider['store']['image']
+	}
+
+	private CloudFileInterface manifestFile(String eTag = null) {
+		if(eTag) {
+			return new ETagCloudFile(parent: localProvider['store'], name: 'image/karman.diff', eTag: eTag)
+		}
+		return localProvider['store']['image/karman.diff']
+	}
+
+	private byte[] readImage(ManifestCache.Entry entry) {
+		return new DifferentialInputStream(baseFile(), entry.localManifest.newInputStream()).bytes
+	}
+
+	/**
+	 * Local file exposing an ETag like the S3 and Azure files do
+	 */
+	static class ETagCloudFile extends LocalCloudFile {
+		String eTag
+
+		String getETag() {
+			return eTag
+		}
+	}
+}
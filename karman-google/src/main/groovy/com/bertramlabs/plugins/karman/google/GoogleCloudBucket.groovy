@@ -20,6 +20,7 @@ import groovy.util.logging.Commons
 
 import com.bertramlabs.plugins.karman.CloudFile
 import com.bertramlabs.plugins.karman.Directory
+import com.bertramlabs.plugins.karman.ListingPage
 
 @Commons
 class GoogleCloudBucket extends Directory {
@@ -98,65 +99,65 @@ class GoogleCloudBucket extends Directory {
 
 	List listFiles(options = [:]) {
 		log.debug "listFiles: ${name} options:${options}"
+		return iterateFiles(options ?: [:]).toList()
+	}
+
+	/**
+	 * Lists a single page of objects using the Google page token as the continuation token
+	 * @param options same as listFiles plus pageSize and continuationToken
+	 */
+	ListingPage listFilesPage(Map options = [:]) {
+		log.debug "listFilesPage: ${name} options:${options}"
 		lastError = null
 		GoogleStorageProvider googleStorageProvider = (GoogleStorageProvider) provider
 		def path = "storage/v1/b/${name}/o"
-		def keepGoing = true
-		def nextPageToken
 		def files = []
 		def thisDirectory = this
-		while(keepGoing) {
-			def requestOpts = [query: [
-					prefix                  : options.prefix,
-					maxResults              : options.maxResults ?: 1000,
-					startOffset             : options.startOffset,
-					endOffset               : options.endOffset,
-					versions                : options.versions != null ? options.versions : false,
-					includeTrailingDelimiter: options.includeTrailingDelimiter != null ? options.includeTrailingDelimiter : false,
-					pageToken               : nextPageToken,
-					projection              : options.projection ?: 'noAcl',
-					delimiter               : options.delimiter
-			]]
-			log.debug "listFiles with requestOpts ${requestOpts}"
-			def results = googleStorageProvider.callApi("https://storage.googleapis.com", path, requestOpts, 'GET')
-			if(results.success) {
-				if(options.delimiter) {
-					def prefixes = []
-					for(p in results.data.prefixes) {
-						if(p != options.prefix) {
-							if(options.prefix) {
-								prefixes << options.prefix + p.substring(options.prefix.length()).split(options.delimiter)[0]
-							} else {
-								prefixes << p.split(options.delimiter)[0]
-							}
+		def requestOpts = [query: [
+				prefix                  : options.prefix,
+				maxResults              : options.pageSize ?: options.maxResults ?: DEFAULT_PAGE_SIZE,
+				startOffset             : options.startOffset,
+				endOffset               : options.endOffset,
+				versions                : options.versions != null ? options.versions : false,
+				includeTrailingDelimiter: options.includeTrailingDelimiter != null ? options.includeTrailingDelimiter : false,
+				pageToken               : options.continuationToken,
+				projection              : options.projection ?: 'noAcl',
+				delimiter               : options.delimiter
+		]]
+		log.debug "listFilesPage with requestOpts ${requestOpts}"
+		def results = googleStorageProvider.callApi("https://storage.googleapis.com", path, requestOpts, 'GET')
+		if(results.success) {
+			if(options.delimiter) {
+				def prefixes = []
+				for(p in results.data.prefixes) {
+					if(p != options.prefix) {
+						if(options.prefix) {
+							prefixes << options.prefix + p.substring(options.prefix.length()).split(options.delimiter)[0]
+						} else {
+							prefixes << p.split(options.delimiter)[0]
+						}
 
 
-						}
-					}
-					prefixes.unique()
-					prefixes.each { prefix ->
-						files << new GoogleCloudDirectory(provider: provider, parent: thisDirectory, name: prefix)
 					}
+				}
+				prefixes.unique()
+				prefixes.each { prefix ->
+					files << new GoogleCloudDirectory(provider: provider, parent: thisDirectory, name: prefix)
+				}
 
-					for(f in results.data.items) {
-						if(f.name != options.prefix || !options.prefix.endsWith(options.delimiter)) {
-							files << new GoogleCloudFile(name: f.name, provider: provider, parent: thisDirectory, existsFlag: true)
-						}
+				for(f in results.data.items) {
+					if(f.name != options.prefix || !options.prefix.endsWith(options.delimiter)) {
+						files << new GoogleCloudFile(name: f.name, provider: provider, parent: thisDirectory, existsFlag: true)
 					}
-
-				} else if(results.data.items) {
-					files += results.data.items?.collect { f -> new GoogleCloudFile([name: f.name, provider: provider, parent: thisDirectory, existsFlag: true]) }
 				}
 
-				nextPageToken = results.data.nextPageToken
-				if(!nextPageToken) {
-					keepGoing = false
-				}
-			} else {
-				throw new Exception("Error in calling google api: ${googleStorageProvider.parseRestError(results)}")
+			} else if(results.data.items) {
+				files += results.data.items?.collect { f -> new GoogleCloudFile([name: f.name, provider: provider, parent: thisDirectory, existsFlag: true]) }
 			}
+		} else {
+			throw new Exception("Error in calling google api: ${googleStorageProvider.parseRestError(results)}")
 		}
-		files
+		return new ListingPage(files: files, continuationToken: results.data.nextPageToken ?: null)
 	}
 
 	GoogleCloudDirectory getDirectory(String fullDirectoryName) {
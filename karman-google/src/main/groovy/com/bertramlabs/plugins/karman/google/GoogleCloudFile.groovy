@@ -235,6 +235,9 @@ class GoogleCloudFile extends CloudFile {
 			addMetadataToPayload(requestOpts)
 
 			Long contentLength = (internalContentLengthSet || !exists()) ? internalContentLength : getContentLength()
+			if(useCompositeUpload(contentLength)) {
+				return saveComposite(contentLength, requestOpts.body)
+			}
 			log.debug "upload path ${path} with requestOpts ${requestOpts}"
 			def results = googleStorageProvider.callApi("https://storage.googleapis.com", path, requestOpts, 'POST')
 			if(!results.success) {
@@ -302,6 +305,33 @@ class GoogleCloudFile extends CloudFile {
 		}
 	}
 
+	private Boolean useCompositeUpload(Long contentLength) {
+		GoogleStorageProvider googleStorageProvider = (GoogleStorageProvider) provider
+		def threshold = googleStorageProvider.compositeUploadThreshold
+		return threshold && threshold > 0 && contentLength && contentLength >= threshold
+	}
+
+	/**
+	 * Uploads large objects as concurrently uploaded components combined with the compose api
+	 */
+	private saveComposite(Long contentLength, Map destination) {
+		GoogleStorageProvider googleStorageProvider = (GoogleStorageProvider) provider
+		log.debug "performing composite upload of ${name} (${contentLength} bytes)"
+		GoogleCompositeUploader uploader = new GoogleCompositeUploader(googleStorageProvider, parent.name, name,
+			googleStorageProvider.compositeUploadPartSize, googleStorageProvider.compositeUploadConcurrency ?: 1)
+		try {
+			if(!uploader.upload(writeStream, contentLength, destination)) {
+				return false
+			}
+		} finally {
+			writeStream.close()
+		}
+		metaDataLoaded = false
+		googleMeta = [:]
+		existsFlag = true
+		return true
+	}
+
 	private update(acl) {
 		log.debug "update: ${name} ${acl}"
 		def success = false
@@ -346,6 +376,44 @@ class GoogleCloudFile extends CloudFile {
 		result
 	}
 
+	/**
+	 * Copies to another object readable with the same service account using the {@code rewrite} api, the service
+	 * copies the data itself. Large objects may take several rewrite calls, each continuing from the returned token.
+	 */
+	@Override
+	protected Boolean nativeCopyTo(CloudFile target) {
+		if(!(target instanceof GoogleCloudFile) || !valid || !((GoogleCloudFile) target).valid) {
+			return false
+		}
+		GoogleStorageProvider googleStorageProvider = (GoogleStorageProvider) provider
+		GoogleCloudFile googleTarget = (GoogleCloudFile) target
+		GoogleStorageProvider targetProvider = (GoogleStorageProvider) googleTarget.provider
+		if(!targetProvider.is(googleStorageProvider) && targetProvider.clientEmail != googleStorageProvider.clientEmail) {
+			return false
+		}
+		def path = "storage/v1/b/${parent.name}/o"
+		def rewriteToken = null
+		while(true) {
+			def requestOpts = [additionalPathSegments: [name, 'rewriteTo', 'b', googleTarget.parent.name, 'o', googleTarget.name]]
+			if(rewriteToken) {
+				requestOpts.query = [rewriteToken: rewriteToken]
+			}
+			def results = googleStorageProvider.callApi("https://storage.googleapis.com", path, requestOpts, 'POST')
+			if(!results.success) {
+				throw new IOException("Error copying ${parent.name}/${name} to ${googleTarget.parent.name}/${googleTarget.name}: ${results.errorCode} ${results.content}")
+			}
+			if(results.data?.done) {
+				break
+			}
+			rewriteToken = results.data?.rewriteToken
+			log.debug "Copying ${parent.name}/${name}: ${results.data?.totalBytesRewritten} of ${results.data?.objectSize} bytes"
+		}
+		googleTarget.metaDataLoaded = false
+		googleTarget.googleMeta = [:]
+		googleTarget.existsFlag = true
+		return true
+	}
+
 	private addMetadataToPayload(requestOpts) {
 		log.debug "addMetadataToPayload"
 		// Add all the properties (stored in metadata) as the payload
@@ -0,0 +1,171 @@
+package com.bertramlabs.plugins.karman.google
+
+import com.bertramlabs.plugins.karman.util.BoundedUploadPipeline
+import com.bertramlabs.plugins.karman.util.StreamUtils
+import groovy.transform.CompileStatic
+import groovy.util.logging.Commons
+
+import java.util.concurrent.Callable
+import java.util.concurrent.TimeUnit
+
+/**
+ * Parallel composite upload of a large object. The stream is split into slices that are uploaded concurrently as
+ * temporary component objects and then combined into the destination object with the {@code compose} api. Objects
+ * with more than 32 components are composed in several rounds. The temporary components are always deleted
+ * afterwards, whether the upload succeeded or not.
+ * <p>
+ * Slices are read by the calling thread into a bounded pool of reusable buffers, so memory use is capped at
+ * {@code (concurrency + 1) * partSize}.
+ * </p>
+ */
+@Commons
+@CompileStatic
+class GoogleCompositeUploader {
+	static final int MAX_COMPOSE_SOURCES = 32
+	private static final int MAX_ATTEMPTS = 3
+	private static final String STORAGE_URL = "https://storage.googleapis.com"
+
+	GoogleStorageProvider googleStorageProvider
+	String bucketName
+	String objectName
+	long partSize
+	int concurrency
+
+	private final String componentPrefix
+	private final List<String> temporaryObjects = Collections.synchronizedList(new ArrayList<String>())
+
+	GoogleCompositeUploader(GoogleStorageProvider googleStorageProvider, String bucketName, String objectName, long partSize, int concurrency) {
+		if(partSize > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Part size ${partSize} is too large to buffer in memory")
+		}
+		this.googleStorageProvider = googleStorageProvider
+		this.bucketName = bucketName
+		this.objectName = objectName
+		this.partSize = partSize
+		this.concurrency = Math.max(1, concurrency)
+		this.componentPrefix = "${objectName}.karman-composite-${UUID.randomUUID().toString()}/".toString()
+	}
+
+	/**
+	 * Uploads the stream and composes the destination object.
+	 * @param destination object resource of the final object (content type, metadata and other writeable properties)
+	 * @return true if the object was created
+	 */
+	boolean upload(InputStream sourceStream, long contentLength, Map destination) {
+		BoundedUploadPipeline<String> pipeline = new BoundedUploadPipeline<String>("karman-google-upload", concurrency, concurrency + 1, (int) partSize)
+		try {
+			long filePosition = 0
+			int partNumber = 1
+			while(filePosition < contentLength) {
+				byte[] buffer = pipeline.takeBuffer()
+				int maxLength = (int) Math.min(partSize, contentLength - filePosition)
+				int count = StreamUtils.readFully(sourceStream, buffer, maxLength)
+				if(count <= 0) {
+					pipeline.returnBuffer(buffer)
+					break
+				}
+				pipeline.submit(buffer, uploadPart(componentName(partNumber), buffer, count))
+				filePosition += count
+				partNumber++
+				if(count < maxLength) {
+					break //end of stream
+				}
+			}
+			List<String> components = pipeline.awaitAll()
+			composeAll(components, destination)
+			return true
+		} catch(Throwable t) {
+			log.error("Error in composite upload of ${bucketName}/${objectName}: ${t.message}", t)
+			return false
+		} finally {
+			pipeline.close()
+			//let cancelled parts finish their request so no component is created after the cleanup
+			pipeline.awaitTermination(60, TimeUnit.SECONDS)
+			deleteTemporaryObjects()
+		}
+	}
+
+	/**
+	 * Composes the components into the destination, combining at most 32 sources per compose call.
+	 */
+	private void composeAll(List<String> components, Map destination) {
+		List<String> sources = components
+		int round = 1
+		while(sources.size() > MAX_COMPOSE_SOURCES) {
+			List<String> intermediates = []
+			int groupIndex = 1
+			for(int i = 0; i < sources.size(); i += MAX_COMPOSE_SOURCES) {
+				String intermediate = "${componentPrefix}round${round}-${String.valueOf(groupIndex++).padLeft(6, '0')}".toString()
+				temporaryObjects.add(intermediate)
+				compose(sources.subList(i, Math.min(i + MAX_COMPOSE_SOURCES, sources.size())), intermediate, [:])
+				intermediates << intermediate
+			}
+			sources = intermediates
+			round++
+		}
+		compose(sources, objectName, destination)
+	}
+
+	private void compose(List<String> sources, String target, Map destination) {
+		Map requestOpts = [
+			additionalPathSegments: [target, 'compose'],
+			body: [
+				sourceObjects: sources.collect { String source -> [name: source] },
+				destination: destination
+			]
+		]
+		Map results = (Map) googleStorageProvider.callApi(STORAGE_URL, "storage/v1/b/${bucketName}/o".toString(), requestOpts, 'POST')
+		if(!results.success) {
+			throw new IOException("Error composing ${bucketName}/${target}: ${results.errorCode} ${results.content}")
+		}
+	}
+
+	private Callable<String> uploadPart(final String component, final byte[] buffer, final int length) {
+		temporaryObjects.add(component)
+		return new Callable<String>() {
+			@Override
+			String call() throws Exception {
+				int attempt = 1
+				while(true) {
+					Map requestOpts = [
+						headers: ['Content-Type': 'application/octet-stream'],
+						query: [name: component, uploadType: 'media'],
+						body: [type: 'bytes', bytes: buffer, offset: 0, length: length]
+					]
+					Map results = (Map) googleStorageProvider.callApi(STORAGE_URL, "upload/storage/v1/b/${bucketName}/o".toString(), requestOpts, 'POST')
+					if(results.success) {
+						return component
+					}
+					if(attempt >= MAX_ATTEMPTS) {
+						throw new IOException("Error uploading component ${bucketName}/${component}: ${results.errorCode ?: results.error} ${results.content ?: ''}")
+					}
+					log.warn("Error uploading component ${bucketName}/${component}, retrying: ${results.errorCode ?: results.error}")
+					Thread.sleep(1000l * attempt)
+					attempt++
+				}
+			}
+		}
+	}
+
+	private void deleteTemporaryObjects() {
+		List<String> names
+		synchronized(temporaryObjects) {
+			names = new ArrayList<String>(temporaryObjects)
+			temporaryObjects.clear()
+		}
+		for(String name : names) {
+			try {
+				Map results = (Map) googleStorageProvider.callApi(STORAGE_URL, "storage/v1/b/${bucketName}/o".toString(), [additionalPathSegments: [name]], 'DELETE')
+				if(!results.success && results.statusCode != 404) {
+					log.warn("Unable to delete temporary component ${bucketName}/${name}: ${results.errorCode}")
+				}
+			} catch(Exception ex) {
+				log.warn("Unable to delete temporary component ${bucketName}/${name}", ex)
+			}
+		}
+	}
+
+	private String componentName(int partNumber) {
+		return "${componentPrefix}${String.valueOf(partNumber).padLeft(6, '0')}".toString()
+	}
+}
@@ -21,6 +21,7 @@ import groovy.util.logging.Commons
 import org.apache.http.client.config.RequestConfig
 import com.bertramlabs.plugins.karman.Directory
 import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.util.HttpTransport
 import com.google.api.services.storage.*
 import com.google.auth.oauth2.*
 import groovy.json.JsonSlurper
@@ -95,6 +96,16 @@ class GoogleStorageProvider extends StorageProvider {
 	String noProxy
 
 	Long chunkSize = 0l
+	Integer maxConnections = 100
+	Integer maxConnectionsPerRoute = 50
+	Integer connectionRequestTimeout = 30000
+
+	Long compositeUploadThreshold = 0l
+	Integer compositeUploadConcurrency = 4
+	Long compositeUploadPartSize = 32l * 1024l * 1024l
+
+	private HttpTransport httpTransport
+	private credentials
 
 	String getProviderName() {
 		return this.providerName
@@ -104,6 +115,44 @@ class GoogleStorageProvider extends StorageProvider {
 		clientEmail = options.clientEmail ?: clientEmail
 		privateKey  = options.privateKey  ?: privateKey
 		projectId = options.projectId ?: projectId
+		maxConnections = options.maxConnections ?: maxConnections
+		maxConnectionsPerRoute = options.maxConnectionsPerRoute ?: maxConnectionsPerRoute
+		connectionRequestTimeout = options.connectionRequestTimeout ?: connectionRequestTimeout
+		compositeUploadThreshold = options.compositeUploadThreshold ?: compositeUploadThreshold
+		compositeUploadConcurrency = options.compositeUploadConcurrency ?: compositeUploadConcurrency
+		compositeUploadPartSize = options.compositeUploadPartSize ?: compositeUploadPartSize
+	}
+
+	/**
+	 * Pooled HTTP client shared by every api call of this provider that uses the default connection settings
+	 */
+	synchronized HttpTransport getHttpTransport() {
+		if(httpTransport == null) {
+			httpTransport = new HttpTransport(
+				maxConnections: maxConnections,
+				maxConnectionsPerRoute: maxConnectionsPerRoute,
+				connectionRequestTimeout: connectionRequestTimeout,
+				trustAllCertificates: true,
+				tlsProtocols: ['TLSv1', 'TLSv1.1', 'TLSv1.2', 'TLSv1.3'],
+				connectTimeout: WEB_CONNECTION_TIMEOUT,
+				socketTimeout: null,
+				proxyHost: proxyHost,
+				proxyPort: proxyPort,
+				proxyUser: proxyUser,
+				proxyPassword: proxyPassword,
+				proxyWorkstation: proxyWorkstation,
+				proxyDomain: proxyDomain,
+				provider: this
+			)
+		}
+		return httpTransport
+	}
+
+	public void shutdown() {
+		synchronized(this) {
+			httpTransport?.close()
+			httpTransport = null
+		}
 	}
 
 	Directory getDirectory(String name) {
@@ -236,6 +285,9 @@ class GoogleStorageProvider extends StorageProvider {
 							newValue = newValue + '; boundary=' +  rowBoundary
 							request.setHeader('Content-Type', newValue)
 						}
+					} else if (opts.body.type == 'bytes') {
+						//a slice of a reusable buffer
+						postRequest.setEntity(new ByteArrayEntity(opts.body.bytes, opts.body.offset ?: 0, opts.body.length))
 					} else if (opts.body.type == 'inputStream') {
 						expectJson = false
 						//postRequest.setEntity(new InputStreamEntity(opts.body.inputStream, opts.body.contentLength))
@@ -361,11 +413,15 @@ class GoogleStorageProvider extends StorageProvider {
 			try {
 				return cl.call(opts.httpClient)
 			} finally {
-				if(!opts.reuse) {
+				if(!opts.reuse && !opts.httpClient.is(httpTransport?.client)) {
 					opts.httpClient.connectionManager.shutdown()
 				}
 			}
 		}
+		if(usesPooledClient(opts)) {
+			//connections are returned to the pool once the response is consumed or closed
+			return cl.call(getHttpTransport().client)
+		}
 		def ignoreSSL = (opts.ignoreSSL == null || opts.ignoreSSL == true)
 		HttpClientBuilder clientBuilder = HttpClients.custom()
 		if(opts.noRedirects) {
@@ -530,6 +586,19 @@ class GoogleStorageProvider extends StorageProvider {
 		}
 	}
 
+	/**
+	 * Calls with custom ssl, certificate, redirect or timeout settings get a dedicated client
+	 */
+	private Boolean usesPooledClient(opts) {
+		if(opts.noRedirects || opts.connectTimeout || opts.readTimeout || opts.cert || opts.privateKey) {
+			return false
+		}
+		if(opts.ignoreSSL == false) {
+			return false
+		}
+		return opts.proxySettings == getProxySettings()
+	}
+
 	def parseRestError(jsonResults) {
 		log.error "parseRestError ${jsonResults}"
 		def err = [msg: null]
@@ -566,6 +635,18 @@ class GoogleStorageProvider extends StorageProvider {
 
 	private getAuthHeaders() {
 		log.debug "getAuthHeaders"
+		def credentialHeaders = getCredentials().getRequestMetadata(new java.net.URI("https://storage.googleapis.com"))
+		[Authorization: credentialHeaders['Authorization'].getAt(0)]
+	}
+
+	/**
+	 * The service account credentials are kept for the life of the provider so the access token is only refreshed
+	 * when it expires rather than on every api call
+	 */
+	private synchronized getCredentials() {
+		if(credentials) {
+			return credentials
+		}
 
 String credentialsString = """
 {
@@ -581,11 +662,8 @@ String credentialsString = """
 }
 """
 		InputStream is = new ByteArrayInputStream(credentialsString.getBytes())
-		def credentials = ServiceAccountCredentials.fromStream(is).createScoped(StorageScopes.all())
-
-		def uri = new java.net.URI("https://storage.googleapis.com")
-		def credentialHeaders = credentials.getRequestMetadata(uri);
-		[Authorization: credentialHeaders['Authorization'].getAt(0)]
+		credentials = ServiceAccountCredentials.fromStream(is).createScoped(StorageScopes.all())
+		return credentials
 	}
 
 }
\ No newline at end of file
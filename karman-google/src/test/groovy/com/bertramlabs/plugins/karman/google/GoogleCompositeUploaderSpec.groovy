@@ -0,0 +1,168 @@
+package com.bertramlabs.plugins.karman.google
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class GoogleCompositeUploaderSpec extends Specification {
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length]
+		new Random(length).nextBytes(data)
+		return data
+	}
+
+	@Unroll
+	def "#parts components are composed with #expectedComposeCalls compose calls of at most 32 sources"() {
+		given:
+		def storage = new ComposeRecordingStorageProvider()
+		byte[] data = randomBytes(parts * 100)
+		def uploader = new GoogleCompositeUploader(storage, 'bucket', 'big/file.bin', 100l, 4)
+
+		expect:
+		uploader.upload(new ByteArrayInputStream(data), data.length, [contentType: 'application/x-test'])
+		storage.objects['big/file.bin'] == data
+		storage.composeSources.size() == expectedComposeCalls
+		storage.composeSources.every { it.size() <= GoogleCompositeUploader.MAX_COMPOSE_SOURCES }
+		storage.composeSources.last().size() == expectedFinalSources
+		storage.destinations['big/file.bin'].contentType == 'application/x-test'
+		storage.objects.keySet() == ['big/file.bin'] as Set
+
+		where:
+		parts | expectedComposeCalls | expectedFinalSources
+		1     | 1                    | 1
+		32    | 1                    | 32
+		33    | 3                    | 2
+		64    | 3                    | 2
+		100   | 5                    | 4
+		1025  | 36                   | 2
+	}
+
+	def "intermediate objects keep the component order"() {
+		given:
+		def storage = new ComposeRecordingStorageProvider()
+		byte[] data = randomBytes(70 * 10 + 3)
+		def uploader = new GoogleCompositeUploader(storage, 'bucket', 'file.bin', 10l, 3)
+
+		when:
+		boolean uploaded = uploader.upload(new ByteArrayInputStream(data), data.length, [:])
+
+		then:
+		uploaded
+		storage.objects['file.bin'] == data
+		storage.composeSources*.size() == [32, 32, 7, 3]
+		storage.composeSources[0] == storage.composeSources[0].sort(false)
+		storage.composeSources.last() == storage.composeSources.last().sort(false)
+	}
+
+	def "components are uploaded concurrently up to the concurrency"() {
+		given:
+		def storage = new ComposeRecordingStorageProvider(uploadDelay: 20)
+		byte[] data = randomBytes(2000)
+		def uploader = new GoogleCompositeUploader(storage, 'bucket', 'file.bin', 100l, 3)
+
+		expect:
+		uploader.upload(new ByteArrayInputStream(data), data.length, [:])
+		storage.maxInFlight > 1
+		storage.maxInFlight <= 3
+	}
+
+	def "a failed component upload is retried"() {
+		given:
+		def storage = new ComposeRecordingStorageProvider(failingUploads: 1)
+		byte[] data = randomBytes(500)
+		def uploader = new GoogleCompositeUploader(storage, 'bucket', 'file.bin', 100l, 2)
+
+		expect:
+		uploader.upload(new ByteArrayInputStream(data), data.length, [:])
+		storage.objects['file.bin'] == data
+		storage.objects.size() == 1
+	}
+
+	def "a failed upload deletes every temporary component"() {
+		given:
+		def storage = new ComposeRecordingStorageProvider(failingUploads: 1000)
+		def uploader = new GoogleCompositeUploader(storage, 'bucket', 'file.bin', 100l, 2)
+
+		expect:
+		!uploader.upload(new ByteArrayInputStream(randomBytes(500)), 500, [:])
+		storage.objects.isEmpty()
+	}
+
+	def "a failed compose deletes the components and intermediates"() {
+		given:
+		def storage = new ComposeRecordingStorageProvider(failingComposeTarget: 'file.bin')
+		def uploader = new GoogleCompositeUploader(storage, 'bucket', 'file.bin', 10l, 2)
+
+		expect:
+		!uploader.upload(new ByteArrayInputStream(randomBytes(400)), 400, [:])
+		storage.composeSources.size() == 3
+		storage.objects.isEmpty()
+	}
+}
+
+/**
+ * Keeps uploaded and composed objects in memory instead of calling the storage api.
+ */
+class ComposeRecordingStorageProvider extends GoogleStorageProvider {
+	Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>()
+	Map<String, Map> destinations = new ConcurrentHashMap<String, Map>()
+	List<List<String>> composeSources = Collections.synchronizedList([])
+	AtomicInteger inFlight = new AtomicInteger()
+	int maxInFlight = 0
+	long uploadDelay = 0
+	int failingUploads = 0
+	String failingComposeTarget
+
+	ComposeRecordingStorageProvider() {
+		super([:])
+	}
+
+	@Override
+	def callApi(String url, String path, Map opts = [:], String method = 'POST') {
+		if(method == 'POST' && path.startsWith('upload/')) {
+			int current = inFlight.incrementAndGet()
+			synchronized(this) {
+				maxInFlight = Math.max(maxInFlight, current)
+			}
+			try {
+				Thread.sleep(uploadDelay)
+				synchronized(this) {
+					if(failingUploads > 0) {
+						failingUploads--
+						return [success: false, errorCode: 503]
+					}
+				}
+				Map body = (Map) opts.body
+				objects[opts.query.name] = Arrays.copyOfRange((byte[]) body.bytes, (int) body.offset, (int) body.offset + (int) body.length)
+				return [success: true]
+			} finally {
+				inFlight.decrementAndGet()
+			}
+		}
+		if(method == 'POST' && opts.additionalPathSegments?.getAt(1) == 'compose') {
+			String target = opts.additionalPathSegments[0]
+			List<String> sources = opts.body.sourceObjects*.name
+			composeSources << sources
+			if(target == failingComposeTarget) {
+				return [success: false, errorCode: 400, content: 'compose failed']
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream()
+			sources.each { String source ->
+				if(!objects.containsKey(source)) {
+					throw new IllegalStateException("Missing compose source ${source}")
+				}
+				out.write(objects[source])
+			}
+			objects[target] = out.toByteArray()
+			destinations[target] = opts.body.destination
+			return [success: true]
+		}
+		if(method == 'DELETE') {
+			return objects.remove(opts.additionalPathSegments[0]) != null ? [success: true] : [success: false, statusCode: 404]
+		}
+		throw new IllegalStateException("Unexpected ${method} ${path}")
+	}
+}
@@ -1,6 +1,21 @@
 package com.bertramlabs.plugins.karman.local
 
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentHashMap
+
 class LocalStorageController {
+    static final int BUFFER_SIZE = 64 * 1024
+    /**
+     * Requests asking for more (non overlapping) ranges than this are answered with the whole file
+     */
+    static final int MAX_RANGES = 16
+
+    private static final Map<String, LocalStorageProvider> providers = new ConcurrentHashMap<String, LocalStorageProvider>()
 
     def show() {
     	String storagePath = grailsApplication.config.getProperty('grails.plugin.karman.storagePath',String,'storage')
@@ -11,7 +26,7 @@ class LocalStorageController {
             return
         }
 
-		def provider    = new LocalStorageProvider(basePath: storagePath)
+		def provider    = providerFor(storagePath)
 		def extension   = extensionFromURI(request.requestURI)
 		def directoryName = params.directory ?: '.'
 		def fileName = params.id
@@ -27,23 +42,259 @@ class LocalStorageController {
         	return
         }
         def localFile = provider[directoryName][fileName]
-        if(!localFile.exists()) {
+        File fsFile = localFile.fsFile
+        BasicFileAttributes attributes = readAttributes(fsFile)
+        if(attributes == null || !attributes.isRegularFile()) {
             render status: 404
             return
         }
 
         // TODO: Private File Restrictions
 
+        long length = attributes.size()
+        long lastModified = attributes.lastModifiedTime().toMillis()
+        String etag = "\"${Long.toHexString(lastModified)}-${Long.toHexString(length)}\"".toString()
+        response.setHeader('ETag', etag)
+        response.setDateHeader('Last-Modified', lastModified)
+        response.setHeader('Accept-Ranges', 'bytes')
+
+        Integer preconditionStatus = checkPreconditions(etag, lastModified)
+        if(preconditionStatus) {
+            render status: preconditionStatus
+            return
+        }
+
         response.characterEncoding = request.characterEncoding
         response.contentType = format
 
         if(sendFileHeader) {
-            response.setHeader(sendFileHeader, localFile.fsFile.canonicalPath)
-        } else {
-            response.outputStream << localFile.bytes
+            response.setHeader(sendFileHeader, fsFile.canonicalPath)
+            return
+        }
+
+        List<long[]> ranges = requestedRanges(length, etag, lastModified)
+        if(ranges != null && ranges.isEmpty()) {
+            response.setHeader('Content-Range', "bytes */${length}".toString())
+            render status: 416
+            return
+        }
+
+        FileChannel channel = FileChannel.open(fsFile.toPath(), StandardOpenOption.READ)
+        try {
+            if(ranges == null) {
+                response.setContentLengthLong(length)
+                sendBody { OutputStream out, byte[] buffer ->
+                    writeRange(channel, out, 0, length, buffer)
+                }
+            } else if(ranges.size() == 1) {
+                long[] range = ranges[0]
+                response.status = 206
+                response.setHeader('Content-Range', "bytes ${range[0]}-${range[1]}/${length}".toString())
+                response.setContentLengthLong(range[1] - range[0] + 1)
+                sendBody { OutputStream out, byte[] buffer ->
+                    writeRange(channel, out, range[0], range[1] - range[0] + 1, buffer)
+                }
+            } else {
+                sendMultipartRanges(channel, ranges, length, format ?: 'application/octet-stream')
+            }
+        } finally {
+            channel.close()
+        }
+    }
+
+    /**
+     * Answers with a {@code multipart/byteranges} body holding one part per range.
+     */
+    private void sendMultipartRanges(FileChannel channel, List<long[]> ranges, long length, String partContentType) {
+        String boundary = UUID.randomUUID().toString().replace('-', '')
+        List<byte[]> partHeaders = ranges.collect { long[] range ->
+            "\r\n--${boundary}\r\nContent-Type: ${partContentType}\r\nContent-Range: bytes ${range[0]}-${range[1]}/${length}\r\n\r\n".toString().getBytes(StandardCharsets.ISO_8859_1)
+        }
+        byte[] closingBoundary = "\r\n--${boundary}--\r\n".toString().getBytes(StandardCharsets.ISO_8859_1)
+        long contentLength = closingBoundary.length
+        for(int i = 0; i < ranges.size(); i++) {
+            contentLength += partHeaders[i].length + ranges[i][1] - ranges[i][0] + 1
+        }
+        response.status = 206
+        response.contentType = "multipart/byteranges; boundary=${boundary}".toString()
+        response.setContentLengthLong(contentLength)
+        sendBody { OutputStream out, byte[] buffer ->
+            for(int i = 0; i < ranges.size(); i++) {
+                out.write(partHeaders[i])
+                writeRange(channel, out, ranges[i][0], ranges[i][1] - ranges[i][0] + 1, buffer)
+            }
+            out.write(closingBoundary)
+        }
+    }
+
+    /**
+     * Streams the body through a fixed size buffer, HEAD requests only get the headers.
+     */
+    private void sendBody(Closure writer) {
+        if(request.method == 'HEAD') {
+            response.flushBuffer()
+            return
+        }
+        try {
+            writer.call(response.outputStream, new byte[BUFFER_SIZE])
             response.flushBuffer()
+        } catch(IOException ex) {
+            //typically the client went away, i.e. a video player seeking to another range
+            log.debug("Error sending ${request.requestURI}: ${ex.message}")
         }
+    }
 
+    private static void writeRange(FileChannel channel, OutputStream out, long start, long count, byte[] buffer) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer)
+        long position = start
+        long remaining = count
+        while(remaining > 0) {
+            byteBuffer.clear()
+            byteBuffer.limit((int) Math.min((long) buffer.length, remaining))
+            int read = channel.read(byteBuffer, position)
+            if(read < 0) {
+                throw new EOFException("File was truncated while sending")
+            }
+            out.write(buffer, 0, read)
+            position += read
+            remaining -= read
+        }
+    }
+
+    /**
+     * Evaluates the conditional request headers in the order of RFC 7232.
+     * @return 412 or 304 if the request should not be served, null otherwise
+     */
+    private Integer checkPreconditions(String etag, long lastModified) {
+        String ifMatch = request.getHeader('If-Match')
+        if(ifMatch) {
+            if(!matchesETag(ifMatch, etag, false)) {
+                return 412
+            }
+        } else {
+            long ifUnmodifiedSince = dateHeader('If-Unmodified-Since')
+            if(ifUnmodifiedSince >= 0 && lastModified.intdiv(1000) > ifUnmodifiedSince.intdiv(1000)) {
+                return 412
+            }
+        }
+        String ifNoneMatch = request.getHeader('If-None-Match')
+        if(ifNoneMatch) {
+            if(matchesETag(ifNoneMatch, etag, true)) {
+                return 304
+            }
+        } else {
+            long ifModifiedSince = dateHeader('If-Modified-Since')
+            if(ifModifiedSince >= 0 && lastModified.intdiv(1000) <= ifModifiedSince.intdiv(1000)) {
+                return 304
+            }
+        }
+        return null
+    }
+
+    private static boolean matchesETag(String header, String etag, boolean weak) {
+        if(header.trim() == '*') {
+            return true
+        }
+        return header.split(',').any { String candidate ->
+            candidate = candidate.trim()
+            if(weak && candidate.startsWith('W/')) {
+                candidate = candidate.substring(2)
+            }
+            candidate == etag
+        }
+    }
+
+    /**
+     * Parses the Range header into sorted, coalesced inclusive byte ranges.
+     * @return null to send the whole file (no range, an invalid header or an If-Range that no longer matches),
+     *   an empty list if no range can be satisfied
+     */
+    private List<long[]> requestedRanges(long length, String etag, long lastModified) {
+        String rangeHeader = request.getHeader('Range')
+        if(!rangeHeader || !rangeHeader.startsWith('bytes=')) {
+            return null
+        }
+        String ifRange = request.getHeader('If-Range')
+        if(ifRange) {
+            if(ifRange.startsWith('"') || ifRange.startsWith('W/')) {
+                if(ifRange != etag) {
+                    return null
+                }
+            } else if(dateHeader('If-Range').intdiv(1000) != lastModified.intdiv(1000)) {
+                return null
+            }
+        }
+        List<long[]> ranges = []
+        try {
+            for(String spec : rangeHeader.substring(6).split(',')) {
+                spec = spec.trim()
+                int dash = spec.indexOf('-')
+                if(dash < 0) {
+                    return null
+                }
+                String first = spec.substring(0, dash).trim()
+                String last = spec.substring(dash + 1).trim()
+                long start
+                long end
+                if(!first) {
+                    long suffixLength = Long.parseLong(last)
+                    if(suffixLength == 0 || length == 0) {
+                        continue
+                    }
+                    start = Math.max(0l, length - suffixLength)
+                    end = length - 1
+                } else {
+                    start = Long.parseLong(first)
+                    end = last ? Long.parseLong(last) : Long.MAX_VALUE
+                    if(end < start) {
+                        return null
+                    }
+                    if(start >= length) {
+                        continue
+                    }
+                    end = Math.min(end, length - 1)
+                }
+                ranges << ([start, end] as long[])
+            }
+        } catch(NumberFormatException ex) {
+            return null
+        }
+        if(ranges.size() > 1) {
+            ranges.sort { long[] range -> range[0] }
+            List<long[]> coalesced = [ranges[0]]
+            for(int i = 1; i < ranges.size(); i++) {
+                long[] previous = coalesced[-1]
+                if(ranges[i][0] <= previous[1] + 1) {
+                    previous[1] = Math.max(previous[1], ranges[i][1])
+                } else {
+                    coalesced << ranges[i]
+                }
+            }
+            ranges = coalesced
+        }
+        return ranges.size() > MAX_RANGES ? null : ranges
+    }
+
+    private long dateHeader(String name) {
+        try {
+            return request.getDateHeader(name)
+        } catch(IllegalArgumentException ex) {
+            return -1
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes)
+        } catch(IOException ex) {
+            return null
+        }
+    }
+
+    private static LocalStorageProvider providerFor(String storagePath) {
+        return providers.computeIfAbsent(storagePath) { String basePath ->
+            new LocalStorageProvider(basePath: basePath)
+        }
     }
 
     private extensionFromURI(uri) {
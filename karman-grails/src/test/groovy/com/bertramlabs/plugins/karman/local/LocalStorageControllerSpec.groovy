@@ -0,0 +1,199 @@
+package com.bertramlabs.plugins.karman.local
+
+import grails.testing.web.controllers.ControllerUnitTest
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class LocalStorageControllerSpec extends Specification implements ControllerUnitTest<LocalStorageController> {
+
+    static final long LAST_MODIFIED = 1500000000000l
+
+    File storageDir
+    byte[] content
+
+    def setup() {
+        storageDir = File.createTempDir()
+        File file = new File(storageDir, 'files/data.bin')
+        file.parentFile.mkdirs()
+        content = (0..<100).collect { it as byte } as byte[]
+        file.bytes = content
+        file.setLastModified(LAST_MODIFIED)
+        config.setAt('grails.plugin.karman.storagePath', storageDir.path)
+        request.requestURI = '/storage/files/data.bin'
+        params.directory = 'files'
+        params.id = 'data.bin'
+    }
+
+    def cleanup() {
+        storageDir.deleteDir()
+    }
+
+    def "a request without a range returns the whole file"() {
+        when:
+        controller.show()
+
+        then:
+        response.status == 200
+        response.contentAsByteArray == content
+        response.getHeader('Accept-Ranges') == 'bytes'
+        response.getHeader('ETag') == etag()
+        response.contentLength == 100
+    }
+
+    def "a missing file is not found"() {
+        given:
+        params.id = 'missing.bin'
+        request.requestURI = '/storage/files/missing.bin'
+
+        when:
+        controller.show()
+
+        then:
+        response.status == 404
+    }
+
+    @Unroll
+    def "the range #range returns bytes #start to #end"() {
+        given:
+        request.addHeader('Range', range)
+
+        when:
+        controller.show()
+
+        then:
+        response.status == 206
+        response.getHeader('Content-Range') == "bytes ${start}-${end}/100".toString()
+        response.contentLength == end - start + 1
+        response.contentAsByteArray == Arrays.copyOfRange(content, start, end + 1)
+
+        where:
+        range             | start | end
+        'bytes=10-19'     | 10    | 19
+        'bytes=90-'       | 90    | 99
+        'bytes=-5'        | 95    | 99
+        'bytes=95-500'    | 95    | 99
+        'bytes=0-4,3-9'   | 0     | 9
+        'bytes=200-,5-6'  | 5     | 6
+    }
+
+    def "a range past the end of the file cannot be satisfied"() {
+        given:
+        request.addHeader('Range', 'bytes=100-')
+
+        when:
+        controller.show()
+
+        then:
+        response.status == 416
+        response.getHeader('Content-Range') == 'bytes */100'
+    }
+
+    @Unroll
+    def "the invalid range #range returns the whole file"() {
+        given:
+        request.addHeader('Range', range)
+
+        when:
+        controller.show()
+
+        then:
+        response.status == 200
+        response.contentAsByteArray == content
+
+        where:
+        range << ['items=0-4', 'bytes=9-4', 'bytes=a-b', 'bytes=5']
+    }
+
+    def "disjoint ranges are sent as a multipart body"() {
+        given:
+        request.addHeader('Range', 'bytes=0-1,10-11')
+
+        when:
+        controller.show()
+        String body = new String(response.contentAsByteArray, 'ISO-8859-1')
+
+        then:
+        response.status == 206
+        response.contentType.startsWith('multipart/byteranges; boundary=')
+        response.contentLength == response.contentAsByteArray.length
+        body.contains('Content-Range: bytes 0-1/100\r\n\r\n' + new String(Arrays.copyOfRange(content, 0, 2), 'ISO-8859-1'))
+        body.contains('Content-Range: bytes 10-11/100\r\n\r\n' + new String(Arrays.copyOfRange(content, 10, 12), 'ISO-8859-1'))
+    }
+
+    @Unroll
+    def "an If-Range of #ifRange #outcome the range"() {
+        given:
+        request.addHeader('Range', 'bytes=10-19')
+        request.addHeader('If-Range', ifRange == 'the etag' ? etag() : ifRange == 'the date' ? new Date(LAST_MODIFIED) : ifRange)
+
+        when:
+        controller.show()
+
+        then:
+        response.status == status
+
+        where:
+        ifRange                             | status | outcome
+        'the etag'                          | 206    | 'keeps'
+        'the date'                          | 206    | 'keeps'
+        '"stale"'                           | 200    | 'ignores'
+        new Date(LAST_MODIFIED - 5000l)     | 200    | 'ignores'
+    }
+
+    @Unroll
+    def "#header: #value answers #status"() {
+        given:
+        request.addHeader(header, value == 'the etag' ? etag() : value == 'weak etag' ? "W/${etag()}".toString() : value)
+
+        when:
+        controller.show()
+
+        then:
+        response.status == status
+        status != 200 || response.contentAsByteArray == content
+
+        where:
+        header                | value                            | status
+        'If-None-Match'       | 'the etag'                       | 304
+        'If-None-Match'       | 'weak etag'                      | 304
+        'If-None-Match'       | '*'                              | 304
+        'If-None-Match'       | '"other"'                        | 200
+        'If-Match'            | 'the etag'                       | 200
+        'If-Match'            | '"other"'                        | 412
+        'If-Match'            | 'weak etag'                      | 412
+        'If-Modified-Since'   | new Date(LAST_MODIFIED)          | 304
+        'If-Modified-Since'   | new Date(LAST_MODIFIED - 5000l)  | 200
+        'If-Unmodified-Since' | new Date(LAST_MODIFIED)          | 200
+        'If-Unmodified-Since' | new Date(LAST_MODIFIED - 5000l)  | 412
+    }
+
+    def "If-None-Match takes precedence over If-Modified-Since"() {
+        given:
+        request.addHeader('If-None-Match', '"other"')
+        request.addHeader('If-Modified-Since', new Date(LAST_MODIFIED))
+
+        when:
+        controller.show()
+
+        then:
+        response.status == 200
+    }
+
+    def "a HEAD request only sends the headers"() {
+        given:
+        request.method = 'HEAD'
+        request.addHeader('Range', 'bytes=10-19')
+
+        when:
+        controller.show()
+
+        then:
+        response.status == 206
+        response.contentLength == 10
+        response.contentAsByteArray.length == 0
+    }
+
+    private static String etag() {
+        return "\"${Long.toHexString(LAST_MODIFIED)}-${Long.toHexString(100)}\"".toString()
+    }
+}
@@ -2,10 +2,15 @@ package com.bertramlabs.plugins.karman.nfs
 
 import com.bertramlabs.plugins.karman.CloudFile
 import com.bertramlabs.plugins.karman.Directory
+import com.bertramlabs.plugins.karman.RandomAccessOutput
+import com.bertramlabs.plugins.karman.metrics.MeteredInputStream
+import com.bertramlabs.plugins.karman.metrics.MeteredOutputStream
+import com.bertramlabs.plugins.karman.metrics.NoopStorageMetrics
+import com.bertramlabs.plugins.karman.metrics.OperationTimer
+import com.bertramlabs.plugins.karman.metrics.StorageMetrics
 import com.bertramlabs.plugins.karman.util.Mimetypes
 import com.emc.ecs.nfsclient.nfs.io.Nfs3File
 import com.emc.ecs.nfsclient.nfs.io.NfsFileOutputStream
-import groovy.transform.CompileStatic
 import groovy.util.logging.Commons
 
 /**
@@ -28,7 +33,11 @@ class NfsCloudFile extends CloudFile{
 	@Override
 	InputStream getInputStream() {
 		if(baseFile.exists()) {
-			return new NfsFileInputStream(baseFile);
+			if(provider.readAheadDepth) {
+				//read ahead requests use the largest transfer size the server allows
+				return metered(new NfsFileInputStream(baseFile, 0, Integer.MAX_VALUE, provider.readAheadDepth, provider.getReadExecutor()))
+			}
+			return metered(new NfsFileInputStream(baseFile));
 		}
 		return null;
 	}
@@ -43,7 +52,24 @@ class NfsCloudFile extends CloudFile{
 		if(!baseFile.exists()) {
 			baseFile.createNewFile()
 		}
-		return new NfsFileOutputStream(baseFile)
+		OutputStream outputStream = new NfsFileOutputStream(baseFile)
+		StorageMetrics metrics = provider?.metrics
+		if(metrics == null || metrics instanceof NoopStorageMetrics) {
+			return outputStream
+		}
+		return new MeteredOutputStream(outputStream, metrics, provider.providerName, 'write')
+	}
+
+	@Override
+	RandomAccessOutput getRandomAccessOutput() {
+		try {
+			if(!baseFile.parentFile.exists()) {
+				baseFile.parentFile.mkdirs()
+			}
+		} catch(ex) {
+			log.warn("Error ensuring path exists: ${baseFile.parentFile.path} - ${ex.message}...This may be ok though, moving on.")
+		}
+		return new NfsRandomAccessOutput(baseFile)
 	}
 
 	@Override
@@ -116,31 +142,17 @@ class NfsCloudFile extends CloudFile{
 			} catch(ex) {
 				log.warn("Error ensuring path exists: ${baseFile.parentFile.path} - ${ex.message}...This may be ok though, moving on.")
 			}
-
-
-				copyStream(sourceStream, getOutputStream())
+			try {
+				long written = new NfsPipelinedWriter(baseFile, provider.writeConcurrency).write(sourceStream)
+				OperationTimer.metricsOf(provider).bytesWritten(OperationTimer.nameOf(provider), 'write', written)
+			} finally {
+				sourceStream.close()
+			}
 			sourceStream = null
 		}
 		return
 	}
 
-	@CompileStatic
-	private copyStream(InputStream source, OutputStream out) {
-		try {
-			byte[] buffer = new byte[8192*2];
-			int len;
-			while ((len = source.read(buffer)) != -1) {
-				out.write(buffer, 0, len);
-			}
-		} finally {
-			try {
-				out.flush()
-				out.close()
-			} catch(ex) {}
-			source.close()
-		}
-	}
-
 	@Override
 	def delete() {
 		if(baseFile.exists()) {
@@ -193,4 +205,11 @@ class NfsCloudFile extends CloudFile{
 		log.warn("Karman CloudFile Meta Attributes Not Available for NfsCloudFile")
 	}
 
+	private InputStream metered(InputStream inputStream) {
+		StorageMetrics metrics = provider?.metrics
+		if(metrics == null || metrics instanceof NoopStorageMetrics) {
+			return inputStream
+		}
+		return new MeteredInputStream(inputStream, metrics, provider.providerName, 'read')
+	}
 }
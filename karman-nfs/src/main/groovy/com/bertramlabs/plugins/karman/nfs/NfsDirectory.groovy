@@ -2,6 +2,8 @@ package com.bertramlabs.plugins.karman.nfs
 
 import com.bertramlabs.plugins.karman.CloudFile
 import com.bertramlabs.plugins.karman.Directory
+import com.bertramlabs.plugins.karman.ListingPage
+import com.bertramlabs.plugins.karman.util.TreeListing
 import com.emc.ecs.nfsclient.nfs.io.Nfs3File
 import com.emc.ecs.nfsclient.nfs.nfs3.Nfs3
 import com.emc.ecs.nfsclient.rpc.CredentialUnix
@@ -24,7 +26,64 @@ class NfsDirectory extends Directory {
 
 	List listFiles(options = [:]) {
 		Collection<NfsCloudFile> rtn = []
+		Map filter = listingFilter(options)
+		def delimiter = options.delimiter
+		def rootFolder = filter.rootFolder
+		def includes = filter.includes
+		def excludes = filter.excludes
+
+		convertFilesToCloudFiles(rootFolder, includes,excludes, rtn)
 
+		if(delimiter != '/') {
+			for(int counter = 0; counter < rtn.size(); counter++) {
+				NfsCloudFile currentFile = rtn[counter]
+				if(currentFile.isDirectory()) {
+					convertFilesToCloudFiles(currentFile.baseFile, includes, excludes, rtn, counter + 1)
+				}
+			}
+		}
+		rtn = rtn?.findAll {
+			isMatchedFile(it.name,includes,excludes)
+		}?.sort{ a, b ->  a.isFile() <=> b.isFile() ?: a.name <=> b.name}
+
+		return rtn
+	}
+
+	/**
+	 * Lists a single page of files in depth first, name sorted order without building the whole tree.
+	 * The continuation token is the name of the last file returned.
+	 * @param options same as listFiles plus pageSize and continuationToken
+	 */
+	ListingPage listFilesPage(Map options = [:]) {
+		Map filter = listingFilter(options)
+		def includes = filter.includes
+		def excludes = filter.excludes
+		NfsDirectory directory = this
+		TreeListing<Nfs3File> listing = new TreeListing<Nfs3File>() {
+			protected Collection<Nfs3File> listChildren(Nfs3File folder) {
+				return folder.exists() ? folder.listFiles()?.toList() : null
+			}
+
+			protected String getKey(Nfs3File entry) {
+				return directory.relativePath(entry)
+			}
+
+			protected boolean isFolder(Nfs3File entry) {
+				return entry.isDirectory()
+			}
+
+			protected boolean matches(String key) {
+				return directory.isMatchedFile(key, includes, excludes)
+			}
+
+			protected CloudFile toCloudFile(Nfs3File entry, String key) {
+				return new NfsCloudFile(provider: directory.provider, parent: directory, name: key, baseFile: entry)
+			}
+		}
+		return listing.listPage(filter.rootFolder as Nfs3File, options?.delimiter != '/', (options?.pageSize ?: DEFAULT_PAGE_SIZE) as Integer, options?.continuationToken as String)
+	}
+
+	private Map listingFilter(options) {
 		def delimiter = options.delimiter
 		FileSystem fileSystem = FileSystems.getDefault()
 		String prefix
@@ -71,31 +130,22 @@ class NfsDirectory extends Directory {
 			excludes << fileSystem.getPathMatcher("glob:**/*")
 			includes << fileSystem.getPathMatcher("glob:*")
 		}
-		convertFilesToCloudFiles(rootFolder, includes,excludes, rtn)
+		return [rootFolder: rootFolder, includes: includes, excludes: excludes]
+	}
 
-		if(delimiter != '/') {
-			for(int counter = 0; counter < rtn.size(); counter++) {
-				NfsCloudFile currentFile = rtn[counter]
-				if(currentFile.isDirectory()) {
-					convertFilesToCloudFiles(currentFile.baseFile, includes, excludes, rtn, counter + 1)
-				}
-			}
+	private String relativePath(Nfs3File file) {
+		def path = file.path.substring(baseFile.path.length() - 1)
+		if(path.startsWith('/')) {
+			path = path.substring(1)
 		}
-		rtn = rtn?.findAll {
-			isMatchedFile(it.name,includes,excludes)
-		}?.sort{ a, b ->  a.isFile() <=> b.isFile() ?: a.name <=> b.name}
-
-		return rtn
+		return path
 	}
 
 	private void convertFilesToCloudFiles(Nfs3File parentFile, includes, excludes, fileList, position=0) {
 		Collection<NfsCloudFile> files = [];
 		if(parentFile.exists()) {
 			parentFile.listFiles()?.each { listFile ->
-				def path = listFile.path.substring(baseFile.path.length() - 1)
-				if(path.startsWith('/')) {
-					path = path.substring(1)
-				}
+				def path = relativePath(listFile)
 				if(isMatchedFile(path,includes,excludes)) {
 					files << new NfsCloudFile(provider:provider, parent:this, name:path, baseFile: listFile)
 				}
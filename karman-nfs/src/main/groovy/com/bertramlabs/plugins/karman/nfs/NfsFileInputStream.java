@@ -18,9 +18,23 @@ import com.emc.ecs.nfsclient.nfs.NfsReadResponse;
 import com.emc.ecs.nfsclient.nfs.io.*;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * The NFS equivalent of <code>java.io.FileInputStream</code>.
+ * <p>
+ * When created with a <code>readAheadDepth</code> greater than 0 the stream
+ * keeps that many offset based READ requests in flight ahead of the reader,
+ * so the network round trip of one request overlaps with the others. The
+ * responses are handed back in file order.
+ * </p>
  * 
  * @author seibed
  */
@@ -44,7 +58,7 @@ public class NfsFileInputStream extends InputStream {
     /**
      * The byte buffer, used to hold data from the file during reading.
      */
-    private final byte[] _bytes;
+    private byte[] _bytes;
 
     /**
      * The total number of bytes in the buffer.
@@ -70,6 +84,40 @@ public class NfsFileInputStream extends InputStream {
      */
     private boolean _closed = false;
 
+    /**
+     * Number of READ requests kept in flight ahead of the reader, 0 to read
+     * synchronously.
+     */
+    private final int _readAheadDepth;
+
+    /**
+     * Runs the read ahead requests, only set when read ahead is enabled. It is
+     * shared with other streams and not shut down by this one.
+     */
+    private ExecutorService _executor;
+
+    /**
+     * Read ahead requests in file order.
+     */
+    private final ArrayDeque<Future<Chunk>> _pendingChunks = new ArrayDeque<Future<Chunk>>();
+
+    /**
+     * Buffers returned by consumed read ahead requests.
+     */
+    private BlockingQueue<byte[]> _bufferPool;
+
+    /**
+     * Offset of the next read ahead request, in bytes.
+     */
+    private long _nextRequestOffset;
+
+    /**
+     * File length used to decide how many read ahead requests to issue. It is
+     * refreshed whenever the pipeline runs empty, so a growing file is still
+     * read to its end.
+     */
+    private long _knownLength;
+
     /**
      * Creates a <code>NfsFileInputStream</code> by opening a connection to an
      * actual NFS file, using the specified <code>offset</code> and
@@ -92,6 +140,35 @@ public class NfsFileInputStream extends InputStream {
      *             reading.
      */
     public NfsFileInputStream(NfsFile<?, ?> nfsFile, long offset, int maximumBufferSize) throws IOException {
+        this(nfsFile, offset, maximumBufferSize, 0, null);
+    }
+
+    /**
+     * Creates a <code>NfsFileInputStream</code> by opening a connection to an
+     * actual NFS file, using the specified <code>offset</code> and
+     * <code>maximumBufferSize</code>, and keeping up to
+     * <code>readAheadDepth</code> READ requests of
+     * <code>maximumBufferSize</code> bytes in flight ahead of the reader on
+     * the given executor.
+     *
+     * @param nfsFile
+     *            The NFS file instance to be read.
+     * @param offset
+     *            The offset at which reading should start, in bytes.
+     * @param maximumBufferSize
+     *            The maximum buffer size to use in bytes.
+     * @param readAheadDepth
+     *            The number of READ requests kept in flight, 0 to read
+     *            synchronously.
+     * @param executor
+     *            Runs the READ requests, typically shared by the streams of
+     *            a provider. Closing the stream does not shut it down.
+     * @throws IOException
+     *             If the file does not exist, is a directory rather than a
+     *             regular file, or for some other reason cannot be opened for
+     *             reading.
+     */
+    public NfsFileInputStream(NfsFile<?, ?> nfsFile, long offset, int maximumBufferSize, int readAheadDepth, ExecutorService executor) throws IOException {
         // Validate the offset.
         if (offset < 0) {
             throw new IllegalArgumentException("Cannot start reading before offset 0: " + offset);
@@ -107,11 +184,26 @@ public class NfsFileInputStream extends InputStream {
             throw new IllegalArgumentException("The file must be readable by the client: " + nfsFile.getAbsolutePath());
         }
 
+        // Validate the read ahead depth.
+        if (readAheadDepth < 0) {
+            throw new IllegalArgumentException("Cannot have a read ahead depth < 0: " + readAheadDepth);
+        }
+        if (readAheadDepth > 0 && executor == null) {
+            throw new IllegalArgumentException("Cannot read ahead without an executor");
+        }
+
         _file = nfsFile;
         _offset = offset;
         maximumBufferSize = Math.min(maximumBufferSize,
                 (int) Math.min(_file.fsinfo().getFsInfo().rtmax, Integer.MAX_VALUE));
         _bytes = makeBytes(maximumBufferSize);
+        _readAheadDepth = _bytes.length > 0 ? readAheadDepth : 0;
+        if (_readAheadDepth > 0) {
+            _nextRequestOffset = offset;
+            _knownLength = _file.length();
+            _bufferPool = new ArrayBlockingQueue<byte[]>(_readAheadDepth + 1);
+            _executor = executor;
+        }
     }
 
     /**
@@ -189,6 +281,14 @@ public class NfsFileInputStream extends InputStream {
      */
     public void close() throws IOException {
         _closed = true;
+        if (_executor != null) {
+            // requests already sent are left to finish rather than interrupting
+            // a thread of the shared executor mid RPC
+            for (Future<Chunk> chunk : _pendingChunks) {
+                chunk.cancel(false);
+            }
+            _pendingChunks.clear();
+        }
         super.close();
     }
 
@@ -330,6 +430,10 @@ public class NfsFileInputStream extends InputStream {
      * @throws IOException
      */
     private void loadBytesAsNeeded() throws IOException {
+        if (_readAheadDepth > 0) {
+            loadBytesFromReadAhead();
+            return;
+        }
         if (available() <= 0) {
             _isEof = true;
         }
@@ -343,4 +447,108 @@ public class NfsFileInputStream extends InputStream {
         }
     }
 
+    /**
+     * Read ahead version of {@link #loadBytesAsNeeded()}. Tops up the pipeline
+     * of READ requests and swaps in the buffer of the oldest one once it
+     * completes.
+     * 
+     * @throws IOException
+     */
+    private void loadBytesFromReadAhead() throws IOException {
+        while ((!_isEof) && (bytesLeftInBuffer() <= 0)) {
+            if (_pendingChunks.isEmpty() && (_nextRequestOffset >= _knownLength)) {
+                _knownLength = _file.length();
+                if (_nextRequestOffset >= _knownLength) {
+                    _isEof = true;
+                    break;
+                }
+            }
+            while ((_pendingChunks.size() < _readAheadDepth) && (_nextRequestOffset < _knownLength)) {
+                _pendingChunks.add(_executor.submit(readChunk(_nextRequestOffset)));
+                _nextRequestOffset += _bytes.length;
+            }
+
+            Chunk chunk = awaitChunk(_pendingChunks.poll());
+            _bufferPool.offer(_bytes);
+            _bytes = chunk.bytes;
+            _currentBufferPosition = 0;
+            _bytesInBuffer = chunk.bytesRead;
+            _offset = chunk.offset + chunk.bytesRead;
+            if (chunk.isEof || (chunk.bytesRead < chunk.bytes.length)) {
+                // The file ended before the requests issued after this one.
+                for (Future<Chunk> pending : _pendingChunks) {
+                    pending.cancel(true);
+                }
+                _pendingChunks.clear();
+                _nextRequestOffset = _offset;
+                _knownLength = _offset;
+            }
+        }
+    }
+
+    /**
+     * Creates a READ request filling one buffer starting at
+     * <code>offset</code>. Short responses are continued from where they
+     * stopped, so only the end of the file yields a partial buffer.
+     * 
+     * @param offset
+     *            The file offset of the request.
+     * @return the request
+     */
+    private Callable<Chunk> readChunk(final long offset) {
+        byte[] pooled = _bufferPool.poll();
+        final byte[] bytes = pooled != null ? pooled : new byte[_bytes.length];
+        return new Callable<Chunk>() {
+            public Chunk call() throws Exception {
+                int bytesRead = 0;
+                boolean isEof = false;
+                while ((bytesRead < bytes.length) && !isEof) {
+                    NfsReadResponse response = _file.read(offset + bytesRead, bytes.length - bytesRead, bytes, bytesRead);
+                    bytesRead += response.getBytesRead();
+                    isEof = response.isEof() || (response.getBytesRead() == 0);
+                }
+                return new Chunk(offset, bytes, bytesRead, isEof);
+            }
+        };
+    }
+
+    /**
+     * Waits for a read ahead request, unwrapping its failure.
+     * 
+     * @param chunk
+     *            The pending request.
+     * @return the completed chunk
+     * @throws IOException
+     */
+    private Chunk awaitChunk(Future<Chunk> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + _file.getAbsolutePath());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error reading " + _file.getAbsolutePath(), e.getCause());
+        }
+    }
+
+    /**
+     * Result of a read ahead request.
+     */
+    private static class Chunk {
+        final long offset;
+        final byte[] bytes;
+        final int bytesRead;
+        final boolean isEof;
+
+        Chunk(long offset, byte[] bytes, int bytesRead, boolean isEof) {
+            this.offset = offset;
+            this.bytes = bytes;
+            this.bytesRead = bytesRead;
+            this.isEof = isEof;
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+package com.bertramlabs.plugins.karman.nfs
+
+import com.bertramlabs.plugins.karman.util.BoundedUploadPipeline
+import com.bertramlabs.plugins.karman.util.StreamUtils
+import com.emc.ecs.nfsclient.nfs.NfsCommitResponse
+import com.emc.ecs.nfsclient.nfs.NfsSetAttributes
+import com.emc.ecs.nfsclient.nfs.NfsWriteRequest
+import com.emc.ecs.nfsclient.nfs.NfsWriteResponse
+import com.emc.ecs.nfsclient.nfs.io.NfsFile
+import groovy.transform.CompileStatic
+import groovy.util.logging.Commons
+
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+
+/**
+ * Writes a stream to an {@link NfsFile} as {@code UNSTABLE} WRITE requests of the server's maximum write size
+ * ({@code wtmax}), with several requests in flight at known offsets, followed by a single COMMIT. The data is only
+ * guaranteed to be on stable storage once {@link #write(InputStream)} returns.
+ * <p>
+ * Every WRITE and the COMMIT return the server's write verifier. A changed verifier means the server restarted and
+ * may have dropped uncommitted data, and as the source stream cannot be replayed the write fails instead.
+ * </p>
+ */
+@Commons
+@CompileStatic
+class NfsPipelinedWriter {
+	NfsFile<?, ?> file
+	int concurrency
+
+	private Long writeVerifier
+
+	/**
+	 * @param file the file to write, it is created if missing and truncated otherwise
+	 * @param concurrency maximum number of WRITE requests in flight
+	 */
+	NfsPipelinedWriter(NfsFile<?, ?> file, int concurrency) {
+		this.file = file
+		this.concurrency = Math.max(1, concurrency)
+	}
+
+	/**
+	 * Writes the whole stream and commits it.
+	 * @return the number of bytes written
+	 */
+	long write(InputStream sourceStream) {
+		if(!file.exists()) {
+			file.createNewFile()
+		} else {
+			NfsSetAttributes attributes = new NfsSetAttributes()
+			attributes.setSize(0l)
+			file.setAttributes(attributes)
+		}
+		int writeSize = (int) Math.min(file.fsinfo().getFsInfo().wtmax, (long) Integer.MAX_VALUE - 8)
+		BoundedUploadPipeline<Object> pipeline = new BoundedUploadPipeline<Object>("karman-nfs-write", concurrency, concurrency + 1, writeSize)
+		long filePosition = 0
+		try {
+			while(true) {
+				pipeline.drainCompleted()
+				byte[] buffer = pipeline.takeBuffer()
+				int count = StreamUtils.readFully(sourceStream, buffer, writeSize)
+				if(count <= 0) {
+					pipeline.returnBuffer(buffer)
+					break
+				}
+				pipeline.submit(buffer, writeBlock(filePosition, buffer, count))
+				filePosition += count
+				if(count < writeSize) {
+					break //end of stream
+				}
+			}
+			pipeline.awaitAll()
+			if(filePosition > 0) {
+				NfsCommitResponse response = file.commit(0l, 0)
+				checkVerifier(response.getVerf())
+			}
+			log.debug("Wrote ${filePosition} bytes to ${file.path}")
+			return filePosition
+		} finally {
+			pipeline.close()
+		}
+	}
+
+	private Callable<Object> writeBlock(final long blockOffset, final byte[] buffer, final int length) {
+		return new Callable<Object>() {
+			@Override
+			Object call() throws Exception {
+				int written = 0
+				while(written < length) {
+					List<ByteBuffer> payload = [ByteBuffer.wrap(buffer, written, length - written)]
+					NfsWriteResponse response = file.write(blockOffset + written, payload, NfsWriteRequest.UNSTABLE)
+					checkVerifier(response.getVerf())
+					if(response.getCount() <= 0) {
+						throw new IOException("Server accepted no data writing ${file.path} at offset ${blockOffset + written}")
+					}
+					written += response.getCount()
+				}
+				return null
+			}
+		}
+	}
+
+	private synchronized void checkVerifier(long verifier) {
+		if(writeVerifier == null) {
+			writeVerifier = verifier
+		} else if(writeVerifier != verifier) {
+			throw new IOException("Write verifier of ${file.path} changed, the server restarted and uncommitted data may be lost")
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.bertramlabs.plugins.karman.nfs
+
+import com.bertramlabs.plugins.karman.RandomAccessOutput
+import com.emc.ecs.nfsclient.nfs.NfsSetAttributes
+import com.emc.ecs.nfsclient.nfs.NfsWriteRequest
+import com.emc.ecs.nfsclient.nfs.io.Nfs3File
+import com.emc.ecs.nfsclient.nfs.io.NfsFileOutputStream
+import groovy.transform.CompileStatic
+
+/**
+* Positional writer for a {@link NfsCloudFile}. Contiguous writes share a single {@link NfsFileOutputStream}, a new
+* stream is only opened at the target offset when a region is skipped. Skipped regions are never sent to the server
+* so they remain holes on exports that support sparse files.
+*/
+@CompileStatic
+class NfsRandomAccessOutput implements RandomAccessOutput {
+	private Nfs3File file
+	private NfsFileOutputStream out
+	private long outPosition = -1
+
+	NfsRandomAccessOutput(Nfs3File file) {
+		this.file = file
+		if(!file.exists()) {
+			file.createNewFile()
+		} else {
+			truncate(0)
+		}
+	}
+
+	@Override
+	void write(long position, byte[] buffer, int offset, int length) throws IOException {
+		if(out == null || outPosition != position) {
+			closeStream()
+			out = new NfsFileOutputStream(file, position, NfsWriteRequest.FILE_SYNC)
+			outPosition = position
+		}
+		out.write(buffer, offset, length)
+		outPosition += length
+	}
+
+	@Override
+	void setLength(long length) throws IOException {
+		closeStream()
+		truncate(length)
+	}
+
+	@Override
+	void close() throws IOException {
+		closeStream()
+	}
+
+	private void truncate(long length) {
+		NfsSetAttributes attributes = new NfsSetAttributes()
+		attributes.setSize(length)
+		file.setAttributes(attributes)
+	}
+
+	private void closeStream() {
+		if(out != null) {
+			out.flush()
+			out.close()
+			out = null
+			outPosition = -1
+		}
+	}
+}
@@ -18,12 +18,16 @@ package com.bertramlabs.plugins.karman.nfs
 
 import com.bertramlabs.plugins.karman.Directory
 import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.util.DaemonThreadFactory
 import com.emc.ecs.nfsclient.nfs.NfsReaddirRequest
 import com.emc.ecs.nfsclient.nfs.io.Nfs3File
 import com.emc.ecs.nfsclient.nfs.nfs3.Nfs3
 import com.emc.ecs.nfsclient.rpc.CredentialUnix
 import groovy.util.logging.Commons
 
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
 @Commons
 /**
  * Provides an NFSv3 specification implementation for Karman and utilizing karman to manage files on the NFSv3 share
@@ -44,6 +48,20 @@ class NfsStorageProvider extends StorageProvider {
 	String basePath
 	String baseUrl
 
+	/**
+	 * Number of READ requests kept in flight by file input streams (0 reads one block at a time). The requests run on
+	 * {@link #getReadExecutor()}, shared by every open stream.
+	 */
+	Integer readAheadDepth = 0
+
+	/**
+	 * Number of WRITE requests kept in flight when saving a file
+	 */
+	Integer writeConcurrency = 4
+
+	private Nfs3 nfsClient
+	private ExecutorService readExecutor
+
 	public NfsStorageProvider(Map options) {
 		basePath = options.basePath ?: basePath
 		baseUrl  = options.baseUrl  ?: baseUrl
@@ -54,14 +72,43 @@ class NfsStorageProvider extends StorageProvider {
 		username = options.username
 		password = options.password
 		this.exportFolder = options.exportFolder
+		readAheadDepth = options.readAheadDepth ?: readAheadDepth
+		writeConcurrency = options.writeConcurrency ?: writeConcurrency
 	}
 	Directory getDirectory(String name) {
 		new NfsDirectory(name: name, provider: this, baseFile: new Nfs3File(getNfsClient(),name))
 	}
 
 
-	Nfs3 getNfsClient() {
-		new Nfs3(host,exportFolder,new CredentialUnix(0,0,[] as Set),3)
+	/**
+	 * Returns the client shared by all directories and files of this provider. The export is only mounted once
+	 * and every request is multiplexed over the same RPC connection.
+	 */
+	synchronized Nfs3 getNfsClient() {
+		if(nfsClient == null) {
+			nfsClient = new Nfs3(host,exportFolder,new CredentialUnix(0,0,[] as Set),3)
+		}
+		return nfsClient
+	}
+
+	/**
+	 * Returns the executor running the read ahead requests of every input stream of this provider, created on first
+	 * use with {@code readAheadDepth} threads and stopped by {@link #shutdown()}.
+	 */
+	synchronized ExecutorService getReadExecutor() {
+		if(readExecutor == null) {
+			readExecutor = Executors.newFixedThreadPool(Math.max(1, readAheadDepth ?: 1), new DaemonThreadFactory("karman-nfs-read"))
+		}
+		return readExecutor
+	}
+
+	@Override
+	public void shutdown() {
+		synchronized(this) {
+			readExecutor?.shutdownNow()
+			readExecutor = null
+			nfsClient = null
+		}
 	}
 
 
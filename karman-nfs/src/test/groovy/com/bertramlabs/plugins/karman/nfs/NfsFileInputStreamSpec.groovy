@@ -0,0 +1,194 @@
+package com.bertramlabs.plugins.karman.nfs
+
+import com.emc.ecs.nfsclient.nfs.NfsFsInfo
+import com.emc.ecs.nfsclient.nfs.NfsFsInfoResponse
+import com.emc.ecs.nfsclient.nfs.NfsReadResponse
+import com.emc.ecs.nfsclient.nfs.io.NfsFile
+import com.emc.ecs.nfsclient.rpc.Xdr
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+class NfsFileInputStreamSpec extends Specification {
+	static final int RTMAX = 65536
+
+	byte[] data
+	AtomicInteger inFlight = new AtomicInteger()
+	AtomicInteger maxInFlight = new AtomicInteger()
+	ExecutorService executor
+
+	def setup() {
+		data = new byte[RTMAX * 15 + 3]
+		new Random(1).nextBytes(data)
+		executor = Executors.newFixedThreadPool(8)
+	}
+
+	def cleanup() {
+		executor.shutdownNow()
+	}
+
+	@Unroll
+	def "a read ahead depth of #depth returns the file in order with short reads #shortReads"() {
+		given:
+		NfsFileInputStream stream = new NfsFileInputStream(nfsFile(shortReads), 0, Integer.MAX_VALUE, depth, depth ? executor : null)
+
+		when:
+		byte[] content = readAll(stream)
+
+		then:
+		content == data
+		stream.read() == -1
+		maxInFlight.get() <= Math.max(1, depth)
+		depth < 2 || maxInFlight.get() > 1
+
+		cleanup:
+		stream.close()
+
+		where:
+		depth | shortReads
+		0     | false
+		1     | false
+		4     | false
+		4     | true
+	}
+
+	def "skip and an initial offset read ahead from the new position"() {
+		given:
+		NfsFileInputStream stream = new NfsFileInputStream(nfsFile(false), 100, Integer.MAX_VALUE, 3, executor)
+		byte[] buffer = new byte[10]
+
+		expect:
+		stream.skip(200000) == 200000
+		stream.read(buffer) == 10
+		buffer == Arrays.copyOfRange(data, 200100, 200110)
+
+		cleanup:
+		stream.close()
+	}
+
+	def "closing a stream leaves the shared executor running for the other streams"() {
+		given:
+		NfsFileInputStream first = new NfsFileInputStream(nfsFile(false), 0, Integer.MAX_VALUE, 4, executor)
+		NfsFileInputStream second = new NfsFileInputStream(nfsFile(false), 0, Integer.MAX_VALUE, 4, executor)
+
+		when:
+		first.read()
+		first.close()
+
+		then:
+		!executor.isShutdown()
+		readAll(second) == data
+
+		cleanup:
+		second.close()
+	}
+
+	def "read ahead needs an executor"() {
+		when:
+		new NfsFileInputStream(nfsFile(false), 0, Integer.MAX_VALUE, 2, null)
+
+		then:
+		thrown(IllegalArgumentException)
+	}
+
+	def "the provider executor is shared and stopped by shutdown"() {
+		given:
+		NfsStorageProvider provider = new NfsStorageProvider(readAheadDepth: 3)
+		ExecutorService readExecutor = provider.readExecutor
+
+		expect:
+		provider.readExecutor.is(readExecutor)
+
+		when:
+		provider.shutdown()
+
+		then:
+		readExecutor.isShutdown()
+		!provider.readExecutor.is(readExecutor)
+
+		cleanup:
+		provider.shutdown()
+	}
+
+	private NfsFile nfsFile(boolean shortReads) {
+		NfsFsInfoResponse fsInfoResponse = new FsInfoResponse(fsInfo(RTMAX))
+		//a map coerced file rather than a Spock stub, whose invocations are serialized
+		return [
+			canRead: { -> true },
+			fsinfo: { -> fsInfoResponse },
+			length: { -> (long) data.length },
+			getAbsolutePath: { -> '/spec' },
+			read: { long offset, int length, byte[] bytes, int position ->
+				int current = inFlight.incrementAndGet()
+				synchronized(maxInFlight) {
+					maxInFlight.set(Math.max(maxInFlight.get(), current))
+				}
+				Thread.sleep(5)
+				int count = (int) Math.max(0, Math.min(shortReads ? Math.min(length, 1000) : length, data.length - offset))
+				System.arraycopy(data, (int) offset, bytes, position, count)
+				inFlight.decrementAndGet()
+				return new ReadResponse(bytes, count, offset + count >= data.length)
+			}
+		] as NfsFile
+	}
+
+	private static byte[] readAll(InputStream stream) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		byte[] buffer = new byte[7777]
+		int count
+		while((count = stream.read(buffer)) != -1) {
+			out.write(buffer, 0, count)
+		}
+		return out.toByteArray()
+	}
+
+	/**
+	 * FSINFO result with the given transfer sizes, decoded from its XDR form like a server response
+	 */
+	static NfsFsInfo fsInfo(long transferSize) {
+		Xdr xdr = new Xdr(128)
+		6.times { xdr.putUnsignedInt(transferSize) }
+		xdr.putUnsignedInt(4096)
+		xdr.putLong(Long.MAX_VALUE)
+		xdr.putUnsignedInt(0)
+		xdr.putUnsignedInt(1)
+		xdr.putUnsignedInt(0)
+		xdr.setOffset(0)
+		return new NfsFsInfo(xdr)
+	}
+}
+
+class FsInfoResponse extends NfsFsInfoResponse {
+	private final NfsFsInfo fsInfo
+
+	FsInfoResponse(NfsFsInfo fsInfo) {
+		super(3)
+		this.fsInfo = fsInfo
+	}
+
+	NfsFsInfo getFsInfo() {
+		return fsInfo
+	}
+}
+
+class ReadResponse extends NfsReadResponse {
+	private final int bytesRead
+	private final boolean eof
+
+	ReadResponse(byte[] bytes, int bytesRead, boolean eof) {
+		super(bytes, 0, 3)
+		this.bytesRead = bytesRead
+		this.eof = eof
+	}
+
+	int getBytesRead() {
+		return bytesRead
+	}
+
+	boolean isEof() {
+		return eof
+	}
+}
@@ -0,0 +1,216 @@
+package com.bertramlabs.plugins.karman.nfs
+
+import com.emc.ecs.nfsclient.nfs.NfsCommitResponse
+import com.emc.ecs.nfsclient.nfs.NfsFsInfoResponse
+import com.emc.ecs.nfsclient.nfs.NfsSetAttributes
+import com.emc.ecs.nfsclient.nfs.NfsWriteRequest
+import com.emc.ecs.nfsclient.nfs.NfsWriteResponse
+import com.emc.ecs.nfsclient.nfs.io.NfsFile
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+class NfsPipelinedWriterSpec extends Specification {
+	static final int WTMAX = 65536
+
+	byte[] data
+	byte[] content = new byte[0]
+	boolean existing = true
+	boolean shortWrites = false
+	boolean acceptNothing = false
+	long verifier = 7
+	Long commitVerifier
+	Integer changeVerifierAtWrite
+	int created = 0
+	List<Integer> stableModes = Collections.synchronizedList([])
+	List<Long> offsets = Collections.synchronizedList([])
+	List<Integer> lengths = Collections.synchronizedList([])
+	AtomicInteger writes = new AtomicInteger()
+	AtomicInteger commits = new AtomicInteger()
+	AtomicInteger inFlight = new AtomicInteger()
+	AtomicInteger maxInFlight = new AtomicInteger()
+
+	def setup() {
+		data = new byte[WTMAX * 10 + 3]
+		new Random(2).nextBytes(data)
+	}
+
+	@Unroll
+	def "#concurrency writes in flight with short writes #shortWrites store the stream with one COMMIT"() {
+		given:
+		this.shortWrites = shortWrites
+
+		when:
+		long written = new NfsPipelinedWriter(nfsFile(), concurrency).write(new ByteArrayInputStream(data))
+
+		then:
+		written == data.length
+		content == data
+		commits.get() == 1
+		stableModes.every { it == NfsWriteRequest.UNSTABLE }
+		maxInFlight.get() <= concurrency
+		concurrency == 1 || maxInFlight.get() > 1
+
+		where:
+		concurrency | shortWrites
+		1           | false
+		4           | false
+		4           | true
+	}
+
+	def "writes are aligned to the server's maximum write size"() {
+		when:
+		new NfsPipelinedWriter(nfsFile(), 3).write(new ByteArrayInputStream(data))
+
+		then:
+		offsets.sort() == (0..10).collect { it * (long) WTMAX }
+		lengths.sort() == [3] + [WTMAX] * 10
+	}
+
+	def "an existing file is truncated and an empty stream is not committed"() {
+		given:
+		content = new byte[100]
+
+		when:
+		long written = new NfsPipelinedWriter(nfsFile(), 2).write(new ByteArrayInputStream(new byte[0]))
+
+		then:
+		written == 0
+		content.length == 0
+		created == 0
+		commits.get() == 0
+	}
+
+	def "a missing file is created"() {
+		given:
+		existing = false
+
+		when:
+		new NfsPipelinedWriter(nfsFile(), 2).write(new ByteArrayInputStream(data))
+
+		then:
+		created == 1
+		content == data
+	}
+
+	def "a write verifier changing between writes fails the write before the COMMIT"() {
+		given:
+		changeVerifierAtWrite = 5
+
+		when:
+		new NfsPipelinedWriter(nfsFile(), 4).write(new ByteArrayInputStream(data))
+
+		then:
+		IOException e = thrown()
+		e.message.contains('Write verifier of /spec changed')
+		commits.get() == 0
+	}
+
+	def "a COMMIT returning another verifier than the writes fails the write"() {
+		given:
+		commitVerifier = 8
+
+		when:
+		new NfsPipelinedWriter(nfsFile(), 4).write(new ByteArrayInputStream(data))
+
+		then:
+		IOException e = thrown()
+		e.message.contains('Write verifier of /spec changed')
+		commits.get() == 1
+	}
+
+	def "a write accepting no data fails instead of looping"() {
+		given:
+		acceptNothing = true
+
+		when:
+		new NfsPipelinedWriter(nfsFile(), 2).write(new ByteArrayInputStream(data))
+
+		then:
+		IOException e = thrown()
+		e.message.contains('Server accepted no data')
+	}
+
+	private NfsFile nfsFile() {
+		NfsFsInfoResponse fsInfoResponse = new FsInfoResponse(NfsFileInputStreamSpec.fsInfo(WTMAX))
+		//a map coerced file rather than a Spock stub, whose invocations are serialized
+		return [
+			getPath: { -> '/spec' },
+			exists: { -> existing },
+			createNewFile: { ->
+				created++
+				existing = true
+				return true
+			},
+			setAttributes: { NfsSetAttributes attributes ->
+				synchronized(this) {
+					content = Arrays.copyOf(content, (int) attributes.@_size)
+				}
+			},
+			fsinfo: { -> fsInfoResponse },
+			write: { long offset, List<ByteBuffer> payload, int stableHow ->
+				int current = inFlight.incrementAndGet()
+				synchronized(maxInFlight) {
+					maxInFlight.set(Math.max(maxInFlight.get(), current))
+				}
+				try {
+					int write = writes.incrementAndGet()
+					stableModes << stableHow
+					offsets << offset
+					Thread.sleep(10)
+					ByteBuffer buffer = payload[0]
+					lengths << buffer.remaining()
+					int count = acceptNothing ? 0 : (shortWrites ? Math.min(buffer.remaining(), 3000) : buffer.remaining())
+					synchronized(this) {
+						if(content.length < offset + count) {
+							content = Arrays.copyOf(content, (int) (offset + count))
+						}
+						buffer.get(content, (int) offset, count)
+					}
+					long writeVerifier = changeVerifierAtWrite != null && write >= changeVerifierAtWrite ? verifier + 1 : verifier
+					return new WriteResponse(count, writeVerifier)
+				} finally {
+					inFlight.decrementAndGet()
+				}
+			},
+			commit: { long offset, int count ->
+				commits.incrementAndGet()
+				return new CommitResponse(commitVerifier != null ? commitVerifier : verifier)
+			}
+		] as NfsFile
+	}
+}
+
+class WriteResponse extends NfsWriteResponse {
+	private final int count
+	private final long verifier
+
+	WriteResponse(int count, long verifier) {
+		super(3)
+		this.count = count
+		this.verifier = verifier
+	}
+
+	int getCount() {
+		return count
+	}
+
+	long getVerf() {
+		return verifier
+	}
+}
+
+class CommitResponse extends NfsCommitResponse {
+	private final long verifier
+
+	CommitResponse(long verifier) {
+		super(3)
+		this.verifier = verifier
+	}
+
+	long getVerf() {
+		return verifier
+	}
+}
@@ -14,10 +14,7 @@ import org.apache.http.client.methods.HttpPut
 import org.apache.http.client.utils.URIBuilder
 import org.apache.http.entity.InputStreamEntity
 import org.apache.http.entity.StringEntity
-import org.apache.http.impl.client.DefaultHttpClient
 import org.apache.http.message.BasicHeader
-import org.apache.http.params.HttpConnectionParams
-import org.apache.http.params.HttpParams
 import org.apache.http.util.EntityUtils
 import com.bertramlabs.plugins.karman.util.ChunkedInputStream
 
@@ -169,10 +166,7 @@ class OpenstackCloudFile extends CloudFile {
 			HttpGet request = new HttpGet(uriBuilder.build())
 			request.addHeader("Accept", "application/json")
 			request.addHeader(new BasicHeader('X-Auth-Token', openstackProvider.getToken()))
-			HttpClient client = new DefaultHttpClient()
-			HttpParams params = client.getParams()
-			HttpConnectionParams.setConnectionTimeout(params, 30000)
-			HttpConnectionParams.setSoTimeout(params, 20000)
+			HttpClient client = openstackProvider.httpTransport.client
 			HttpResponse response = client.execute(request)
 
 			openstackMeta = response.getAllHeaders()?.collectEntries() { Header header ->
@@ -250,12 +244,10 @@ class OpenstackCloudFile extends CloudFile {
 			request.setEntity(new InputStreamEntity(writeStream, this.getContentLength()))
 
 
-			HttpClient client = new DefaultHttpClient()
-			HttpParams params = client.getParams()
-			HttpConnectionParams.setConnectionTimeout(params, 30000)
-			HttpConnectionParams.setSoTimeout(params, 20000)
+			HttpClient client = openstackProvider.httpTransport.client
 
 			HttpResponse response = client.execute(request)
+			EntityUtils.consume(response.entity)
 			if(response.statusLine.statusCode != 201) {
 				//Successfully Created File
 				return false
@@ -285,12 +277,10 @@ class OpenstackCloudFile extends CloudFile {
 				HttpPut req = getObjectStoreConnection(token, openstackProvider, segment, openstackMeta)
 				req.setEntity(new InputStreamEntity(cis, -1))
 
-				HttpClient client = new DefaultHttpClient()
-				HttpParams params = client.getParams()
-				HttpConnectionParams.setConnectionTimeout(params, 30000)
-				HttpConnectionParams.setSoTimeout(params, 20000)
+				HttpClient client = openstackProvider.httpTransport.client
 
 				HttpResponse response = client.execute(req)
+				EntityUtils.consume(response.entity)
 				if(response.statusLine.statusCode != 201) {
 					return false
 				}
@@ -313,12 +303,10 @@ class OpenstackCloudFile extends CloudFile {
 			log.debug("Writing manifest for ${name}")
 			HttpPut req = getObjectStoreConnection(token, openstackProvider, null, headers)
 
-			HttpClient client = new DefaultHttpClient()
-			HttpParams params = client.getParams()
-			HttpConnectionParams.setConnectionTimeout(params, 30000)
-			HttpConnectionParams.setSoTimeout(params, 20000)
+			HttpClient client = openstackProvider.httpTransport.client
 
 			HttpResponse response = client.execute(req)
+			EntityUtils.consume(response.entity)
 			if(response.statusLine.statusCode != 201) {
 				return false
 			}
@@ -374,12 +362,10 @@ class OpenstackCloudFile extends CloudFile {
 			}
 		}
 
-		HttpClient client = new DefaultHttpClient()
-		HttpParams params = client.getParams()
-		HttpConnectionParams.setConnectionTimeout(params, 30000)
-		HttpConnectionParams.setSoTimeout(params, 20000)
+		HttpClient client = openstackProvider.httpTransport.client
 
 		HttpResponse response = client.execute(request)
+		EntityUtils.consume(response.entity)
 		if(response.statusLine.statusCode != 201) {
 			return false
 		}
@@ -420,12 +406,10 @@ class OpenstackCloudFile extends CloudFile {
 			HttpHead request = new HttpHead(uriBuilder.build())
 			request.addHeader("Accept", "application/json")
 			request.addHeader(new BasicHeader('X-Auth-Token', openstackProvider.getToken()))
-			HttpClient client = new DefaultHttpClient()
-			HttpParams params = client.getParams()
-			HttpConnectionParams.setConnectionTimeout(params, 30000)
-			HttpConnectionParams.setSoTimeout(params, 20000)
+			HttpClient client = openstackProvider.httpTransport.client
 			HttpResponse response = client.execute(request)
 			if(response.statusLine.statusCode == 404) {
+				EntityUtils.consume(response.entity)
 				existsFlag = false
 				return
 			}
@@ -1,6 +1,7 @@
 package com.bertramlabs.plugins.karman.openstack
 import com.bertramlabs.plugins.karman.CloudFile
 import com.bertramlabs.plugins.karman.Directory
+import com.bertramlabs.plugins.karman.ListingPage
 import groovy.json.JsonSlurper
 import org.apache.http.HttpEntity
 import org.apache.http.HttpResponse
@@ -10,10 +11,7 @@ import org.apache.http.client.methods.HttpPut
 import org.apache.http.client.methods.HttpDelete
 import org.apache.http.client.methods.HttpHead
 import org.apache.http.client.utils.URIBuilder
-import org.apache.http.impl.client.DefaultHttpClient
 import org.apache.http.message.BasicHeader
-import org.apache.http.params.HttpConnectionParams
-import org.apache.http.params.HttpParams
 import org.apache.http.util.EntityUtils
 
 /**
@@ -34,10 +32,7 @@ class OpenstackDirectory extends Directory {
 		request.addHeader("Accept", "application/json")
 		request.addHeader(new BasicHeader('X-Auth-Token', openstackProvider.getToken()))
 
-		HttpClient client = new DefaultHttpClient()
-		HttpParams params = client.getParams()
-		HttpConnectionParams.setConnectionTimeout(params, 30000)
-		HttpConnectionParams.setSoTimeout(params, 20000)
+		HttpClient client = openstackProvider.httpTransport.client
 		HttpResponse response = client.execute(request)
 		EntityUtils.consume(response.entity)
 		if(response.statusLine.statusCode == 200) {
@@ -53,11 +48,40 @@ class OpenstackDirectory extends Directory {
 	 * @return List
 	 */
 	List listFiles(options = [:]) {
+		return listObjects(options)?.collect { meta ->
+			cloudFileFromOpenstackMeta(meta)
+		}
+	}
+
+	/**
+	 * List a single page of bucket files. The name of the last object (or subdir) of a full page is used as the
+	 * marker of the next page
+	 * @param options (prefix, delimiter, pageSize and continuationToken)
+	 * @return ListingPage
+	 */
+	ListingPage listFilesPage(Map options = [:]) {
+		Integer pageSize = (options?.pageSize ?: DEFAULT_PAGE_SIZE) as Integer
+		Map queryParams = options ? new LinkedHashMap(options) : [:]
+		queryParams.remove('pageSize')
+		queryParams.remove('continuationToken')
+		queryParams.limit = pageSize
+		if(options?.continuationToken) {
+			queryParams.marker = options.continuationToken
+		}
+		List objects = listObjects(queryParams) ?: []
+		String nextMarker = null
+		if(objects.size() >= pageSize) {
+			nextMarker = objects.last().subdir ?: objects.last().name
+		}
+		return new ListingPage(files: objects.collect { meta -> cloudFileFromOpenstackMeta(meta) }, continuationToken: nextMarker)
+	}
+
+	private List listObjects(Map queryParams) {
 		OpenstackStorageProvider openstackProvider = (OpenstackStorageProvider) provider
 		URI listUri
 		URIBuilder uriBuilder = new URIBuilder("${openstackProvider.getEndpointUrl()}/${name}".toString())
 
-		options?.each { entry ->
+		queryParams?.each { entry ->
 			uriBuilder.addParameter(entry.key,entry.value?.toString())
 		}
 
@@ -67,18 +91,15 @@ class OpenstackDirectory extends Directory {
 
 		request.addHeader("Accept", "application/json")
 		request.addHeader(new BasicHeader('X-Auth-Token', openstackProvider.getToken()))
-		HttpClient client = new DefaultHttpClient()
-		HttpParams params = client.getParams()
-		HttpConnectionParams.setConnectionTimeout(params, 30000)
-		HttpConnectionParams.setSoTimeout(params, 20000)
+		HttpClient client = openstackProvider.httpTransport.client
 		HttpResponse response = client.execute(request)
 
 		HttpEntity responseEntity = response.getEntity()
-		def jsonBody = new JsonSlurper().parse(new InputStreamReader(responseEntity.content))
-		return jsonBody?.collect { meta ->
-			cloudFileFromOpenstackMeta(meta)
+		try {
+			return new JsonSlurper().parse(new InputStreamReader(responseEntity.content)) as List
+		} finally {
+			EntityUtils.consume(responseEntity)
 		}
-		EntityUtils.consume(responseEntity)
 	}
 
 	/**
@@ -92,10 +113,7 @@ class OpenstackDirectory extends Directory {
 		request.addHeader("Accept", "application/json")
 		request.addHeader(new BasicHeader('X-Auth-Token', openstackProvider.getToken()))
 
-		HttpClient client = new DefaultHttpClient()
-		HttpParams params = client.getParams()
-		HttpConnectionParams.setConnectionTimeout(params, 30000)
-		HttpConnectionParams.setSoTimeout(params, 20000)
+		HttpClient client = openstackProvider.httpTransport.client
 		HttpResponse response = client.execute(request)
 		EntityUtils.consume(response.entity)
 		if(response.statusLine.statusCode == 200) {
@@ -113,10 +131,7 @@ class OpenstackDirectory extends Directory {
 		request.addHeader("Accept", "application/json")
 		request.addHeader(new BasicHeader('X-Auth-Token', openstackProvider.getToken()))
 
-		HttpClient client = new DefaultHttpClient()
-		HttpParams params = client.getParams()
-		HttpConnectionParams.setConnectionTimeout(params, 30000)
-		HttpConnectionParams.setSoTimeout(params, 20000)
+		HttpClient client = openstackProvider.httpTransport.client
 		HttpResponse response = client.execute(request)
 		EntityUtils.consume(response.entity)
 		if(response.statusLine.statusCode == 200) {
@@ -2,6 +2,7 @@ package com.bertramlabs.plugins.karman.openstack
 
 import com.bertramlabs.plugins.karman.Directory
 import com.bertramlabs.plugins.karman.StorageProvider
+import com.bertramlabs.plugins.karman.util.HttpTransport
 import groovy.json.JsonBuilder
 import groovy.json.JsonSlurper
 import groovy.util.logging.Commons
@@ -11,10 +12,7 @@ import org.apache.http.client.HttpClient
 import org.apache.http.client.methods.HttpGet
 import org.apache.http.client.methods.HttpPost
 import org.apache.http.entity.StringEntity
-import org.apache.http.impl.client.DefaultHttpClient
 import org.apache.http.message.BasicHeader
-import org.apache.http.params.HttpConnectionParams
-import org.apache.http.params.HttpParams
 import org.apache.http.util.EntityUtils
 import org.apache.http.client.utils.URIBuilder
 
@@ -56,6 +54,35 @@ public class OpenstackStorageProvider extends StorageProvider {
 	Long chunkSize = 0l
 	Map accessInfo
 	String serviceApiEndpoint
+	Integer maxConnections = 100
+	Integer maxConnectionsPerRoute = 50
+	Integer connectionRequestTimeout = 30000
+
+	private HttpTransport httpTransport
+
+	/**
+	 * Pooled HTTP client shared by every request made through this provider
+	 */
+	synchronized HttpTransport getHttpTransport() {
+		if(httpTransport == null) {
+			httpTransport = new HttpTransport(
+				maxConnections: maxConnections,
+				maxConnectionsPerRoute: maxConnectionsPerRoute,
+				connectionRequestTimeout: connectionRequestTimeout,
+				connectTimeout: 30000,
+				socketTimeout: 20000,
+				provider: this
+			)
+		}
+		return httpTransport
+	}
+
+	public void shutdown() {
+		synchronized(this) {
+			httpTransport?.close()
+			httpTransport = null
+		}
+	}
 
 	protected Boolean authenticate() {
 		try {
@@ -77,10 +104,7 @@ public class OpenstackStorageProvider extends StorageProvider {
 				HttpPost authPost = new HttpPost(uriBuilder.build())
 				authPost.addHeader("Content-Type","application/json");
 				authPost.setEntity(new StringEntity(new JsonBuilder(authMap).toString()))
-				HttpClient client = new DefaultHttpClient()
-				HttpParams params = client.getParams()
-				HttpConnectionParams.setConnectionTimeout(params, 30000)
-				HttpConnectionParams.setSoTimeout(params, 20000)
+				HttpClient client = getHttpTransport().client
 				response = client.execute(authPost)
 				HttpEntity responseEntity = response.getEntity();
 				if(response.getStatusLine().statusCode != 200) {
@@ -98,10 +122,7 @@ public class OpenstackStorageProvider extends StorageProvider {
 				authGet.addHeader("Content-Type","application/json");
 				authGet.addHeader("X-Auth-User",this.username)
 				authGet.addHeader("X-Auth-Key",this.apiKey)
-				HttpClient client = new DefaultHttpClient()
-				HttpParams params = client.getParams()
-				HttpConnectionParams.setConnectionTimeout(params, 30000)
-				HttpConnectionParams.setSoTimeout(params, 20000)
+				HttpClient client = getHttpTransport().client
 				response = client.execute(authGet)
 				HttpEntity responseEntity = response.getEntity();
 				if(response.getStatusLine().statusCode != 200) {
@@ -147,10 +168,7 @@ public class OpenstackStorageProvider extends StorageProvider {
 		request.addHeader("Accept", "application/json")
 		request.addHeader(new BasicHeader('X-Auth-Token', getToken()))
 		request.addHeader("X-Account-Meta-Temp-Url-Key", tempUrlKey)
-		HttpClient client = new DefaultHttpClient()
-		HttpParams params = client.getParams()
-		HttpConnectionParams.setConnectionTimeout(params, 30000)
-		HttpConnectionParams.setSoTimeout(params, 20000)
+		HttpClient client = getHttpTransport().client
 		HttpResponse response = client.execute(request)
 		EntityUtils.consume(response.entity)
 		if(response.statusLine.statusCode >= 300 || response.statusLine.statusCode < 200) {
@@ -218,10 +236,7 @@ public class OpenstackStorageProvider extends StorageProvider {
 
 		request.addHeader("Accept", "application/json")
 		request.addHeader(new BasicHeader('X-Auth-Token', getToken()))
-		HttpClient client = new DefaultHttpClient()
-		HttpParams params = client.getParams()
-		HttpConnectionParams.setConnectionTimeout(params, 30000)
-		HttpConnectionParams.setSoTimeout(params, 20000)
+		HttpClient client = getHttpTransport().client
 		HttpResponse response = client.execute(request)
 
 		if(response.statusLine.statusCode != 200) {